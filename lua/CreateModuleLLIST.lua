@@ -44,6 +44,9 @@ local llist          = require('ldt/lib_llist');
 -- LDT Errors
 local ldte           = require('ldt/ldt_errors');
 
+-- The Expire Watermark Bin (see IAppConstants.WATERMARK_BIN)
+local WATERMARK_BIN = "minExpire";
+
 -- ======================================================================
 -- adjust_settings()
 -- Set this LLIST for best performance using
@@ -73,35 +76,285 @@ function userModule.adjust_settings( ldtMap )
 end -- adjust_settings()
 
 -- ========================================================================
--- expire( topRec, binName, expireVal )
+-- visit_filter( liveObject, spec )
+-- ========================================================================
+-- LLIST FILTER FUNCTION:: the Site Visit query predicate and projection (see
+-- VisitFilter.java).  Every entry of the spec map is optional:
+-- (*) minExpire: drop the visits with expire (key) < minExpire
+-- (*) urlPrefix: keep the visits whose URL starts with this
+-- (*) referrer:  keep the visits with this referrer
+-- (*) fromDate, toDate: keep the visits with fromDate <= date <= toDate
+-- (*) fields:    return only these fields (plus "key") of each visit
+-- Return: the (projected) object, or nil when it doesn't match.
+-- ========================================================================
+function userModule.visit_filter( liveObject, spec )
+  if liveObject == nil then
+    return nil;
+  end
+  if spec == nil then
+    return liveObject;
+  end
+
+  local minExpire = spec["minExpire"];
+  if minExpire ~= nil then
+    local objExpire = liveObject["key"];
+    if objExpire == nil or objExpire < minExpire then
+      return nil;
+    end
+  end
+
+  local urlPrefix = spec["urlPrefix"];
+  if urlPrefix ~= nil then
+    local url = liveObject["URL"];
+    if url == nil or string.sub(url, 1, string.len(urlPrefix)) ~= urlPrefix then
+      return nil;
+    end
+  end
+
+  local referrer = spec["referrer"];
+  if referrer ~= nil and liveObject["referrer"] ~= referrer then
+    return nil;
+  end
+
+  local fromDate = spec["fromDate"];
+  local toDate = spec["toDate"];
+  if fromDate ~= nil or toDate ~= nil then
+    local date = liveObject["date"];
+    if date == nil then
+      return nil;
+    end
+    if (fromDate ~= nil and date < fromDate) or
+       (toDate ~= nil and date > toDate) then
+      return nil;
+    end
+  end
+
+  local fields = spec["fields"];
+  if fields == nil or #fields == 0 then
+    return liveObject;
+  end
+  local result = map();
+  result["key"] = liveObject["key"];
+  for i = 1, #fields do
+    result[fields[i]] = liveObject[fields[i]];
+  end
+  return result;
+end -- visit_filter()
+
+-- ========================================================================
+-- expire( topRec, binName, expireVal, horizon )
 -- ========================================================================
--- LLIST FILTER FUNCTION:: for Scan UDF calls.
+-- Record UDF:: for Scan UDF calls (the cleaner).
 -- ========================================================================
 -- Scan the LDT, locate all elements older than the expireVal, then
--- remove them.
+-- remove them.  The record's Expire Watermark (the "minExpire" bin) is a
+-- lower bound on the expire values in the LDT:  when it is not yet below
+-- expireVal there is nothing to do, so we don't even open the LDT.  After
+-- the clean, we set the Watermark to the next expire value (looking no
+-- further than "horizon", when one is given).
 -- ========================================================================
-function userModule.expire( topRec, binName, expireVal )
+function expire( topRec, binName, expireVal, horizon )
   local meth = "expire";
   GP=F and info("[ENTER]<%s:%s>BinNameType(%s) expireVal(%s)",
     MOD, meth, tostring(binName), tostring(expireVal));
 
-  if ( llist.ldt_exists( topRec, binName, "LLIST" )  == 1 ) then 
-    local scanList = llist.scan(topRec, binName);
-    GP=F and info("[DEBUG]<%s:%s> ScanList Shows: %s",
-      MOD, meth, tostring(scanList));
+  local watermark = topRec[WATERMARK_BIN];
+  if watermark ~= nil and watermark >= expireVal then
+    GP=F and info("[EXIT]<%s:%s> Watermark(%s) not due", MOD, meth,
+      tostring(watermark));
+    return 0;
+  end
 
+  local removeCount = 0;
+  if ( llist.ldt_exists( topRec, binName, "LLIST" )  == 1 ) then 
     local expireList = llist.range(topRec, binName, nil, expireVal);
     GP=F and info("[DEBUG]<%s:%s> ExpireList Shows: %s",
       MOD, meth, tostring(expireList));
 
-    for i = i, #expireList do
+    for i = 1, #expireList do
       llist.remove(topRec, binName, expireList[i]);
     end
+    removeCount = #expireList;
+
+    if horizon ~= nil and horizon > 0 then
+      local nextList = llist.range(topRec, binName, expireVal, horizon);
+      if #nextList > 0 then
+        topRec[WATERMARK_BIN] = nextList[1].key;
+      else
+        topRec[WATERMARK_BIN] = horizon;
+      end
+      aerospike:update(topRec);
+    end
   end -- end if exists
 
-  GP=F and info("[EXIT]<%s:%s>", MOD, meth );
+  GP=F and info("[EXIT]<%s:%s> Removed(%d)", MOD, meth, removeCount );
+  return removeCount;
 end -- llist_expire()
 
+-- The cleaner calls expire() as a Record UDF (which must be a global
+-- function), but keep it in the module table as well.
+userModule.expire = expire;
+
+-- ========================================================================
+-- add_trim( topRec, binName, newValue, maxCount, minExpire, purgeLimit )
+-- ========================================================================
+-- Record UDF:: Insert a Site Visit and trim the LDT in the SAME call.
+-- ========================================================================
+-- Add "newValue" to the LLIST, then evict the oldest (lowest expire)
+-- elements that are past the cap:
+-- (*) minExpire > 0: remove the elements with an expire below minExpire
+--     (at most purgeLimit of them, when purgeLimit > 0, so that a write
+--     that lazily expires old visits does a bounded amount of extra work)
+-- (*) maxCount > 0:  once the LLIST grows past maxCount (plus some slack,
+--     so that we don't scan on every write), trim it back to maxCount.
+-- Together these give ring-buffer semantics without a cleaner scan.
+-- Either way, the record's Expire Watermark is kept a lower bound (so with
+-- zero for both, this is the plain insert that storeSiteObject() uses).
+--
+-- Return: the number of elements trimmed, or -2 on a unique key collision
+-- (so the caller can retry with a new expire value, as with llist.add()).
+-- ========================================================================
+function add_trim( topRec, binName, newValue, maxCount, minExpire, purgeLimit )
+  local meth = "add_trim";
+  GP=F and info("[ENTER]<%s:%s>Bin(%s) maxCount(%s) minExpire(%s)",
+    MOD, meth, tostring(binName), tostring(maxCount), tostring(minExpire));
+
+  local ok, err = pcall(llist.add, topRec, binName, newValue, "CreateModuleLLIST");
+  if not ok then
+    if string.find(tostring(err), "1402") then
+      return -2;
+    end
+    error(err);
+  end
+
+  local trimCount = 0;
+  if minExpire ~= nil and minExpire > 0 then
+    local expireList = llist.range(topRec, binName, nil, minExpire);
+    local purgeCount = #expireList;
+    if purgeLimit ~= nil and purgeLimit > 0 and purgeCount > purgeLimit then
+      purgeCount = purgeLimit;
+    end
+    for i = 1, purgeCount do
+      llist.remove(topRec, binName, expireList[i]);
+    end
+    trimCount = purgeCount;
+  end
+
+  if maxCount ~= nil and maxCount > 0 then
+    local size = llist.size(topRec, binName);
+    local slack = math.floor(maxCount / 10);
+    if size > maxCount + slack then
+      -- The scan comes back in key (expire) order: the oldest come first.
+      local scanList = llist.scan(topRec, binName);
+      local excess = size - maxCount;
+      for i = 1, excess do
+        llist.remove(topRec, binName, scanList[i]);
+      end
+      trimCount = trimCount + excess;
+    end
+  end
+
+  -- Keep the Expire Watermark a lower bound.  A record with no Watermark
+  -- yet gets zero ("due"), so that it is in the Watermark Index and the
+  -- next clean pass sets its real Watermark.
+  local watermark = topRec[WATERMARK_BIN];
+  if watermark == nil then
+    topRec[WATERMARK_BIN] = 0;
+    aerospike:update(topRec);
+  elseif newValue.key < watermark then
+    topRec[WATERMARK_BIN] = newValue.key;
+    aerospike:update(topRec);
+  end
+
+  GP=F and info("[EXIT]<%s:%s> Trimmed(%d)", MOD, meth, trimCount );
+  return trimCount;
+end -- add_trim()
+
+-- ========================================================================
+-- lower_watermark( topRec, minExpire )
+-- ========================================================================
+-- Record UDF:: after a bulk load of the LDT (loadFullLDT()), keep the
+-- record's Expire Watermark a lower bound:  set it to minExpire (the
+-- lowest expire value just loaded) if the record has no Watermark yet or
+-- a higher one.  That also puts the record in the Watermark Index.
+-- ========================================================================
+function lower_watermark( topRec, minExpire )
+  local meth = "lower_watermark";
+  if not aerospike:exists(topRec) then
+    return 0;
+  end
+  local watermark = topRec[WATERMARK_BIN];
+  if watermark == nil or minExpire < watermark then
+    topRec[WATERMARK_BIN] = minExpire;
+    aerospike:update(topRec);
+  end
+  GP=F and info("[EXIT]<%s:%s> Watermark(%s)", MOD, meth,
+    tostring(topRec[WATERMARK_BIN]));
+  return 0;
+end -- lower_watermark()
+
+-- ========================================================================
+-- window( topRec, binName, fromExpire, toExpire, limit )
+-- ========================================================================
+-- Record UDF:: the Site Visits with an expire value in [fromExpire,
+-- toExpire] (nil means open ended), in expire order, and no more than
+-- "limit" of them (the oldest first) when limit > 0.  Only the result
+-- goes back to the client.
+-- ========================================================================
+function window( topRec, binName, fromExpire, toExpire, limit )
+  local meth = "window";
+  GP=F and info("[ENTER]<%s:%s>Bin(%s) from(%s) to(%s) limit(%s)",
+    MOD, meth, tostring(binName), tostring(fromExpire), tostring(toExpire),
+    tostring(limit));
+
+  local resultList = list();
+  if ( llist.ldt_exists( topRec, binName, "LLIST" ) == 1 ) then
+    local rangeList = llist.range(topRec, binName, fromExpire, toExpire);
+    local count = #rangeList;
+    if limit ~= nil and limit > 0 and count > limit then
+      count = limit;
+    end
+    for i = 1, count do
+      list.append(resultList, rangeList[i]);
+    end
+  end
+
+  GP=F and info("[EXIT]<%s:%s> Result(%d)", MOD, meth, #resultList );
+  return resultList;
+end -- window()
+
+-- ========================================================================
+-- last_n( topRec, binName, count, minExpire )
+-- ========================================================================
+-- Record UDF:: the "count" most recent (highest expire) Site Visits that
+-- have not expired (expire >= minExpire), in expire order.
+-- ========================================================================
+function last_n( topRec, binName, count, minExpire )
+  local meth = "last_n";
+  GP=F and info("[ENTER]<%s:%s>Bin(%s) count(%s) minExpire(%s)",
+    MOD, meth, tostring(binName), tostring(count), tostring(minExpire));
+
+  local resultList = list();
+  if ( llist.ldt_exists( topRec, binName, "LLIST" ) == 1 ) then
+    local rangeList;
+    if minExpire ~= nil and minExpire > 0 then
+      rangeList = llist.range(topRec, binName, minExpire, nil);
+    else
+      rangeList = llist.scan(topRec, binName);
+    end
+    local first = 1;
+    if count ~= nil and count > 0 and #rangeList > count then
+      first = #rangeList - count + 1;
+    end
+    for i = first, #rangeList do
+      list.append(resultList, rangeList[i]);
+    end
+  end
+
+  GP=F and info("[EXIT]<%s:%s> Result(%d)", MOD, meth, #resultList );
+  return resultList;
+end -- last_n()
+
 -- ======================================================================
 -- Return the value of this module's table so that others importing this
 -- module get the table reference.
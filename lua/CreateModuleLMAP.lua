@@ -44,6 +44,9 @@ local lmap          = require('ldt/lib_lmap');
 -- LDT Errors
 local ldte           = require('ldt/ldt_errors');
 
+-- The Expire Watermark Bin (see IAppConstants.WATERMARK_BIN)
+local WATERMARK_BIN = "minExpire";
+
 -- ======================================================================
 -- adjust_settings()
 -- Set this LMAP for best performance using
@@ -71,43 +74,326 @@ function userModule.adjust_settings( ldtMap )
 end -- adjust_settings()
 
 -- ========================================================================
--- expire( topRec, binName, expireVal )
+-- live_filter( liveObject, minExpire )
+-- ========================================================================
+-- LMAP FILTER FUNCTION:: Keep only the Site Visits that have not expired
+-- (expire >= minExpire), so that expired visits are dropped on the server
+-- and never sent to the client.
+-- ========================================================================
+function userModule.live_filter( liveObject, minExpire )
+  if liveObject == nil then
+    return nil;
+  end
+  local objExpire = liveObject["key"];
+  if objExpire ~= nil and objExpire >= minExpire then
+    return liveObject;
+  end
+  return nil;
+end -- live_filter()
+
+-- ========================================================================
+-- visit_filter( liveObject, spec )
+-- ========================================================================
+-- LMAP FILTER FUNCTION:: the Site Visit query predicate and projection (see
+-- VisitFilter.java).  Every entry of the spec map is optional:
+-- (*) minExpire: drop the visits with expire (key) < minExpire
+-- (*) urlPrefix: keep the visits whose URL starts with this
+-- (*) referrer:  keep the visits with this referrer
+-- (*) fromDate, toDate: keep the visits with fromDate <= date <= toDate
+-- (*) fields:    return only these fields (plus "key") of each visit
+-- Return: the (projected) object, or nil when it doesn't match.
+-- ========================================================================
+function userModule.visit_filter( liveObject, spec )
+  if liveObject == nil then
+    return nil;
+  end
+  if spec == nil then
+    return liveObject;
+  end
+
+  local minExpire = spec["minExpire"];
+  if minExpire ~= nil then
+    local objExpire = liveObject["key"];
+    if objExpire == nil or objExpire < minExpire then
+      return nil;
+    end
+  end
+
+  local urlPrefix = spec["urlPrefix"];
+  if urlPrefix ~= nil then
+    local url = liveObject["URL"];
+    if url == nil or string.sub(url, 1, string.len(urlPrefix)) ~= urlPrefix then
+      return nil;
+    end
+  end
+
+  local referrer = spec["referrer"];
+  if referrer ~= nil and liveObject["referrer"] ~= referrer then
+    return nil;
+  end
+
+  local fromDate = spec["fromDate"];
+  local toDate = spec["toDate"];
+  if fromDate ~= nil or toDate ~= nil then
+    local date = liveObject["date"];
+    if date == nil then
+      return nil;
+    end
+    if (fromDate ~= nil and date < fromDate) or
+       (toDate ~= nil and date > toDate) then
+      return nil;
+    end
+  end
+
+  local fields = spec["fields"];
+  if fields == nil or #fields == 0 then
+    return liveObject;
+  end
+  local result = map();
+  result["key"] = liveObject["key"];
+  for i = 1, #fields do
+    result[fields[i]] = liveObject[fields[i]];
+  end
+  return result;
+end -- visit_filter()
+
+-- ========================================================================
+-- expire( topRec, binName, expireVal, horizon )
 -- ========================================================================
 -- Scan the LDT, locate all elements older than the expireVal, then
--- remove them.
+-- remove them.  As with LLIST, the Expire Watermark ("minExpire" bin) lets
+-- us skip the records that have nothing to expire, and after the clean we
+-- set it to the next expire value (capped at "horizon", when given).
 -- ========================================================================
-function expire( topRec, binName, expireVal )
+function expire( topRec, binName, expireVal, horizon )
   local meth = "lmap_expire";
   GP=F and info("[ENTER]<%s:%s>BinNameType(%s) expireVal(%s)",
     MOD, meth, tostring(binName), tostring(expireVal));
 
-  
+  local watermark = topRec[WATERMARK_BIN];
+  if watermark ~= nil and watermark >= expireVal then
+    return 0;
+  end
+
+  local expireList = list();
   if ( lmap.ldt_exists( topRec, binName, "LMAP" ) == 1 ) then
-    local scanList = lmap.scan(topRec, binName);
-
-    GP=F and info("[DEBUG]<%s:%s> ScanList Shows: %s", MOD, meth, tostring(scanList));
-
-    local expireList = list();
-    local objectMap
-    for i = 1, #scanList do
-      objectMap = scanList[i];
-      GP=F and info("[DEBUG]<%s:%s> Examining Object(%s) for expire value", MOD, meth,
-        objectMap);
-      if objectMap.value.expire < expireVal then
-        list.append(expireList, objectMap.name);
+    local scanMap = lmap.scan(topRec, binName);
+    local nextExpire = horizon;
+
+    -- The map key is the expire value.
+    for name, value in map.pairs(scanMap) do
+      if name < expireVal then
+        list.append(expireList, name);
+      elseif nextExpire ~= nil and name < nextExpire then
+        nextExpire = name;
       end
     end
 
     GP=F and info("[DEBUG]<%s:%s> ExpireList Shows: %s", MOD, meth, tostring(expireList));
 
-    for i = i, #expireList do
+    for i = 1, #expireList do
       lmap.remove(topRec, binName, expireList[i]);
     end
+
+    if horizon ~= nil and horizon > 0 then
+      topRec[WATERMARK_BIN] = nextExpire;
+      aerospike:update(topRec);
+    end
   end -- if ldt exists
 
   GP=F and info("[EXIT]<%s:%s>", MOD, meth );
+  return #expireList;
 end -- lmap_expire()
 
+-- ========================================================================
+-- add_trim( topRec, binName, newValue, maxCount, minExpire, purgeLimit )
+-- ========================================================================
+-- Record UDF:: Insert a Site Visit and trim the LDT in the SAME call.
+-- ========================================================================
+-- Put "newValue" in the LMAP (the map key is the expire value, held in
+-- newValue.key), then evict the oldest (lowest expire) entries that are
+-- past the cap:
+-- (*) minExpire > 0: remove the entries with an expire below minExpire
+--     (at most purgeLimit of them, when purgeLimit > 0)
+-- (*) maxCount > 0:  once the LMAP grows past maxCount (plus some slack,
+--     so that we don't scan on every write), trim it back to maxCount.
+-- Either way, the record's Expire Watermark is kept a lower bound (so with
+-- zero for both, this is the plain insert that storeSiteObject() uses).
+--
+-- Return: the number of entries trimmed, or -2 on a unique key collision.
+-- ========================================================================
+function add_trim( topRec, binName, newValue, maxCount, minExpire, purgeLimit )
+  local meth = "add_trim";
+  GP=F and info("[ENTER]<%s:%s>Bin(%s) maxCount(%s) minExpire(%s)",
+    MOD, meth, tostring(binName), tostring(maxCount), tostring(minExpire));
+
+  local ok, err = pcall(lmap.put, topRec, binName, newValue.key, newValue,
+    "CreateModuleLMAP");
+  if not ok then
+    if string.find(tostring(err), "1402") then
+      return -2;
+    end
+    error(err);
+  end
+
+  -- Keep the Expire Watermark a lower bound.  A record with no Watermark
+  -- yet gets zero ("due"), so that it is in the Watermark Index.
+  local watermark = topRec[WATERMARK_BIN];
+  if watermark == nil then
+    topRec[WATERMARK_BIN] = 0;
+    aerospike:update(topRec);
+  elseif newValue.key < watermark then
+    topRec[WATERMARK_BIN] = newValue.key;
+    aerospike:update(topRec);
+  end
+
+  local size = lmap.size(topRec, binName);
+  local slack = 0;
+  if maxCount ~= nil and maxCount > 0 then
+    slack = math.floor(maxCount / 10);
+  end
+  local overCount = (maxCount ~= nil and maxCount > 0 and
+                     size > maxCount + slack);
+  local overAge = (minExpire ~= nil and minExpire > 0);
+  if not overCount and not overAge then
+    return 0;
+  end
+
+  -- LMAP has no key order, so collect and sort the expire values.
+  local scanMap = lmap.scan(topRec, binName);
+  local keyList = {};
+  for name, value in map.pairs(scanMap) do
+    table.insert(keyList, name);
+  end
+  table.sort(keyList);
+
+  local trimCount = 0;
+  local i = 1;
+  if overAge then
+    local purgeMax = #keyList;
+    if purgeLimit ~= nil and purgeLimit > 0 then
+      purgeMax = purgeLimit;
+    end
+    while i <= #keyList and keyList[i] < minExpire and trimCount < purgeMax do
+      lmap.remove(topRec, binName, keyList[i]);
+      trimCount = trimCount + 1;
+      i = i + 1;
+    end
+  end
+  if overCount then
+    while (size - trimCount) > maxCount and i <= #keyList do
+      lmap.remove(topRec, binName, keyList[i]);
+      trimCount = trimCount + 1;
+      i = i + 1;
+    end
+  end
+
+  GP=F and info("[EXIT]<%s:%s> Trimmed(%d)", MOD, meth, trimCount );
+  return trimCount;
+end -- add_trim()
+
+-- ========================================================================
+-- sorted_keys( topRec, binName, fromExpire, toExpire )
+-- ========================================================================
+-- The expire values (map keys) in [fromExpire, toExpire] (nil means open
+-- ended), in ascending order.
+-- ========================================================================
+local function sorted_keys( topRec, binName, fromExpire, toExpire )
+  local keyList = {};
+  local scanMap = lmap.scan(topRec, binName);
+  for name, value in map.pairs(scanMap) do
+    if (fromExpire == nil or name >= fromExpire) and
+       (toExpire == nil or name <= toExpire) then
+      table.insert(keyList, name);
+    end
+  end
+  table.sort(keyList);
+  return keyList, scanMap;
+end -- sorted_keys()
+
+-- ========================================================================
+-- lower_watermark( topRec, minExpire )
+-- ========================================================================
+-- Record UDF:: after a bulk load of the LDT (loadFullLDT()), keep the
+-- record's Expire Watermark a lower bound:  set it to minExpire (the
+-- lowest expire value just loaded) if the record has no Watermark yet or
+-- a higher one.  That also puts the record in the Watermark Index.
+-- ========================================================================
+function lower_watermark( topRec, minExpire )
+  local meth = "lower_watermark";
+  if not aerospike:exists(topRec) then
+    return 0;
+  end
+  local watermark = topRec[WATERMARK_BIN];
+  if watermark == nil or minExpire < watermark then
+    topRec[WATERMARK_BIN] = minExpire;
+    aerospike:update(topRec);
+  end
+  GP=F and info("[EXIT]<%s:%s> Watermark(%s)", MOD, meth,
+    tostring(topRec[WATERMARK_BIN]));
+  return 0;
+end -- lower_watermark()
+
+-- ========================================================================
+-- window( topRec, binName, fromExpire, toExpire, limit )
+-- ========================================================================
+-- Record UDF:: the same as the LLIST window():  the Site Visits with an
+-- expire value in [fromExpire, toExpire], in expire order, and no more
+-- than "limit" of them when limit > 0.  LMAP has no key order, so we sort
+-- on the server -- but still send back only the result.
+-- ========================================================================
+function window( topRec, binName, fromExpire, toExpire, limit )
+  local meth = "window";
+  GP=F and info("[ENTER]<%s:%s>Bin(%s) from(%s) to(%s) limit(%s)",
+    MOD, meth, tostring(binName), tostring(fromExpire), tostring(toExpire),
+    tostring(limit));
+
+  local resultList = list();
+  if ( lmap.ldt_exists( topRec, binName, "LMAP" ) == 1 ) then
+    local keyList, scanMap = sorted_keys(topRec, binName, fromExpire, toExpire);
+    local count = #keyList;
+    if limit ~= nil and limit > 0 and count > limit then
+      count = limit;
+    end
+    for i = 1, count do
+      list.append(resultList, scanMap[keyList[i]]);
+    end
+  end
+
+  GP=F and info("[EXIT]<%s:%s> Result(%d)", MOD, meth, #resultList );
+  return resultList;
+end -- window()
+
+-- ========================================================================
+-- last_n( topRec, binName, count, minExpire )
+-- ========================================================================
+-- Record UDF:: the "count" most recent (highest expire) Site Visits that
+-- have not expired (expire >= minExpire), in expire order.
+-- ========================================================================
+function last_n( topRec, binName, count, minExpire )
+  local meth = "last_n";
+  GP=F and info("[ENTER]<%s:%s>Bin(%s) count(%s) minExpire(%s)",
+    MOD, meth, tostring(binName), tostring(count), tostring(minExpire));
+
+  local resultList = list();
+  if ( lmap.ldt_exists( topRec, binName, "LMAP" ) == 1 ) then
+    if minExpire ~= nil and minExpire <= 0 then
+      minExpire = nil;
+    end
+    local keyList, scanMap = sorted_keys(topRec, binName, minExpire, nil);
+    local first = 1;
+    if count ~= nil and count > 0 and #keyList > count then
+      first = #keyList - count + 1;
+    end
+    for i = first, #keyList do
+      list.append(resultList, scanMap[keyList[i]]);
+    end
+  end
+
+  GP=F and info("[EXIT]<%s:%s> Result(%d)", MOD, meth, #resultList );
+  return resultList;
+end -- last_n()
+
 
 -- ======================================================================
 -- Return the value of this module's table so that others importing this
@@ -0,0 +1,192 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The run-time Metrics for the URL Tracker application:  named counters,
+ * named gauges (a value that is set, rather than counted) and named latency
+ * histograms.  There is one AppMetrics instance per run (held by DbOps), and
+ * all threads record into it.  The whole collection is printed at the end of
+ * the run, after the phase timing stats.
+ */
+public class AppMetrics {
+	
+	// Metric Names that are shared between classes.
+	/** Latency of the Base Site Visit write (SiteVisitEntry.toStorage()). */
+	public static final String STORE_SITE_OBJECT = "storeSiteObject";
+	/** Latency of a full Segmented Cache reload. */
+	public static final String RELOAD_CACHE = "reloadCache";
+	/** Number of EmulateUser operations attempted. */
+	public static final String USER_OPS = "emulate.ops";
+	/** Number of EmulateUser operations that failed. */
+	public static final String USER_ERRORS = "emulate.errors";
+	/** The offered User load, per real and per virtual second (info). */
+	public static final String USER_ARRIVAL_RATE = "emulate.arrivalRate";
+	
+	private final ConcurrentMap<String, AtomicLong> counters;
+	private final ConcurrentMap<String, AtomicLong> gauges;
+	private final ConcurrentMap<String, LatencyHistogram> histograms;
+	private final ConcurrentMap<String, String> info;
+	
+	public AppMetrics() {
+		this.counters = new ConcurrentHashMap<String, AtomicLong>();
+		this.gauges = new ConcurrentHashMap<String, AtomicLong>();
+		this.histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+		this.info = new ConcurrentHashMap<String, String>();
+	}
+	
+	/**
+	 * Return the named counter, creating it if needed.
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+	
+	/**
+	 * Return the named gauge, creating it if needed.
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong gauge(String name) {
+		AtomicLong gauge = gauges.get(name);
+		if (gauge == null) {
+			AtomicLong newGauge = new AtomicLong();
+			gauge = gauges.putIfAbsent(name, newGauge);
+			if (gauge == null) {
+				gauge = newGauge;
+			}
+		}
+		return gauge;
+	}
+	
+	/**
+	 * Return the named latency histogram, creating it if needed.
+	 * @param name
+	 * @return
+	 */
+	public LatencyHistogram histogram(String name) {
+		LatencyHistogram histogram = histograms.get(name);
+		if (histogram == null) {
+			LatencyHistogram newHistogram = new LatencyHistogram(name);
+			histogram = histograms.putIfAbsent(name, newHistogram);
+			if (histogram == null) {
+				histogram = newHistogram;
+			}
+		}
+		return histogram;
+	}
+	
+	/**
+	 * Increment the named counter.
+	 * @param name
+	 */
+	public void increment(String name) {
+		counter(name).incrementAndGet();
+	}
+	
+	/**
+	 * Add to the named counter.
+	 * @param name
+	 * @param delta
+	 */
+	public void add(String name, long delta) {
+		counter(name).addAndGet(delta);
+	}
+	
+	/**
+	 * Set the value of the named gauge.
+	 * @param name
+	 * @param value
+	 */
+	public void setGauge(String name, long value) {
+		gauge(name).set(value);
+	}
+	
+	/**
+	 * Record a latency (from a System.nanoTime() start value) in the named
+	 * histogram.
+	 * @param name
+	 * @param startNs
+	 */
+	public void recordSince(String name, long startNs) {
+		histogram(name).record(System.nanoTime() - startNs);
+	}
+	
+	/**
+	 * Set a free-form (text) report line, such as a "top K" list.
+	 * @param name
+	 * @param text
+	 */
+	public void setInfo(String name, String text) {
+		info.put(name, text);
+	}
+	
+	public long getCount(String name) {
+		AtomicLong counter = counters.get(name);
+		return (counter == null) ? 0 : counter.get();
+	}
+	
+	public long getGauge(String name) {
+		AtomicLong gauge = gauges.get(name);
+		return (gauge == null) ? 0 : gauge.get();
+	}
+
+	/**
+	 * Show all of the metrics that we've accumulated, sorted by name.
+	 */
+	public void printStats() {
+		System.out.println("************************************************");
+		for (Map.Entry<String, AtomicLong> entry : 
+			new TreeMap<String, AtomicLong>(counters).entrySet()) 
+		{
+			System.out.printf("Counter(%s): %d\n", entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, AtomicLong> entry : 
+			new TreeMap<String, AtomicLong>(gauges).entrySet()) 
+		{
+			System.out.printf("Gauge(%s): %d\n", entry.getKey(), entry.getValue().get());
+		}
+		for (Map.Entry<String, LatencyHistogram> entry : 
+			new TreeMap<String, LatencyHistogram>(histograms).entrySet()) 
+		{
+			System.out.println("Latency " + entry.getValue().toString());
+		}
+		for (Map.Entry<String, String> entry : 
+			new TreeMap<String, String>(info).entrySet()) 
+		{
+			System.out.printf("Info(%s): %s\n", entry.getKey(), entry.getValue());
+		}
+		System.out.println("************************************************");
+	}
+
+} // end class AppMetrics
@@ -0,0 +1,195 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Record;
+
+/**
+ * Compare the batch Site Visit query (ILdtOperations.batchQuery()) with
+ * the way it is done today:  a sequential loop of processSiteQuery() calls,
+ * one per user.
+ * 
+ * Each round picks a random Customer Set and a random batch of its users,
+ * and queries their live visits both ways (alternating which goes first,
+ * so neither one always gets the warm server cache).  The two must return
+ * the same number of visits.  The times go to the histograms
+ * "batchBench.sequential" and "batchBench.batch", and we log each round and
+ * a summary with the speedup.
+ * 
+ * The spec is "users[,rounds[,parallelism]]", e.g. "500,10,16".  The
+ * dataset must already be loaded.
+ */
+public class BatchQueryBenchmark {
+	
+	// Metric Names
+	public static final String SEQUENTIAL_TIME = "batchBench.sequential";
+	public static final String BATCH_TIME = "batchBench.batch";
+	
+	private static final int DEFAULT_ROUNDS = 10;
+	private static final int DEFAULT_PARALLELISM = 16;
+	
+	private static final String CLASSNAME = "BatchQueryBenchmark";
+	
+	private Console console;
+	private DbOps dbOps;
+	private String namespace;
+	private long customerRecords;
+	private long userRecords;
+	private int batchUsers;
+	private int rounds;
+	private int parallelism;
+	private Random random = new Random();
+	
+	/**
+	 * @param console
+	 * @param dbOps
+	 * @param namespace : the namespace to query (normally Base)
+	 * @param customerRecords
+	 * @param userRecords : users per Customer Set
+	 * @param benchSpec : "users[,rounds[,parallelism]]"
+	 */
+	public BatchQueryBenchmark(Console console, DbOps dbOps, String namespace,
+			long customerRecords, long userRecords, String benchSpec) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.namespace = namespace;
+		this.customerRecords = Math.max(1, customerRecords);
+		this.userRecords = Math.max(1, userRecords);
+		String[] parts = benchSpec.split(",");
+		this.batchUsers = Integer.parseInt(parts[0].trim());
+		this.rounds = (parts.length > 1) ? Integer.parseInt(parts[1].trim()) 
+				: DEFAULT_ROUNDS;
+		this.parallelism = (parts.length > 2) 
+				? Integer.parseInt(parts[2].trim()) : DEFAULT_PARALLELISM;
+		// We can't pick more distinct users than a set has.
+		this.batchUsers = (int) Math.min(this.batchUsers, this.userRecords);
+	}
+	
+	/**
+	 * Run all of the rounds, and log the summary.
+	 */
+	public void run() {
+		final String meth = "run()";
+		console.info("<%s:%s> Batch Query Benchmark: Users(%d) Rounds(%d) Parallelism(%d)",
+				CLASSNAME, meth, batchUsers, rounds, parallelism);
+		AppMetrics metrics = dbOps.getMetrics();
+		long sequentialNs = 0;
+		long batchNs = 0;
+		for (int round = 0; round < rounds; round++) {
+			String set = new CustomerRecord(console, 
+					random.nextInt((int) customerRecords)).getCustomerID();
+			List<String> userIDs = pickUsers();
+			long minExpire = dbOps.getClock().nanoTime();
+			
+			long[] seq = null;
+			long[] batch = null;
+			if (round % 2 == 0) {
+				seq = runSequential(set, userIDs, minExpire);
+				batch = runBatch(set, userIDs, minExpire);
+			} else {
+				batch = runBatch(set, userIDs, minExpire);
+				seq = runSequential(set, userIDs, minExpire);
+			}
+			metrics.histogram(SEQUENTIAL_TIME).record(seq[0]);
+			metrics.histogram(BATCH_TIME).record(batch[0]);
+			sequentialNs += seq[0];
+			batchNs += batch[0];
+			console.info("<%s:%s> Round(%d) Set(%s): Sequential(%d ms, %d visits) Batch(%d ms, %d visits)",
+					CLASSNAME, meth, round, set, seq[0] / 1000000L, seq[1],
+					batch[0] / 1000000L, batch[1]);
+			if (seq[1] != batch[1]) {
+				console.warn("<%s:%s> Round(%d): Visit counts differ (%d vs %d)",
+						CLASSNAME, meth, round, seq[1], batch[1]);
+			}
+		}
+		console.info("<%s:%s> Summary: Sequential(%d ms/round) Batch(%d ms/round) Speedup(%.2fx)",
+				CLASSNAME, meth, sequentialNs / 1000000L / Math.max(1, rounds),
+				batchNs / 1000000L / Math.max(1, rounds),
+				(double) sequentialNs / Math.max(1L, batchNs));
+	} // end run()
+	
+	/**
+	 * A random batch of distinct users of a Customer Set.
+	 */
+	private List<String> pickUsers() {
+		Set<Integer> seeds = new HashSet<Integer>();
+		while (seeds.size() < batchUsers) {
+			seeds.add(random.nextInt((int) userRecords));
+		}
+		List<String> userIDs = new ArrayList<String>(seeds.size());
+		for (Integer seed : seeds) {
+			userIDs.add(String.format("UserName(%d)", seed));
+		}
+		return userIDs;
+	} // end pickUsers()
+	
+	/**
+	 * Today's way:  one processSiteQuery() per user.
+	 * @return { elapsed ns, visits }
+	 */
+	private long[] runSequential(String set, List<String> userIDs, 
+			long minExpire) 
+	{
+		ILdtOperations ldtOps = dbOps.getLdtOps();
+		long visits = 0;
+		long startNs = System.nanoTime();
+		for (String userID : userIDs) {
+			List<Map<String,Object>> result = 
+					ldtOps.processSiteQuery(namespace, set, userID, minExpire);
+			if (result != null) {
+				visits += result.size();
+			}
+		}
+		return new long[] { System.nanoTime() - startNs, visits };
+	} // end runSequential()
+	
+	/**
+	 * The batch query, counting the visits in the callback.
+	 * @return { elapsed ns, visits }
+	 */
+	private long[] runBatch(String set, List<String> userIDs, long minExpire) {
+		final String meth = "runBatch()";
+		final long[] visits = new long[1];
+		long startNs = System.nanoTime();
+		try {
+			dbOps.getLdtOps().batchQuery(namespace, set, userIDs, minExpire, 
+					0L, 0, parallelism, new IVisitBatchCallback() {
+				public void userComplete(String userID, Record userRecord,
+						List<Map<String,Object>> result) 
+				{
+					if (result != null) {
+						visits[0] += result.size();
+					}
+				}
+			});
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+		}
+		return new long[] { System.nanoTime() - startNs, visits[0] };
+	} // end runBatch()
+
+} // end class BatchQueryBenchmark
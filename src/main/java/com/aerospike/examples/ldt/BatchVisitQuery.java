@@ -0,0 +1,157 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.policy.Policy;
+
+/**
+ * The batch Site Visit query behind ILdtOperations.batchQuery():  the user
+ * records of the whole batch come back with ONE batch get, and then the
+ * users' LDT windows (queryWindow()) are fetched in parallel -- no more than
+ * "parallelism" at a time -- with each user's result handed to the callback
+ * as soon as it is in.  The users with no record are reported straight
+ * away, without an LDT query.
+ * 
+ * The query threads come from one shared pool (daemon threads, created as
+ * needed), so a batch doesn't pay for starting threads;  the parallelism
+ * is bounded per batch.
+ */
+public class BatchVisitQuery {
+	
+	private static final String CLASSNAME = "BatchVisitQuery";
+	
+	private static final ExecutorService POOL = 
+			Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger count = new AtomicInteger();
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "batch-query-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	private Console console;
+	private AerospikeClient client;
+	private Policy policy;
+	private ILdtOperations queryOps;
+	
+	/**
+	 * @param console
+	 * @param client : for the batch get
+	 * @param policy : for the batch get
+	 * @param queryOps : the LDT Operations that run each user's window query
+	 */
+	public BatchVisitQuery(Console console, AerospikeClient client, 
+			Policy policy, ILdtOperations queryOps) 
+	{
+		this.console = console;
+		this.client = client;
+		this.policy = policy;
+		this.queryOps = queryOps;
+	}
+	
+	/**
+	 * Run the batch (see ILdtOperations.batchQuery()).
+	 * @return the number of users whose query succeeded
+	 */
+	public int run(String ns, String set, Collection<String> userIDs,
+			long fromExpire, long toExpire, int limit, int parallelism,
+			final IVisitBatchCallback callback) throws AerospikeException 
+	{
+		final String meth = "run()";
+		final List<String> users = new ArrayList<String>(userIDs);
+		Key[] keys = new Key[users.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new Key(ns, set, users.get(i));
+		}
+		Record[] records = (keys.length == 0) ? new Record[0] 
+				: client.get(policy, keys);
+		
+		final AtomicInteger succeeded = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(keys.length);
+		final Semaphore permits = new Semaphore(Math.max(1, parallelism));
+		try {
+			for (int i = 0; i < keys.length; i++) {
+				final String userID = users.get(i);
+				final Record record = records[i];
+				if (record == null) {
+					deliver(callback, userID, null, 
+							new ArrayList<Map<String,Object>>());
+					succeeded.incrementAndGet();
+					done.countDown();
+					continue;
+				}
+				final Key key = keys[i];
+				final long from = fromExpire;
+				final long to = toExpire;
+				final int max = limit;
+				permits.acquire();
+				POOL.execute(new Runnable() {
+					public void run() {
+						List<Map<String,Object>> visits = null;
+						try {
+							visits = queryOps.queryWindow(key, from, to, max);
+							succeeded.incrementAndGet();
+						} catch (AerospikeException ae) {
+							console.debug("<%s:%s> User(%s) Error Code(%d) Error Message(%s)",
+									CLASSNAME, meth, userID, ae.getResultCode(),
+									ae.getMessage());
+						} finally {
+							permits.release();
+						}
+						try {
+							deliver(callback, userID, record, visits);
+						} finally {
+							done.countDown();
+						}
+					}
+				});
+			}
+			done.await();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		return succeeded.get();
+	} // end run()
+	
+	/**
+	 * One user at a time into the callback (see IVisitBatchCallback).
+	 */
+	private static void deliver(IVisitBatchCallback callback, String userID,
+			Record record, List<Map<String,Object>> visits) 
+	{
+		synchronized (callback) {
+			callback.userComplete(userID, record, visits);
+		}
+	}
+
+} // end class BatchVisitQuery
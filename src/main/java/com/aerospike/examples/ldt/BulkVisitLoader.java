@@ -0,0 +1,513 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+
+/**
+ * Bulk Import of historical Site Visits from local files.  Where the JSON
+ * command file takes one "new_site_visit" at a time, this loader reads
+ * large files of visits in one of two formats (one visit per line):
+ * (*) NDJSON:  each line is a "new_site_visit" object (set_name, user_name
+ *     and visit_info, just as in the command file);
+ * (*) Apache "combined" access log:  the user is the authenticated user
+ *     (or the client host, when there is none), the URL is the request
+ *     path, and the Customer Set is picked by a hash of the user.  The log
+ *     times are moved onto the clock's timeline, and each visit expires
+ *     one Site Visit TTL after it happened.
+ * 
+ * Each file is memory-mapped in chunks (split on line boundaries), and the
+ * chunks are parsed in parallel.  Within a chunk, the visits are grouped by
+ * user, sorted by time, and handed to the User Lanes (a private
+ * UserLaneDispatcher), so that each user's LDT is written by one lane only
+ * -- with batched inserts thru ILdtOperations.loadFullLDT() rather than one
+ * write per visit.  The lanes push back on the parsers when they fall
+ * behind, so memory stays bounded no matter how big the files are.
+ * 
+ * Progress (bytes parsed, visits written, throughput and ETA) is reported
+ * every few seconds.
+ * 
+ * Metrics: import.visits, import.users, import.badLines and
+ * import.writeErrors (counters), import.batchTime (histogram) and the gauge
+ * import.visitsPerSec.
+ */
+public class BulkVisitLoader implements IAppConstants {
+	
+	// Metric Names
+	public static final String IMPORT_VISITS = "import.visits";
+	public static final String IMPORT_USERS = "import.users";
+	public static final String IMPORT_BAD_LINES = "import.badLines";
+	public static final String IMPORT_WRITE_ERRORS = "import.writeErrors";
+	public static final String IMPORT_BATCH_TIME = "import.batchTime";
+	public static final String IMPORT_RATE = "import.visitsPerSec";
+	
+	/** Size of each mapped chunk (a chunk ends on a line boundary). */
+	static final int CHUNK_BYTES = 64 * 1024 * 1024;
+	
+	/** Visits per loadFullLDT() call. */
+	static final int BATCH_VISITS = 500;
+	
+	/** How often (real ms) we report the progress. */
+	private static final long PROGRESS_MS = 10000L;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/** host ident user [date] "request" status bytes "referrer" "agent" */
+	private static final Pattern COMBINED_LOG = Pattern.compile(
+			"^(\\S+) \\S+ (\\S+) \\[([^\\]]+)\\] \"([^\"]*)\" \\S+ \\S+" +
+			"(?: \"([^\"]*)\"(?: \"([^\"]*)\")?)?.*$");
+	
+	private static final String LOG_DATE_FORMAT = "dd/MMM/yyyy:HH:mm:ss Z";
+	
+	private static final String CLASSNAME = "BulkVisitLoader";
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private AppMetrics metrics;
+	private String namespace;
+	private String[] customerSets;
+	private long timeToLiveNs;
+	private int parseThreads;
+	private int laneCount;
+	private long clockBaseNs;  // The clock's nanoTime() ...
+	private long clockBaseMs;  // ... at this (epoch) time
+	
+	private final AtomicLong bytesParsed = new AtomicLong();
+	private final AtomicLong visitsParsed = new AtomicLong();
+	private long totalBytes;
+	
+	/**
+	 * One parsed visit.
+	 */
+	private static class Visit {
+		String set;
+		String user;
+		String url;
+		String referrer;
+		String pageTitle;
+		long date;
+		long expire;
+	} // end class Visit
+	
+	/**
+	 * One chunk of one file:  the lines that start in [start, end).
+	 */
+	private static class Chunk {
+		final File file;
+		final long start;
+		final long end;
+		
+		Chunk(File file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+	} // end class Chunk
+	
+	/**
+	 * @param console
+	 * @param dbOps : for the client, LDT operations, clock and metrics
+	 * @param namespace : where the visits go (the Base namespace)
+	 * @param customerRecords : number of Customer Sets (for the log format)
+	 * @param timeToLiveNs : Site Visit TTL
+	 * @param threadCount : number of parse threads, and of User Lanes
+	 */
+	public BulkVisitLoader(Console console, DbOps dbOps, String namespace,
+			long customerRecords, long timeToLiveNs, int threadCount) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.namespace = namespace;
+		this.timeToLiveNs = timeToLiveNs;
+		this.parseThreads = Math.max(1, threadCount);
+		this.laneCount = Math.max(1, threadCount);
+		this.customerSets = new String[(int) Math.max(1, customerRecords)];
+		for (int i = 0; i < customerSets.length; i++) {
+			customerSets[i] = new CustomerRecord(console, i).getCustomerID();
+		}
+		IClock clock = dbOps.getClock();
+		this.clockBaseMs = clock.currentTimeMillis();
+		this.clockBaseNs = clock.nanoTime();
+	}
+	
+	/**
+	 * Import all of the given files.
+	 * @param fileNames
+	 * @return the number of visits written
+	 */
+	public long load(List<String> fileNames) throws IOException {
+		final String meth = "load()";
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		for (String fileName : fileNames) {
+			File file = new File(fileName);
+			splitChunks(file, chunks);
+			totalBytes += file.length();
+		}
+		console.info("<%s:%s> Importing (%d) Files: Bytes(%d) Chunks(%d) Threads(%d)",
+				CLASSNAME, meth, fileNames.size(), totalBytes, chunks.size(), 
+				parseThreads);
+		
+		final UserLaneDispatcher lanes = new UserLaneDispatcher(console, 
+				metrics, laneCount, UserLaneDispatcher.DEFAULT_MAX_LANE_DEPTH);
+		lanes.start();
+		long startMs = System.currentTimeMillis();
+		long visitsBefore = metrics.getCount(IMPORT_VISITS);
+		ExecutorService parsers = Executors.newFixedThreadPool(parseThreads);
+		for (final Chunk chunk : chunks) {
+			parsers.execute(new Runnable() {
+				public void run() {
+					parseChunk(chunk, lanes);
+				}
+			});
+		}
+		parsers.shutdown();
+		try {
+			while (!parsers.awaitTermination(PROGRESS_MS, TimeUnit.MILLISECONDS)) {
+				reportProgress(startMs, visitsBefore);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		// Let the lanes write out what the parsers left them.
+		lanes.shutdown(TimeUnit.HOURS.toMillis(1));
+		reportProgress(startMs, visitsBefore);
+		return metrics.getCount(IMPORT_VISITS) - visitsBefore;
+	} // end load()
+	
+	/**
+	 * Split a file into chunks of about CHUNK_BYTES, each ending just after
+	 * a newline (or at the end of the file).
+	 */
+	private void splitChunks(File file, List<Chunk> chunks) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			ByteBuffer probe = ByteBuffer.allocate(8192);
+			long start = 0;
+			while (start < size) {
+				long end = start + CHUNK_BYTES;
+				if (end >= size) {
+					end = size;
+				} else {
+					// Move the end up to just past the next newline.
+					boolean found = false;
+					while (!found && end < size) {
+						probe.clear();
+						int n = channel.read(probe, end);
+						if (n <= 0) {
+							end = size;
+							break;
+						}
+						for (int i = 0; i < n; i++) {
+							if (probe.get(i) == '\n') {
+								end += i + 1;
+								found = true;
+								break;
+							}
+						}
+						if (!found) {
+							end += n;
+						}
+					}
+				}
+				chunks.add(new Chunk(file, start, end));
+				start = end;
+			}
+		} finally {
+			raf.close();
+		}
+	} // end splitChunks()
+	
+	/**
+	 * Map and parse one chunk, group its visits by user, and queue each
+	 * user's visits on that user's lane.
+	 */
+	private void parseChunk(Chunk chunk, UserLaneDispatcher lanes) {
+		final String meth = "parseChunk()";
+		JSONParser jsonParser = new JSONParser();
+		SimpleDateFormat dateFormat = new SimpleDateFormat(LOG_DATE_FORMAT, 
+				Locale.US);
+		Map<String, List<Visit>> userVisits = new HashMap<String, List<Visit>>();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(chunk.file, "r");
+			try {
+				MappedByteBuffer buffer = raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, chunk.start, 
+						chunk.end - chunk.start);
+				byte[] line = new byte[4096];
+				int length = 0;
+				while (buffer.hasRemaining()) {
+					byte b = buffer.get();
+					if (b != '\n') {
+						if (length == line.length) {
+							byte[] bigger = new byte[line.length * 2];
+							System.arraycopy(line, 0, bigger, 0, length);
+							line = bigger;
+						}
+						line[length++] = b;
+						if (buffer.hasRemaining()) {
+							continue;
+						}
+					}
+					if (length > 0 && line[length - 1] == '\r') {
+						length--;
+					}
+					if (length > 0) {
+						addVisit(new String(line, 0, length, UTF8), jsonParser,
+								dateFormat, userVisits);
+					}
+					length = 0;
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException ioe) {
+			console.error("<%s:%s> File(%s) Chunk(%d-%d) Error(%s)", CLASSNAME, 
+					meth, chunk.file, chunk.start, chunk.end, ioe.toString());
+		}
+		bytesParsed.addAndGet(chunk.end - chunk.start);
+		
+		try {
+			for (final List<Visit> visits : userVisits.values()) {
+				final Visit first = visits.get(0);
+				lanes.submit(first.set, first.user, new Runnable() {
+					public void run() {
+						writeUser(visits);
+					}
+				});
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	} // end parseChunk()
+	
+	/**
+	 * Parse one line (either format) and add it to its user's visits.
+	 */
+	private void addVisit(String line, JSONParser jsonParser, 
+			SimpleDateFormat dateFormat, Map<String, List<Visit>> userVisits) 
+	{
+		Visit visit = (line.charAt(0) == '{') ? 
+				parseJsonVisit(line, jsonParser) :
+				parseLogVisit(line, dateFormat);
+		if (visit == null) {
+			metrics.increment(IMPORT_BAD_LINES);
+			return;
+		}
+		visitsParsed.incrementAndGet();
+		String userKey = visit.set + "/" + visit.user;
+		List<Visit> visits = userVisits.get(userKey);
+		if (visits == null) {
+			visits = new ArrayList<Visit>();
+			userVisits.put(userKey, visits);
+		}
+		visits.add(visit);
+	} // end addVisit()
+	
+	/**
+	 * An NDJSON line:  a "new_site_visit" object.
+	 */
+	private Visit parseJsonVisit(String line, JSONParser jsonParser) {
+		try {
+			JSONObject commandObj = (JSONObject) jsonParser.parse(line);
+			JSONObject siteObj = (JSONObject) commandObj.get("visit_info");
+			Visit visit = new Visit();
+			visit.set = (String) commandObj.get("set_name");
+			visit.user = (String) commandObj.get("user_name");
+			if (visit.set == null || visit.user == null || siteObj == null) {
+				return null;
+			}
+			visit.url = stringOr(siteObj.get("url"));
+			visit.referrer = stringOr(siteObj.get("referrer"));
+			visit.pageTitle = stringOr(siteObj.get("page_title"));
+			Object date = siteObj.get("date");
+			Object expire = siteObj.get("expire");
+			if (!(date instanceof Number)) {
+				return null;
+			}
+			visit.date = ((Number) date).longValue();
+			visit.expire = (expire instanceof Number) ? 
+					((Number) expire).longValue() : visit.date + timeToLiveNs;
+			return visit;
+		} catch (org.json.simple.parser.ParseException pe) {
+			return null;
+		} catch (ClassCastException cce) {
+			return null;
+		}
+	} // end parseJsonVisit()
+	
+	/**
+	 * An Apache combined log line.
+	 */
+	private Visit parseLogVisit(String line, SimpleDateFormat dateFormat) {
+		Matcher m = COMBINED_LOG.matcher(line);
+		if (!m.matches()) {
+			return null;
+		}
+		long epochMs;
+		try {
+			epochMs = dateFormat.parse(m.group(3)).getTime();
+		} catch (ParseException pe) {
+			return null;
+		}
+		Visit visit = new Visit();
+		visit.user = "-".equals(m.group(2)) ? m.group(1) : m.group(2);
+		visit.set = customerSets[(visit.user.hashCode() & 0x7fffffff) % 
+		                         customerSets.length];
+		// "GET /path HTTP/1.1" -- the URL is the path.
+		String[] request = m.group(4).split(" ");
+		visit.url = (request.length > 1) ? request[1] : m.group(4);
+		visit.referrer = stringOr(m.group(5));
+		visit.pageTitle = "-";
+		visit.date = clockBaseNs + (epochMs - clockBaseMs) * 1000000L;
+		visit.expire = visit.date + timeToLiveNs;
+		return visit;
+	} // end parseLogVisit()
+	
+	private static String stringOr(Object value) {
+		return (value == null) ? "-" : value.toString();
+	}
+	
+	/**
+	 * Write one user's visits from one chunk (on the user's lane):  the user
+	 * record, then the visits in expire order, BATCH_VISITS at a time.  The
+	 * expire value is the unique key of the LDT, so visits that land in the
+	 * same nanosecond (log times only have seconds) are nudged apart.
+	 */
+	private void writeUser(List<Visit> visits) {
+		final String meth = "writeUser()";
+		Collections.sort(visits, new Comparator<Visit>() {
+			public int compare(Visit a, Visit b) {
+				return (a.expire < b.expire) ? -1 : (a.expire == b.expire ? 0 : 1);
+			}
+		});
+		Visit first = visits.get(0);
+		SiteVisitEntry sve = new SiteVisitEntry(console, namespace, first.set,
+				namespace, null, first.user, first.referrer, first.pageTitle,
+				first.date, first.expire, 0, LDT_BIN);
+		ILdtOperations ldtOps = dbOps.getLdtOps();
+		Key key;
+		try {
+			key = new Key(namespace, first.set, first.user);
+			// A zero Watermark ("due now") puts the user in the Watermark
+			// Index;  the batch writes lower it no further.
+			client.put(dbOps.writePolicy, key, new Bin("custID", first.set),
+					new Bin("name", first.user), new Bin(WATERMARK_BIN, 0L));
+		} catch (AerospikeException ae) {
+			metrics.add(IMPORT_WRITE_ERRORS, visits.size());
+			console.debug("<%s:%s> User(%s) Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, first.user, ae.getResultCode(), ae.getMessage());
+			return;
+		}
+		
+		List<Map<String, Object>> batch = 
+				new ArrayList<Map<String, Object>>(BATCH_VISITS);
+		long lastExpire = Long.MIN_VALUE;
+		for (int i = 0; i < visits.size(); i++) {
+			Visit visit = visits.get(i);
+			long expire = Math.max(visit.expire, lastExpire + 1);
+			lastExpire = expire;
+			sve.setUrl(visit.url);
+			sve.setReferrer(visit.referrer);
+			sve.setPageTitle(visit.pageTitle);
+			sve.setDate(visit.date);
+			sve.setExpire(expire);
+			batch.add(ldtOps.newSiteObject(sve));
+			if (batch.size() == BATCH_VISITS || i == visits.size() - 1) {
+				long startNs = System.nanoTime();
+				int rc = ldtOps.loadFullLDT(sve, key, batch);
+				metrics.recordSince(IMPORT_BATCH_TIME, startNs);
+				if (rc == 0) {
+					metrics.add(IMPORT_VISITS, batch.size());
+				} else {
+					metrics.add(IMPORT_WRITE_ERRORS, batch.size());
+				}
+				batch = new ArrayList<Map<String, Object>>(BATCH_VISITS);
+			}
+		}
+		metrics.increment(IMPORT_USERS);
+		
+		// The import doesn't go thru storeSiteObject(), so it feeds the
+		// sessions itself (in time order).
+		SessionTracker sessions = dbOps.getSessions();
+		if (sessions != null) {
+			for (Visit visit : visits) {
+				sessions.record(first.set, first.user, visit.date);
+			}
+		}
+	} // end writeUser()
+	
+	/**
+	 * Show how far along we are, how fast we're going, and when we'll be done.
+	 */
+	private void reportProgress(long startMs, long visitsBefore) {
+		final String meth = "reportProgress()";
+		long elapsedMs = Math.max(1L, System.currentTimeMillis() - startMs);
+		long parsed = bytesParsed.get();
+		long visits = metrics.getCount(IMPORT_VISITS) - visitsBefore;
+		long visitsPerSec = (visits * 1000L) / elapsedMs;
+		double mbPerSec = (parsed / (1024.0 * 1024.0)) / (elapsedMs / 1000.0);
+		// The writes trail the parsing, so the ETA is for the WRITES:  the
+		// visits still to go (estimated from the bytes parsed so far) at
+		// the current write rate.
+		long etaSec = -1;
+		if (parsed > 0 && visitsPerSec > 0) {
+			long expectedVisits = (long) ((double) visitsParsed.get() * 
+					totalBytes / parsed);
+			etaSec = Math.max(0L, expectedVisits - visits) / visitsPerSec;
+		}
+		metrics.setGauge(IMPORT_RATE, visitsPerSec);
+		console.info("<%s:%s> Parsed(%d%%) Visits(%d) Users(%d) Rate(%d visits/s, %.1f MB/s) ETA(%s)",
+				CLASSNAME, meth, (totalBytes == 0) ? 100 : parsed * 100 / totalBytes,
+				visits, metrics.getCount(IMPORT_USERS), visitsPerSec, mbPerSec,
+				(etaSec < 0) ? "?" : etaSec + "s");
+	} // end reportProgress()
+
+} // end class BulkVisitLoader
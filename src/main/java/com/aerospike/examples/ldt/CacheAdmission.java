@@ -0,0 +1,90 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+/**
+ * Frequency-based admission to the Segmented Cache (in the style of TinyLFU).
+ * 
+ * A cache miss costs a full reloadCache() of the user's Base LDT, and a
+ * one-off visitor who never comes back gets nothing for it -- the record
+ * just takes up Cache memory until it expires, pushing out the users that
+ * do come back.  So every visit is counted in a Count-Min Sketch (aged so
+ * that it holds recent frequency), and a user who is not in the Cache is
+ * only ADMITTED (loaded into the Cache) once they have made "threshold"
+ * visits within the sketch's window.  Until then, their visits are written
+ * only to the Base namespace.
+ * 
+ * The sketch window is a multiple of its width;  the sketch itself is small
+ * (four rows of int counters) and lives only in this client.
+ * 
+ * Metrics: cache.admitted and cache.rejected (counters).
+ */
+public class CacheAdmission {
+	
+	// Metric Names
+	public static final String CACHE_ADMITTED = "cache.admitted";
+	public static final String CACHE_REJECTED = "cache.rejected";
+	
+	/** Age the sketch after (width * SAMPLE_FACTOR) visits. */
+	static final int SAMPLE_FACTOR = 10;
+	
+	private AppMetrics metrics;
+	private CountMinSketch sketch;
+	private int threshold;
+	
+	/**
+	 * @param metrics
+	 * @param threshold : visits (in the window) needed to be admitted
+	 * @param width : sketch counters per row (about the number of users
+	 *   we want to tell apart)
+	 */
+	public CacheAdmission(AppMetrics metrics, int threshold, int width) {
+		this.metrics = metrics;
+		this.threshold = threshold;
+		this.sketch = new CountMinSketch(width, (long) width * SAMPLE_FACTOR);
+	}
+	
+	/**
+	 * Count a visit by this user.  Call this for EVERY visit, so that the
+	 * sketch sees the full frequency.
+	 * @param cacheSet
+	 * @param userID
+	 * @return the user's estimated recent visits
+	 */
+	public int recordVisit(String cacheSet, String userID) {
+		return sketch.add(cacheSet + "/" + userID);
+	}
+	
+	/**
+	 * Decide if a user who is not in the Cache should be loaded into it.
+	 * @param visits : from recordVisit()
+	 * @return true to admit
+	 */
+	public boolean admit(int visits) {
+		if (visits >= threshold) {
+			metrics.increment(CACHE_ADMITTED);
+			return true;
+		}
+		metrics.increment(CACHE_REJECTED);
+		return false;
+	}
+	
+	public long sketchBytes() {
+		return sketch.sizeBytes();
+	}
+
+} // end class CacheAdmission
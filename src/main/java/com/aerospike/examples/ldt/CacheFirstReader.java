@@ -0,0 +1,231 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+
+/**
+ * Read-through Site Visit queries:  the Segmented Cache first, then the Base.
+ * 
+ * EmulateUser keeps the Cache namespace (in memory) warm for the active
+ * users, so a query for one of them should come from there, and only go to
+ * the Base namespace (on storage) when the user isn't in the Cache.
+ * 
+ * A query is a cache HIT when the user's Cache record is there and no reload
+ * of it is in flight (a Cache LDT that's still being loaded would give a
+ * short answer).  On a MISS we answer from the Base namespace and, if asked
+ * to, start a background reload of the user into the Cache -- thru the
+ * ReloadCoalescer, so it never doubles up with the reloads of the writers.
+ * The background reloads run on a small pool with a bounded queue;  when
+ * the queue is full the reload is skipped (the next miss will try again).
+ * 
+ * Metrics: query.cacheHit and query.cacheMiss (counters), the gauge
+ * query.hitRatioPct, the counters query.reloadStarted and
+ * query.reloadSkipped, and the query.siteVisits latency histogram.
+ */
+public class CacheFirstReader implements IAppConstants {
+	
+	// Metric Names
+	public static final String QUERY_CACHE_HIT = "query.cacheHit";
+	public static final String QUERY_CACHE_MISS = "query.cacheMiss";
+	public static final String QUERY_HIT_RATIO = "query.hitRatioPct";
+	public static final String QUERY_RELOAD_STARTED = "query.reloadStarted";
+	public static final String QUERY_RELOAD_SKIPPED = "query.reloadSkipped";
+	public static final String QUERY_SITE_VISITS = "query.siteVisits";
+	
+	/** Background reload threads, and the most reloads that may wait. */
+	static final int RELOAD_THREADS = 2;
+	static final int RELOAD_QUEUE = 256;
+	
+	private static final String CLASSNAME = "CacheFirstReader";
+	
+	private Console console;
+	private DbOps dbOps;
+	private AerospikeClient client;
+	private AppMetrics metrics;
+	private String baseNamespace;
+	private String cacheNamespace;
+	private ThreadPoolExecutor reloadPool; // Null = no background reloads
+	
+	/**
+	 * @param console
+	 * @param dbOps
+	 * @param baseNamespace
+	 * @param cacheNamespace
+	 * @param asyncReload : reload the Cache in the background on a miss
+	 */
+	public CacheFirstReader(Console console, DbOps dbOps, String baseNamespace,
+			String cacheNamespace, boolean asyncReload) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.baseNamespace = baseNamespace;
+		this.cacheNamespace = cacheNamespace;
+		if (asyncReload) {
+			this.reloadPool = new ThreadPoolExecutor(RELOAD_THREADS, 
+					RELOAD_THREADS, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(RELOAD_QUEUE),
+					new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "CacheReload");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+	}
+	
+	/**
+	 * Get the user's live Site Visits:  from the Cache if we can, otherwise
+	 * from the Base.
+	 * @param baseSet : the Customer (Base) Set
+	 * @param userID
+	 * @return the live Site Visits (never null)
+	 */
+	public List<Map<String,Object>> query(String baseSet, String userID) {
+		final String meth = "query()";
+		long startNs = System.nanoTime();
+		ILdtOperations ldtOps = dbOps.getLdtOps();
+		long nowNs = dbOps.getClock().nanoTime();
+		String cacheSet = baseSet + ":cache";
+		List<Map<String,Object>> result = null;
+		boolean hit = false;
+		
+		if (! dbOps.getReloadCoalescer().isReloading(cacheSet, userID)) {
+			try {
+				Key cacheKey = new Key(cacheNamespace, cacheSet, userID);
+				if (client.exists(dbOps.policy, cacheKey)) {
+					result = ldtOps.processSiteQuery(cacheNamespace, cacheSet, 
+							userID, nowNs);
+					hit = true;
+				}
+			} catch (AerospikeException ae) {
+				console.debug("<%s:%s> Cache Read Error Code(%d) Message(%s)",
+						CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			}
+		}
+		
+		if (hit) {
+			metrics.increment(QUERY_CACHE_HIT);
+			if (dbOps.getCacheToucher() != null) {
+				dbOps.getCacheToucher().noteHit(cacheSet, userID);
+			}
+		} else {
+			metrics.increment(QUERY_CACHE_MISS);
+			result = ldtOps.processSiteQuery(baseNamespace, baseSet, userID, nowNs);
+			startReload(baseSet, userID);
+		}
+		
+		long hits = metrics.getCount(QUERY_CACHE_HIT);
+		long total = hits + metrics.getCount(QUERY_CACHE_MISS);
+		metrics.setGauge(QUERY_HIT_RATIO, (100 * hits) / total);
+		metrics.recordSince(QUERY_SITE_VISITS, startNs);
+		
+		if (result == null) {
+			result = new ArrayList<Map<String,Object>>();
+		}
+		return result;
+	} // end query()
+	
+	/**
+	 * Queue a background reload of this user into the Cache (if we do those).
+	 * @param baseSet
+	 * @param userID
+	 */
+	private void startReload(final String baseSet, final String userID) {
+		if (reloadPool == null) {
+			return;
+		}
+		try {
+			reloadPool.execute(new Runnable() {
+				public void run() {
+					reloadUser(baseSet, userID);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			metrics.increment(QUERY_RELOAD_SKIPPED);
+		}
+	} // end startReload()
+	
+	/**
+	 * Bring the user into the Cache:  reload the Cache LDT from the Base LDT,
+	 * then copy the User Record (as UserRecord.updateCache() does, with the
+	 * Cache TTL).  The Cache record must not show up before the reload has
+	 * started, or a writer (or reader) would take it for a loaded one.
+	 * @param baseSet
+	 * @param userID
+	 */
+	private void reloadUser(String baseSet, String userID) {
+		final String meth = "reloadUser()";
+		try {
+			Key baseKey = new Key(baseNamespace, baseSet, userID);
+			Key cacheKey = new Key(cacheNamespace, baseSet + ":cache", userID);
+			Record baseRec = client.get(dbOps.policy, baseKey, 
+					"name", "email", "phone", "address", "company", "index");
+			if (baseRec == null || baseRec.bins == null) {
+				return; // No such user
+			}
+			
+			SiteVisitEntry sve = new SiteVisitEntry(console, baseSet, userID, 
+					0, dbOps.ldtBinName, 0L, dbOps.getClock());
+			if (! dbOps.getReloadCoalescer().reloadIfIdle(sve, client, 
+					baseNamespace, cacheNamespace, dbOps.getLdtOps())) 
+			{
+				return; // Someone else has it
+			}
+			metrics.increment(QUERY_RELOAD_STARTED);
+			if (dbOps.getCacheToucher() != null) {
+				dbOps.getCacheToucher().noteLoaded(baseSet + ":cache", userID);
+			}
+			
+			List<Bin> bins = new ArrayList<Bin>();
+			for (Map.Entry<String,Object> entry : baseRec.bins.entrySet()) {
+				bins.add(new Bin(entry.getKey(), entry.getValue()));
+			}
+			client.put(dbOps.cacheWritePolicy, cacheKey, 
+					bins.toArray(new Bin[bins.size()]));
+		} catch (Exception e) {
+			console.error("<%s:%s> Background Reload Failed: Set(%s) User(%s) Error(%s)",
+					CLASSNAME, meth, baseSet, userID, e.toString());
+		}
+	} // end reloadUser()
+	
+	/**
+	 * Stop the background reloads (the ones queued still run).
+	 */
+	public void shutdown() {
+		if (reloadPool != null) {
+			reloadPool.shutdown();
+		}
+	}
+
+} // end class CacheFirstReader
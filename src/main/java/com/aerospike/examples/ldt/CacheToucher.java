@@ -0,0 +1,289 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.ResultCode;
+
+/**
+ * Sliding Expiration for the Segmented Cache.
+ * 
+ * UserRecord.updateCache() writes a user's Cache record only when it isn't
+ * there, so even the busiest user's record expires CACHE_TTL after it was
+ * loaded -- and the next visit then pays for a full reloadCache() of the
+ * Base LDT.  Here, every cache hit is noted, and the record is TOUCHED (its
+ * TTL reset) in the background, so that only the idle users fall out of the
+ * Cache.  The LDT sub-records live and die with their top record, so the
+ * touch extends the Cache LDT as well.
+ * 
+ * To keep the extra writes down:
+ * (*) a user is touched at most once per TOUCH_FRACTION of the Cache TTL
+ *     (the hits in between are free);
+ * (*) the due touches collect in a pending set (so one user is queued once)
+ *     and every FLUSH_MS a flusher thread sends the ones that are waiting
+ *     (one touch call per record -- the client has no batch touch);
+ * (*) the flusher holds to a touches-per-second budget (see TokenBucket);
+ *     with too many pending, new ones are dropped (the next hit retries).
+ * 
+ * The per-user state is dropped once the user's record has expired (no
+ * touch for a full Cache TTL), so it only holds the users in the Cache.
+ * 
+ * A reload is AVOIDED when a user hits in the Cache after the time that the
+ * record would have expired without touches.  We count those (and the rate
+ * per hour of virtual time).
+ * 
+ * Metrics: cache.touches, cache.touchMisses (the record was already gone),
+ * cache.touchDropped and cache.reloadsAvoided (counters), and the gauge
+ * cache.reloadsAvoidedPerHour.
+ */
+public class CacheToucher implements Runnable {
+	
+	// Metric Names
+	public static final String CACHE_TOUCHES = "cache.touches";
+	public static final String CACHE_TOUCH_MISSES = "cache.touchMisses";
+	public static final String CACHE_TOUCH_DROPPED = "cache.touchDropped";
+	public static final String CACHE_RELOADS_AVOIDED = "cache.reloadsAvoided";
+	public static final String CACHE_AVOIDED_PER_HOUR = "cache.reloadsAvoidedPerHour";
+	
+	/** Touch a user at most once per this fraction of the Cache TTL. */
+	static final int TOUCH_FRACTION = 4;
+	
+	/** How often (real ms) the flusher sends the pending touches. */
+	static final long FLUSH_MS = 500L;
+	
+	/** The most touches that may be waiting for the flusher. */
+	static final int MAX_PENDING = 100000;
+	
+	/** Drop the state of the expired users every this many flushes. */
+	static final int PRUNE_EVERY = 120;
+	
+	private static final long NS_PER_HOUR = 3600L * 1000000000L;
+	
+	private static final String CLASSNAME = "CacheToucher";
+	
+	private Console console;
+	private DbOps dbOps;
+	private AerospikeClient client;
+	private AppMetrics metrics;
+	private IClock clock;
+	private String cacheNamespace;
+	private long cacheTtlNs;
+	private long touchIntervalNs;
+	private long startNs;
+	private TokenBucket bucket;
+	
+	// Per-user (cache set/user ID) state, all in virtual ns.
+	private final ConcurrentMap<String, Long> lastTouch;
+	private final ConcurrentMap<String, Long> naturalExpire;
+	private final ConcurrentMap<String, Key> pending;
+	
+	private Thread flusher;
+	private volatile boolean running = false;
+	
+	/**
+	 * @param console
+	 * @param dbOps
+	 * @param cacheNamespace
+	 * @param touchesPerSec : the touch budget
+	 */
+	public CacheToucher(Console console, DbOps dbOps, String cacheNamespace,
+			int touchesPerSec) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.clock = dbOps.getClock();
+		this.cacheNamespace = cacheNamespace;
+		this.cacheTtlNs = IAppConstants.CACHE_TTL * 1000000000L;
+		this.touchIntervalNs = cacheTtlNs / TOUCH_FRACTION;
+		this.bucket = new TokenBucket(touchesPerSec, 1.0);
+		this.lastTouch = new ConcurrentHashMap<String, Long>();
+		this.naturalExpire = new ConcurrentHashMap<String, Long>();
+		this.pending = new ConcurrentHashMap<String, Key>();
+	}
+	
+	private static String userKey(String cacheSet, String userID) {
+		return cacheSet + "/" + userID;
+	}
+	
+	/**
+	 * The user's Cache record was just (re)created:  without a touch, it
+	 * would expire one Cache TTL from now.
+	 * @param cacheSet
+	 * @param userID
+	 */
+	public void noteLoaded(String cacheSet, String userID) {
+		long nowNs = clock.nanoTime();
+		String key = userKey(cacheSet, userID);
+		naturalExpire.put(key, nowNs + cacheTtlNs);
+		lastTouch.put(key, nowNs);
+	}
+	
+	/**
+	 * The user hit in the Cache:  count an avoided reload if the record is
+	 * only still there because of our touches, and queue a touch if one is
+	 * due.
+	 * @param cacheSet
+	 * @param userID
+	 */
+	public void noteHit(String cacheSet, String userID) {
+		long nowNs = clock.nanoTime();
+		String key = userKey(cacheSet, userID);
+		
+		Long expireNs = naturalExpire.get(key);
+		if (expireNs == null) {
+			// Loaded before we were watching:  assume it was just loaded.
+			naturalExpire.putIfAbsent(key, nowNs + cacheTtlNs);
+		} else if (nowNs > expireNs.longValue()
+				&& naturalExpire.replace(key, expireNs, nowNs + cacheTtlNs)) 
+		{
+			// Without the touches, this hit would have been a reload (after
+			// which the record would have lasted one more TTL).
+			metrics.increment(CACHE_RELOADS_AVOIDED);
+		}
+		
+		Long touchedNs = lastTouch.get(key);
+		if (touchedNs != null && nowNs - touchedNs.longValue() < touchIntervalNs) {
+			return; // Touched recently enough
+		}
+		if (pending.size() >= MAX_PENDING) {
+			metrics.increment(CACHE_TOUCH_DROPPED);
+			return;
+		}
+		lastTouch.put(key, nowNs);
+		pending.putIfAbsent(key, new Key(cacheNamespace, cacheSet, userID));
+	} // end noteHit()
+	
+	public void start() {
+		startNs = clock.nanoTime();
+		running = true;
+		flusher = new Thread(this, "CacheToucher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	public void stop() {
+		running = false;
+		if (flusher != null) {
+			flusher.interrupt();
+		}
+	}
+	
+	/**
+	 * The flusher:  every FLUSH_MS, take the pending touches and send them
+	 * (within the budget).
+	 */
+	public void run() {
+		final String meth = "run()";
+		List<String> batch = new ArrayList<String>();
+		int flushes = 0;
+		try {
+			while (running) {
+				Thread.sleep(FLUSH_MS);
+				if (++flushes % PRUNE_EVERY == 0) {
+					prune(clock.nanoTime());
+				}
+				batch.clear();
+				batch.addAll(pending.keySet());
+				for (String key : batch) {
+					Key recKey = pending.remove(key);
+					if (recKey == null) {
+						continue;
+					}
+					bucket.acquire();
+					touch(recKey);
+				}
+				
+				long hours = (clock.nanoTime() - startNs) / NS_PER_HOUR;
+				if (hours > 0) {
+					metrics.setGauge(CACHE_AVOIDED_PER_HOUR, 
+							metrics.getCount(CACHE_RELOADS_AVOIDED) / hours);
+				}
+			}
+		} catch (InterruptedException ie) {
+			// Stopped.
+		}
+		console.debug("<%s:%s> Cache Toucher Stopped", CLASSNAME, meth);
+	} // end run()
+	
+	/**
+	 * Forget the users whose Cache record has expired by now:  it was
+	 * neither loaded nor touched in the last Cache TTL.  If such a user
+	 * comes back, the reload calls noteLoaded() and we start over.
+	 * @param nowNs : virtual time
+	 */
+	private void prune(long nowNs) {
+		final String meth = "prune()";
+		int pruned = 0;
+		for (Map.Entry<String, Long> entry : lastTouch.entrySet()) {
+			String key = entry.getKey();
+			Long touchedNs = entry.getValue();
+			Long expireNs = naturalExpire.get(key);
+			if (nowNs - touchedNs.longValue() < cacheTtlNs ||
+					(expireNs != null && nowNs < expireNs.longValue())) 
+			{
+				continue; // Still in the Cache
+			}
+			if (lastTouch.remove(key, touchedNs)) {
+				if (expireNs != null) {
+					naturalExpire.remove(key, expireNs);
+				}
+				pruned++;
+			}
+		}
+		// A hit that found the pending set full leaves no touch time.
+		for (Map.Entry<String, Long> entry : naturalExpire.entrySet()) {
+			if (nowNs >= entry.getValue().longValue() && 
+					!lastTouch.containsKey(entry.getKey()) &&
+					naturalExpire.remove(entry.getKey(), entry.getValue())) 
+			{
+				pruned++;
+			}
+		}
+		console.debug("<%s:%s> Pruned(%d) Remaining(%d)", 
+				CLASSNAME, meth, pruned, lastTouch.size());
+	} // end prune()
+	
+	/**
+	 * Reset the TTL of one Cache record (with the same TTL as a new one).
+	 * @param key
+	 */
+	private void touch(Key key) {
+		final String meth = "touch()";
+		try {
+			client.touch(dbOps.cacheWritePolicy, key);
+			metrics.increment(CACHE_TOUCHES);
+		} catch (AerospikeException ae) {
+			if (ae.getResultCode() == ResultCode.KEY_NOT_FOUND_ERROR) {
+				metrics.increment(CACHE_TOUCH_MISSES);
+			} else {
+				console.debug("<%s:%s> Touch Error Code(%d) Message(%s)",
+						CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			}
+		}
+	} // end touch()
+
+} // end class CacheToucher
@@ -0,0 +1,155 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.Map;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+
+/**
+ * Keep each user's Site Visit LDT under a cap (see LdtCapPolicy) by trimming
+ * it in the SAME server call as the insert.  For a namespace that has a
+ * cap, storeSiteObject() runs the "add_trim" Record UDF (in the LDT's Create
+ * Module), which adds the new Site Visit and then removes the oldest (lowest
+ * expire) elements that are past the cap.  That gives the cache namespace
+ * ring-buffer semantics, and puts a bound on the base namespace, without
+ * waiting for a cleaner to come around.
+ * 
+ * Namespaces without a cap go straight to the regular LDT operations --
+ * unless Lazy Expiry is on (purgeLimit > 0).  Then EVERY insert also removes
+ * up to purgeLimit of the user's already-expired visits, so the expired
+ * visits go away as the user is written, and the cleaners can run less often.
+ * 
+ * Metrics: ldt.trimmedOnWrite counts the elements trimmed by writes, and
+ * ldt.trimWrites the writes that did any trimming.  The Client Cleaner
+ * counts what it removes in clean.removed, so the two can be compared.
+ */
+public class CappedLdtOperations extends ForwardingLdtOperations 
+	implements IAppConstants 
+{
+	// Metric Names
+	public static final String TRIMMED_ON_WRITE = "ldt.trimmedOnWrite";
+	public static final String TRIM_WRITES = "ldt.trimWrites";
+	public static final String CLEAN_REMOVED = "clean.removed";
+	
+	private static final String CLASSNAME = "CappedLdtOperations";
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private String moduleName;
+	private Map<String, LdtCapPolicy> caps;
+	private long timeToLiveNs;
+	private int purgeLimit; // Lazy Expiry: max expired visits per write
+	
+	/**
+	 * @param console
+	 * @param dbOps
+	 * @param inner : The real (LLIST or LMAP) LDT operations
+	 * @param caps : The cap for each capped namespace
+	 * @param timeToLiveNs : The Site Visit TTL (to turn max age into expire)
+	 * @param purgeLimit : Lazy Expiry limit per write (0 = no Lazy Expiry)
+	 */
+	public CappedLdtOperations(Console console, DbOps dbOps, 
+			ILdtOperations inner, Map<String, LdtCapPolicy> caps, 
+			long timeToLiveNs, int purgeLimit) 
+	{
+		super(inner);
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.caps = caps;
+		this.timeToLiveNs = timeToLiveNs;
+		this.purgeLimit = purgeLimit;
+		if (LLIST.equalsIgnoreCase(dbOps.ldtType)) {
+			this.moduleName = CM_LLIST_MOD;
+		} else {
+			this.moduleName = CM_LMAP_MOD;
+		}
+	}
+	
+	/**
+	 * Route the Site Visit thru the key-based store (below), so that the
+	 * cap applies no matter which storeSiteObject() the caller used.
+	 */
+	@Override
+	public int storeSiteObject(SiteVisitEntry sve, String ns, String set,
+			Map<String, Object> siteObjMap) 
+	{
+		Key userKey = new Key(ns, set, sve.getUserID());
+		return storeSiteObject(userKey, sve.getLdtBinName(), siteObjMap);
+	}
+
+	/**
+	 * Insert and trim in one Record UDF call (when this namespace is capped).
+	 * @return zero ok, -1 Gen error, -2 Duplicate Key (retry), -3 Other Error
+	 */
+	@Override
+	public int storeSiteObject(Key key, String bin,
+			Map<String, Object> siteObjMap) 
+	{
+		final String meth = "storeSiteObject()";
+		LdtCapPolicy cap = caps.get(key.namespace);
+		if (cap == null && purgeLimit <= 0) {
+			return inner.storeSiteObject(key, bin, siteObjMap);
+		}
+		
+		// A visit that is older than maxAge has an expire value lower than
+		// (now - maxAge + TTL), since every visit gets the same TTL.  With
+		// Lazy Expiry, anything that has already expired (expire < now)
+		// goes too.
+		long nowNs = dbOps.getClock().nanoTime();
+		long minExpire = (purgeLimit > 0) ? nowNs : 0L;
+		int maxCount = 0;
+		if (cap != null) {
+			maxCount = cap.maxCount;
+			if (cap.maxAgeSec > 0) {
+				minExpire = Math.max(minExpire, 
+					nowNs - (cap.maxAgeSec * 1000000000L) + timeToLiveNs);
+			}
+		}
+		
+		try {
+			Object result = client.execute(dbOps.writePolicy, key, moduleName,
+					LDT_ADD_TRIM, Value.get(bin), Value.getAsMap(siteObjMap),
+					Value.get(maxCount), Value.get(minExpire), 
+					Value.get(purgeLimit));
+			long trimmed = (result == null) ? 0 : ((Number) result).longValue();
+			if (trimmed == -2) {
+				return( -2 );
+			}
+			if (trimmed > 0) {
+				AppMetrics metrics = dbOps.getMetrics();
+				metrics.add(TRIMMED_ON_WRITE, trimmed);
+				metrics.increment(TRIM_WRITES);
+			}
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s>Aerospike Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			return( -3 );
+		} catch (Exception e) {
+			console.error("<%s:%s> Add/Trim Exception(%s)", 
+					CLASSNAME, meth, e.toString());
+			return( -1 );
+		}
+		return(0);
+	} // end storeSiteObject()
+
+} // end class CappedLdtOperations
@@ -20,7 +20,14 @@ import java.util.List;
 import java.util.Random;
 
 import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
 import com.aerospike.client.Key;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+import com.aerospike.client.query.IndexType;
+import com.aerospike.client.task.IndexTask;
 
 /**
  * This class represents a thread of execution that performs client-side LDT
@@ -30,10 +37,38 @@ import com.aerospike.client.Key;
  * record. The CLEAN operation removes all LDT data items that are older than a 
  * given value.
  * 
+ * To avoid opening every LDT on every pass, each record carries an Expire
+ * Watermark (WATERMARK_BIN):  a lower bound on the expire values in its LDT.
+ * The Watermark has a (numeric) Secondary Index per set, so each pass is a
+ * range query for the records whose Watermark is below now -- the records
+ * that are not due are never read.  (If the index can't be made, we fall
+ * back to a scan of just the Watermark Bin, and skip those records in the
+ * client.)  After cleaning a record, we set its Watermark to the next
+ * expire value -- looking ahead no further than one clean interval.  The
+ * records skipped by a query pass are counted from the set's record count
+ * (see DbOps.setObjectCount()), less the ones that were due.
+ * 
+ * Only the records that have a Watermark are in the index, so every write
+ * keeps one:  a Site Visit write (the add_trim UDF) lowers it to the new
+ * visit's expire, or sets zero ("due now") when there is none;  a bulk
+ * load (loadFullLDT()) lowers it to the lowest expire it loaded;  and a new
+ * User Record gets zero.  The records written before that (e.g. a -noLoad
+ * run against an older database) are found with one scan per set, before
+ * the first query, and given a zero Watermark.
+ * 
  * @author toby
  *
  */
-public class CleanLdtDataFromClient implements Runnable {
+public class CleanLdtDataFromClient 
+	implements Runnable, ISetCleaner, IAppConstants 
+{
+	
+	// Metric Names
+	public static final String CLEAN_RECORDS_CLEANED = "clean.recordsCleaned";
+	public static final String CLEAN_RECORDS_SKIPPED = "clean.recordsSkipped";
+	public static final String CLEAN_WATERMARKS_ADDED = "clean.watermarksAdded";
+	
+	private static final String CLASSNAME = "CleanLdtDataFromClient";
 
 	private Console console;  	// debug tracking/printing
 	private DbOps dbOps;		// Link to DB and LDT Operations
@@ -43,6 +78,8 @@ public class CleanLdtDataFromClient implements Runnable {
 	private int setNum;			// Seed value for this customer set
 	private int sleepInterval;  // Time (in seconds) to sleep between scans
 	private long runPeriod;	// Number of nanoseconds we want this thread to run
+	private WritePolicy watermarkPolicy; // Update (never create) the Watermark
+	private volatile Boolean watermarkIndex; // Null until we try to create it
 	
 
 
@@ -70,57 +107,191 @@ public class CleanLdtDataFromClient implements Runnable {
 		this.setNum = setNum;
 		this.sleepInterval = sleepInterval;
 		this.runPeriod = runSeconds * 1000000000; // convert to nanoseconds
+		
+		// Don't bring a record back to life just to set its Watermark.
+		this.watermarkPolicy = new WritePolicy();
+		this.watermarkPolicy.timeout = dbOps.writePolicy.timeout;
+		this.watermarkPolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
 	}
 
 	/**
-	 * For "iteration" number of cycles, generate user-visit events within
-	 * the bounds of customer range and user range.
+	 * Set the record's Expire Watermark to its next expire value (or to the
+	 * horizon, if nothing expires before then).
+	 * @param ldtOps
+	 * @param key
+	 * @param now
+	 * @param horizon
 	 */
-	public void run() {
+	private void updateWatermark(ILdtOperations ldtOps, Key key, long now,
+			long horizon) 
+	{
+		long watermark = ldtOps.nextExpire(key, now, horizon);
+		try {
+			client.put(watermarkPolicy, key, new Bin(WATERMARK_BIN, watermark));
+		} catch (AerospikeException ae) {
+			console.debug("Watermark Update Error Code(%d) Error Message(%s)",
+					ae.getResultCode(), ae.getMessage());
+		}
+	} // end updateWatermark()
+
+	/**
+	 * Create the set's Watermark Index, if it isn't there already.
+	 * @param ns
+	 * @param set
+	 * @return true if the index is ready to query
+	 */
+	private boolean createWatermarkIndex(String ns, String set) {
+		final String meth = "createWatermarkIndex()";
+		try {
+			IndexTask task = client.createIndex(dbOps.policy, ns, set,
+					WATERMARK_INDEX + set, WATERMARK_BIN, IndexType.NUMERIC);
+			task.waitTillComplete();
+			return true;
+		} catch (AerospikeException ae) {
+			if (ae.getResultCode() == ResultCode.INDEX_FOUND) {
+				return true;
+			}
+			console.warn("<%s:%s> Set(%s) No Watermark Index (will scan): Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, set, ae.getResultCode(), ae.getMessage());
+			return false;
+		}
+	} // end createWatermarkIndex()
+
+	/**
+	 * Give every record in the set that has no Watermark yet a zero ("due")
+	 * Watermark, so that the Watermark Index has them all.
+	 * @param ns
+	 * @param set
+	 * @return the number of records marked
+	 */
+	private int markUnmarkedRecords(String ns, String set) 
+			throws AerospikeException 
+	{
+		final String meth = "markUnmarkedRecords()";
+		List<Key> unmarked = new ScanKeySet(console).runUnmarkedScan(client, 
+				ns, set);
+		int marked = 0;
+		for (Key key : unmarked) {
+			try {
+				client.put(watermarkPolicy, key, new Bin(WATERMARK_BIN, 0L));
+				marked++;
+			} catch (AerospikeException ae) {
+				console.debug("<%s:%s> Watermark Error Code(%d) Error Message(%s)",
+						CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			}
+		}
+		dbOps.getMetrics().add(CLEAN_WATERMARKS_ADDED, marked);
+		console.info("<%s:%s> Set(%s) Watermarks Added(%d)", CLASSNAME, meth, 
+				set, marked);
+		return marked;
+	} // end markUnmarkedRecords()
+
+	public String getSetName() {
+		return new CustomerRecord(console, setNum).getCustomerID();
+	}
+
+	/**
+	 * One clean pass:  scan the set, get the record keys/digests of the
+	 * records whose Watermark is due, then open up each LDT and remove any
+	 * items that have expire times that are OLDER than the current time.
+	 * @return the number of records cleaned
+	 */
+	public long cleanOnce() throws Exception {
 		String ns = namespace;
-		Long expire = 0L;
+		String set = getSetName();
+		long expire;
+		int removed;
 		ILdtOperations ldtOps = dbOps.getLdtOps();
+		AppMetrics metrics = dbOps.getMetrics();
 
-		CustomerRecord custRec = new CustomerRecord(console, setNum);
-		String set = custRec.getCustomerID();
-
-		// Remember that these times are in NANO-SECONDS
-		long startTimeNs = System.nanoTime();
-		long currentTimeNs;
+		// Remember that these times are in NANO-SECONDS, and that they come
+		// from the (possibly compressed) virtual clock.
+		IClock clock = dbOps.getClock();
 
-		List<Key> keyList; // The list of record keys in this set.
+		// Query this set for the records whose Watermark is due, and clean
+		// each one.
+		// The first time, make the index and make sure that every record in
+		// the set is in it.
+		if (watermarkIndex == null) {
+			boolean ready = createWatermarkIndex(ns, set);
+			if (ready) {
+				markUnmarkedRecords(ns, set);
+			}
+			watermarkIndex = Boolean.valueOf(ready);
+		}
+		ScanKeySet scanKeySet = new ScanKeySet( console );
+		List<Key> keyList;
+		if (watermarkIndex.booleanValue()) {
+			keyList = scanKeySet.runDueQuery(client, ns, set, 
+					WATERMARK_INDEX + set, clock.nanoTime());
+			long setRecords = dbOps.setObjectCount(ns, set);
+			if (setRecords > keyList.size()) {
+				metrics.add(CLEAN_RECORDS_SKIPPED, setRecords - keyList.size());
+			}
+		} else {
+			keyList = scanKeySet.runDueScan(client, ns, set, clock.nanoTime());
+			metrics.add(CLEAN_RECORDS_SKIPPED, scanKeySet.getSkippedCount());
+		}
 		
-		console.debug("Thread(" + threadNumber +") Starting");
+		// With a Clean Throttle, each record costs one token of the budget.
+		CleanThrottle throttle = dbOps.getCleanThrottle();
+		if (throttle != null) {
+			throttle.addBacklog(keyList.size());
+		}
 
+		// Process all records (via keys) in the scanSet.  If we stop early
+		// (an error or an interrupt), the records we didn't get to come off
+		// the backlog.
+		int acquired = 0;
 		try {
+			for (Key key : keyList) {
+				console.debug("Key:: " + key );
+				if (throttle != null) {
+					throttle.acquire();
+					acquired++;
+				}
+				expire = clock.nanoTime();
+				removed = ldtOps.processRemoveExpired(ns, set, key, expire);
+				if (removed > 0) {
+					metrics.add(CappedLdtOperations.CLEAN_REMOVED, removed);
+				}
+				updateWatermark(ldtOps, key, expire, 
+						expire + (sleepInterval * 1000000000L));
+				metrics.increment(CLEAN_RECORDS_CLEANED);
+			}
+		} finally {
+			if (throttle != null && acquired < keyList.size()) {
+				throttle.addBacklog(acquired - keyList.size());
+			}
+		}
+		return keyList.size();
+	} // end cleanOnce()
 
-			// Start off sleeping for the given interval, then wake up and
-			// scan the set, get all of the record keys/digests, then open up
-			// each LDT and remove any items that have expire times that are
-			// OLDER than the current time.
+	/**
+	 * Run as a stand-alone cleaning thread:  a clean pass every interval,
+	 * until the run period is over.  (Normally the CleanScheduler drives
+	 * cleanOnce() instead.)
+	 */
+	public void run() {
+		// Remember that these times are in NANO-SECONDS, and that they come
+		// from the (possibly compressed) virtual clock.
+		IClock clock = dbOps.getClock();
+		long startTimeNs = clock.nanoTime();
+		long currentTimeNs;
+
+		console.debug("Thread(" + threadNumber +") Starting");
 
-			Thread.sleep(threadNumber * 2000); // stagger initial sleep.
+		try {
+			clock.sleep(threadNumber * 2000L); // stagger initial sleep.
 			
 			do { // Loop until time runs out.
-
 				console.debug("Thread(" + threadNumber +") Running");
-
-				// Scan this set, and for each record in the set, clean the
-				// record.
-				ScanKeySet scanKeySet = new ScanKeySet( console );
-				keyList = scanKeySet.runScan(client, this.namespace, set);
-
-				// Process all records (via keys) in the scanSet.
-				for (Key key : keyList) {
-					console.debug("Key:: " + key );
-					expire = System.nanoTime();
-					ldtOps.processRemoveExpired(ns, set, key, expire);
-				}
+				cleanOnce();
 
 				// Take a rest.  When we wake up see if our time is up.
 				console.debug("Thread(" + threadNumber +") Sleeping");
-				Thread.sleep(sleepInterval * 1000);
-				currentTimeNs = System.nanoTime();
+				clock.sleep(sleepInterval * 1000L);
+				currentTimeNs = clock.nanoTime();
 				if (currentTimeNs - startTimeNs > runPeriod) {
 					console.info("All Done with Thread:" + threadNumber);
 					break;
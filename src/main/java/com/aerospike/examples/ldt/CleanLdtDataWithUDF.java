@@ -40,7 +40,9 @@ import com.aerospike.client.task.RegisterTask;
  * @author toby
  *
  */
-public class CleanLdtDataWithUDF implements Runnable, IAppConstants {
+public class CleanLdtDataWithUDF 
+	implements Runnable, ISetCleaner, IAppConstants 
+{
 
 	private Console console;  	// debug tracking/printing
 	private DbOps dbOps;		// Link to DB and LDT Operations
@@ -78,16 +80,18 @@ public class CleanLdtDataWithUDF implements Runnable, IAppConstants {
 	}
 	
 	/**
-	 * Perform the Aerospike Scan, with the UDF that will find and clean the
-	 * expired SiteVisit Data entries.
+	 * Start the Aerospike Scan, with the UDF that will find and clean the
+	 * expired SiteVisit Data entries.  The scan runs in the background on
+	 * the server;  the caller gets the task handle to wait on (or poll).
 	 * 
 	 * @param client
 	 * @param parms
 	 * @param customerSet
 	 * @param expire
+	 * @return the background task
 	 * @throws Exception
 	 */
-	private void runScanUDF(
+	private ExecuteTask startScanUDF(
 			AerospikeClient client,
 			DbParameters parms,
 			String customerSet,
@@ -110,20 +114,53 @@ public class CleanLdtDataWithUDF implements Runnable, IAppConstants {
 			// Same for both cases.
 			String functionName = LDT_EXPIRE;
 			
-			ExecuteTask task = client.execute(parms.policy, stmt, 
+			// The UDF skips the records whose Expire Watermark isn't due, and
+			// moves the Watermark ahead (at most one clean interval) on the
+			// records it cleans.
+			long horizon = expire + (cleanIntervalSec * 1000000000L);
+			return client.execute(parms.policy, stmt, 
 					moduleName, functionName, Value.get(dbOps.ldtBinName),
-					Value.get(expire));
-			task.waitTillComplete();
+					Value.get(expire), Value.get(horizon));
 		}
 
 	/**
-	 * For "iteration" number of cycles, generate user-visit events within
-	 * the bounds of customer range and user range.
+	 * Start a clean pass on this set, without waiting for it (see
+	 * UdfCleanMonitor).  Anything that expires before the current time will
+	 * be removed.
+	 * @return the background task
+	 */
+	public ExecuteTask startClean() throws Exception {
+		long expireNs = dbOps.getClock().nanoTime();
+		return startScanUDF(client, parms, getSetName(), expireNs);
+	} // end startClean()
+
+	public String getSetName() {
+		return new CustomerRecord(console, setNumber).getCustomerID();
+	}
+
+	/**
+	 * One clean pass:  scan the set and call the UDF on each record.  We get
+	 * the current time in nanoseconds, and any LDT item that has an expire
+	 * time older than current time will be removed.
+	 * @return how long the scan took, in milliseconds.  The UDF does all of
+	 *   the work on the server, so that's our measure of the set's backlog.
+	 */
+	public long cleanOnce() throws Exception {
+		long startMs = System.currentTimeMillis();
+		ExecuteTask task = startClean();
+		task.waitTillComplete();
+		return System.currentTimeMillis() - startMs;
+	} // end cleanOnce()
+
+	/**
+	 * Run as a stand-alone cleaning thread:  a clean pass every interval,
+	 * until the run period is over.  (Normally the CleanScheduler drives
+	 * cleanOnce() instead.)
 	 */
 	public void run() {
-		long expireNs; 					// Expire time in nanoseconds
 		long currentTimeNs;               // Current Time in nanoseconds
-		long startTimeNs = System.nanoTime(); // Start time in nanoseconds
+		IClock clock = dbOps.getClock();  // Virtual clock for all times
+		long startTimeNs = clock.nanoTime(); // Start time in nanoseconds
 		
 		console.info("Starting SCAN UDF RUN: SetNum(%d)", this.setNumber);
 
@@ -134,26 +171,17 @@ public class CleanLdtDataWithUDF implements Runnable, IAppConstants {
 			// for each record, open the record, check for an existing 
 			// site-visit LDT, (if present) scan the site-visit LDT and then
 			// remove entries that are older than the supplied expire value.
-			Thread.sleep(threadNumber * 1000); // stagger initial sleep.
-			
-			// Create a Customer Object so that we can get the customer Set Name.
-			CustomerRecord crec = new CustomerRecord(console,setNumber);
-			String custSet = crec.getCustomerID();
+			clock.sleep(threadNumber * 1000L); // stagger initial sleep.
 			
 			do { // Loop until time runs out (runPeriodNs)
 
 				console.debug("Clean Thread(" + threadNumber +") Running");
-
-				// Scan this set and call the UDF on each record.  We get the
-				// current time in nanoseconds, and any LDT item that has an
-				// expire time older than current time will be removed.
-				expireNs = System.nanoTime();
-				runScanUDF(client, parms, custSet, expireNs);
+				cleanOnce();
 
 				// Take a rest.  When we wake up see if our time is up.
 				console.debug("Clean Thread(" + threadNumber +") Sleeping");
-				Thread.sleep(cleanIntervalSec * 1000);
-				currentTimeNs = System.nanoTime();
+				clock.sleep(cleanIntervalSec * 1000L);
+				currentTimeNs = clock.nanoTime();
 				console.debug("Testing CurrTime("+ currentTimeNs +") " +
 						"StartTime(" + startTimeNs + ") " +
 						"Diff(" + (currentTimeNs - startTimeNs) + ") " +
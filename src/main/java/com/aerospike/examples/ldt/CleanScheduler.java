@@ -0,0 +1,248 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One scheduler for ALL of the Customer Set cleaners.
+ * 
+ * Rather than one thread per Customer Set that spends almost all of its life
+ * asleep (thousands of idle threads at thousands of customers, with the clean
+ * scans still bursting together), we keep every set in a priority queue
+ * ordered by when its next clean pass is due.  One dispatcher thread takes
+ * the sets as they come due and hands them to a small, bounded worker pool.
+ * 
+ * The order also considers the expected backlog:  a set whose last pass had
+ * more work to do gets its next pass moved forward (by up to half of the
+ * clean interval), so the busy sets are cleaned more often than the idle ones.
+ * The first passes are spread evenly over one interval.
+ * 
+ * Every pass must hold one of the global Scan Permits (see DbOps), so there
+ * is a hard limit on the number of concurrent scans and scan UDFs.
+ * 
+ * Metrics: clean.passes counts the passes, the clean.queueLag histogram holds
+ * how late (in virtual time) each pass started compared to when it was due,
+ * and the gauges clean.queueLagMaxMs and clean.queueDepth are kept current.
+ */
+public class CleanScheduler implements Runnable {
+	
+	// Metric Names
+	public static final String CLEAN_PASSES = "clean.passes";
+	public static final String CLEAN_QUEUE_LAG = "clean.queueLag";
+	public static final String CLEAN_QUEUE_LAG_MAX = "clean.queueLagMaxMs";
+	public static final String CLEAN_QUEUE_DEPTH = "clean.queueDepth";
+	
+	/** A unit of backlog moves the next pass forward by this much. */
+	private static final long BACKLOG_CREDIT_NS = 10000000L; // 10 ms
+	
+	/** The longest the dispatcher sleeps (in real ms) before looking again. */
+	private static final long MAX_IDLE_MS = 100L;
+	
+	private static final String CLASSNAME = "CleanScheduler";
+	
+	private Console console;
+	private IClock clock;
+	private AppMetrics metrics;
+	private Semaphore scanPermits;
+	private int workerCount;
+	private long intervalNs;
+	private long runPeriodNs;
+	private long startNs;
+	private final List<ISetCleaner> cleaners;
+	private final PriorityBlockingQueue<CleanTask> queue;
+	private ExecutorService workers;
+	private Thread dispatcher;
+	private volatile boolean running = false;
+	
+	/**
+	 * One entry in the queue:  a set's cleaner, and when its next pass is due.
+	 */
+	private static class CleanTask implements Comparable<CleanTask> {
+		final ISetCleaner cleaner;
+		long dueNs;   // When the next pass should start (virtual ns)
+		long backlog; // The work found by the last pass
+		
+		CleanTask(ISetCleaner cleaner, long dueNs) {
+			this.cleaner = cleaner;
+			this.dueNs = dueNs;
+		}
+		
+		public int compareTo(CleanTask other) {
+			if (dueNs != other.dueNs) {
+				return (dueNs < other.dueNs) ? -1 : 1;
+			}
+			return (backlog > other.backlog) ? -1 : 
+				((backlog == other.backlog) ? 0 : 1);
+		}
+	} // end class CleanTask
+
+	/**
+	 * @param console
+	 * @param dbOps : for the clock, the metrics and the Scan Permits
+	 * @param workerCount : max passes running at once
+	 * @param cleanIntervalSec : (virtual) time between passes on one set
+	 * @param runSeconds : (virtual) time to keep cleaning
+	 */
+	public CleanScheduler(Console console, DbOps dbOps, int workerCount,
+			int cleanIntervalSec, long runSeconds) 
+	{
+		this.console = console;
+		this.clock = dbOps.getClock();
+		this.metrics = dbOps.getMetrics();
+		this.scanPermits = dbOps.getScanPermits();
+		this.workerCount = Math.max(1, workerCount);
+		this.intervalNs = cleanIntervalSec * 1000000000L;
+		this.runPeriodNs = runSeconds * 1000000000L;
+		this.cleaners = new ArrayList<ISetCleaner>();
+		this.queue = new PriorityBlockingQueue<CleanTask>();
+	}
+	
+	/**
+	 * Add a set's cleaner.  Call this before start().
+	 * @param cleaner
+	 */
+	public void addCleaner(ISetCleaner cleaner) {
+		cleaners.add(cleaner);
+	}
+	
+	/**
+	 * Queue up every set (spread over the first interval) and start the
+	 * dispatcher and the worker pool.
+	 */
+	public void start() {
+		final String meth = "start()";
+		startNs = clock.nanoTime();
+		int count = cleaners.size();
+		for (int i = 0; i < count; i++) {
+			long firstDue = startNs + (intervalNs * i) / Math.max(1, count);
+			queue.add(new CleanTask(cleaners.get(i), firstDue));
+		}
+		workers = Executors.newFixedThreadPool(workerCount);
+		running = true;
+		dispatcher = new Thread(this, "CleanScheduler");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		console.info("<%s:%s> Scheduling (%d) Sets: Workers(%d) Interval(%d sec)",
+				CLASSNAME, meth, count, workerCount, intervalNs / 1000000000L);
+	} // end start()
+	
+	/**
+	 * The dispatcher:  wait for the head of the queue to come due, then get
+	 * a Scan Permit and hand the pass to a worker.
+	 */
+	public void run() {
+		final String meth = "run()";
+		try {
+			while (running) {
+				long nowNs = clock.nanoTime();
+				if (nowNs - startNs > runPeriodNs) {
+					console.info("<%s:%s> Clean Run Period is over", CLASSNAME, meth);
+					break;
+				}
+				metrics.setGauge(CLEAN_QUEUE_DEPTH, queue.size());
+				CleanTask head = queue.peek();
+				if (head == null || head.dueNs > nowNs) {
+					long waitMs = MAX_IDLE_MS;
+					if (head != null) {
+						long dueInMs = (head.dueNs - nowNs) / 1000000L;
+						waitMs = Math.min(MAX_IDLE_MS, 
+								Math.max(1L, clock.toRealMillis(dueInMs)));
+					}
+					Thread.sleep(waitMs);
+					continue;
+				}
+				final CleanTask task = queue.poll();
+				scanPermits.acquire();
+				workers.execute(new Runnable() {
+					public void run() {
+						runPass(task);
+					}
+				});
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+	} // end run()
+	
+	/**
+	 * Run one clean pass, then put the set back in the queue for its next one.
+	 * @param task
+	 */
+	private void runPass(CleanTask task) {
+		final String meth = "runPass()";
+		long passStartNs = clock.nanoTime();
+		long lagNs = Math.max(0L, passStartNs - task.dueNs);
+		metrics.histogram(CLEAN_QUEUE_LAG).record(lagNs);
+		AtomicLong lagMax = metrics.gauge(CLEAN_QUEUE_LAG_MAX);
+		long lagMs = lagNs / 1000000L;
+		long oldMax = lagMax.get();
+		while (lagMs > oldMax && !lagMax.compareAndSet(oldMax, lagMs)) {
+			oldMax = lagMax.get();
+		}
+		try {
+			task.backlog = task.cleaner.cleanOnce();
+			metrics.increment(CLEAN_PASSES);
+		} catch (Exception e) {
+			console.error("<%s:%s> Clean Pass Failed: Set(%s) Error(%s)", 
+					CLASSNAME, meth, task.cleaner.getSetName(), e.toString());
+		} finally {
+			scanPermits.release();
+		}
+		
+		// Next pass:  one interval after this one ends (as the old cleaner
+		// threads did), less the credit for the backlog this pass found.
+		long credit = Math.min(Math.max(0L, task.backlog) * BACKLOG_CREDIT_NS, 
+				intervalNs / 2);
+		task.dueNs = clock.nanoTime() + intervalNs - credit;
+		if (running) {
+			queue.add(task);
+		}
+	} // end runPass()
+	
+	/**
+	 * Stop the scheduler.  If asked, first let it run out its run period
+	 * (as the old cleaner threads did).  Passes in flight are allowed to
+	 * finish.
+	 * @param finishRunPeriod
+	 */
+	public void stop(boolean finishRunPeriod) {
+		final String meth = "stop()";
+		try {
+			if (finishRunPeriod) {
+				dispatcher.join();
+			}
+			running = false;
+			dispatcher.join();
+			workers.shutdown();
+			workers.awaitTermination(10L, TimeUnit.MINUTES);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		console.info("<%s:%s> Clean Scheduler Stopped: Passes(%d)", 
+				CLASSNAME, meth, metrics.getCount(CLEAN_PASSES));
+	} // end stop()
+
+} // end class CleanScheduler
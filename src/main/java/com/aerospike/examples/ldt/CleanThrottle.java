@@ -0,0 +1,191 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttle the client-side cleaners (Clean Method 1) by the foreground
+ * latency.
+ * 
+ * The cleaners take one token (see TokenBucket) for every record they clean,
+ * so the clean load is held to a budget of records per second.  Once a
+ * window, the controller looks at the p99 latency of the foreground
+ * operations over that window:  storeSiteObject (the Base Site Visit write)
+ * and reloadCache (the full Cache reload).  If either one is over its
+ * target, the budget is cut in half;  if both have room to spare, the budget
+ * grows by a step (AIMD, as in TCP congestion control).  So the cleaners run
+ * flat out when the foreground is quiet, and back off when they get in its
+ * way.
+ * 
+ * Metrics: the gauges clean.budgetRps (the current budget) and clean.backlog
+ * (records found due that have not been cleaned yet), and the counter
+ * clean.throttleCuts.
+ */
+public class CleanThrottle implements Runnable {
+	
+	// Metric Names
+	public static final String CLEAN_BUDGET = "clean.budgetRps";
+	public static final String CLEAN_BACKLOG = "clean.backlog";
+	public static final String CLEAN_THROTTLE_CUTS = "clean.throttleCuts";
+	
+	/** The controller's window, in (real) ms. */
+	static final long WINDOW_MS = 1000L;
+	
+	/** Grow only when both p99s are below this fraction of target. */
+	static final double HEADROOM_RATIO = 0.75;
+	
+	/** On a miss, cut the budget by this factor. */
+	static final double CUT_FACTOR = 0.5;
+	
+	/** Never go below this fraction of the max budget. */
+	static final double MIN_RATIO = 0.01;
+	
+	/** Grow by this fraction of the max budget per window. */
+	static final double STEP_RATIO = 0.05;
+	
+	private static final String CLASSNAME = "CleanThrottle";
+	
+	private Console console;
+	private AppMetrics metrics;
+	private TokenBucket bucket;
+	private double maxRps;
+	private long storeTargetUs;
+	private long reloadTargetUs;
+	private final AtomicLong backlog = new AtomicLong(0);
+	private Thread controller;
+	private volatile boolean running = false;
+	
+	/**
+	 * @param console
+	 * @param metrics
+	 * @param maxRps : the most records per second the cleaners may clean
+	 * @param storeP99Ms : storeSiteObject p99 target
+	 * @param reloadP99Ms : reloadCache p99 target
+	 */
+	public CleanThrottle(Console console, AppMetrics metrics, double maxRps,
+			long storeP99Ms, long reloadP99Ms) 
+	{
+		this.console = console;
+		this.metrics = metrics;
+		this.maxRps = maxRps;
+		this.storeTargetUs = storeP99Ms * 1000L;
+		this.reloadTargetUs = reloadP99Ms * 1000L;
+		this.bucket = new TokenBucket(maxRps, 1.0);
+		metrics.setGauge(CLEAN_BUDGET, (long) maxRps);
+	}
+	
+	/**
+	 * Build a throttle from "maxRps[,storeP99Ms,reloadP99Ms]" (the latency
+	 * targets default to the Throughput Ramp's SLO defaults).
+	 * @param console
+	 * @param metrics
+	 * @param spec
+	 * @return the throttle, or null when spec is null or empty
+	 */
+	public static CleanThrottle parse(Console console, AppMetrics metrics,
+			String spec) 
+	{
+		if (spec == null || spec.trim().length() == 0) {
+			return null;
+		}
+		String[] parts = spec.split(",");
+		double maxRps = Double.parseDouble(parts[0].trim());
+		long storeMs = (parts.length > 1) ? Long.parseLong(parts[1].trim()) : 50L;
+		long reloadMs = (parts.length > 2) ? Long.parseLong(parts[2].trim()) : 2000L;
+		return new CleanThrottle(console, metrics, maxRps, storeMs, reloadMs);
+	} // end parse()
+	
+	/**
+	 * A cleaner found this many records due:  add them to the backlog.  (A
+	 * cleaner that stops early takes the rest back off with a negative
+	 * count.)
+	 * @param records
+	 */
+	public void addBacklog(long records) {
+		backlog.addAndGet(records);
+	}
+	
+	/**
+	 * Wait for the budget to allow one more record to be cleaned.
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		bucket.acquire();
+		backlog.decrementAndGet();
+	}
+	
+	public void start() {
+		running = true;
+		controller = new Thread(this, "CleanThrottle");
+		controller.setDaemon(true);
+		controller.start();
+	}
+	
+	public void stop() {
+		running = false;
+		if (controller != null) {
+			controller.interrupt();
+		}
+	}
+	
+	/**
+	 * The controller:  once a window, compare the window's foreground p99s
+	 * with their targets and adjust the budget.
+	 */
+	public void run() {
+		final String meth = "run()";
+		LatencyHistogram storeHist = metrics.histogram(AppMetrics.STORE_SITE_OBJECT);
+		LatencyHistogram reloadHist = metrics.histogram(AppMetrics.RELOAD_CACHE);
+		long[] storeBefore = storeHist.snapshot();
+		long[] reloadBefore = reloadHist.snapshot();
+		try {
+			while (running) {
+				Thread.sleep(WINDOW_MS);
+				long[] storeNow = storeHist.snapshot();
+				long[] reloadNow = reloadHist.snapshot();
+				long storeP99 = LatencyHistogram.percentileMicros(
+						LatencyHistogram.difference(storeNow, storeBefore), 99.0);
+				long reloadP99 = LatencyHistogram.percentileMicros(
+						LatencyHistogram.difference(reloadNow, reloadBefore), 99.0);
+				storeBefore = storeNow;
+				reloadBefore = reloadNow;
+				
+				double rate = bucket.getRate();
+				double newRate = rate;
+				if (storeP99 > storeTargetUs || reloadP99 > reloadTargetUs) {
+					newRate = Math.max(maxRps * MIN_RATIO, rate * CUT_FACTOR);
+					metrics.increment(CLEAN_THROTTLE_CUTS);
+					console.debug("<%s:%s> Cut Budget(%d -> %d) StoreP99(%d us) ReloadP99(%d us)",
+							CLASSNAME, meth, (long) rate, (long) newRate, storeP99, reloadP99);
+				} else if (storeP99 < storeTargetUs * HEADROOM_RATIO 
+						&& reloadP99 < reloadTargetUs * HEADROOM_RATIO) 
+				{
+					newRate = Math.min(maxRps, rate + (maxRps * STEP_RATIO));
+				}
+				if (newRate != rate) {
+					bucket.setRate(newRate);
+				}
+				metrics.setGauge(CLEAN_BUDGET, (long) newRate);
+				metrics.setGauge(CLEAN_BACKLOG, Math.max(0L, backlog.get()));
+			}
+		} catch (InterruptedException ie) {
+			// Stopped.
+		}
+	} // end run()
+
+} // end class CleanThrottle
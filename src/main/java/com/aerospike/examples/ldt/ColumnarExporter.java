@@ -0,0 +1,269 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.cluster.Node;
+import com.aerospike.client.policy.ScanPolicy;
+
+/**
+ * Export the Site Visits of every Customer Set to local, column-oriented
+ * files (see VisitColumnWriter) for offline analytics:  one file per set,
+ * "<set>.vcol" in the output directory.
+ * 
+ * The sets are exported in parallel (threadCount at a time), and each set
+ * is scanned on all of the cluster nodes in parallel (one scanNode() per
+ * node -- this client has no partition-level scans, so the node is our
+ * unit of parallelism).  The scans bring back only the user name, and
+ * for each record the scan thread reads the LDT (scanLDT) and streams its
+ * visits, in expire order, into the set's file.  Nothing is held in memory
+ * beyond one Row Group per set.
+ * 
+ * The filler that pads the stored URL (ILdtOperations.URL_FILLER) is
+ * stripped on the way out.
+ * 
+ * Metrics: export.visits, export.users, export.errors (counters) and the
+ * gauge export.visitsPerSec.  The throughput is reported as we go.
+ */
+public class ColumnarExporter implements IAppConstants {
+	
+	// Metric Names
+	public static final String EXPORT_VISITS = "export.visits";
+	public static final String EXPORT_USERS = "export.users";
+	public static final String EXPORT_ERRORS = "export.errors";
+	public static final String EXPORT_RATE = "export.visitsPerSec";
+	
+	public static final String FILE_SUFFIX = ".vcol";
+	
+	/** How often (real ms) we report the progress. */
+	private static final long PROGRESS_MS = 10000L;
+	
+	private static final String CLASSNAME = "ColumnarExporter";
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private AppMetrics metrics;
+	private String namespace;
+	private File outDir;
+	private int threadCount;
+	
+	/**
+	 * @param console
+	 * @param dbOps : for the client, the LDT operations and the metrics
+	 * @param namespace : the namespace to export
+	 * @param outDir : where the files go (created if need be)
+	 * @param threadCount : sets exported at once
+	 */
+	public ColumnarExporter(Console console, DbOps dbOps, String namespace,
+			File outDir, int threadCount) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.namespace = namespace;
+		this.outDir = outDir;
+		this.threadCount = Math.max(1, threadCount);
+	}
+	
+	/**
+	 * Export every Customer Set.
+	 * @param customerRecords : the number of Customer Sets
+	 * @return the number of visits exported
+	 */
+	public long export(long customerRecords) throws IOException {
+		final String meth = "export()";
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Can't create the Export Directory: " + outDir);
+		}
+		console.info("<%s:%s> Exporting (%d) Sets from NS(%s) to (%s)", 
+				CLASSNAME, meth, customerRecords, namespace, outDir);
+		
+		long startMs = System.currentTimeMillis();
+		long visitsBefore = metrics.getCount(EXPORT_VISITS);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		for (int i = 0; i < customerRecords; i++) {
+			final String set = new CustomerRecord(console, i).getCustomerID();
+			executor.execute(new Runnable() {
+				public void run() {
+					exportSet(set);
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			while (!executor.awaitTermination(PROGRESS_MS, TimeUnit.MILLISECONDS)) {
+				reportProgress(startMs, visitsBefore);
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		reportProgress(startMs, visitsBefore);
+		return metrics.getCount(EXPORT_VISITS) - visitsBefore;
+	} // end export()
+	
+	/**
+	 * Export one set:  scan all of the nodes at once, each streaming its
+	 * users' visits into the set's file.
+	 * @param set
+	 */
+	void exportSet(final String set) {
+		final String meth = "exportSet()";
+		File file = new File(outDir, set + FILE_SUFFIX);
+		final VisitColumnWriter writer;
+		try {
+			writer = new VisitColumnWriter(file);
+		} catch (IOException ioe) {
+			metrics.increment(EXPORT_ERRORS);
+			console.error("<%s:%s> Can't create (%s): %s", CLASSNAME, meth, 
+					file, ioe.toString());
+			return;
+		}
+		
+		final ScanCallback callback = new ScanCallback() {
+			public void scanCallback(Key key, Record record) {
+				exportUser(key, record, writer);
+			}
+		};
+		Node[] nodes = client.getNodes();
+		List<Thread> scans = new ArrayList<Thread>();
+		for (final Node node : nodes) {
+			Thread scan = new Thread(new Runnable() {
+				public void run() {
+					try {
+						client.scanNode(new ScanPolicy(), node, namespace, set,
+								callback, "name");
+					} catch (AerospikeException ae) {
+						metrics.increment(EXPORT_ERRORS);
+						console.error("<%s:%s> Set(%s) Node(%s) Error Code(%d) Error Message(%s)",
+								CLASSNAME, meth, set, node, ae.getResultCode(), 
+								ae.getMessage());
+					}
+				}
+			}, "Export-" + set + "-" + node);
+			scan.start();
+			scans.add(scan);
+		}
+		try {
+			for (Thread scan : scans) {
+				scan.join();
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		
+		try {
+			long visits = writer.close();
+			console.info("<%s:%s> Set(%s) Visits(%d) Bytes(%d) File(%s)", 
+					CLASSNAME, meth, set, visits, writer.getBytesWritten(), file);
+		} catch (IOException ioe) {
+			metrics.increment(EXPORT_ERRORS);
+			console.error("<%s:%s> Can't write (%s): %s", CLASSNAME, meth, 
+					file, ioe.toString());
+		}
+	} // end exportSet()
+	
+	/**
+	 * Read one record's LDT and add its visits (in expire order) to the file.
+	 * Called from the scan threads.
+	 */
+	private void exportUser(Key key, Record record, VisitColumnWriter writer) {
+		final String meth = "exportUser()";
+		Object name = (record == null) ? null : record.getValue("name");
+		try {
+			List<Map<String, Object>> visits = dbOps.getLdtOps().scanLDT(key);
+			if (visits == null || visits.isEmpty()) {
+				return;
+			}
+			Collections.sort(visits, new Comparator<Map<String, Object>>() {
+				public int compare(Map<String, Object> a, Map<String, Object> b) {
+					long ka = longOf(a.get("key"));
+					long kb = longOf(b.get("key"));
+					return (ka < kb) ? -1 : (ka == kb ? 0 : 1);
+				}
+			});
+			List<VisitColumnWriter.Visit> rows = 
+					new ArrayList<VisitColumnWriter.Visit>(visits.size());
+			for (Map<String, Object> visit : visits) {
+				Object user = visit.get("name");
+				rows.add(new VisitColumnWriter.Visit(
+						(user != null) ? user.toString() : String.valueOf(name),
+						stripFiller(visit.get("URL")),
+						stringOf(visit.get("referrer")),
+						stringOf(visit.get("page_title")),
+						longOf(visit.get("date")),
+						longOf(visit.get("key"))));
+			}
+			// All of this user's visits go in together (see VisitColumnWriter).
+			writer.addUser(rows);
+			metrics.add(EXPORT_VISITS, visits.size());
+			metrics.increment(EXPORT_USERS);
+		} catch (AerospikeException ae) {
+			metrics.increment(EXPORT_ERRORS);
+			console.debug("<%s:%s> User(%s) Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, name, ae.getResultCode(), ae.getMessage());
+		} catch (IOException ioe) {
+			metrics.increment(EXPORT_ERRORS);
+			console.error("<%s:%s> User(%s) Write Error(%s)", CLASSNAME, meth,
+					name, ioe.toString());
+		}
+	} // end exportUser()
+	
+	private static String stripFiller(Object url) {
+		String s = stringOf(url);
+		if (s.endsWith(ILdtOperations.URL_FILLER)) {
+			s = s.substring(0, s.length() - ILdtOperations.URL_FILLER.length());
+		}
+		return s;
+	}
+	
+	private static String stringOf(Object value) {
+		return (value == null) ? "" : value.toString();
+	}
+	
+	private static long longOf(Object value) {
+		return (value instanceof Number) ? ((Number) value).longValue() : 0L;
+	}
+	
+	private void reportProgress(long startMs, long visitsBefore) {
+		final String meth = "reportProgress()";
+		long elapsedMs = Math.max(1L, System.currentTimeMillis() - startMs);
+		long visits = metrics.getCount(EXPORT_VISITS) - visitsBefore;
+		long visitsPerSec = (visits * 1000L) / elapsedMs;
+		metrics.setGauge(EXPORT_RATE, visitsPerSec);
+		console.info("<%s:%s> Visits(%d) Users(%d) Rate(%d visits/s) Elapsed(%d s)",
+				CLASSNAME, meth, visits, metrics.getCount(EXPORT_USERS), 
+				visitsPerSec, elapsedMs / 1000L);
+	}
+
+} // end class ColumnarExporter
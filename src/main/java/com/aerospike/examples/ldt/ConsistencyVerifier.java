@@ -0,0 +1,358 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.policy.WritePolicy;
+
+/**
+ * Anti-Entropy for the Segmented Cache:  a background thread that checks
+ * that each Cache LDT still matches its Base LDT, without scanning them.
+ * 
+ * Every User Record carries an LDT Digest (see DigestLdtOperations), and
+ * a Cache record that is in step with its Base record has the same digest.
+ * For each Customer Set the verifier:
+ * (1) scans the Cache Set for just the user name and digest bins, and
+ *     batch-reads the digests of the same users from the Base Set;
+ * (2) compares each user's two digests (a couple of longs, in memory);
+ * (3) only for the users whose digests differ does it scan the live visits
+ *     in both LDTs.  If they hold the same visits (the digest was just
+ *     behind, e.g. a visit landed during a reload), the Cache digest is
+ *     resynced to the Base digest.  If not, the Cache record is deleted,
+ *     and the user's next visit reloads it from the Base LDT.
+ * 
+ * A user whose Cache is being reloaded right now is left for the next pass,
+ * and so is any user without a digest on both sides (records written before
+ * the digests were turned on).  The verifier holds a Scan Permit (see
+ * DbOps) while it works on a set, so it never adds to a busy clean.
+ * 
+ * Metrics: verify.passes, verify.usersChecked, verify.divergentUsers, verify.resynced, verify.repaired and verify.skipped
+ * (counters), and verify.setTime (histogram).
+ */
+public class ConsistencyVerifier implements Runnable, IAppConstants {
+	
+	// Metric Names
+	public static final String VERIFY_PASSES = "verify.passes";
+	public static final String VERIFY_USERS = "verify.usersChecked";
+	public static final String VERIFY_DIVERGENT = "verify.divergentUsers";
+	public static final String VERIFY_RESYNCED = "verify.resynced";
+	public static final String VERIFY_REPAIRED = "verify.repaired";
+	public static final String VERIFY_SKIPPED = "verify.skipped";
+	public static final String VERIFY_SET_TIME = "verify.setTime";
+	
+	/** Keys per Base digest batch read. */
+	private static final int BATCH_SIZE = 200;
+	
+	/** How often (real ms) we look for a stop() while resting. */
+	private static final long POLL_MS = 100L;
+	
+	private static final String CLASSNAME = "ConsistencyVerifier";
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private IClock clock;
+	private AppMetrics metrics;
+	private Semaphore scanPermits;
+	private String baseNamespace;
+	private String cacheNamespace;
+	private long intervalNs;
+	private long runPeriodNs;
+	private WritePolicy resyncPolicy;
+	private final List<String> baseSets;
+	private Thread verifier;
+	private volatile boolean running = false;
+	
+	/**
+	 * One user's digests, from both sides.
+	 */
+	private static class UserDigest {
+		final String userID;
+		final Long cacheHash;
+		final Long cacheCount;
+		Long baseHash;
+		Long baseCount;
+		
+		UserDigest(String userID, Long cacheHash, Long cacheCount) {
+			this.userID = userID;
+			this.cacheHash = cacheHash;
+			this.cacheCount = cacheCount;
+		}
+		
+		boolean isComplete() {
+			return cacheHash != null && cacheCount != null &&
+					baseHash != null && baseCount != null;
+		}
+	} // end class UserDigest
+	
+	/**
+	 * Collect the user name and digest of every Cache record in a set.  The
+	 * nodes are scanned in parallel, so this is called from several threads.
+	 */
+	private static class DigestScan implements ScanCallback {
+		final List<UserDigest> users = new ArrayList<UserDigest>();
+		
+		public synchronized void scanCallback(Key key, Record record) {
+			Object name = (record == null) ? null : record.getValue("name");
+			if (name != null) {
+				users.add(new UserDigest(name.toString(),
+						DigestLdtOperations.digestValue(record, DIGEST_HASH_BIN),
+						DigestLdtOperations.digestValue(record, DIGEST_COUNT_BIN)));
+			}
+		}
+	} // end class DigestScan
+
+	/**
+	 * @param console
+	 * @param dbOps : for the client, clock, metrics, LDT operations, Reload
+	 *   Coalescer and Scan Permits
+	 * @param baseNamespace
+	 * @param cacheNamespace
+	 * @param intervalSec : (virtual) time between passes over all the sets
+	 */
+	public ConsistencyVerifier(Console console, DbOps dbOps, 
+			String baseNamespace, String cacheNamespace, int intervalSec) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.clock = dbOps.getClock();
+		this.metrics = dbOps.getMetrics();
+		this.scanPermits = dbOps.getScanPermits();
+		this.baseNamespace = baseNamespace;
+		this.cacheNamespace = cacheNamespace;
+		this.intervalNs = intervalSec * 1000000000L;
+		this.baseSets = new ArrayList<String>();
+		
+		// Never bring an (expired or repaired) Cache record back to life.
+		this.resyncPolicy = new WritePolicy();
+		this.resyncPolicy.timeout = dbOps.cacheWritePolicy.timeout;
+		this.resyncPolicy.expiration = dbOps.cacheWritePolicy.expiration;
+		this.resyncPolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+	}
+	
+	/**
+	 * Add a Customer (Base) Set to verify.  Call this before start().
+	 * @param baseSet
+	 */
+	public void addSet(String baseSet) {
+		baseSets.add(baseSet);
+	}
+	
+	/**
+	 * Start the verifier thread.
+	 * @param runSeconds : (virtual) time to keep verifying
+	 */
+	public void start(long runSeconds) {
+		this.runPeriodNs = runSeconds * 1000000000L;
+		running = true;
+		verifier = new Thread(this, "ConsistencyVerifier");
+		verifier.setDaemon(true);
+		verifier.start();
+	}
+	
+	/**
+	 * Stop the verifier (after the set it's working on, if any).
+	 */
+	public void stop() {
+		running = false;
+		if (verifier != null) {
+			try {
+				verifier.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Verify every set, once per interval, until the run period is over.
+	 */
+	public void run() {
+		final String meth = "run()";
+		long startNs = clock.nanoTime();
+		try {
+			while (running) {
+				long passStartNs = clock.nanoTime();
+				if (passStartNs - startNs > runPeriodNs) {
+					console.info("<%s:%s> Verify Run Period is over", CLASSNAME, meth);
+					break;
+				}
+				
+				// Rest first:  a Cache that was just loaded has nothing to
+				// find yet.  A little at a time, so stop() needn't wait.
+				long dueNs = passStartNs + intervalNs;
+				long restMs;
+				while (running && 
+						(restMs = (dueNs - clock.nanoTime()) / 1000000L) > 0) 
+				{
+					Thread.sleep(Math.max(1L, 
+							Math.min(clock.toRealMillis(restMs), POLL_MS)));
+				}
+				
+				for (String baseSet : baseSets) {
+					if (!running) {
+						break;
+					}
+					scanPermits.acquire();
+					try {
+						verifySet(baseSet);
+					} catch (AerospikeException ae) {
+						console.error("<%s:%s> Set(%s) Error Code(%d) Error Message(%s)",
+								CLASSNAME, meth, baseSet, ae.getResultCode(), ae.getMessage());
+					} finally {
+						scanPermits.release();
+					}
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+	} // end run()
+	
+	/**
+	 * One pass over one Customer Set (see the class comment).
+	 * @param baseSet
+	 * @return the number of divergent users found
+	 */
+	public int verifySet(String baseSet) throws AerospikeException {
+		final String meth = "verifySet()";
+		long startNs = System.nanoTime();
+		String cacheSet = baseSet + ":cache";
+		
+		// (1) The digests, from both sides.
+		DigestScan scan = new DigestScan();
+		client.scanAll(new ScanPolicy(), cacheNamespace, cacheSet, scan,
+				"name", DIGEST_HASH_BIN, DIGEST_COUNT_BIN);
+		List<UserDigest> users = scan.users;
+		readBaseDigests(baseSet, users);
+		
+		// (2) Compare the digests.  The users that can't be compared this
+		// time are left for the next pass.
+		// (3) Rescan only the users whose digests differ.
+		int skipped = 0;
+		int divergent = 0;
+		for (UserDigest user : users) {
+			if (!user.isComplete()) {
+				skipped++;
+			} else if (!user.baseHash.equals(user.cacheHash) || 
+					!user.baseCount.equals(user.cacheCount)) 
+			{
+				divergent++;
+				repairUser(baseSet, cacheSet, user);
+			}
+		}
+		metrics.add(VERIFY_SKIPPED, skipped);
+		metrics.add(VERIFY_USERS, users.size() - skipped);
+		metrics.add(VERIFY_DIVERGENT, divergent);
+		metrics.increment(VERIFY_PASSES);
+		metrics.recordSince(VERIFY_SET_TIME, startNs);
+		console.debug("<%s:%s> Set(%s) Users(%d) Skipped(%d) DivergentUsers(%d)",
+				CLASSNAME, meth, baseSet, users.size(), skipped, divergent);
+		return divergent;
+	} // end verifySet()
+	
+	/**
+	 * Fill in the Base digests of the users we found in the Cache, a batch
+	 * at a time.
+	 */
+	private void readBaseDigests(String baseSet, List<UserDigest> users) 
+			throws AerospikeException 
+	{
+		for (int from = 0; from < users.size(); from += BATCH_SIZE) {
+			int to = Math.min(users.size(), from + BATCH_SIZE);
+			Key[] keys = new Key[to - from];
+			for (int i = from; i < to; i++) {
+				keys[i - from] = new Key(baseNamespace, baseSet, users.get(i).userID);
+			}
+			Record[] records = client.get(dbOps.policy, keys, 
+					DIGEST_HASH_BIN, DIGEST_COUNT_BIN);
+			for (int i = from; i < to; i++) {
+				Record record = (records == null) ? null : records[i - from];
+				users.get(i).baseHash = 
+						DigestLdtOperations.digestValue(record, DIGEST_HASH_BIN);
+				users.get(i).baseCount = 
+						DigestLdtOperations.digestValue(record, DIGEST_COUNT_BIN);
+			}
+		}
+	} // end readBaseDigests()
+	
+	/**
+	 * A user whose digests differ:  compare the live visits in the two LDTs,
+	 * and either resync the Cache digest (same visits) or drop the Cache
+	 * record (different visits) so that it reloads on the next visit.
+	 */
+	private void repairUser(String baseSet, String cacheSet, UserDigest user) {
+		final String meth = "repairUser()";
+		if (dbOps.getReloadCoalescer().isReloading(cacheSet, user.userID)) {
+			metrics.increment(VERIFY_SKIPPED);
+			return;
+		}
+		ILdtOperations ldtOps = dbOps.getLdtOps();
+		Key baseKey = new Key(baseNamespace, baseSet, user.userID);
+		Key cacheKey = new Key(cacheNamespace, cacheSet, user.userID);
+		try {
+			long now = clock.nanoTime();
+			Set<Object> baseVisits = visitKeys(ldtOps.scanLDT(baseKey, now));
+			Set<Object> cacheVisits = visitKeys(ldtOps.scanLDT(cacheKey, now));
+			if (baseVisits.equals(cacheVisits)) {
+				client.put(resyncPolicy, cacheKey,
+						new Bin(DIGEST_HASH_BIN, user.baseHash.longValue()),
+						new Bin(DIGEST_COUNT_BIN, user.baseCount.longValue()));
+				metrics.increment(VERIFY_RESYNCED);
+			} else {
+				console.info("<%s:%s> Set(%s) User(%s) Base Visits(%d) Cache Visits(%d): Dropping the Cache record",
+						CLASSNAME, meth, baseSet, user.userID, 
+						baseVisits.size(), cacheVisits.size());
+				ldtOps.removeUser(cacheKey);
+				metrics.increment(VERIFY_REPAIRED);
+			}
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> User(%s) Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, user.userID, ae.getResultCode(), ae.getMessage());
+		}
+	} // end repairUser()
+	
+	/**
+	 * The unique keys (expire values) of a list of LDT elements.
+	 */
+	private static Set<Object> visitKeys(List<Map<String, Object>> ldtList) {
+		Set<Object> keys = new HashSet<Object>();
+		if (ldtList != null) {
+			for (Map<String, Object> item : ldtList) {
+				keys.add(item.get("key"));
+			}
+		}
+		return keys;
+	}
+
+} // end class ConsistencyVerifier
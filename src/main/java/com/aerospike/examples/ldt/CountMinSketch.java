@@ -0,0 +1,159 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Count-Min Sketch:  approximate counts of a (very) large set of keys in a
+ * small, fixed amount of memory.  Each key hashes to one counter in each of
+ * DEPTH rows;  its count is the smallest of those counters, so it can be
+ * over-counted (by collisions) but never under-counted.
+ * 
+ * With aging (sampleSize > 0) the sketch counts RECENT frequency, as in
+ * TinyLFU:  after every sampleSize additions, all of the counters are halved.
+ * 
+ * The counters are atomic, so any number of threads may add at once.  The
+ * halving isn't atomic with the adds (an add that races with it may or may
+ * not be halved), which is fine for an estimate.
+ */
+public class CountMinSketch {
+	
+	/** Number of rows (hash functions). */
+	static final int DEPTH = 4;
+	
+	/** Seeds for the row hashes (odd, so that they are invertible). */
+	private static final int[] SEEDS = {
+		0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F
+	};
+	
+	private final AtomicIntegerArray counters;
+	private final int width;
+	private final int mask;
+	private final long sampleSize;
+	private final AtomicLong additions = new AtomicLong(0);
+	
+	/**
+	 * @param width : counters per row (rounded up to a power of two)
+	 * @param sampleSize : halve every counter after this many additions
+	 *   (0 = never age)
+	 */
+	public CountMinSketch(int width, long sampleSize) {
+		int w = 1;
+		while (w < width) {
+			w <<= 1;
+		}
+		this.width = w;
+		this.mask = w - 1;
+		this.sampleSize = sampleSize;
+		this.counters = new AtomicIntegerArray(DEPTH * w);
+	}
+	
+	/**
+	 * The index of the key's counter in the given row.
+	 */
+	private int index(int hash, int row) {
+		int h = hash * SEEDS[row];
+		h ^= h >>> 16;
+		return (row * width) + (h & mask);
+	}
+	
+	/**
+	 * Spread the bits of the key's hash code (as HashMap does).
+	 */
+	private static int spread(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+	
+	/**
+	 * Count one more of this key.
+	 * @param key
+	 * @return the key's new (estimated) count
+	 */
+	public int add(Object key) {
+		return add(key, 1);
+	}
+	
+	/**
+	 * Count "count" more of this key.  Only the smallest counters are raised
+	 * (the "conservative update"), which cuts down on the over-counting.
+	 * @param key
+	 * @param count
+	 * @return the key's new (estimated) count
+	 */
+	public int add(Object key, int count) {
+		int hash = spread(key);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counters.get(index(hash, row)));
+		}
+		int target = (estimate > Integer.MAX_VALUE - count) 
+				? Integer.MAX_VALUE : estimate + count;
+		for (int row = 0; row < DEPTH; row++) {
+			int i = index(hash, row);
+			int current = counters.get(i);
+			while (current < target && !counters.compareAndSet(i, current, target)) {
+				current = counters.get(i);
+			}
+		}
+		if (sampleSize > 0 && additions.addAndGet(count) >= sampleSize) {
+			age();
+		}
+		return target;
+	} // end add()
+	
+	/**
+	 * @param key
+	 * @return the key's estimated count
+	 */
+	public int estimate(Object key) {
+		int hash = spread(key);
+		int estimate = Integer.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++) {
+			estimate = Math.min(estimate, counters.get(index(hash, row)));
+		}
+		return estimate;
+	}
+	
+	/**
+	 * Halve all of the counters.  Only the thread that resets the addition
+	 * count does the halving.
+	 */
+	private void age() {
+		long count = additions.get();
+		if (count < sampleSize || !additions.compareAndSet(count, 0L)) {
+			return;
+		}
+		for (int i = 0; i < counters.length(); i++) {
+			int current = counters.get(i);
+			while (current > 0 && !counters.compareAndSet(i, current, current >>> 1)) {
+				current = counters.get(i);
+			}
+		}
+	} // end age()
+	
+	/**
+	 * @return the memory used by the counters, in bytes
+	 */
+	public long sizeBytes() {
+		return 4L * counters.length();
+	}
+
+} // end class CountMinSketch
@@ -0,0 +1,659 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.ScanPolicy;
+
+/**
+ * Snapshot and Restore of a generated dataset, so that a warm-state
+ * benchmark doesn't have to start with a Load phase and hours of Site
+ * Visit generation.
+ * 
+ * A Snapshot scans each Customer Set and writes every record -- its bins
+ * and the full contents of its LDT -- to a local binary file, one file
+ * per set ("<set>.snap"), with large sequential FileChannel writes.  The
+ * sets are snapshotted in parallel.  It's a physical copy:  the LDT is
+ * read thru the real (LLIST/LMAP) LDT Operations, not the Caps, Sharding
+ * or Digest wrappers, so the shard records and the digest bins come back
+ * exactly as they were.
+ * 
+ * A Restore reads the files (several at once) and writes the records back
+ * on a pool of writer threads:  the bins with one put(), and the LDT with
+ * multi-element loadFullLDT() writes of up to BATCH_VISITS elements.
+ * 
+ * The visit times (an element's key, date and expire, and the record's
+ * Watermark) are clock nanoTime() values, which mean nothing in another
+ * run.  So the file keeps the clock's nanoTime() at the Snapshot, and the
+ * Restore moves every time by (restore now - snapshot now):  a visit that
+ * was due to expire in ten minutes still is.  The LDT elements are keyed
+ * by their expire, so they are re-keyed too, and the LDT Digest bins (which
+ * hash the keys) are made over from the restored elements.  (A version 1
+ * file has no clock time, and is restored as it was.)
+ * 
+ * File layout (DataOutput format):
+ *   "SNAP" int:version string:set long:snapshotNs
+ *   Record*:  byte:1 bytes:digest string:userKey ("" = none)
+ *             int:binCount (string:name value)*  int:ldtCount value*
+ *   byte:0 (end of file)
+ * A value is a type byte and the value (long, double, string, bytes, or a
+ * list or map of values).
+ * 
+ * Metrics: snapshot.records, snapshot.visits, restore.records,
+ * restore.visits and restore.errors (counters).
+ */
+public class DatasetSnapshot implements IAppConstants {
+	
+	// Metric Names
+	public static final String SNAPSHOT_RECORDS = "snapshot.records";
+	public static final String SNAPSHOT_VISITS = "snapshot.visits";
+	public static final String RESTORE_RECORDS = "restore.records";
+	public static final String RESTORE_VISITS = "restore.visits";
+	public static final String RESTORE_ERRORS = "restore.errors";
+	
+	public static final String FILE_SUFFIX = ".snap";
+	public static final int VERSION = 2;
+	
+	/** The first version with the Snapshot clock time in the header. */
+	private static final int CLOCK_VERSION = 2;
+	
+	/** The LDT element fields that hold clock times. */
+	private static final String[] TIME_FIELDS = { "key", "date", "expire" };
+	
+	/** LDT elements per loadFullLDT() on Restore. */
+	static final int BATCH_VISITS = 1000;
+	
+	/** Size of the write buffer (and read buffer) for each file. */
+	private static final int IO_BUFFER = 1024 * 1024;
+	
+	/** Restores queued per writer thread before the readers wait. */
+	private static final int QUEUE_PER_WRITER = 16;
+	
+	/** Files read at once on Restore. */
+	private static final int MAX_READERS = 4;
+	
+	/** How often (real ms) we report the progress. */
+	private static final long PROGRESS_MS = 10000L;
+	
+	// Hidden bin of a record that holds an LDT:  not ours to copy.
+	private static final String LDT_CONTROL_BIN = "LDTCONTROLBIN";
+	
+	private static final byte END = 0;
+	private static final byte RECORD = 1;
+	private static final byte T_NULL = 0;
+	private static final byte T_LONG = 1;
+	private static final byte T_STRING = 2;
+	private static final byte T_BYTES = 3;
+	private static final byte T_DOUBLE = 4;
+	private static final byte T_LIST = 5;
+	private static final byte T_MAP = 6;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private static final String CLASSNAME = "DatasetSnapshot";
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private AppMetrics metrics;
+	private String namespace;
+	private File dir;
+	private int threadCount;
+	private long snapshotNs; // The clock's nanoTime() at the Snapshot
+	private long restoreNs;  // The clock's nanoTime() at the Restore
+	
+	/**
+	 * @param console
+	 * @param dbOps : for the client, the LDT operations and the metrics
+	 * @param namespace : the namespace to snapshot (or restore into)
+	 * @param dir : where the snapshot files are
+	 * @param threadCount : sets snapshotted at once / restore writers
+	 */
+	public DatasetSnapshot(Console console, DbOps dbOps, String namespace,
+			File dir, int threadCount) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.namespace = namespace;
+		this.dir = dir;
+		this.threadCount = Math.max(1, threadCount);
+	}
+	
+	/**
+	 * The real LDT Operations, under any wrappers (see the class comment).
+	 */
+	private ILdtOperations physicalLdtOps() {
+		ILdtOperations ops = dbOps.getLdtOps();
+		while (ops instanceof ForwardingLdtOperations) {
+			ops = ((ForwardingLdtOperations) ops).getInner();
+		}
+		return ops;
+	}
+	
+	// ======================================================================
+	// Snapshot
+	// ======================================================================
+	
+	/**
+	 * Snapshot every Customer Set.
+	 * @param customerRecords : the number of Customer Sets
+	 * @return the number of records written
+	 */
+	public long snapshot(long customerRecords) throws IOException {
+		final String meth = "snapshot()";
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create the Snapshot Directory: " + dir);
+		}
+		console.info("<%s:%s> Snapshot of (%d) Sets from NS(%s) to (%s)",
+				CLASSNAME, meth, customerRecords, namespace, dir);
+		long startMs = System.currentTimeMillis();
+		snapshotNs = dbOps.getClock().nanoTime();
+		long before = metrics.getCount(SNAPSHOT_RECORDS);
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		for (int i = 0; i < customerRecords; i++) {
+			final String set = new CustomerRecord(console, i).getCustomerID();
+			executor.execute(new Runnable() {
+				public void run() {
+					snapshotSet(set);
+				}
+			});
+		}
+		executor.shutdown();
+		awaitWithProgress(executor, startMs, SNAPSHOT_RECORDS, SNAPSHOT_VISITS);
+		return metrics.getCount(SNAPSHOT_RECORDS) - before;
+	} // end snapshot()
+	
+	/**
+	 * Scan one set into its file.  The nodes are scanned in parallel, so the
+	 * records are appended to the file one at a time (synchronized).
+	 */
+	private void snapshotSet(String set) {
+		final String meth = "snapshotSet()";
+		File file = new File(dir, set + FILE_SUFFIX);
+		final ILdtOperations ldtOps = physicalLdtOps();
+		final SnapshotFile out;
+		try {
+			out = new SnapshotFile(file, set, snapshotNs);
+		} catch (IOException ioe) {
+			console.error("<%s:%s> Can't create (%s): %s", CLASSNAME, meth, 
+					file, ioe.toString());
+			return;
+		}
+		try {
+			client.scanAll(new ScanPolicy(), namespace, set, new ScanCallback() {
+				public void scanCallback(Key key, Record record) {
+					List<Map<String, Object>> ldt = null;
+					if (record != null && record.bins != null && 
+							record.bins.containsKey(LDT_BIN)) 
+					{
+						ldt = ldtOps.scanLDT(key);
+					}
+					try {
+						out.writeRecord(key, record, ldt);
+					} catch (IOException ioe) {
+						throw new AerospikeException(ioe.toString());
+					}
+					metrics.increment(SNAPSHOT_RECORDS);
+					if (ldt != null) {
+						metrics.add(SNAPSHOT_VISITS, ldt.size());
+					}
+				}
+			});
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> Set(%s) Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, set, ae.getResultCode(), ae.getMessage());
+		}
+		try {
+			long records = out.close();
+			console.info("<%s:%s> Set(%s) Records(%d) File(%s)", CLASSNAME, 
+					meth, set, records, file);
+		} catch (IOException ioe) {
+			console.error("<%s:%s> Can't write (%s): %s", CLASSNAME, meth, 
+					file, ioe.toString());
+		}
+	} // end snapshotSet()
+	
+	/**
+	 * One Snapshot file:  each record is serialized into a scratch buffer,
+	 * and the scratch buffers are written out to the channel in IO_BUFFER
+	 * blocks, sequentially.
+	 */
+	private static class SnapshotFile {
+		private final FileOutputStream fos;
+		private final FileChannel channel;
+		private final ByteBuffer block = ByteBuffer.allocateDirect(IO_BUFFER);
+		private final ByteArrayOutputStream scratch = new ByteArrayOutputStream(64 * 1024);
+		private final DataOutputStream data = new DataOutputStream(scratch);
+		private long records = 0;
+		
+		SnapshotFile(File file, String set, long snapshotNs) throws IOException {
+			this.fos = new FileOutputStream(file);
+			this.channel = fos.getChannel();
+			data.writeBytes("SNAP");
+			data.writeInt(VERSION);
+			writeString(data, set);
+			data.writeLong(snapshotNs);
+			append();
+		}
+		
+		synchronized void writeRecord(Key key, Record record, 
+				List<Map<String, Object>> ldt) throws IOException 
+		{
+			data.writeByte(RECORD);
+			byte[] digest = (key.digest == null) ? new byte[0] : key.digest;
+			data.writeInt(digest.length);
+			data.write(digest);
+			writeString(data, (key.userKey == null) ? "" : key.userKey.toString());
+			Map<String, Object> bins = (record == null || record.bins == null) 
+					? new HashMap<String, Object>() : record.bins;
+			int binCount = 0;
+			for (String name : bins.keySet()) {
+				if (isDataBin(name)) {
+					binCount++;
+				}
+			}
+			data.writeInt(binCount);
+			for (Map.Entry<String, Object> bin : bins.entrySet()) {
+				if (isDataBin(bin.getKey())) {
+					writeString(data, bin.getKey());
+					writeValue(data, bin.getValue());
+				}
+			}
+			int ldtCount = (ldt == null) ? 0 : ldt.size();
+			data.writeInt(ldtCount);
+			for (int i = 0; i < ldtCount; i++) {
+				writeValue(data, ldt.get(i));
+			}
+			records++;
+			append();
+		}
+		
+		synchronized long close() throws IOException {
+			try {
+				data.writeByte(END);
+				append();
+				block.flip();
+				drain(block);
+			} finally {
+				channel.close();
+				fos.close();
+			}
+			return records;
+		}
+		
+		/** Move the scratch bytes into the block, writing full blocks. */
+		private void append() throws IOException {
+			data.flush();
+			byte[] bytes = scratch.toByteArray();
+			scratch.reset();
+			int offset = 0;
+			while (offset < bytes.length) {
+				int n = Math.min(block.remaining(), bytes.length - offset);
+				block.put(bytes, offset, n);
+				offset += n;
+				if (!block.hasRemaining()) {
+					block.flip();
+					drain(block);
+					block.clear();
+				}
+			}
+		}
+		
+		private void drain(ByteBuffer buffer) throws IOException {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	} // end class SnapshotFile
+	
+	private static boolean isDataBin(String name) {
+		return !LDT_BIN.equals(name) && !LDT_CONTROL_BIN.equals(name);
+	}
+	
+	// ======================================================================
+	// Restore
+	// ======================================================================
+	
+	/**
+	 * Restore every Snapshot file in the directory.
+	 * @return the number of records restored
+	 */
+	public long restore() throws IOException {
+		final String meth = "restore()";
+		File[] files = dir.listFiles();
+		if (files == null) {
+			throw new IOException("No Snapshot Directory: " + dir);
+		}
+		List<File> snapFiles = new ArrayList<File>();
+		for (File file : files) {
+			if (file.getName().endsWith(FILE_SUFFIX)) {
+				snapFiles.add(file);
+			}
+		}
+		console.info("<%s:%s> Restore of (%d) Files from (%s) to NS(%s): Writers(%d)",
+				CLASSNAME, meth, snapFiles.size(), dir, namespace, threadCount);
+		
+		long startMs = System.currentTimeMillis();
+		restoreNs = dbOps.getClock().nanoTime();
+		long before = metrics.getCount(RESTORE_RECORDS);
+		// The readers wait (run the write themselves) when the writers are
+		// QUEUE_PER_WRITER deep, so a big file never piles up in memory.
+		final ThreadPoolExecutor writers = new ThreadPoolExecutor(threadCount,
+				threadCount, 0L, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(threadCount * QUEUE_PER_WRITER),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		ExecutorService readers = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(MAX_READERS, snapFiles.size())));
+		for (final File file : snapFiles) {
+			readers.execute(new Runnable() {
+				public void run() {
+					restoreFile(file, writers);
+				}
+			});
+		}
+		readers.shutdown();
+		awaitWithProgress(readers, startMs, RESTORE_RECORDS, RESTORE_VISITS);
+		writers.shutdown();
+		awaitWithProgress(writers, startMs, RESTORE_RECORDS, RESTORE_VISITS);
+		return metrics.getCount(RESTORE_RECORDS) - before;
+	} // end restore()
+	
+	/**
+	 * Read one Snapshot file, and hand each record to the writers.
+	 */
+	private void restoreFile(File file, ThreadPoolExecutor writers) {
+		final String meth = "restoreFile()";
+		DataInputStream in = null;
+		try {
+			FileChannel channel = new FileInputStream(file).getChannel();
+			in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel), IO_BUFFER));
+			byte[] magic = new byte[4];
+			in.readFully(magic);
+			int version = in.readInt();
+			if (!"SNAP".equals(new String(magic, UTF8)) || version < 1 ||
+					version > VERSION) 
+			{
+				console.error("<%s:%s> Not a Snapshot file (%s)", CLASSNAME, 
+						meth, file);
+				return;
+			}
+			final String set = readString(in);
+			long shiftNs = 0;
+			if (version >= CLOCK_VERSION) {
+				shiftNs = restoreNs - in.readLong();
+			} else {
+				console.warn("<%s:%s> Snapshot file (%s) has no clock time: " +
+						"the visit times are restored as they were", 
+						CLASSNAME, meth, file);
+			}
+			while (in.readByte() == RECORD) {
+				byte[] digest = new byte[in.readInt()];
+				in.readFully(digest);
+				final String userKey = readString(in);
+				int binCount = in.readInt();
+				final Bin[] bins = new Bin[binCount];
+				for (int i = 0; i < binCount; i++) {
+					bins[i] = new Bin(readString(in), readValue(in));
+				}
+				int ldtCount = in.readInt();
+				final List<Map<String, Object>> ldt = 
+						new ArrayList<Map<String, Object>>(ldtCount);
+				for (int i = 0; i < ldtCount; i++) {
+					ldt.add(castMap(readValue(in)));
+				}
+				if (shiftNs != 0) {
+					rebase(bins, ldt, shiftNs);
+				}
+				final Key key = (userKey.length() > 0) 
+						? new Key(namespace, set, userKey)
+						: new Key(namespace, digest, set, null);
+				writers.execute(new Runnable() {
+					public void run() {
+						restoreRecord(key, set, userKey, bins, ldt);
+					}
+				});
+			}
+			console.info("<%s:%s> Read (%s)", CLASSNAME, meth, file);
+		} catch (EOFException eof) {
+			console.error("<%s:%s> Snapshot file (%s) is cut short", CLASSNAME,
+					meth, file);
+		} catch (IOException ioe) {
+			console.error("<%s:%s> Can't read (%s): %s", CLASSNAME, meth, 
+					file, ioe.toString());
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException ioe) {
+					// Nothing more to do.
+				}
+			}
+		}
+	} // end restoreFile()
+	
+	/**
+	 * Move one record's times into the clock frame of the Restore (see the
+	 * class comment).
+	 * @param bins : the record's bins (changed in place)
+	 * @param ldt : the record's LDT elements (changed in place)
+	 * @param shiftNs : restore now - snapshot now
+	 */
+	static void rebase(Bin[] bins, List<Map<String, Object>> ldt, long shiftNs) {
+		for (Map<String, Object> element : ldt) {
+			for (String field : TIME_FIELDS) {
+				Object time = element.get(field);
+				if (time instanceof Number) {
+					element.put(field, ((Number) time).longValue() + shiftNs);
+				}
+			}
+		}
+		for (int i = 0; i < bins.length; i++) {
+			String name = bins[i].name;
+			Object value = bins[i].value.getObject();
+			if (WATERMARK_BIN.equals(name) && value instanceof Number) {
+				// Zero means "due now", which it still is.
+				long watermark = ((Number) value).longValue();
+				if (watermark != 0) {
+					bins[i] = new Bin(name, watermark + shiftNs);
+				}
+			} else if (DIGEST_HASH_BIN.equals(name)) {
+				bins[i] = new Bin(name, DigestLdtOperations.listHash(ldt));
+			} else if (DIGEST_COUNT_BIN.equals(name)) {
+				bins[i] = new Bin(name, (long) ldt.size());
+			}
+		}
+	} // end rebase()
+	
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> castMap(Object value) {
+		return (Map<String, Object>) value;
+	}
+	
+	/**
+	 * Write one record back:  its bins, then its LDT in BATCH_VISITS chunks.
+	 */
+	private void restoreRecord(Key key, String set, String userKey, Bin[] bins,
+			List<Map<String, Object>> ldt) 
+	{
+		final String meth = "restoreRecord()";
+		try {
+			if (bins.length > 0) {
+				client.put(dbOps.writePolicy, key, bins);
+			}
+			if (!ldt.isEmpty()) {
+				ILdtOperations ldtOps = physicalLdtOps();
+				SiteVisitEntry sve = new SiteVisitEntry(console, namespace, set,
+						namespace, null, userKey, null, null, 0L, 0L, 0, LDT_BIN);
+				for (int from = 0; from < ldt.size(); from += BATCH_VISITS) {
+					List<Map<String, Object>> batch = ldt.subList(from, 
+							Math.min(ldt.size(), from + BATCH_VISITS));
+					if (ldtOps.loadFullLDT(sve, key, batch) != 0) {
+						metrics.increment(RESTORE_ERRORS);
+					} else {
+						metrics.add(RESTORE_VISITS, batch.size());
+					}
+				}
+			}
+			metrics.increment(RESTORE_RECORDS);
+		} catch (AerospikeException ae) {
+			metrics.increment(RESTORE_ERRORS);
+			console.debug("<%s:%s> Set(%s) Key(%s) Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, set, userKey, ae.getResultCode(), ae.getMessage());
+		}
+	} // end restoreRecord()
+	
+	private void awaitWithProgress(ExecutorService executor, long startMs,
+			String recordMetric, String visitMetric) 
+	{
+		final String meth = "awaitWithProgress()";
+		try {
+			do {
+				long elapsedMs = Math.max(1L, System.currentTimeMillis() - startMs);
+				long visits = metrics.getCount(visitMetric);
+				console.info("<%s:%s> Records(%d) Visits(%d) Rate(%d visits/s)",
+						CLASSNAME, meth, metrics.getCount(recordMetric), visits,
+						(visits * 1000L) / elapsedMs);
+			} while (!executor.awaitTermination(PROGRESS_MS, TimeUnit.MILLISECONDS));
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	} // end awaitWithProgress()
+	
+	// ======================================================================
+	// Values
+	// ======================================================================
+	
+	private static void writeString(DataOutputStream out, String s) 
+			throws IOException 
+	{
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private static void writeValue(DataOutputStream out, Object value) 
+			throws IOException 
+	{
+		if (value == null) {
+			out.writeByte(T_NULL);
+		} else if (value instanceof Long || value instanceof Integer ||
+				value instanceof Short || value instanceof Byte) 
+		{
+			out.writeByte(T_LONG);
+			out.writeLong(((Number) value).longValue());
+		} else if (value instanceof Double || value instanceof Float) {
+			out.writeByte(T_DOUBLE);
+			out.writeDouble(((Number) value).doubleValue());
+		} else if (value instanceof byte[]) {
+			byte[] bytes = (byte[]) value;
+			out.writeByte(T_BYTES);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		} else if (value instanceof List) {
+			List<?> list = (List<?>) value;
+			out.writeByte(T_LIST);
+			out.writeInt(list.size());
+			for (Object item : list) {
+				writeValue(out, item);
+			}
+		} else if (value instanceof Map) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			out.writeByte(T_MAP);
+			out.writeInt(map.size());
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeValue(out, entry.getKey());
+				writeValue(out, entry.getValue());
+			}
+		} else {
+			out.writeByte(T_STRING);
+			writeString(out, value.toString());
+		}
+	} // end writeValue()
+	
+	private static Object readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+		case T_NULL:
+			return null;
+		case T_LONG:
+			return in.readLong();
+		case T_DOUBLE:
+			return in.readDouble();
+		case T_STRING:
+			return readString(in);
+		case T_BYTES:
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return bytes;
+		case T_LIST:
+			int size = in.readInt();
+			List<Object> list = new ArrayList<Object>(size);
+			for (int i = 0; i < size; i++) {
+				list.add(readValue(in));
+			}
+			return list;
+		case T_MAP:
+			int count = in.readInt();
+			Map<Object, Object> map = new HashMap<Object, Object>();
+			for (int i = 0; i < count; i++) {
+				Object key = readValue(in);
+				map.put(key, readValue(in));
+			}
+			return map;
+		default:
+			throw new IOException("Bad value type: " + type);
+		}
+	} // end readValue()
+
+} // end class DatasetSnapshot
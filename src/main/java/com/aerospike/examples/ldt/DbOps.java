@@ -18,14 +18,17 @@ package com.aerospike.examples.ldt;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
 
 import org.json.simple.JSONObject;
 
 import com.aerospike.client.AerospikeClient;
 import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Bin;
+import com.aerospike.client.Info;
 import com.aerospike.client.Key;
 import com.aerospike.client.Record;
+import com.aerospike.client.cluster.Node;
 import com.aerospike.client.policy.Policy;
 import com.aerospike.client.policy.WritePolicy;
 
@@ -47,6 +50,32 @@ public class DbOps implements IAppConstants {
 	public WritePolicy writePolicy;
 	public WritePolicy cacheWritePolicy;
 	public Policy policy;
+	
+	// Cache Usage Metric Names (see reportCacheUsage())
+	public static final String CACHE_HIT_RATIO = "cache.hitRatioPct";
+	public static final String CACHE_OBJECTS = "cache.objects";
+	public static final String CACHE_MEMORY = "cache.memoryBytes";
+	
+	// Default number of clean scans that may run at once
+	public static final int DEFAULT_SCAN_PERMITS = 4;
+	
+	private IClock clock; // Virtual (or real) time for all time decisions
+	private AppMetrics metrics; // Counters and latencies for this run
+	private ReloadCoalescer reloadCoalescer; // One Cache reload per user at a time
+	private int laneCount = 0; // Number of User Lanes (0 = no lanes)
+	private boolean lazyExpiry = false; // Writes remove expired visits
+	private UserLaneDispatcher laneDispatcher; // Set while the lanes are running
+	private VisitListenerLdtOperations visitListeners; // Null = no visit listeners
+	private HeavyHitterTracker heavyHitters; // Null = no hot user/URL tracking
+	private CacheAdmission cacheAdmission; // Null = every miss loads the Cache
+	private CacheToucher cacheToucher; // Null = no Sliding Cache expiration
+	private CacheFirstReader cacheFirstReader; // Null = read from namespace only
+	private VisitFilter visitFilter; // Null = queries return whole visits
+	private VisitRollup rollup; // Null = no per-hour rollups
+	private SessionTracker sessions; // Null = no sessionisation
+	private CleanThrottle cleanThrottle; // Null = cleaners are not throttled
+	private ConsistencyVerifier verifier; // Null = no LDT Digests/verifier
+	private Semaphore scanPermits = new Semaphore(DEFAULT_SCAN_PERMITS, true); // Limit on concurrent scans
 
 	protected Console console;
 
@@ -98,6 +127,10 @@ public class DbOps implements IAppConstants {
 		this.policy = new Policy();
 		this.policy.timeout = 2000;
 		
+		this.clock = VirtualClock.REAL_TIME;
+		this.metrics = new AppMetrics();
+		this.reloadCoalescer = new ReloadCoalescer(console, metrics);
+		
 		this.console = console;
 	}
 	
@@ -129,12 +162,7 @@ public class DbOps implements IAppConstants {
 	public void printSiteVisitContents( String set, String key ) {
 		console.debug("ENTER ProcessSiteQuery");
 		
-		List<Map<String,Object>> scanList = null;
-		
-		// We have multiple implementations of this operation:
-		// (*) LLIST, with the ordering value on "expire" value.
-		// (*) LMAP, with the unique value on "expire" value.	
-		scanList = ldtOps.processSiteQuery(this.namespace, set, key);
+		List<Map<String,Object>> scanList = querySiteVisits(set, key);
 		
 		// Show the results of the site query
 		int listSize = 0;
@@ -156,6 +184,90 @@ public class DbOps implements IAppConstants {
 		
 	} // end processSiteQuery()
 	
+	/**
+	 * Get the user's live Site Visits.  With Cache-First reads on, they come
+	 * from the Segmented Cache when the user is there (and from the Base
+	 * namespace when not).  Otherwise they come from our namespace.
+	 * @param set : the Customer Set
+	 * @param key : the User ID
+	 * @return
+	 */
+	public List<Map<String,Object>> querySiteVisits( String set, String key ) {
+		if (cacheFirstReader != null) {
+			return cacheFirstReader.query(set, key);
+		}
+		// We have multiple implementations of this operation:
+		// (*) LLIST, with the ordering value on "expire" value.
+		// (*) LMAP, with the unique value on "expire" value.	
+		// Only the visits that are still live (filtered on the server).
+		if (visitFilter != null) {
+			return queryFilteredVisits(set, key, visitFilter);
+		}
+		return ldtOps.processSiteQuery(this.namespace, set, key, 
+				clock.nanoTime());
+	} // end querySiteVisits()
+	
+	/**
+	 * Get the user's live Site Visits from our namespace, thru a server
+	 * side predicate and projection.  We count the bytes that come back, and
+	 * every VisitFilter.COMPARE_EVERY queries we also run the query without
+	 * the filter, to measure the bytes that the filter saved.
+	 * @param set : the Customer Set
+	 * @param key : the User ID
+	 * @param filter
+	 * @return
+	 */
+	public List<Map<String,Object>> queryFilteredVisits( String set, 
+			String key, VisitFilter filter ) 
+	{
+		long now = clock.nanoTime();
+		List<Map<String,Object>> visits = ldtOps.processSiteQuery(
+				this.namespace, set, key, now, filter.at(now));
+		if (visits != null) {
+			metrics.increment(VisitFilter.FILTER_QUERIES);
+			metrics.add(VisitFilter.FILTER_VISITS, visits.size());
+			long bytes = VisitFilter.estimateBytes(visits);
+			metrics.add(VisitFilter.FILTER_BYTES, bytes);
+			if (metrics.getCount(VisitFilter.FILTER_QUERIES) % 
+					VisitFilter.COMPARE_EVERY == 0) 
+			{
+				List<Map<String,Object>> whole = ldtOps.processSiteQuery(
+						this.namespace, set, key, now);
+				if (whole != null) {
+					metrics.increment(VisitFilter.FILTER_SAMPLES);
+					metrics.add(VisitFilter.FILTER_BYTES_SAVED, 
+							Math.max(0L, VisitFilter.estimateBytes(whole) - bytes));
+				}
+			}
+		}
+		return visits;
+	} // end queryFilteredVisits()
+	
+	/**
+	 * Run the Site Visit queries thru this filter (see VisitFilter).  Not
+	 * used with Cache-First reads.
+	 * @param visitFilter : null for whole visits
+	 */
+	public void setVisitFilter(VisitFilter visitFilter) {
+		this.visitFilter = visitFilter;
+	}
+	
+	/**
+	 * Get the user's "count" most recent live Site Visits from our
+	 * namespace.  Only those visits come back from the server (see
+	 * ILdtOperations.queryLastN()).
+	 * @param set : the Customer Set
+	 * @param key : the User ID
+	 * @param count
+	 * @return
+	 */
+	public List<Map<String,Object>> queryLastVisits( String set, String key,
+			int count ) 
+	{
+		return ldtOps.queryLastN(new Key(this.namespace, set, key), count, 
+				clock.nanoTime());
+	} // end queryLastVisits()
+	
 	/**
 	 * Remove all records for a given set.   Do a scan, and then for each
 	 * record in the scan set, issue a delete.
@@ -322,6 +434,374 @@ public class DbOps implements IAppConstants {
 	public void setLdtOps(ILdtOperations ldtOps) {
 		this.ldtOps = ldtOps;
 	}
+
+	public AppMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ReloadCoalescer getReloadCoalescer() {
+		return reloadCoalescer;
+	}
+
+	public int getLaneCount() {
+		return laneCount;
+	}
+
+	public void setLaneCount(int laneCount) {
+		this.laneCount = laneCount;
+	}
+
+	/**
+	 * The global limit on concurrent clean scans (and scan UDFs).  Every
+	 * clean pass holds one permit while it runs.
+	 */
+	public Semaphore getScanPermits() {
+		return scanPermits;
+	}
+
+	public void setScanPermits(int permits) {
+		this.scanPermits = new Semaphore(Math.max(1, permits), true);
+	}
+
+	/**
+	 * Turn on Cache-First reads for querySiteVisits() (see CacheFirstReader).
+	 * @param baseNamespace
+	 * @param cacheNamespace
+	 * @param asyncReload : reload the Cache in the background on a miss
+	 */
+	public void enableCacheFirstReads(String baseNamespace, 
+			String cacheNamespace, boolean asyncReload) 
+	{
+		this.cacheFirstReader = new CacheFirstReader(console, this, 
+				baseNamespace, cacheNamespace, asyncReload);
+	}
+
+	/**
+	 * Turn on Sliding Expiration for the Segmented Cache (see CacheToucher).
+	 * Do this after setClock(), since the touches use the Cache TTL.
+	 * @param cacheNamespace
+	 * @param touchesPerSec : the touch budget
+	 */
+	public void enableSlidingExpiration(String cacheNamespace, int touchesPerSec) {
+		this.cacheToucher = new CacheToucher(console, this, cacheNamespace, 
+				touchesPerSec);
+		this.cacheToucher.start();
+	}
+
+	/**
+	 * Turn on frequency-based Cache Admission (see CacheAdmission).
+	 * @param threshold : recent visits needed to be loaded into the Cache
+	 * @param sketchWidth : Count-Min Sketch counters per row
+	 */
+	public void enableCacheAdmission(int threshold, int sketchWidth) {
+		this.cacheAdmission = new CacheAdmission(metrics, threshold, sketchWidth);
+	}
+
+	/**
+	 * Report how the Segmented Cache did:  the hit ratio of the visits, the
+	 * Cache reloads, and the Cache namespace objects and memory (summed over
+	 * the nodes' namespace stats).  Run it before the Cache is cleaned out,
+	 * and compare runs with and without Cache Admission.
+	 * @param cacheNamespace
+	 */
+	public void reportCacheUsage(String cacheNamespace) {
+		long hits = metrics.getCount(EmulateUser.CACHE_HITS);
+		long misses = metrics.getCount(EmulateUser.CACHE_MISSES);
+		if (hits + misses > 0) {
+			metrics.setGauge(CACHE_HIT_RATIO, (100 * hits) / (hits + misses));
+		}
+		
+		long objects = 0;
+		long memoryBytes = 0;
+		try {
+			for (Node node : client.getNodes()) {
+				String stats = Info.request(node, "namespace/" + cacheNamespace);
+				if (stats == null) {
+					continue;
+				}
+				for (String stat : stats.split(";")) {
+					String[] nv = stat.split("=", 2);
+					if (nv.length != 2) {
+						continue;
+					}
+					if ("objects".equals(nv[0])) {
+						objects += Long.parseLong(nv[1].trim());
+					} else if ("used-bytes-memory".equals(nv[0])
+							|| "memory_used_bytes".equals(nv[0])) 
+					{
+						memoryBytes += Long.parseLong(nv[1].trim());
+					}
+				}
+			}
+		} catch (Exception e) {
+			console.warn("Can't get the Cache Namespace Stats: " + e);
+		}
+		metrics.setGauge(CACHE_OBJECTS, objects);
+		metrics.setGauge(CACHE_MEMORY, memoryBytes);
+		
+		console.info("Cache Usage: Admission(%s) Hits(%d) Misses(%d) HitRatio(%d%%) " +
+				"Reloads(%d) Objects(%d) Memory(%d bytes)",
+				(cacheAdmission == null) ? "off" : "on", hits, misses, 
+				metrics.getGauge(CACHE_HIT_RATIO), 
+				metrics.getCount(ReloadCoalescer.RELOADS_EXECUTED), 
+				objects, memoryBytes);
+	} // end reportCacheUsage()
+
+	/**
+	 * About how many records a set holds, from the nodes' set stats (summed,
+	 * then divided by the replication factor, since each node counts its
+	 * replica records too).  Cheap:  no scan.
+	 * @param ns
+	 * @param set
+	 * @return the record count (-1 if the stats can't be had)
+	 */
+	public long setObjectCount(String ns, String set) {
+		long objects = 0;
+		long replicas = 1;
+		int nodes = 0;
+		try {
+			for (Node node : client.getNodes()) {
+				nodes++;
+				String stats = Info.request(node, "sets/" + ns + "/" + set);
+				if (stats != null) {
+					for (String stat : stats.split("[:;]")) {
+						String[] nv = stat.split("=", 2);
+						if (nv.length == 2 && ("n_objects".equals(nv[0]) 
+								|| "objects".equals(nv[0]))) 
+						{
+							objects += Long.parseLong(nv[1].trim());
+						}
+					}
+				}
+				String nsStats = Info.request(node, "namespace/" + ns);
+				if (nsStats != null) {
+					for (String stat : nsStats.split(";")) {
+						String[] nv = stat.split("=", 2);
+						if (nv.length == 2 && ("repl-factor".equals(nv[0]) 
+								|| "replication-factor".equals(nv[0]))) 
+						{
+							replicas = Math.max(replicas, Long.parseLong(nv[1].trim()));
+						}
+					}
+				}
+			}
+		} catch (Exception e) {
+			console.debug("Can't get the Set Stats for %s/%s: %s", ns, set, e);
+			return -1;
+		}
+		return objects / Math.max(1, Math.min(replicas, nodes));
+	} // end setObjectCount()
+
+	public CacheAdmission getCacheAdmission() {
+		return cacheAdmission;
+	}
+
+	public CacheToucher getCacheToucher() {
+		return cacheToucher;
+	}
+
+	public CleanThrottle getCleanThrottle() {
+		return cleanThrottle;
+	}
+
+	public void setCleanThrottle(CleanThrottle cleanThrottle) {
+		this.cleanThrottle = cleanThrottle;
+	}
+
+	public UserLaneDispatcher getLaneDispatcher() {
+		return laneDispatcher;
+	}
+
+	public void setLaneDispatcher(UserLaneDispatcher laneDispatcher) {
+		this.laneDispatcher = laneDispatcher;
+	}
+
+	/**
+	 * Turn on LDT Caps:  wrap our LDT Operations so that, in each capped
+	 * namespace, every insert also trims the LDT back under its cap.
+	 * Do this BEFORE enableSharding(), so that the cap applies to each
+	 * sub-record of a sharded user.
+	 * With Lazy Expiry (purgeLimit > 0), the inserts in every namespace
+	 * also remove (up to purgeLimit) already-expired visits.
+	 * @param caps : namespace to cap (see LdtCapPolicy)
+	 * @param timeToLiveNs
+	 * @param purgeLimit : Lazy Expiry limit per write (0 = off)
+	 */
+	public void enableCaps(Map<String, LdtCapPolicy> caps, long timeToLiveNs,
+			int purgeLimit) 
+	{
+		this.ldtOps = new CappedLdtOperations(console, this, this.ldtOps, 
+				caps, timeToLiveNs, purgeLimit);
+		this.lazyExpiry = (purgeLimit > 0);
+	}
+	
+	/**
+	 * Tell if writes lazily remove expired visits (so the cleaners can
+	 * run less often).
+	 */
+	public boolean isLazyExpiry() {
+		return lazyExpiry;
+	}
+
+	/**
+	 * Turn on Hot-Key Sharding:  wrap our LDT Operations so that the LDT of
+	 * each registered hot user is spread across "shardCount" sub-records.
+	 * @param shardCount
+	 * @param shardBy : ShardedLdtOperations.SHARD_BY_HASH or SHARD_BY_TIME
+	 * @param timeToLiveNs
+	 * @return the sharding LDT Operations (to register the hot users)
+	 */
+	public ShardedLdtOperations enableSharding(int shardCount, String shardBy,
+			long timeToLiveNs) 
+	{
+		ShardedLdtOperations shardedOps = new ShardedLdtOperations(console,
+				this.ldtOps, shardCount, shardBy, timeToLiveNs);
+		this.ldtOps = shardedOps;
+		return shardedOps;
+	}
+
+	/**
+	 * Switch to the other type of LDT (for the Interference Benchmark, which
+	 * reloads the data for each type).  The Caps and Sharding wrappers are
+	 * built around one type, so we can't switch underneath them.
+	 * @param newLdtType : LLIST or LMAP
+	 * @return true if we now use newLdtType
+	 */
+	public boolean switchLdtType(String newLdtType) {
+		if (newLdtType.equalsIgnoreCase(ldtType)) {
+			return true;
+		}
+		if (ldtOps instanceof ForwardingLdtOperations) {
+			console.error("Can't switch the LDT Type with Caps or Sharding on");
+			return false;
+		}
+		if (LLIST.equalsIgnoreCase(newLdtType)) {
+			this.ldtOps = new LListOperations( client, console );
+		} else if (LMAP.equalsIgnoreCase(newLdtType)) {
+			this.ldtOps = new LMapOperations( client, console );
+		} else {
+			console.error("Unknown LDT Type: " + newLdtType);
+			return false;
+		}
+		this.ldtType = newLdtType.toUpperCase();
+		return true;
+	}
+
+	/**
+	 * Hand every Base Site Visit write to a listener.  The first listener
+	 * wraps our LDT Operations (see VisitListenerLdtOperations), and the
+	 * others join it, so the writes are watched at one place in the chain
+	 * however many listeners there are.  Do this AFTER enableSharding(), so
+	 * that the listeners see the writes as the users made them.
+	 * @param listener
+	 */
+	public void addVisitListener(IVisitListener listener) {
+		if (visitListeners == null) {
+			visitListeners = new VisitListenerLdtOperations(this.ldtOps);
+			this.ldtOps = visitListeners;
+		}
+		visitListeners.addListener(listener);
+	}
+
+	/**
+	 * Turn on Heavy Hitter tracking:  every Base Site Visit write is counted
+	 * (see HeavyHitterTracker and addVisitListener()).
+	 * @param topK
+	 * @return the tracker
+	 */
+	public HeavyHitterTracker enableHeavyHitters(int topK) {
+		this.heavyHitters = new HeavyHitterTracker(console, metrics, topK);
+		addVisitListener(heavyHitters);
+		this.heavyHitters.start();
+		return heavyHitters;
+	}
+
+	public HeavyHitterTracker getHeavyHitters() {
+		return heavyHitters;
+	}
+
+	/**
+	 * Turn on the per-customer, per-hour Rollups:  every Base Site Visit
+	 * write is counted (see VisitRollup and addVisitListener()), and start
+	 * the flusher.
+	 * @param namespace : where the Rollup Set lives
+	 * @param flushSec : real time between flushes
+	 * @return the rollup
+	 */
+	public VisitRollup enableRollup(String namespace, int flushSec) {
+		this.rollup = new VisitRollup(console, this, namespace, 
+				flushSec * 1000L);
+		addVisitListener(rollup);
+		this.rollup.start();
+		return rollup;
+	}
+
+	public VisitRollup getRollup() {
+		return rollup;
+	}
+
+	/**
+	 * Turn on Sessionisation:  every Base Site Visit write is an event for
+	 * the SessionTracker (see addVisitListener()), and start its sweeper.
+	 * (The Bulk Import feeds the tracker itself.)
+	 * @param namespace : where the Session Set lives
+	 * @param gapSec : the inactivity gap, in (clock) seconds
+	 * @return the tracker
+	 */
+	public SessionTracker enableSessions(String namespace, int gapSec) {
+		this.sessions = new SessionTracker(console, this, namespace, gapSec);
+		addVisitListener(sessions);
+		this.sessions.start();
+		return sessions;
+	}
+
+	public SessionTracker getSessions() {
+		return sessions;
+	}
+
+	/**
+	 * Turn on Anti-Entropy:  wrap our LDT Operations so that every User
+	 * Record keeps an LDT Digest (see DigestLdtOperations), and set up the
+	 * ConsistencyVerifier that compares the Base and Cache digests in the
+	 * background.  Do this LAST, so that the digest sees the same writes
+	 * (and loads) as the callers.  The caller adds the sets and starts it.
+	 * @param baseNamespace
+	 * @param cacheNamespace
+	 * @param intervalSec : (virtual) time between verify passes
+	 * @return the (not yet started) verifier
+	 */
+	public ConsistencyVerifier enableVerifier(String baseNamespace, 
+			String cacheNamespace, int intervalSec) 
+	{
+		this.ldtOps = new DigestLdtOperations(console, this, this.ldtOps, 
+				baseNamespace);
+		this.verifier = new ConsistencyVerifier(console, this, baseNamespace,
+				cacheNamespace, intervalSec);
+		return verifier;
+	}
+
+	public ConsistencyVerifier getVerifier() {
+		return verifier;
+	}
+
+	public IClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Set the clock that everyone uses.  When time is compressed, the Cache
+	 * record TTL has to shrink along with everything else, so in that case
+	 * we set an explicit (scaled) expiration rather than relying on the
+	 * Namespace default TTL.
+	 * @param clock
+	 */
+	public void setClock(IClock clock) {
+		this.clock = clock;
+		if (clock.getCompression() > 1.0) {
+			long cacheTtlMs = clock.toRealMillis(CACHE_TTL * 1000L);
+			this.cacheWritePolicy.expiration = (int) Math.max(1L, cacheTtlMs / 1000);
+		}
+	}
 	
 	
 	
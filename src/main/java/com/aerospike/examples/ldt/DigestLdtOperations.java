@@ -0,0 +1,229 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.policy.Policy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+
+/**
+ * Keep an LDT Digest on each User Record:  an order-independent hash of the
+ * Site Visits written to its LDT (DIGEST_HASH_BIN), and how many of them
+ * there were (DIGEST_COUNT_BIN).  Each element hash is a non-negative 32 bit
+ * value, and the digest is their plain sum, so it does not matter in what
+ * order the visits arrive, and a server-side add() keeps it up to date in
+ * one round trip (no read-modify-write) without ever overflowing.
+ * 
+ * The Digest covers the visits WRITTEN to the LDT, not the ones that are
+ * still in it:  the cleaners (and the caps) remove visits from the Base LDT
+ * only, so removing them from the digest would make Base and Cache differ
+ * for no good reason.  When the Cache record is (re)loaded, it takes the
+ * Base record's digest along with the live visits, and from then on every
+ * visit that goes to both adds the same amount to both.  So a Base and
+ * Cache record with different digests have diverged somewhere -- and the
+ * ConsistencyVerifier can find them without scanning every LDT.
+ */
+public class DigestLdtOperations extends ForwardingLdtOperations 
+	implements IAppConstants 
+{
+	// Metric Names
+	public static final String DIGEST_ERRORS = "verify.digestErrors";
+	
+	private static final String CLASSNAME = "DigestLdtOperations";
+	
+	private Console console;
+	private AerospikeClient client;
+	private AppMetrics metrics;
+	private Policy readPolicy;
+	private String baseNamespace;
+	private WritePolicy baseWritePolicy;
+	private WritePolicy cacheWritePolicy;
+	
+	/**
+	 * @param console
+	 * @param dbOps : for the client, the metrics and the write policies
+	 * @param inner : The LDT operations that do the real work
+	 * @param baseNamespace : where the Base User Records live
+	 */
+	public DigestLdtOperations(Console console, DbOps dbOps, 
+			ILdtOperations inner, String baseNamespace) 
+	{
+		super(inner);
+		this.console = console;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.readPolicy = dbOps.policy;
+		this.baseNamespace = baseNamespace;
+		
+		// A digest update never creates a record (and, on the Cache side,
+		// keeps the record's scaled TTL).
+		this.baseWritePolicy = new WritePolicy();
+		this.baseWritePolicy.timeout = dbOps.writePolicy.timeout;
+		this.baseWritePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+		this.cacheWritePolicy = new WritePolicy();
+		this.cacheWritePolicy.timeout = dbOps.cacheWritePolicy.timeout;
+		this.cacheWritePolicy.expiration = dbOps.cacheWritePolicy.expiration;
+		this.cacheWritePolicy.recordExistsAction = RecordExistsAction.UPDATE_ONLY;
+	}
+	
+	/**
+	 * The hash of one LDT element.  The element's unique key is its expire
+	 * value, so that's what we hash (a 64 bit mix, folded to 31 bits).
+	 * @param siteObjMap
+	 * @return
+	 */
+	public static long elementHash(Map<String, Object> siteObjMap) {
+		Object key = siteObjMap.get("key");
+		long h = (key instanceof Number) ? ((Number) key).longValue() : 
+			(key == null ? 0L : key.hashCode());
+		return mix64(h) >>> 33;
+	}
+	
+	/**
+	 * A 64 bit finalizer (from SplitMix64):  every input bit affects every
+	 * output bit.
+	 */
+	public static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+	
+	/**
+	 * The digest of a list of LDT elements (the same thing the writes build
+	 * up, one element at a time).
+	 * @param ldtList
+	 * @return
+	 */
+	public static long listHash(List<Map<String, Object>> ldtList) {
+		long hash = 0;
+		if (ldtList != null) {
+			for (Map<String, Object> item : ldtList) {
+				hash += elementHash(item);
+			}
+		}
+		return hash;
+	}
+	
+	/**
+	 * A digest bin's value, or null if the record has no such bin.
+	 * @param record
+	 * @param bin
+	 * @return
+	 */
+	public static Long digestValue(Record record, String bin) {
+		Object value = (record == null) ? null : record.getValue(bin);
+		return (value instanceof Number) ? ((Number) value).longValue() : null;
+	}
+	
+	private WritePolicy policyFor(SiteVisitEntry sve, String set) {
+		if (set != null && set.equals(sve.getCustomerCacheSet())) {
+			return cacheWritePolicy;
+		}
+		return baseWritePolicy;
+	}
+	
+	/**
+	 * Store the visit, and (when it went in) add it to the record's digest.
+	 */
+	public int storeSiteObject(SiteVisitEntry sve, String ns, String set,
+			Map<String, Object> siteObjMap) 
+	{
+		final String meth = "storeSiteObject()";
+		int result = inner.storeSiteObject(sve, ns, set, siteObjMap);
+		if (result == 0) {
+			try {
+				client.operate(policyFor(sve, set), 
+						new Key(ns, set, sve.getUserID()),
+						Operation.add(new Bin(DIGEST_HASH_BIN, elementHash(siteObjMap))),
+						Operation.add(new Bin(DIGEST_COUNT_BIN, 1L)));
+			} catch (AerospikeException ae) {
+				// The verifier will find (and fix) the difference.
+				metrics.increment(DIGEST_ERRORS);
+				console.debug("<%s:%s> Digest Update Error Code(%d) Error Message(%s)",
+						CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			}
+		}
+		return result;
+	} // end storeSiteObject()
+	
+	/**
+	 * Load a whole list of visits at once.  Into a Cache record, that's a
+	 * reload:  the Cache takes the Base record's digest.  We read the Base
+	 * digest BEFORE the load, so a visit that slips into the Base LDT during
+	 * the load can only make the Cache look behind (and the verifier
+	 * re-checks the contents before it repairs anything).  Anywhere else
+	 * (e.g. a Bulk Import into the Base) the visits are simply added to the
+	 * record's digest.
+	 */
+	public int loadFullLDT(SiteVisitEntry sve, Key key, 
+			List<Map<String, Object>> fullLdtList) 
+	{
+		final String meth = "loadFullLDT()";
+		if (key.setName == null || !key.setName.equals(sve.getCustomerCacheSet())) {
+			int result = inner.loadFullLDT(sve, key, fullLdtList);
+			if (result == 0 && fullLdtList != null && !fullLdtList.isEmpty()) {
+				try {
+					client.operate(baseWritePolicy, key,
+							Operation.add(new Bin(DIGEST_HASH_BIN, listHash(fullLdtList))),
+							Operation.add(new Bin(DIGEST_COUNT_BIN, (long) fullLdtList.size())));
+				} catch (AerospikeException ae) {
+					metrics.increment(DIGEST_ERRORS);
+					console.debug("<%s:%s> Digest Update Error Code(%d) Error Message(%s)",
+							CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+				}
+			}
+			return result;
+		}
+		
+		Record baseDigest = null;
+		try {
+			baseDigest = client.get(readPolicy, 
+					new Key(baseNamespace, sve.getCustomerBaseSet(), sve.getUserID()),
+					DIGEST_HASH_BIN, DIGEST_COUNT_BIN);
+		} catch (AerospikeException ae) {
+			metrics.increment(DIGEST_ERRORS);
+		}
+		int result = inner.loadFullLDT(sve, key, fullLdtList);
+		// A Base record with no digest yet (its LDT was written before we
+		// kept one) gives the Cache nothing to copy.
+		Long baseHash = digestValue(baseDigest, DIGEST_HASH_BIN);
+		Long baseCount = digestValue(baseDigest, DIGEST_COUNT_BIN);
+		if (result == 0 && baseHash != null && baseCount != null) {
+			try {
+				client.put(cacheWritePolicy, key,
+						new Bin(DIGEST_HASH_BIN, baseHash.longValue()),
+						new Bin(DIGEST_COUNT_BIN, baseCount.longValue()));
+			} catch (AerospikeException ae) {
+				metrics.increment(DIGEST_ERRORS);
+				console.debug("<%s:%s> Digest Copy Error Code(%d) Error Message(%s)",
+						CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			}
+		}
+		return result;
+	} // end loadFullLDT()
+
+} // end class DigestLdtOperations
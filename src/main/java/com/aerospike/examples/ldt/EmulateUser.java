@@ -16,8 +16,6 @@
  */
 package com.aerospike.examples.ldt;
 
-import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 import com.aerospike.client.AerospikeClient;
@@ -34,8 +32,8 @@ import com.aerospike.client.Key;
  * (2) If that User Record is not in the Segmented Cache, then it reads the
  *     entire LDT from the Customer Set and builds a Segmented Cache Entry.
  *     Segmented Cache Entries have a TTL of one day (86400 seconds).
- * (3) It periodically scans LDTs and validates size information, as well as
- *     keeping statistics.
+ * (3) It keeps statistics.  (Checking that the Cache LDTs agree with the
+ *     Base LDTs is left to the ConsistencyVerifier, off the traffic path.)
  *     
  * Once the Customer Set and the User Records have been set
  * up (as specified by the user's input parameters), one or more of these
@@ -45,8 +43,7 @@ import com.aerospike.client.Key;
  * 
  * Along with the Site-Visit data generation, we periodically perform
  * administrative operations, such as:
- * (1) A Scan of an LDT to verify that the Size and Result Set match.
- * (2) An examination of the Full User Record to validate that the LDT Operations
+ * (1) An examination of the Full User Record to validate that the LDT Operations
  *     are consistent with the state of the User Record.
  * 
  * @author toby
@@ -65,8 +62,28 @@ public class EmulateUser implements Runnable, IAppConstants {
 	private long emulationDays = 0;
 	private long timeToLive;
 	private int threadTPS;  // Number of transactions per second to run in this thread
+	private IClock clock;   // Virtual clock that decides when we're done
+	private AppMetrics metrics; // Operation counts and latencies
+	private ReloadCoalescer reloadCoalescer; // Single-flight Cache reloads
+	private UserLaneDispatcher laneDispatcher; // Per-user lanes (null = inline)
+	private CacheToucher cacheToucher; // Sliding Cache expiration (null = off)
+	private CacheAdmission cacheAdmission; // Cache admission (null = admit all)
+	private volatile boolean stopRequested = false; // Set to end run() early
 	Random random;
 	
+	/** The first N users of each customer get the extra ("hot") traffic. */
+	public static final int SPECIAL_RECORDS = 10;
+	
+	// Metric Names
+	public static final String CACHE_HITS = "cache.hits";
+	public static final String CACHE_MISSES = "cache.misses";
+	
+	// What admitToCache() found out about the user's Cache record
+	private static final int CACHE_UNKNOWN = 0;  // Not checked (no Admission)
+	private static final int CACHE_PRESENT = 1;  // In the Cache
+	private static final int CACHE_ABSENT = 2;   // Not in the Cache, admitted
+	private static final int CACHE_REJECT = 3;   // Not in the Cache, rejected
+	
 	private static final String CLASSNAME = "EmulateUser";
 
 	public EmulateUser(Console console, AerospikeClient client, DbOps dbOps,
@@ -85,9 +102,24 @@ public class EmulateUser implements Runnable, IAppConstants {
 		this.client = client;
 		this.timeToLive = timeToLive;
 		this.threadTPS = threadTPS;
+		this.clock = dbOps.getClock();
+		this.metrics = dbOps.getMetrics();
+		this.reloadCoalescer = dbOps.getReloadCoalescer();
+		this.laneDispatcher = dbOps.getLaneDispatcher();
+		this.cacheToucher = dbOps.getCacheToucher();
+		this.cacheAdmission = dbOps.getCacheAdmission();
 		this.random = new Random();
 	}
 	
+	/**
+	 * Ask this thread to finish up after its current second of work, even if
+	 * the emulation days have not yet run out.  This is used when an outside
+	 * driver (such as the Throughput Ramp) decides how long we run.
+	 */
+	public void requestStop() {
+		this.stopRequested = true;
+	}
+	
 	/**
 	 * For a given set of User Records (referred to by number), we're going 
 	 * to perform a non-uniform random number allocation. We're going to do
@@ -101,7 +133,7 @@ public class EmulateUser implements Runnable, IAppConstants {
 	private long getUserRecordSeed(int userRecordRange) {
 		// Experiment with these values -- try different numbers of special
 		// records and different multiplier values
-		int specialRecords = 10; // 10 special records per customer
+		int specialRecords = SPECIAL_RECORDS; // special records per customer
 		int multiplier = 4; // 4 times more likely to occur
 		int superSpace = userRecordRange + (specialRecords * multiplier);
 		
@@ -123,43 +155,127 @@ public class EmulateUser implements Runnable, IAppConstants {
 	 *     -- If not, write a new User Record with the CACHE TTL
 	 *     -- UPDATE THE USER RECORD WITH A NEW (FULL) LDT Load
 	 *        (Scan the existing LDT in the base DB and write to the cache LDT)
-	 * (3) Probe the Base DB to see if the LDT data is consistent.
 	 * 
 	 * @param opNum
 	 */
-	private void doOperation(int opNum, ILdtOperations ldtOps){
-		final String meth = "doOperation()";
-		boolean recordPresent = false;
-		String baseSet;
-		String cacheSet;
+	private void doOperation(final int opNum, final ILdtOperations ldtOps){
 		try {
-			int customerSeed = random.nextInt(this.customerMax);
+			final int customerSeed = random.nextInt(this.customerMax);
 			CustomerRecord custRec = new CustomerRecord(console, customerSeed);
 
-			long userSeed = getUserRecordSeed(this.userMax);
-			UserRecord userRec = 
+			final long userSeed = getUserRecordSeed(this.userMax);
+			final UserRecord userRec = 
 					new UserRecord(console, dbOps, custRec.getCustomerID(), (int) userSeed);
 
-			SiteVisitEntry sve = new SiteVisitEntry(console, custRec.getCustomerID(), 
-					userRec.getUserID(), opNum, LDT_BIN, this.timeToLive);
+			final SiteVisitEntry sve = new SiteVisitEntry(console, custRec.getCustomerID(), 
+					userRec.getUserID(), opNum, LDT_BIN, this.timeToLive, clock);
 			
+			// With User Lanes, this user's ops run in order on the user's
+			// lane (and we move on to the next op right away).  Otherwise
+			// we do the work right here in this thread.
+			if (laneDispatcher != null) {
+				laneDispatcher.submit(userRec.getCustomerBaseSet(), 
+						userRec.getUserID(), new Runnable() {
+					public void run() {
+						processVisit(opNum, customerSeed, userSeed, userRec, 
+								sve, ldtOps);
+					}
+				});
+			} else {
+				processVisit(opNum, customerSeed, userSeed, userRec, sve, ldtOps);
+			}
+		} catch (Exception e) {
+			// The op failed before it got to processVisit():  count it here.
+			metrics.increment(AppMetrics.USER_OPS);
+			metrics.increment(AppMetrics.USER_ERRORS);
+			e.printStackTrace();
+			console.error("[%s] Problem with Thread(%d) Customer Record: Seed(%d)", 
+					"Emulate: doOperation(): ", threadNumber, opNum);
+		}	
+	} // end doOperation()
+	
+	/**
+	 * Do the database work for one generated Site Visit (see doOperation()).
+	 * @param opNum
+	 * @param customerSeed
+	 * @param userSeed
+	 * @param userRec
+	 * @param sve
+	 * @param ldtOps
+	 */
+	private void processVisit(int opNum, int customerSeed, long userSeed,
+			UserRecord userRec, SiteVisitEntry sve, ILdtOperations ldtOps)
+	{
+		final String meth = "processVisit()";
+		boolean recordPresent = false;
+		String baseSet;
+		String cacheSet;
+		long startNs;
+		int writeResult;
+		// Every op is counted once (here, not when it is handed to a User
+		// Lane, so that the TPS we report is the TPS we actually achieved),
+		// and a failed op counts as ONE error, however it failed.  So the
+		// errors are always a part of the ops.
+		boolean failed = false;
+		try {
 			baseSet = userRec.getCustomerBaseSet();
 			cacheSet = userRec.getCustomerCacheSet();
 			
 			// Write the Site Visit to Storage -- which is hidden behind
 			// this interface because there can be multiple implementations
 			// of the LDT.
-			sve.toStorage(client, baseNamespace, baseSet, ldtOps);
+			startNs = System.nanoTime();
+			writeResult = sve.toStorage(client, baseNamespace, baseSet, ldtOps);
+			metrics.recordSince(AppMetrics.STORE_SITE_OBJECT, startNs);
+			if (writeResult != 0) {
+				failed = true;
+			}
 
 			// Check to see if the UserRecord is in the Segment Cache.  If it is,
 			// then add to the Cache LDT.  If it is not, then create a new 
 			// User Record in the Segment, and populate the LDT Info (the Site
 			// Visit Data) with the LDT data from the DB User Record.
-			recordPresent = userRec.updateCache(client, cacheNamespace);
-			if (recordPresent) {
-				sve.toStorage(client, cacheNamespace, cacheSet, ldtOps);
-			} else {
-				sve.reloadCache(client, baseNamespace, cacheNamespace, ldtOps);
+			// With Cache Admission, a user who is not in the Cache has to have
+			// visited often enough (lately) to be loaded into it.  Until then
+			// their visits go only to the Base namespace.
+			// (A rejected visit is counted only as cache.rejected, so that the
+			// hit ratio compares the same visits with and without Admission.)
+			// The admission check reads the Cache record, so we pass on what
+			// it found rather than read the record again.
+			int cacheState = CACHE_UNKNOWN;
+			if (cacheAdmission != null) {
+				cacheState = admitToCache(userRec, cacheSet);
+			}
+			if (cacheState != CACHE_REJECT) {
+				// A reload for this user may already be in flight (started by
+				// another thread).  In that case the record looks present, but we
+				// have to let the reload finish before we add to the Cache LDT.
+				if (cacheState == CACHE_UNKNOWN) {
+					recordPresent = userRec.updateCache(client, cacheNamespace);
+				} else {
+					recordPresent = userRec.updateCache(client, cacheNamespace, 
+							cacheState == CACHE_PRESENT);
+				}
+				if (recordPresent && 
+						!reloadCoalescer.isReloading(cacheSet, userRec.getUserID())) 
+				{
+					sve.toStorage(client, cacheNamespace, cacheSet, ldtOps);
+					metrics.increment(CACHE_HITS);
+					if (cacheToucher != null) {
+						cacheToucher.noteHit(cacheSet, userRec.getUserID());
+					}
+				} else {
+					metrics.increment(CACHE_MISSES);
+					startNs = System.nanoTime();
+					if (reloadCoalescer.reload(sve, client, baseNamespace, 
+							cacheNamespace, ldtOps))
+					{
+						metrics.recordSince(AppMetrics.RELOAD_CACHE, startNs);
+						if (cacheToucher != null) {
+							cacheToucher.noteLoaded(cacheSet, userRec.getUserID());
+						}
+					}
+				}
 			}
 
 			String keyStr = userRec.getUserID();
@@ -172,64 +288,48 @@ public class EmulateUser implements Runnable, IAppConstants {
 						CLASSNAME, meth, threadNumber, customerSeed, baseSet, 
 						userSeed, keyStr, opNum);
 			}
-			
-			// Do a heavy duty scan less frequently.
-			if( (opNum + threadNumber) % 2000 == 0 ) {
-				Key baseKey = new Key(baseNamespace, baseSet, keyStr);
-				Key cacheKey = new Key(cacheNamespace, cacheSet, keyStr);
-				
-				console.debug("<%s:%s> <<SCAN TEST>> Thread(%d) Cust#(%d) BaseSet(%s) CacheSet(%s) User#(%d) UserID(%s) Iteration(%d)",
-						CLASSNAME, meth, threadNumber, customerSeed, baseSet, 
-						cacheSet, userSeed, keyStr, opNum);
-				
-
-				List<Map<String,Object>> baseResult = null;
-				List<Map<String,Object>> cacheResult = null;
-				int baseResultSize = 0;
-				int baseCheckSize = 0;
-				int cacheResultSize = 0;
-				int cacheCheckSize = 0;
-				
-				try {
-					baseResult = ldtOps.scanLDT(baseKey);
-					cacheResult = ldtOps.scanLDT(cacheKey);
-					cacheCheckSize = ldtOps.ldtSize(cacheKey, LDT_BIN);
-					if (baseResult != null) {
-						baseResultSize = baseResult.size();
-						baseCheckSize = ldtOps.ldtSize(baseKey, LDT_BIN);
-						if (baseResultSize != baseCheckSize) {
-							console.error("<%s:%s> <<BASE SCAN Size Error>> Thread(%d) Cust#(%d) BaseSet(%s) UserID(%s) ScanSide(%d) LDT Size(%d)",
-									CLASSNAME, meth, threadNumber, customerSeed, baseSet, 
-									keyStr, baseResultSize, baseCheckSize);
-						}
-					} 
-					if (cacheResult != null) {
-						cacheResultSize = cacheResult.size();
-						cacheCheckSize = ldtOps.ldtSize(cacheKey, LDT_BIN);
-						if (cacheResultSize != cacheCheckSize) {
-							console.error("<%s:%s> <<CACHE SCAN Size Error>> Thread(%d) Cust#(%d) CacheSet(%s) UserID(%s) ScanSide(%d) LDT Size(%d)",
-									CLASSNAME, meth, threadNumber, customerSeed, cacheSet, 
-									keyStr, cacheResultSize, cacheCheckSize);
-						}
-					}
-				} catch (AerospikeException ae){
-					console.error("Aerospike Error Code(%d) Error Message(%s)",
-							ae.getResultCode(), ae.getMessage());
-					console.info("Keep on Truckin");
-				}
-				console.debug("<%s:%s> <<SCAN RESULT>> Thread(%d) Cust#(%d) BaseSet(%s) CacheSet(%s) UserID(%s) BaseLDT(%d) CacheLDT(%d)",
-						CLASSNAME, meth, threadNumber, customerSeed, baseSet, 
-						cacheSet, keyStr, baseResultSize, cacheResultSize);
-			}
 		} catch (AerospikeException ae) {
+			failed = true;
 			console.error("Aerospike Error Code(%d) Error Message(%s)",
 					ae.getResultCode(), ae.getMessage());
 		} catch (Exception e) {
+			failed = true;
 			e.printStackTrace();
 			console.error("[%s] Problem with Thread(%d) Customer Record: Seed(%d)", 
-					"Emulate: doOperation(): ", threadNumber, opNum);
-		}	
-	}
+					"Emulate: processVisit(): ", threadNumber, opNum);
+		} finally {
+			metrics.increment(AppMetrics.USER_OPS);
+			if (failed) {
+				metrics.increment(AppMetrics.USER_ERRORS);
+			}
+		}
+	} // end processVisit()
+	
+	/**
+	 * Cache Admission:  count this visit, and tell if the user's visits
+	 * should go to the Cache.  A user already in the Cache (or being loaded
+	 * into it) always stays;  one who isn't must pass the admission test.
+	 * @param userRec
+	 * @param cacheSet
+	 * @return CACHE_PRESENT if the user's Cache record exists, CACHE_ABSENT
+	 * if it doesn't but the user is admitted, and CACHE_REJECT otherwise
+	 * @throws AerospikeException
+	 */
+	private int admitToCache(UserRecord userRec, String cacheSet) 
+			throws AerospikeException 
+	{
+		String userID = userRec.getUserID();
+		int visits = cacheAdmission.recordVisit(cacheSet, userID);
+		if (client.exists(dbOps.policy, new Key(cacheNamespace, cacheSet, userID))) {
+			return CACHE_PRESENT;
+		}
+		if (reloadCoalescer.isReloading(cacheSet, userID) || 
+				cacheAdmission.admit(visits)) 
+		{
+			return CACHE_ABSENT;
+		}
+		return CACHE_REJECT;
+	} // end admitToCache()
 
 	/**
 	 * For "iteration" number of cycles, generate user-visit events within
@@ -239,8 +339,12 @@ public class EmulateUser implements Runnable, IAppConstants {
 		final String meth = "run()";
 		ILdtOperations ldtOps = dbOps.getLdtOps();
 		
-		long startTimeMs = System.currentTimeMillis();
-		long endTimeMS = startTimeMs + 1000 * emulationDays * 86400;
+		// The run length is measured in VIRTUAL time (so a compressed clock
+		// gets us thru the emulation days sooner), but the TPS pacing below
+		// is done in real seconds -- the cluster only knows about real time.
+		long startTimeMs = clock.currentTimeMillis();
+		long endTimeMS = startTimeMs + 1000L * emulationDays * 86400;
+		long virtualNowMS = 0;
 		long checkTimeMS = 0;
 		long secondStartMS = 0;
 		long deltaTimeMS = 0;
@@ -254,8 +358,9 @@ public class EmulateUser implements Runnable, IAppConstants {
 			// down accordingly.
 			// In each second, it will attempt to complete "threadTPS" actions
 			// by calling the "working function" doOperation().
-			console.info("<%s:%s> ThreadNum(%d) Start: ThreadTPS(%d)", 
-					CLASSNAME, meth, threadNumber, threadTPS);
+			console.info("<%s:%s> ThreadNum(%d) Start: ThreadTPS(%d real, %.3f virtual)", 
+					CLASSNAME, meth, threadNumber, threadTPS, 
+					threadTPS / clock.getCompression());
 			do {
 				// We're going to organize ourselves in terms of TPS and
 				// second intervals.  For a given number of TPS, we're going
@@ -265,7 +370,7 @@ public class EmulateUser implements Runnable, IAppConstants {
 				// amount of time between each operation.
 				secondStartMS = System.currentTimeMillis();
 
-				for (int i = 0; i < threadTPS; i++) {
+				for (int i = 0; i < threadTPS && !stopRequested; i++) {
 					opNum = (secondCount * threadTPS) + i;
 					doOperation( (int) opNum, ldtOps );
 					Thread.sleep(interTransactionWaitMS);
@@ -273,6 +378,7 @@ public class EmulateUser implements Runnable, IAppConstants {
 				secondCount++;
 				checkTimeMS = System.currentTimeMillis();
 				deltaTimeMS = checkTimeMS - secondStartMS;
+				virtualNowMS = clock.currentTimeMillis();
 				console.debug("StartSecond(%d) CheckTime(%d) Delta(%d)", 
 						secondStartMS, checkTimeMS, deltaTimeMS);
 				if (deltaTimeMS > 1000) {
@@ -283,7 +389,7 @@ public class EmulateUser implements Runnable, IAppConstants {
 					interTransactionWaitMS++;
 					Thread.sleep(Math.abs(1000 - deltaTimeMS));
 				}
-			} while( checkTimeMS < endTimeMS ); // end for each generateCount
+			} while( virtualNowMS < endTimeMS && !stopRequested ); // end for each generateCount
 
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -0,0 +1,138 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+
+/**
+ * An ILdtOperations that passes every call through to another ILdtOperations
+ * (LLIST or LMAP).  Extend this to add behavior around the LDT operations
+ * (sharding, watching the traffic, etc) and override only the calls that
+ * need to change.
+ */
+public abstract class ForwardingLdtOperations implements ILdtOperations {
+	
+	protected final ILdtOperations inner;
+	
+	protected ForwardingLdtOperations(ILdtOperations inner) {
+		this.inner = inner;
+	}
+	
+	public ILdtOperations getInner() {
+		return inner;
+	}
+
+	public void setup() {
+		inner.setup();
+	}
+
+	public Map<String, Object> newSiteObject(SiteVisitEntry entry) {
+		return inner.newSiteObject(entry);
+	}
+
+	public int ldtSize(Key key, String bin) {
+		return inner.ldtSize(key, bin);
+	}
+
+	public int storeSiteObject(SiteVisitEntry sve, String ns, String set,
+			Map<String, Object> siteObjMap) 
+	{
+		return inner.storeSiteObject(sve, ns, set, siteObjMap);
+	}
+
+	public int storeSiteObject(Key key, String bin,
+			Map<String, Object> siteObjMap) 
+	{
+		return inner.storeSiteObject(key, bin, siteObjMap);
+	}
+
+	public int loadFullLDT(SiteVisitEntry sve, Key key,
+			List<Map<String, Object>> fullLdtList) 
+	{
+		return inner.loadFullLDT(sve, key, fullLdtList);
+	}
+
+	public List<Map<String, Object>> processSiteQuery(String ns, String set,
+			String key, long minExpire) 
+	{
+		return inner.processSiteQuery(ns, set, key, minExpire);
+	}
+
+	public int processRemoveExpired(String ns, String set, Key key,
+			long expire) 
+	{
+		return inner.processRemoveExpired(ns, set, key, expire);
+	}
+
+	public long nextExpire(Key key, long from, long horizon) {
+		return inner.nextExpire(key, from, horizon);
+	}
+
+	public boolean removeUser(Key key) throws AerospikeException {
+		return inner.removeUser(key);
+	}
+
+	public List<Map<String, Object>> scanLDT(Key key) 
+			throws AerospikeException 
+	{
+		return inner.scanLDT(key);
+	}
+
+	public List<Map<String, Object>> scanLDT(Key key, long minExpire) 
+			throws AerospikeException 
+	{
+		return inner.scanLDT(key, minExpire);
+	}
+
+	public List<Map<String, Object>> processSiteQuery(String ns, String set,
+			String key, long minExpire, VisitFilter filter) 
+	{
+		return inner.processSiteQuery(ns, set, key, minExpire, filter);
+	}
+
+	public List<Map<String, Object>> scanLDT(Key key, long minExpire,
+			VisitFilter filter) throws AerospikeException 
+	{
+		return inner.scanLDT(key, minExpire, filter);
+	}
+
+	public List<Map<String, Object>> queryWindow(Key key, long fromExpire,
+			long toExpire, int limit) throws AerospikeException 
+	{
+		return inner.queryWindow(key, fromExpire, toExpire, limit);
+	}
+
+	public List<Map<String, Object>> queryLastN(Key key, int count,
+			long minExpire) throws AerospikeException 
+	{
+		return inner.queryLastN(key, count, minExpire);
+	}
+
+	public int batchQuery(String ns, String set, Collection<String> userIDs,
+			long fromExpire, long toExpire, int limit, int parallelism,
+			IVisitBatchCallback callback) throws AerospikeException 
+	{
+		return inner.batchQuery(ns, set, userIDs, fromExpire, toExpire, limit,
+				parallelism, callback);
+	}
+
+} // end class ForwardingLdtOperations
@@ -0,0 +1,231 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Streaming "heavy hitter" detection:  which users (customer set + user) and
+ * which URLs get the most Site Visit writes in this run.  Hot users are our
+ * main scaling problem (one user = one record = one LDT), so we want to see
+ * them while the run goes, not after.
+ * 
+ * Each writing thread counts its own writes in its own Space-Saving
+ * summaries (see SpaceSaving), with no shared writes.  A thread's summaries
+ * are guarded by their own lock, which only the reporter ever competes for:
+ * every REPORT_MS (and at the end of the run) the reporter copies each
+ * thread's summaries under that lock and merges the copies into the current
+ * top K, so every write counted so far is in the report.
+ * 
+ * The writing threads come and go (a new set of EmulateUser threads and
+ * lanes for each run or ramp stage), so the reporter folds the summaries of
+ * the threads that have exited into one retired pair of summaries, and
+ * drops them.  The memory is two summaries of CAPACITY_FACTOR * K counters
+ * per live thread, plus the retired pair -- not per thread ever started.
+ * 
+ * Metrics: the gauges hot.topUserSharePct and hot.topUrlSharePct (the share
+ * of all writes that went to the top K), and the hot.users and hot.urls
+ * top K lists (as report lines).
+ */
+public class HeavyHitterTracker implements Runnable, IVisitListener {
+	
+	// Metric Names
+	public static final String HOT_USER_SHARE = "hot.topUserSharePct";
+	public static final String HOT_URL_SHARE = "hot.topUrlSharePct";
+	public static final String HOT_USERS = "hot.users";
+	public static final String HOT_URLS = "hot.urls";
+	
+	/** Counters per summary, as a multiple of K. */
+	static final int CAPACITY_FACTOR = 10;
+	
+	/** How often (real ms) we merge and report the top K. */
+	static final long REPORT_MS = 10000L;
+	
+	private static final String CLASSNAME = "HeavyHitterTracker";
+	
+	/**
+	 * One thread's summaries (guarded by the ThreadSummary's lock).
+	 */
+	private static class ThreadSummary {
+		final Thread owner;
+		final SpaceSaving users;
+		final SpaceSaving urls;
+		
+		ThreadSummary(Thread owner, int capacity) {
+			this.owner = owner;
+			users = new SpaceSaving(capacity);
+			urls = new SpaceSaving(capacity);
+		}
+	}
+	
+	private Console console;
+	private AppMetrics metrics;
+	private final int topK;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<ThreadSummary> summaries;
+	private final ThreadLocal<ThreadSummary> mySummary;
+	private SpaceSaving retiredUsers; // The exited threads' counts (guarded
+	private SpaceSaving retiredUrls;  // by this tracker's lock)
+	private Thread reporter;
+	private volatile boolean running = false;
+	
+	/**
+	 * @param console
+	 * @param metrics
+	 * @param topK : how many hot users (and URLs) to report
+	 */
+	public HeavyHitterTracker(Console console, AppMetrics metrics, int topK) {
+		this.console = console;
+		this.metrics = metrics;
+		this.topK = topK;
+		this.capacity = topK * CAPACITY_FACTOR;
+		this.summaries = new ConcurrentLinkedQueue<ThreadSummary>();
+		this.retiredUsers = new SpaceSaving(capacity);
+		this.retiredUrls = new SpaceSaving(capacity);
+		this.mySummary = new ThreadLocal<ThreadSummary>() {
+			protected ThreadSummary initialValue() {
+				ThreadSummary summary = 
+						new ThreadSummary(Thread.currentThread(), capacity);
+				summaries.add(summary);
+				return summary;
+			}
+		};
+	}
+	
+	/**
+	 * Count one Site Visit write (in the calling thread's summaries).
+	 * @param sve
+	 */
+	public void visitWritten(SiteVisitEntry sve) {
+		ThreadSummary summary = mySummary.get();
+		String userKey = sve.getCustomerBaseSet() + "/" + sve.getUserID();
+		String url = String.valueOf(sve.getUrl());
+		synchronized (summary) {
+			summary.users.offer(userKey);
+			summary.urls.offer(url);
+		}
+	} // end visitWritten()
+	
+	/**
+	 * Merge (copies of) the threads' summaries, and update the metrics.
+	 * @return the report lines (users, then URLs)
+	 */
+	public synchronized String[] report() {
+		retireExitedThreads();
+		List<SpaceSaving> users = new ArrayList<SpaceSaving>();
+		List<SpaceSaving> urls = new ArrayList<SpaceSaving>();
+		users.add(retiredUsers);
+		urls.add(retiredUrls);
+		for (ThreadSummary summary : summaries) {
+			synchronized (summary) {
+				users.add(summary.users.copy());
+				urls.add(summary.urls.copy());
+			}
+		}
+		String userLine = reportOne(SpaceSaving.merge(users, capacity), 
+				HOT_USERS, HOT_USER_SHARE);
+		String urlLine = reportOne(SpaceSaving.merge(urls, capacity), 
+				HOT_URLS, HOT_URL_SHARE);
+		return new String[] { userLine, urlLine };
+	} // end report()
+	
+	/**
+	 * Fold the summaries of the threads that have exited into the retired
+	 * summaries, and drop them (see the class comment).  The caller holds
+	 * this tracker's lock.
+	 */
+	private void retireExitedThreads() {
+		List<SpaceSaving> users = null;
+		List<SpaceSaving> urls = null;
+		for (Iterator<ThreadSummary> it = summaries.iterator(); it.hasNext(); ) {
+			ThreadSummary summary = it.next();
+			if (summary.owner.isAlive()) {
+				continue;
+			}
+			if (users == null) {
+				users = new ArrayList<SpaceSaving>();
+				urls = new ArrayList<SpaceSaving>();
+				users.add(retiredUsers);
+				urls.add(retiredUrls);
+			}
+			synchronized (summary) {
+				users.add(summary.users);
+				urls.add(summary.urls);
+			}
+			it.remove();
+		}
+		if (users != null) {
+			retiredUsers = SpaceSaving.merge(users, capacity);
+			retiredUrls = SpaceSaving.merge(urls, capacity);
+		}
+	} // end retireExitedThreads()
+	
+	private String reportOne(SpaceSaving merged, String infoName, 
+			String shareName) 
+	{
+		long total = merged.getTotal();
+		long topTotal = 0;
+		StringBuilder sb = new StringBuilder();
+		for (SpaceSaving.Entry entry : merged.topK(topK)) {
+			topTotal += entry.count;
+			sb.append(String.format("%s=%d(%.2f%%,+-%d) ", entry.key, entry.count,
+					(total == 0) ? 0.0 : (100.0 * entry.count) / total, entry.error));
+		}
+		long sharePct = (total == 0) ? 0 : (100 * topTotal) / total;
+		metrics.setGauge(shareName, sharePct);
+		String line = String.format("Top(%d) of (%d) writes: Share(%d%%) %s", 
+				topK, total, sharePct, sb.toString().trim());
+		metrics.setInfo(infoName, line);
+		return line;
+	}
+	
+	public void start() {
+		running = true;
+		reporter = new Thread(this, "HeavyHitterTracker");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+	
+	public void run() {
+		try {
+			while (running) {
+				Thread.sleep(REPORT_MS);
+				report();
+			}
+		} catch (InterruptedException ie) {
+			// Stopped.
+		}
+	}
+	
+	/**
+	 * Stop the reporter and show the final top K.
+	 */
+	public void printReport() {
+		final String meth = "printReport()";
+		running = false;
+		if (reporter != null) {
+			reporter.interrupt();
+		}
+		String[] lines = report();
+		console.info("<%s:%s> Hot Users: %s", CLASSNAME, meth, lines[0]);
+		console.info("<%s:%s> Hot URLs: %s", CLASSNAME, meth, lines[1]);
+	} // end printReport()
+
+} // end class HeavyHitterTracker
@@ -0,0 +1,142 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A HyperLogLog:  an estimate of the number of DISTINCT keys seen, in a
+ * small, fixed amount of memory (REGISTERS registers, ~1.6% standard
+ * error).  Each key's 64 bit hash picks a register (the top PRECISION bits)
+ * and the register keeps the longest run of leading zeros (plus one) seen
+ * in the rest of the hash.
+ * 
+ * Two HyperLogLogs merge by taking the max of each register, so merging is
+ * idempotent:  the same counts can be merged in again with no harm.  That's
+ * what lets a writer keep a running HyperLogLog and merge the whole thing
+ * into a stored copy (toBytes()/mergeInto()) every time it flushes.
+ * 
+ * The registers are atomic, so any number of threads may offer at once.
+ */
+public class HyperLogLog {
+	
+	/** Bits of the hash that pick the register. */
+	static final int PRECISION = 12;
+	
+	/** Number of registers (and bytes in the stored form). */
+	public static final int REGISTERS = 1 << PRECISION;
+	
+	private static final double ALPHA = 0.7213 / (1.0 + 1.079 / REGISTERS);
+	
+	private final AtomicIntegerArray registers = 
+			new AtomicIntegerArray(REGISTERS);
+	
+	/**
+	 * Count this key.
+	 * @param key
+	 */
+	public void offer(String key) {
+		offerHash(hash64(key));
+	}
+	
+	/**
+	 * Count a key by its (well mixed) 64 bit hash.
+	 * @param hash
+	 */
+	public void offerHash(long hash) {
+		int index = (int) (hash >>> (64 - PRECISION));
+		long rest = (hash << PRECISION) | (1L << (PRECISION - 1));
+		int rank = Long.numberOfLeadingZeros(rest) + 1;
+		int current = registers.get(index);
+		while (rank > current && !registers.compareAndSet(index, current, rank)) {
+			current = registers.get(index);
+		}
+	} // end offerHash()
+	
+	/**
+	 * @return the estimated number of distinct keys
+	 */
+	public long estimate() {
+		return estimate(toBytes());
+	}
+	
+	/**
+	 * @return the registers, in their stored form (one byte each)
+	 */
+	public byte[] toBytes() {
+		byte[] bytes = new byte[REGISTERS];
+		for (int i = 0; i < REGISTERS; i++) {
+			bytes[i] = (byte) registers.get(i);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Merge our registers into a stored copy (max of each register).
+	 * @param stored : a stored copy, or null for none
+	 * @return the merged registers (a new array)
+	 */
+	public byte[] mergeInto(byte[] stored) {
+		byte[] merged = toBytes();
+		if (stored != null && stored.length == REGISTERS) {
+			for (int i = 0; i < REGISTERS; i++) {
+				merged[i] = (byte) Math.max(merged[i], stored[i]);
+			}
+		}
+		return merged;
+	} // end mergeInto()
+	
+	/**
+	 * The estimate for a set of stored registers, with the small range
+	 * (linear counting) correction.
+	 * @param bytes
+	 * @return
+	 */
+	public static long estimate(byte[] bytes) {
+		if (bytes == null) {
+			return 0;
+		}
+		double sum = 0.0;
+		int zeros = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			sum += 1.0 / (1L << bytes[i]);
+			if (bytes[i] == 0) {
+				zeros++;
+			}
+		}
+		double m = bytes.length;
+		double raw = ALPHA * m * m / sum;
+		if (raw <= 2.5 * m && zeros > 0) {
+			return Math.round(m * Math.log(m / zeros));
+		}
+		return Math.round(raw);
+	} // end estimate()
+	
+	/**
+	 * A 64 bit hash of a string:  FNV-1a over the chars, then a final mix
+	 * (see DigestLdtOperations.mix64()) so that the top bits are good.
+	 */
+	static long hash64(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return DigestLdtOperations.mix64(h);
+	}
+
+} // end class HyperLogLog
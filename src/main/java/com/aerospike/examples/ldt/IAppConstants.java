@@ -32,9 +32,39 @@ public interface IAppConstants {
 	public static final String LMAP_EXPIRE  = "expire";
 	public static final String LDT_EXPIRE   = "expire";
 	
+	// Insert-and-Trim Record UDF name (same in both Create Modules)
+	public static final String LDT_ADD_TRIM = "add_trim";
+	
+	// Lower the Expire Watermark after a bulk load (both Create Modules)
+	public static final String LDT_LOWER_WATERMARK = "lower_watermark";
+	
+	// Time-Window and Last-N query Record UDF names (same in both Create
+	// Modules)
+	public static final String LDT_WINDOW = "window";
+	public static final String LDT_LAST_N = "last_n";
+	
+	// Site Visit query predicate/projection filter (both Create Modules)
+	public static final String LDT_VISIT_FILTER = "visit_filter";
+	
+	// Filter for the visits that have not expired (LMAP Create Module)
+	public static final String LDT_LIVE_FILTER = "live_filter";
+	
 	// The LDT Bin we'll use for SiteVisit Objects
 	public static final String LDT_BIN      = "LDT BIN";
 	
+	// The Expire Watermark Bin:  a lower bound on the expire values in the
+	// record's LDT (so the cleaners can skip records with nothing to expire)
+	public static final String WATERMARK_BIN = "minExpire";
+	
+	// The (numeric) Secondary Index on the Watermark Bin, one per set:  the
+	// name is this prefix plus the set name
+	public static final String WATERMARK_INDEX = "minExpire_";
+	
+	// The LDT Digest Bins:  an order-independent hash of the visits written
+	// to the record's LDT, and how many there were (see DigestLdtOperations)
+	public static final String DIGEST_HASH_BIN = "ldtHash";
+	public static final String DIGEST_COUNT_BIN = "ldtCount";
+	
 	// Cache Record TTL Value (Note that currently we must use the Default TTL
 	// that is set on the Namespace -- so this value is not used.
 //	public static final int    CACHE_TTL    = 300;  // 5 minutes (for testing)
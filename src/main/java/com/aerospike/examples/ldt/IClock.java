@@ -0,0 +1,68 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+/**
+ * The Clock that the URL Tracker uses for all of its time-based decisions:
+ * Site Visit date and expire values, clean cycles, emulation run length and
+ * phase timing.
+ * 
+ * By going thru this interface (rather than System.nanoTime() and
+ * System.currentTimeMillis()) we can run a multi-day emulation in a fraction
+ * of the real time, and still have every component agree on what "now" is.
+ * All values handed out by a clock are in VIRTUAL time.
+ */
+
+public interface IClock {
+	
+	/**
+	 * Return the current (virtual) time in milliseconds, on the same base
+	 * as System.currentTimeMillis().
+	 * @return
+	 */
+	public long currentTimeMillis();
+	
+	/**
+	 * Return the current (virtual) time in nanoseconds, on the same base
+	 * as System.nanoTime().
+	 * @return
+	 */
+	public long nanoTime();
+	
+	/**
+	 * Sleep for the given amount of VIRTUAL time.
+	 * @param virtualMillis
+	 * @throws InterruptedException
+	 */
+	public void sleep(long virtualMillis) throws InterruptedException;
+	
+	/**
+	 * Convert an amount of virtual time (in milliseconds) into the amount
+	 * of real (wall clock) time that it takes.
+	 * @param virtualMillis
+	 * @return
+	 */
+	public long toRealMillis(long virtualMillis);
+	
+	/**
+	 * Return the time compression factor: the number of virtual seconds that
+	 * pass for each real second.  A value of 1.0 means real time.
+	 * @return
+	 */
+	public double getCompression();
+
+} // end interface IClock
@@ -1,5 +1,6 @@
 package com.aerospike.examples.ldt;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -53,6 +54,18 @@ public interface ILdtOperations {
 	public int storeSiteObject(SiteVisitEntry sve, String ns, String set,
 			Map<String,Object> siteObjMap);
 	
+	/**
+	 * Store a Site Object into the LDT of a specific record (key).  This is
+	 * the same as the other storeSiteObject(), except that the caller picks
+	 * the record (e.g. a sub-record of a sharded user).
+	 * @param key
+	 * @param bin
+	 * @param siteObjMap
+	 * @return zero ok, -1 Gen error, -2 Duplicate Key (retry), -3 Other AS Error
+	 */
+	public int storeSiteObject(Key key, String bin, 
+			Map<String,Object> siteObjMap);
+	
 	/**
 	 * Load up an entire LDT in the Segmented Cache with a Multi-Write.
 	 * @param sve
@@ -64,11 +77,17 @@ public interface ILdtOperations {
 			List<Map<String,Object>> fullLdtList  );
 
 	/**
-	 * Scan the user's Site Visit List, and return a list of MAP objects.
-	 * @param commandObj
+	 * Scan the user's Site Visit List, and return a list of MAP objects --
+	 * only the visits that have not expired (expire >= minExpire).  The
+	 * expired visits are filtered out on the server.  A minExpire of zero
+	 * returns all of the visits.
+	 * @param ns
+	 * @param set
+	 * @param key
+	 * @param minExpire
 	 */
 	public abstract List<Map<String,Object>> processSiteQuery( String ns,
-			String set, String key);
+			String set, String key, long minExpire);
 
 	/**
 	 * Remove expired site visit entries that are older (smaller time) than
@@ -78,10 +97,30 @@ public interface ILdtOperations {
 	 * @param set
 	 * @param key
 	 * @param expire
+	 * @return the number of entries removed (-1 on error)
 	 */
-	public abstract void processRemoveExpired( String ns, String set, Key key,
+	public abstract int processRemoveExpired( String ns, String set, Key key,
 			long expire);
 	
+	/**
+	 * Delete the user's record, and with it the user's LDT -- along with any
+	 * other record that holds the user's visits (e.g. the shards of a hot
+	 * user), so that a later reload starts from nothing.
+	 * @param key
+	 * @return true if a record was deleted
+	 */
+	public boolean removeUser(Key key) throws AerospikeException;
+	
+	/**
+	 * Find the next visit to expire:  the lowest expire value in the LDT
+	 * that is at or above "from", looking no further than "horizon".
+	 * @param key
+	 * @param from
+	 * @param horizon
+	 * @return that expire value, or horizon if there is none below it
+	 */
+	public long nextExpire(Key key, long from, long horizon);
+	
 	/**
 	 * Scan the user's Site Visit List, and return a list of MAP objects.
 	 * @param ns
@@ -90,5 +129,87 @@ public interface ILdtOperations {
 	 * @return
 	 */
 	public abstract List<Map<String,Object>> scanLDT( Key key) throws AerospikeException;
+	
+	/**
+	 * Scan the user's Site Visit List, and return only the visits that have
+	 * not expired (expire >= minExpire), filtered on the server.  Note that
+	 * the result may then be smaller than ldtSize().
+	 * @param key
+	 * @param minExpire
+	 * @return
+	 */
+	public abstract List<Map<String,Object>> scanLDT( Key key, long minExpire)
+			throws AerospikeException;
+	
+	/**
+	 * The same as processSiteQuery(), but with a server side predicate and
+	 * projection (see VisitFilter):  only the matching visits, and only
+	 * their projected fields, come back.
+	 * @param ns
+	 * @param set
+	 * @param key
+	 * @param minExpire
+	 * @param filter : null for no filter
+	 */
+	public List<Map<String,Object>> processSiteQuery( String ns, String set,
+			String key, long minExpire, VisitFilter filter);
+	
+	/**
+	 * The same as scanLDT(key, minExpire), but with a server side predicate
+	 * and projection (see VisitFilter).
+	 * @param key
+	 * @param minExpire
+	 * @param filter : null for no filter
+	 */
+	public List<Map<String,Object>> scanLDT( Key key, long minExpire, 
+			VisitFilter filter) throws AerospikeException;
+	
+	/**
+	 * Query a window of the user's Site Visits:  the visits with an expire
+	 * value in [fromExpire, toExpire], in expire order.  Since every visit
+	 * gets the same TTL, a window of visit times [t0, t1] is the expire
+	 * window [t0 + TTL, t1 + TTL].  The window and the limit are applied on
+	 * the server, so only the result comes back.
+	 * @param key
+	 * @param fromExpire : zero for no lower bound
+	 * @param toExpire : zero for no upper bound
+	 * @param limit : at most this many (the oldest first); zero for all
+	 * @return the visits (empty when the LDT does not exist)
+	 */
+	public List<Map<String,Object>> queryWindow( Key key, long fromExpire,
+			long toExpire, int limit) throws AerospikeException;
+	
+	/**
+	 * Query the user's most recent (highest expire) "count" Site Visits
+	 * that have not expired (expire >= minExpire), in expire order.  The
+	 * limit is applied on the server.
+	 * @param key
+	 * @param count
+	 * @param minExpire : zero to include the expired visits
+	 * @return the visits (empty when the LDT does not exist)
+	 */
+	public List<Map<String,Object>> queryLastN( Key key, int count, 
+			long minExpire) throws AerospikeException;
+	
+	/**
+	 * Query the Site Visit windows of a batch of users in one set:  the user
+	 * records are read with one batch get, then the windows (as with
+	 * queryWindow()) are fetched with at most "parallelism" queries at a
+	 * time.  Each user's result goes to the callback as soon as it is in
+	 * (see IVisitBatchCallback), and the call returns when the whole batch
+	 * is done.
+	 * @param ns
+	 * @param set
+	 * @param userIDs
+	 * @param fromExpire : zero for no lower bound
+	 * @param toExpire : zero for no upper bound
+	 * @param limit : per user; zero for all
+	 * @param parallelism : max LDT queries at once
+	 * @param callback
+	 * @return the number of users whose query succeeded
+	 */
+	public int batchQuery( String ns, String set, Collection<String> userIDs,
+			long fromExpire, long toExpire, int limit, int parallelism,
+			IVisitBatchCallback callback) throws AerospikeException;
 
 } // end interface ILdtOperations
\ No newline at end of file
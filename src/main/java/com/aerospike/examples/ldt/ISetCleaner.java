@@ -0,0 +1,39 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+/**
+ * A cleaner for the expired Site Visits in one Customer Set.  Each call to
+ * cleanOnce() is one full clean pass over the set;  the CleanScheduler
+ * decides when (and how many at a time) the passes run.
+ */
+public interface ISetCleaner {
+	
+	/**
+	 * The Customer Set that this cleaner works on.
+	 */
+	public String getSetName();
+	
+	/**
+	 * Do one clean pass over the set.
+	 * @return the amount of work the pass found (the expected backlog for
+	 *   the next pass) -- or -1 if the cleaner can't tell.
+	 * @throws Exception
+	 */
+	public long cleanOnce() throws Exception;
+
+} // end interface ISetCleaner
@@ -0,0 +1,43 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.Record;
+
+/**
+ * Receives the results of a batch Site Visit query (see
+ * ILdtOperations.batchQuery()) one user at a time, as each user's query
+ * completes.  The calls for one batch never overlap, so an implementation
+ * doesn't need its own locking -- but they come from the query threads,
+ * not the caller's thread.
+ */
+public interface IVisitBatchCallback {
+	
+	/**
+	 * One user's query is done.
+	 * @param userID
+	 * @param userRecord : the user record (null if there is no such user)
+	 * @param visits : the user's visits in the window (empty if there is no
+	 *   such user, null if the LDT query failed)
+	 */
+	public void userComplete(String userID, Record userRecord,
+			List<Map<String,Object>> visits);
+
+} // end interface IVisitBatchCallback
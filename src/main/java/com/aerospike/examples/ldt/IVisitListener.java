@@ -0,0 +1,32 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+/**
+ * Hears about each Site Visit that was written to a Base LDT (see
+ * VisitListenerLdtOperations).  The calls come from the writing threads,
+ * many at once, so an implementation does its own locking.
+ */
+public interface IVisitListener {
+	
+	/**
+	 * One Site Visit was written to its user's Base LDT.
+	 * @param sve
+	 */
+	public void visitWritten(SiteVisitEntry sve);
+
+} // end interface IVisitListener
@@ -0,0 +1,325 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.Key;
+
+/**
+ * Measure how much the cleaning gets in the way of the foreground traffic.
+ * 
+ * The benchmark runs the regular EmulateUser workload at a FIXED target TPS
+ * (as one stage of the ThroughputRamp does) while it sweeps the cleaning
+ * configuration:  the clean method (1: client, 2: Scan UDF, 3: Scan UDF
+ * with the monitor), the clean interval and the clean concurrency (the Scan
+ * Permits).  ProcessCommands runs the sweep once for each LDT type.  For
+ * each point we record:
+ * (*) foreground p50/p99 of storeSiteObject, and p99 of reloadCache
+ * (*) the expired Site Visits removed per second by the cleaning
+ * (*) the backlog left at the end:  Site Visits that have expired but are
+ *     still in the Base LDTs
+ * 
+ * The removed and backlog numbers come from an audit of the Base LDTs
+ * before and after each point (the Scan UDFs don't report what they
+ * remove):  removed = before + inserted - after - trimmedOnWrite.  With Caps
+ * on the Cache namespace as well, trimmedOnWrite counts those trims too, so
+ * the removed number is then a lower bound.
+ * 
+ * Each point is one row of a tab-separated table (with a header row), so
+ * the results can go straight into a spreadsheet or script.
+ */
+public class InterferenceBenchmark implements IAppConstants {
+	
+	private static final String CLASSNAME = "InterferenceBenchmark";
+	
+	/** Column names of the result table. */
+	public static final String HEADER = "ldtType\tcleanMethod\tintervalSec" +
+			"\tscanPermits\ttargetTps\tachievedTps\tstoreP50Ms\tstoreP99Ms" +
+			"\treloadP99Ms\tremovedPerSec\texpiredBefore\tbacklogAfter" +
+			"\tcleanPasses";
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private DbParameters dbParms;
+	private AppMetrics metrics;
+	private IClock clock;
+	private long customerRecords;
+	private long userRecords;
+	private long timeToLiveNs;
+	private int minThreads;
+	
+	// Sweep Settings
+	private int targetTps = 500;
+	private int pointSeconds = 120;
+	private int[] cleanMethods = {1, 2, 3};
+	private int[] intervals = {60, 300};
+	private int[] permits = {1, DbOps.DEFAULT_SCAN_PERMITS};
+	private String[] ldtTypes = {LLIST, LMAP};
+	
+	/**
+	 * The Base LDT totals at one point in time.
+	 */
+	private static class Audit {
+		long elements; // All Site Visits
+		long expired;  // Site Visits that have expired
+	}
+
+	/**
+	 * Set up the benchmark.
+	 * @param console
+	 * @param client
+	 * @param dbOps
+	 * @param dbParms
+	 * @param customerRecords
+	 * @param userRecords
+	 * @param timeToLiveNs
+	 * @param minThreads
+	 * @param benchSpec : "tps=N,sec=N,methods=1/2/3,intervals=S/S,
+	 *   permits=N/N,types=LLIST/LMAP" (any of them may be left out)
+	 */
+	public InterferenceBenchmark(Console console, AerospikeClient client, 
+			DbOps dbOps, DbParameters dbParms, long customerRecords, 
+			long userRecords, long timeToLiveNs, int minThreads, String benchSpec)
+	{
+		this.console = console;
+		this.client = client;
+		this.dbOps = dbOps;
+		this.dbParms = dbParms;
+		this.metrics = dbOps.getMetrics();
+		this.clock = dbOps.getClock();
+		this.customerRecords = customerRecords;
+		this.userRecords = userRecords;
+		this.timeToLiveNs = timeToLiveNs;
+		this.minThreads = Math.max(1, minThreads);
+		
+		for (String item : benchSpec.split(",")) {
+			String[] kv = item.split("=", 2);
+			if (kv.length != 2) {
+				continue;
+			}
+			String name = kv[0].trim();
+			String value = kv[1].trim();
+			if ("tps".equalsIgnoreCase(name)) {
+				targetTps = Integer.parseInt(value);
+			} else if ("sec".equalsIgnoreCase(name)) {
+				pointSeconds = Integer.parseInt(value);
+			} else if ("methods".equalsIgnoreCase(name)) {
+				cleanMethods = parseInts(value);
+			} else if ("intervals".equalsIgnoreCase(name)) {
+				intervals = parseInts(value);
+			} else if ("permits".equalsIgnoreCase(name)) {
+				permits = parseInts(value);
+			} else if ("types".equalsIgnoreCase(name)) {
+				ldtTypes = value.toUpperCase().split("/");
+			} else {
+				console.warn("<%s:%s> Unknown Benchmark Setting(%s)", 
+						CLASSNAME, "InterferenceBenchmark()", name);
+			}
+		}
+	}
+	
+	private static int[] parseInts(String value) {
+		String[] parts = value.split("/");
+		int[] result = new int[parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			result[i] = Integer.parseInt(parts[i].trim());
+		}
+		return result;
+	}
+	
+	public String[] getLdtTypes() {
+		return ldtTypes;
+	}
+	
+	/**
+	 * Count the Site Visits (and the expired ones) in all of the Base LDTs.
+	 * @param nowNs : what counts as expired
+	 * @return
+	 */
+	private Audit audit(long nowNs) {
+		Audit audit = new Audit();
+		ILdtOperations ldtOps = dbOps.getLdtOps();
+		String ns = dbParms.baseNamespace;
+		for (int c = 0; c < customerRecords; c++) {
+			String set = new CustomerRecord(console, c).getCustomerID();
+			List<Key> keyList;
+			try {
+				keyList = new ScanKeySet(console).runScan(client, ns, set);
+			} catch (Exception e) {
+				console.error("<%s:%s> Audit Scan Failed: Set(%s) Error(%s)",
+						CLASSNAME, "audit()", set, e.toString());
+				continue;
+			}
+			for (Key key : keyList) {
+				int size = ldtOps.ldtSize(key, dbOps.ldtBinName);
+				List<?> live = ldtOps.scanLDT(key, nowNs);
+				int liveCount = (live == null) ? 0 : live.size();
+				audit.elements += size;
+				audit.expired += Math.max(0, size - liveCount);
+			}
+		}
+		return audit;
+	} // end audit()
+	
+	/**
+	 * Run one point:  the fixed foreground load, and the cleaning with the
+	 * given settings, for the point time.
+	 * @param ldtType
+	 * @param cleanMethod
+	 * @param intervalSec
+	 * @param scanPermits
+	 * @return the result row
+	 */
+	private String runPoint(String ldtType, int cleanMethod, int intervalSec,
+			int scanPermits) 
+	{
+		final String meth = "runPoint()";
+		int threads = Math.max(minThreads, (targetTps + 
+				ThroughputRamp.MAX_THREAD_TPS - 1) / ThroughputRamp.MAX_THREAD_TPS);
+		int threadTPS = Math.max(1, (targetTps + threads - 1) / threads);
+		
+		console.info("<%s:%s> Point Start: Type(%s) Method(%d) Interval(%d) Permits(%d) Threads(%d)",
+				CLASSNAME, meth, ldtType, cleanMethod, intervalSec, scanPermits, threads);
+		dbOps.setScanPermits(scanPermits);
+		Audit before = audit(clock.nanoTime());
+		
+		LatencyHistogram storeHist = metrics.histogram(AppMetrics.STORE_SITE_OBJECT);
+		LatencyHistogram reloadHist = metrics.histogram(AppMetrics.RELOAD_CACHE);
+		long[] storeBefore = storeHist.snapshot();
+		long[] reloadBefore = reloadHist.snapshot();
+		long opsBefore = metrics.getCount(AppMetrics.USER_OPS);
+		long errorsBefore = metrics.getCount(AppMetrics.USER_ERRORS);
+		long trimmedBefore = metrics.getCount(CappedLdtOperations.TRIMMED_ON_WRITE);
+		long passesBefore = metrics.getCount(CleanScheduler.CLEAN_PASSES) 
+				+ metrics.getCount(UdfCleanMonitor.UDF_SETS_DONE);
+		long startNs = System.nanoTime();
+		
+		// The foreground:  the regular User Emulation threads.
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<EmulateUser> users = new ArrayList<EmulateUser>();
+		for (int t = 0; t < threads; t++) {
+			EmulateUser user = new EmulateUser(console, client, dbOps, dbParms,
+					threadTPS, 1, customerRecords, userRecords, t, timeToLiveNs);
+			users.add(user);
+			executor.execute(user);
+		}
+		
+		// The background:  the cleaning, with this point's settings.
+		long runSeconds = (long) Math.ceil(pointSeconds * clock.getCompression());
+		CleanScheduler scheduler = null;
+		UdfCleanMonitor monitor = null;
+		if (cleanMethod == 3) {
+			monitor = new UdfCleanMonitor(console, dbOps, intervalSec, runSeconds);
+			for (int c = 0; c < customerRecords; c++) {
+				monitor.addCleaner(new CleanLdtDataWithUDF(console, client, 
+						dbOps, dbParms, c, intervalSec, runSeconds, c));
+			}
+			monitor.start();
+		} else {
+			scheduler = new CleanScheduler(console, dbOps, scanPermits, 
+					intervalSec, runSeconds);
+			for (int c = 0; c < customerRecords; c++) {
+				if (cleanMethod == 1) {
+					scheduler.addCleaner(new CleanLdtDataFromClient(console, 
+							client, dbOps, dbParms.baseNamespace, c, intervalSec,
+							runSeconds, c));
+				} else {
+					scheduler.addCleaner(new CleanLdtDataWithUDF(console, client,
+							dbOps, dbParms, c, intervalSec, runSeconds, c));
+				}
+			}
+			scheduler.start();
+		}
+		
+		try {
+			Thread.sleep(pointSeconds * 1000L);
+		} catch (InterruptedException ie) {
+			console.warn("<%s:%s> Point Interrupted", CLASSNAME, meth);
+		}
+		
+		// Foreground measurements cover exactly the point window.
+		long elapsedNs = System.nanoTime() - startNs;
+		long[] storeCounts = LatencyHistogram.difference(storeHist.snapshot(), storeBefore);
+		long[] reloadCounts = LatencyHistogram.difference(reloadHist.snapshot(), reloadBefore);
+		
+		for (EmulateUser user : users) {
+			user.requestStop();
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(pointSeconds + 120L, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			console.warn("<%s:%s> Point Drain Interrupted", CLASSNAME, meth);
+		}
+		if (scheduler != null) {
+			scheduler.stop(false);
+		}
+		if (monitor != null) {
+			monitor.stop(false);
+		}
+		
+		// Everything is quiet:  now count what's left.
+		long ops = metrics.getCount(AppMetrics.USER_OPS) - opsBefore;
+		long errors = metrics.getCount(AppMetrics.USER_ERRORS) - errorsBefore;
+		long trimmed = metrics.getCount(CappedLdtOperations.TRIMMED_ON_WRITE) 
+				- trimmedBefore;
+		long passes = metrics.getCount(CleanScheduler.CLEAN_PASSES) 
+				+ metrics.getCount(UdfCleanMonitor.UDF_SETS_DONE) - passesBefore;
+		Audit after = audit(clock.nanoTime());
+		long inserted = Math.max(0L, ops - errors);
+		long removed = Math.max(0L, 
+				before.elements + inserted - after.elements - trimmed);
+		double elapsedSec = elapsedNs / 1000000000.0;
+		
+		String row = String.format("%s\t%d\t%d\t%d\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%.1f\t%d\t%d\t%d",
+				ldtType, cleanMethod, intervalSec, scanPermits, targetTps,
+				ops / elapsedSec,
+				LatencyHistogram.percentileMicros(storeCounts, 50.0) / 1000.0,
+				LatencyHistogram.percentileMicros(storeCounts, 99.0) / 1000.0,
+				LatencyHistogram.percentileMicros(reloadCounts, 99.0) / 1000.0,
+				removed / elapsedSec, before.expired, after.expired, passes);
+		console.info("<%s:%s> Point Done: %s", CLASSNAME, meth, row);
+		return row;
+	} // end runPoint()
+	
+	/**
+	 * Run every clean method/interval/permits point for the current LDT type
+	 * (the caller sets up the data for each type), writing one row per point.
+	 * @param ldtType
+	 * @param out
+	 */
+	public void runSweep(String ldtType, PrintWriter out) {
+		for (int cleanMethod : cleanMethods) {
+			for (int intervalSec : intervals) {
+				for (int scanPermits : permits) {
+					out.println(runPoint(ldtType, cleanMethod, intervalSec, 
+							scanPermits));
+					out.flush();
+				}
+			}
+		}
+	} // end runSweep()
+
+} // end class InterferenceBenchmark
@@ -1,5 +1,7 @@
 package com.aerospike.examples.ldt;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -22,6 +24,8 @@ import com.aerospike.client.policy.WritePolicy;
 public class LListOperations implements ILdtOperations, IAppConstants {
 	private AerospikeClient client;
 	private Policy ldtPolicy;
+	private LdtQueryHelper queryHelper;
+	private WritePolicy deletePolicy;
 
 	protected Console console;
 	
@@ -41,7 +45,10 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 
 		this.client = client;		
 		this.ldtPolicy = new Policy();
+		this.deletePolicy = new WritePolicy();
 		this.console = console;
+		this.queryHelper = new LdtQueryHelper(client, this.ldtPolicy, console,
+				CM_LLIST_MOD, this);
 	}
 	
 	public void setup() {
@@ -123,21 +130,38 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 		
 		// The Customer ID (custID) is the Aerospike SET name, and userID is the
 		// key for the record (the user data and the site visit list).
-		String userID = sve.getUserID();
-
+		Key userKey = new Key(namespace, set, sve.getUserID());
+		return storeSiteObject(userKey, sve.getLdtBinName(), siteObjMap);
+	} // end storeSiteObject()
+	
+	/**
+	 * Enter a new Site Visit object into the LLIST of the given record.
+	 * @param userKey: the record that holds the LDT
+	 * @param siteListBin: the LDT Bin
+	 * @param siteObjMap: The physical object to store
+	 * @return the status:  
+	 *   zero ok, 
+	 *   -1 Gen error, 
+	 *   -2 Duplicate Key (retry)
+	 *   -3 Other Aerospike Error
+	 */
+	public int storeSiteObject(Key userKey, String siteListBin,
+			Map<String,Object> siteObjMap  ) 
+	{
+		final String meth = "storeObject()";
 		try {		
-
-			Key userKey = new Key(namespace, set, userID);
-			String siteListBin = sve.getLdtBinName();
-
-			// Initialize Large LIST operator.
-			com.aerospike.client.large.LargeList llist = 
-					client.getLargeList(this.ldtPolicy, userKey, siteListBin, 
-							CM_LLIST_MOD);
-
-			// Package up the Map Object and add it to the LLIST.  Note that the
-			// "Value.get()" operation is NOT used.  Instead it's Value.getAsMap().
-			llist.add(Value.getAsMap(siteObjMap));
+			// Package up the Map Object and add it to the LLIST with the
+			// "add_trim" Record UDF (no cap, no trim), so that the same call
+			// keeps the record's Expire Watermark (see CleanLdtDataFromClient).
+			// Note that the "Value.get()" operation is NOT used.  Instead it's
+			// Value.getAsMap().
+			Object result = client.execute(this.ldtPolicy, userKey, CM_LLIST_MOD,
+					LDT_ADD_TRIM, Value.get(siteListBin), Value.getAsMap(siteObjMap),
+					Value.get(0), Value.get(0), Value.get(0));
+			if (result instanceof Number && ((Number) result).intValue() == -2) {
+				// Unique key collision:  retry (and don't complain)
+				return( -2 );
+			}
 
 		} catch (AerospikeException ae) {
 			if (ae.getResultCode() == AS_ERR_UNIQUE) {
@@ -168,10 +192,12 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 			List<Map<String,Object>> fullLdtList  ) 
 	{
 		final String meth = "loadFullLDT()";
+		// The key may be a digest-only key (e.g. from a scan or a Snapshot).
 		console.debug("ENTER<%s:%s> NS(%s) Set(%s) Key(%s)", CLASSNAME,
-				meth, key.namespace, key.setName, key.userKey.toString());
-		
-		console.debug("DEBUG: << FULL LDT >> " + fullLdtList.toString());
+				meth, key.namespace, key.setName, key.userKey);
+		if (console.debugIsOn()) {
+			console.debug("DEBUG: << FULL LDT >> " + fullLdtList.toString());
+		}
 
 		try {		
 			String siteListBin = sve.getLdtBinName();
@@ -180,15 +206,37 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 			com.aerospike.client.large.LargeList llist = 
 				client.getLargeList(this.ldtPolicy, key, siteListBin, CM_LLIST_MOD);
 
-			// For now -- add the elements individually -- but when all other
-			// things are stable, switch to using a "add_all()" that writes
-			// the entire scanned list in one shot.
+			// Write the entire list in one shot (one multi-element add).  An
+			// element that is already there (a concurrent writer got it in
+			// ahead of us) fails the whole add -- in that case, fall back to
+			// adding the elements individually, skipping the ones that are
+			// already there.
+			List<Value> values = new ArrayList<Value>(fullLdtList.size());
 			for (Map<String,Object> mapItem : fullLdtList ){
-				llist.add( Value.getAsMap(mapItem));
+				values.add( Value.getAsMap(mapItem));
+			}
+			try {
+				llist.add(values);
+			} catch (AerospikeException ae) {
+				if (ae.getResultCode() != AS_ERR_UNIQUE) {
+					throw ae;
+				}
+				for (Map<String,Object> mapItem : fullLdtList ){
+					try {
+						llist.add( Value.getAsMap(mapItem));
+					} catch (AerospikeException ae2) {
+						if (ae2.getResultCode() != AS_ERR_UNIQUE) {
+							throw ae2;
+						}
+						console.debug("<%s:%s> Skip Duplicate Element(%s)",
+								CLASSNAME, meth, mapItem.get("key"));
+					}
+				}
 			}
-			// When we're ready -- switch this to a write_all version, rather
-			// than the individual element write (above).
-//			llist.add(fullLdtList);
+			
+			// Keep the Expire Watermark a lower bound (and the record in the
+			// Watermark Index).
+			queryHelper.lowerWatermark(key, fullLdtList);
 
 		} catch (AerospikeException ae) {
 
@@ -230,16 +278,15 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 
 
 	/**
-	 * Scan the user's Site Visit List.  Get back a List of Maps that we
-	 * can peruse and print.   Note, although this is currently similar to
-	 * scanLDT(), the intention is that this method may evolve to do more
-	 * complex actions, including filtering.
-	 * @param commandObj
-	 * @param params
+	 * Scan the user's Site Visit List.  Get back a List of Maps (of the
+	 * visits that have not yet expired) that we can peruse and print.
+	 * @param ns
+	 * @param set
+	 * @param key
+	 * @param minExpire
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Map<String,Object>> 
-	processSiteQuery( String ns, String set, String key ) 
+	processSiteQuery( String ns, String set, String key, long minExpire ) 
 	{
 		final String meth = "processSiteQuery()";
 		console.debug("ENTER<%s:%s> NS(%s), Set(%s) Key(%s)",
@@ -248,21 +295,7 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 		List<Map<String,Object>> scanList = null;
 
 		try {
-			Key userKey = new Key(ns, set, key);
-			String siteListBin = LDT_BIN;
-
-			// Initialize large List operator.
-			com.aerospike.client.large.LargeList llist = 
-					client.getLargeList(this.ldtPolicy, userKey, siteListBin, null);
-
-			// Perform a Scan on all of the Site Visit Objects
-			scanList =  (List<Map<String,Object>>) llist.scan();
-			if( console.debugIsOn() ) {
-				for (Map<String,Object> mapItem : scanList) {
-					console.debug("ScanList Map Item" + mapItem );
-				}
-			}
-
+			scanList = scanLDT(new Key(ns, set, key), minExpire);
 		} catch (Exception e){
 			e.printStackTrace();
 			console.warn("<%s:%s> Site Query Exception(%s)",
@@ -316,6 +349,72 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 		return scanList;
 	} // end scanLDT()
 	
+	/**
+	 * Scan the part of the user's Site Visit List that has not expired.
+	 * Since the LLIST is ordered by expire time, this is just a Range Query
+	 * from minExpire to the end (MAX), so the expired visits never leave
+	 * the server.
+	 * @param key
+	 * @param minExpire
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Map<String,Object>> scanLDT( Key key, long minExpire ) 
+	throws AerospikeException
+	{
+		final String meth = "scanLDT()";
+		if (minExpire <= 0) {
+			return scanLDT(key);
+		}
+		List<Map<String,Object>> scanList = null;
+		try {
+			com.aerospike.client.large.LargeList llist = 
+					client.getLargeList(this.ldtPolicy, key, LDT_BIN, null);
+			scanList = (List<Map<String,Object>>) 
+					llist.range(Value.get(minExpire), new Value.NullValue());
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> Aerospike Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			throw new AerospikeException(ae);
+		}
+		return scanList;
+	} // end scanLDT()
+	
+	/**
+	 * Find the next visit to expire with a Range Query from "from" to
+	 * "horizon".  The LLIST is in expire order, so the first item (if any)
+	 * is the one we want.
+	 * @param key
+	 * @param from
+	 * @param horizon
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public long nextExpire(Key key, long from, long horizon) {
+		final String meth = "nextExpire()";
+		try {
+			com.aerospike.client.large.LargeList llist = 
+					client.getLargeList(this.ldtPolicy, key, LDT_BIN, null);
+			List<Map<String,Object>> rangeList = (List<Map<String,Object>>) 
+					llist.range(Value.get(from), Value.get(horizon));
+			if (rangeList != null && rangeList.size() > 0) {
+				return ((Number) rangeList.get(0).get("key")).longValue();
+			}
+		} catch (AerospikeException ae) {
+			console.debug("<%s:%s> Aerospike Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+		}
+		return horizon;
+	} // end nextExpire()
+	
+	/**
+	 * Delete the user's record (the LDT goes with it).
+	 * @param key
+	 * @return true if the record was there
+	 */
+	public boolean removeUser(Key key) throws AerospikeException {
+		return client.delete(this.deletePolicy, key);
+	}
+	
 	/**
 	 * Use the Range Query capability of LLIST to find all values between
 	 * MIN and Expire.  Then use that result list (if any qualify) as the list
@@ -326,10 +425,11 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 	 * @param commandObj
 	 * @param params
 	 */
-	public void processRemoveExpired( String ns, String set, Key key, long expire ) {
+	public int processRemoveExpired( String ns, String set, Key key, long expire ) {
 		final String meth = "processRemoveExpired()";
 		console.debug("ENTER<%s:%s>", CLASSNAME, meth);
 		List<Map<String,Object>> scanList = null;
+		int removed = 0;
 
 		try {
 			String ldtBin = LDT_BIN;
@@ -356,6 +456,7 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 				for (Map<String,Object> mapItem : rangeList) {
 					console.debug("Removing Map Item(" + mapItem + ") From the LLIST." );
 					llist.remove(Value.getAsMap(mapItem));
+					removed++;
 				}
 			} catch (AerospikeException ae) {
 				// Ignore Aerospike Exception unless debug mode
@@ -383,8 +484,107 @@ public class LListOperations implements ILdtOperations, IAppConstants {
 		} catch (Exception e){
 			e.printStackTrace();
 			System.out.println("Process Remove Expired Exception: " + e);
+			return( -1 );
 		}
 		console.debug("Done with Remove Expired");
+		return removed;
 	} // processRemoveExpired()
 
+	
+	/**
+	 * Query the user's Site Visits with a server side predicate and
+	 * projection (see VisitFilter).
+	 * @param ns
+	 * @param set
+	 * @param key
+	 * @param minExpire
+	 * @param filter
+	 */
+	public List<Map<String,Object>> processSiteQuery( String ns, String set,
+			String key, long minExpire, VisitFilter filter ) 
+	{
+		final String meth = "processSiteQuery()";
+		List<Map<String,Object>> scanList = null;
+		try {
+			scanList = scanLDT(new Key(ns, set, key), minExpire, filter);
+		} catch (Exception e){
+			console.warn("<%s:%s> Site Query Exception(%s)",
+					CLASSNAME, meth, e.toString());
+		}
+		return scanList;
+	} // end processSiteQuery()
+	
+	/**
+	 * Scan the user's Site Visits thru the "visit_filter" LDT filter, so
+	 * that only the matching visits (and only their projected fields) leave
+	 * the server.  With no filter, this is scanLDT(key, minExpire).
+	 * @param key
+	 * @param minExpire
+	 * @param filter
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Map<String,Object>> scanLDT( Key key, long minExpire,
+			VisitFilter filter ) throws AerospikeException
+	{
+		final String meth = "scanLDT()";
+		if (filter == null) {
+			return scanLDT(key, minExpire);
+		}
+		List<Map<String,Object>> scanList = null;
+		try {
+			com.aerospike.client.large.LargeList llist = 
+					client.getLargeList(this.ldtPolicy, key, LDT_BIN, CM_LLIST_MOD);
+			scanList = (List<Map<String,Object>>) llist.filter(LDT_VISIT_FILTER,
+					Value.getAsMap(filter.toSpec(minExpire)));
+			if (scanList == null) {
+				scanList = new ArrayList<Map<String,Object>>();
+			}
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> Aerospike Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			throw ae;
+		}
+		return scanList;
+	} // end scanLDT()
+	
+	/**
+	 * Query a window of the user's Site Visits (expire values in [fromExpire,
+	 * toExpire]) with the "window" Record UDF.
+	 * The window is a Range Query on the server (the LLIST is in expire
+	 * order), and only the first "limit" items come back.
+	 * @param key
+	 * @param fromExpire : zero for no lower bound
+	 * @param toExpire : zero for no upper bound
+	 * @param limit : zero for all
+	 */
+	public List<Map<String,Object>> queryWindow( Key key, long fromExpire,
+			long toExpire, int limit ) throws AerospikeException
+	{
+		return queryHelper.queryWindow(key, fromExpire, toExpire, limit);
+	} // end queryWindow()
+	
+	/**
+	 * Query the user's "count" most recent live Site Visits with the
+	 * "last_n" Record UDF.
+	 * @param key
+	 * @param count
+	 * @param minExpire : zero to include the expired visits
+	 */
+	public List<Map<String,Object>> queryLastN( Key key, int count,
+			long minExpire ) throws AerospikeException
+	{
+		return queryHelper.queryLastN(key, count, minExpire);
+	} // end queryLastN()
+	
+	/**
+	 * Query the windows of a batch of users (see BatchVisitQuery).
+	 */
+	public int batchQuery( String ns, String set, Collection<String> userIDs,
+			long fromExpire, long toExpire, int limit, int parallelism,
+			IVisitBatchCallback callback ) throws AerospikeException
+	{
+		return queryHelper.batchQuery(ns, set, userIDs, fromExpire, toExpire, 
+				limit, parallelism, callback);
+	} // end batchQuery()
+
 } // end class LListOperations
\ No newline at end of file
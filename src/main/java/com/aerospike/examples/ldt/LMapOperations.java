@@ -1,6 +1,7 @@
 package com.aerospike.examples.ldt;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -33,6 +34,8 @@ import com.aerospike.client.policy.WritePolicy;
 public class LMapOperations implements ILdtOperations, IAppConstants {
 	private AerospikeClient client;
 	private Policy ldtPolicy;
+	private LdtQueryHelper queryHelper;
+	private WritePolicy deletePolicy;
 	
 	protected Console console;
 	
@@ -50,7 +53,10 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 
 		this.client = client;	
 		this.ldtPolicy = new Policy();
+		this.deletePolicy = new WritePolicy();
 		this.console = console;
+		this.queryHelper = new LdtQueryHelper(client, this.ldtPolicy, console,
+				CM_LMAP_MOD, this);
 	} // end LMapOperations() constructor
 	
 	/**
@@ -135,21 +141,39 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 
 		// The Customer ID (custID) is the Aerospike SET name, and userID is the
 		// key for the record (the user data and the site visit list).
-		String userID = (String) sve.getUserID();
-		
+		Key userKey = new Key(namespace, set, sve.getUserID());
+		return storeSiteObject(userKey, LDT_BIN, siteObjMap);
+	} // end storeSiteObject()
+	
+	/**
+	 * Enter a new Site Visit object into the LMAP of the given record.  The
+	 * map key is the Expire Time (the "key" field of the Site Object).
+	 * @param userKey: the record that holds the LDT
+	 * @param ldtBin: the LDT Bin
+	 * @param siteObjMap: The physical object to store
+	 * @return the status:  
+	 *   zero ok, 
+	 *   -1 Gen error, 
+	 *   -2 Duplicate Key (retry)
+	 *   -3 Other Aerospike Error
+	 */
+	public int storeSiteObject(Key userKey, String ldtBin,
+			Map<String,Object> siteObjMap  ) 
+	{
+		final String meth = "storeSiteObject()";
 		try {
-
-			Key userKey = new Key(namespace, set, userID);
-			String ldtBin = LDT_BIN;
-
-			// Initialize large MAP operator.
-			com.aerospike.client.large.LargeMap lmap = 
-					client.getLargeMap(this.ldtPolicy, userKey, ldtBin,
-							CM_LMAP_MOD);
-
-			// Package up the Map Object and add it to the LMAP.  Note that the
-			// "Value.get()" operation is NOT used.  Instead it's Value.getAsMap().
-			lmap.put(Value.get(sve.getExpire()), Value.getAsMap(siteObjMap));			
+			// Package up the Map Object and add it to the LMAP with the
+			// "add_trim" Record UDF (no cap, no trim), so that the same call
+			// keeps the record's Expire Watermark (see CleanLdtDataFromClient).
+			// Note that the "Value.get()" operation is NOT used.  Instead it's
+			// Value.getAsMap().
+			Object result = client.execute(this.ldtPolicy, userKey, CM_LMAP_MOD,
+					LDT_ADD_TRIM, Value.get(ldtBin), Value.getAsMap(siteObjMap),
+					Value.get(0), Value.get(0), Value.get(0));
+			if (result instanceof Number && ((Number) result).intValue() == -2) {
+				// Unique key collision:  retry (and don't complain)
+				return( -2 );
+			}
 
 		} catch (AerospikeException ae) {
 			if (ae.getResultCode() == AS_ERR_UNIQUE) {
@@ -179,15 +203,18 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 			List<Map<String,Object>> fullLdtList  ) 
 	{
 		final String meth = "loadFullLDT()";
+		// The key may be a digest-only key (e.g. from a scan or a Snapshot).
 		console.debug("ENTER<%s:%s> NS(%s) Set(%s) Key(%s)", CLASSNAME,
-				meth, key.namespace, key.setName, key.userKey.toString());
+				meth, key.namespace, key.setName, key.userKey);
 		long expireTime;
 		
 		if (fullLdtList == null) {
 			console.info("DEBUG: << FULL LDT LIST IS NULL >> !!!");
 			return( -1 );
 		}
-		console.debug("DEBUG: << FULL LDT >> " + fullLdtList.toString());
+		if (console.debugIsOn()) {
+			console.debug("DEBUG: << FULL LDT >> " + fullLdtList.toString());
+		}
 		
 		try {		
 			String siteListBin = sve.getLdtBinName();
@@ -209,6 +236,10 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 			}
 			// Do a "one shot" write of the full map.
 			lmap.put(fullLdtMap);
+			
+			// Keep the Expire Watermark a lower bound (and the record in the
+			// Watermark Index).
+			queryHelper.lowerWatermark(key, fullLdtList);
 
 		} catch (AerospikeException ae) {
 			console.debug("DB Error:  Retry");
@@ -245,16 +276,15 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 
 
 	/**
-	 * Scan the user's Site Visit List.  Get back a List of Maps that we
-	 * can peruse and print.  Note, although this is currently similar to
-	 * scanLDT(), the intention is that this method may evolve to do more
-	 * complex actions, including filtering.
-	 * @param commandObj
-	 * @param params
+	 * Scan the user's Site Visit List.  Get back a List of Maps (of the
+	 * visits that have not yet expired) that we can peruse and print.
+	 * @param ns
+	 * @param set
+	 * @param key
+	 * @param minExpire
 	 */
-	@SuppressWarnings("unchecked")
 	public List<Map<String,Object>> 
-	processSiteQuery( String ns, String set, String key ) 
+	processSiteQuery( String ns, String set, String key, long minExpire ) 
 	{
 		console.debug("ENTER ProcessSiteQuery");
 		
@@ -263,23 +293,7 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 		List<Map<String,Object>> resultList = null;
 
 		try {
-			Key userKey = new Key(ns, set, key);
-			String siteMapBin = LDT_BIN;
-
-			// Initialize large map operator.
-			com.aerospike.client.large.LargeMap lmap = 
-					client.getLargeMap(this.ldtPolicy, userKey, siteMapBin, null);
-
-			// Perform a Scan on all of the Site Visit Objects.  We get back
-			// a large map, which we'll iterate thru.
-			Map<Long, Map<String,Object>> mapResult =  
-					(Map<Long, Map<String,Object>>) lmap.scan();
-			for (Entry<Long,Map<String,Object>> entry : mapResult.entrySet() ){
-				Long expireValue = (Long) entry.getKey();
-				Map<String,Object> siteObj = (Map<String,Object>) entry.getValue();
-				console.debug("Site Entry: Expire(%d); SiteObj(%s)", expireValue, siteObj.toString());		
-			}
-
+			resultList = scanLDT(new Key(ns, set, key), minExpire);
 		} catch (Exception e){
 			e.printStackTrace();
 			console.warn("Exception: " + e);
@@ -339,6 +353,67 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 		return resultList;
 	} // end scanLDT()
 	
+	/**
+	 * Scan the part of the user's Site Visit Map that has not expired.  The
+	 * LMAP has no order, so we use the "live_filter" function (in the LMAP
+	 * Create Module) to drop the expired visits on the server.
+	 * @param key
+	 * @param minExpire
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Map<String,Object>> scanLDT( Key key, long minExpire ) 
+	throws AerospikeException 
+	{
+		if (minExpire <= 0) {
+			return scanLDT(key);
+		}
+		List<Map<String,Object>> resultList = new ArrayList<Map<String,Object>>();
+		try {
+			com.aerospike.client.large.LargeMap lmap = 
+					client.getLargeMap(this.ldtPolicy, key, LDT_BIN, CM_LMAP_MOD);
+			Map<Long, Map<String,Object>> mapResult =  
+					(Map<Long, Map<String,Object>>) 
+					lmap.filter(LDT_LIVE_FILTER, Value.get(minExpire));
+			if (mapResult != null) {
+				resultList.addAll(mapResult.values());
+			}
+		} catch (AerospikeException ae) {
+			throw new AerospikeException(ae);
+		}
+		return resultList;
+	} // end scanLDT()
+	
+	
+	/**
+	 * Find the next visit to expire.  The LMAP has no order, so we take the
+	 * lowest expire value from the live (filtered) scan.
+	 * @param key
+	 * @param from
+	 * @param horizon
+	 * @return
+	 */
+	public long nextExpire(Key key, long from, long horizon) {
+		long next = horizon;
+		try {
+			List<Map<String,Object>> liveList = scanLDT(key, from);
+			for (Map<String,Object> siteObj : liveList) {
+				next = Math.min(next, ((Number) siteObj.get("key")).longValue());
+			}
+		} catch (AerospikeException ae) {
+			console.debug("nextExpire: Aerospike Error Code(%d) Error Message(%s)",
+					ae.getResultCode(), ae.getMessage());
+		}
+		return next;
+	} // end nextExpire()
+	
+	/**
+	 * Delete the user's record (the LDT goes with it).
+	 * @param key
+	 * @return true if the record was there
+	 */
+	public boolean removeUser(Key key) throws AerospikeException {
+		return client.delete(this.deletePolicy, key);
+	}
 	
 	/**
 	 * Scan the LMAP and retrieve those entries that are beyond the expire range.
@@ -346,8 +421,9 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 	 * @param commandObj
 	 * @param params
 	 */
-	public void processRemoveExpired(  String ns, String set, Key key, long expire ) {
+	public int processRemoveExpired(  String ns, String set, Key key, long expire ) {
 		console.debug("ENTER ProcessRemoveExpired");
+		int removed = 0;
 
 		try {
 			String ldtBin = LDT_BIN;
@@ -360,47 +436,130 @@ public class LMapOperations implements ILdtOperations, IAppConstants {
 			Map<Long,Map<String,Object>> expireMap =  
 					(Map<Long,Map<String,Object>>) lmap.scan();
 			
-			// Process the resultMap that comes back ("expireMap"), and show
-			// what's in there.  ALSO, we remove those items that qualify for
-			// "expiration".
+			// Process the resultMap that comes back ("expireMap"), and 
+			// remove those items that qualify for "expiration" (the map key
+			// is the expire time).
 			Value expireValue;
 			for (Entry<Long,Map<String,Object>> entry : expireMap.entrySet() ){
-				// First, print the values
 				Long readExpireLong = (Long) entry.getKey();
-				Map<String,Object> siteObj = (Map<String,Object>) entry.getValue();
-				console.debug("Site Entry: Expire(%l); SiteObj(%s)", 
-						readExpireLong, siteObj.toString());	
+				if (readExpireLong >= expire) {
+					continue;
+				}
+				console.debug("Remove Site Entry: Expire(%d); SiteObj(%s)", 
+						readExpireLong, entry.getValue());	
 				
-				// Second, remove those values from the LMAP.
 				expireValue = Value.get( readExpireLong );
 				lmap.remove( expireValue );
-			}
-
-			System.out.println("Checking Results after a REMOVE EXPIRE");
-			// Validate Results with a Scan:
-			
-			// Perform a Scan on all of the Site Visit Objects.  We get back
-			// a large map, which we'll iterate thru.
-			Map<Long, Map<String,Object>> mapResult =  
-					(Map<Long, Map<String,Object>>) lmap.scan();
-			if ( mapResult.size() > 0 ) {
-				console.debug("Showing Scan Result");
-				for (Entry<Long,Map<String,Object>> entry : mapResult.entrySet() ){
-					expire = (Long) entry.getKey();
-					Map<String,Object> siteObj = (Map<String,Object>) entry.getValue();
-					console.debug("Site Entry: Expire(%l); SiteObj(%s)", 
-							expire, siteObj.toString());		
-				}
-			} else {
-				console.debug("LMAP Scan Result is EMPTY");
+				removed++;
 			}
 
 		} catch (Exception e){
 			e.printStackTrace();
 			System.out.println("Exception: " + e);
+			return( -1 );
 		}
 		console.debug("Done with Remove Expired");
+		return removed;
 	} // processRemoveExpired()
 
 
+	
+	/**
+	 * Query the user's Site Visits with a server side predicate and
+	 * projection (see VisitFilter).
+	 * @param ns
+	 * @param set
+	 * @param key
+	 * @param minExpire
+	 * @param filter
+	 */
+	public List<Map<String,Object>> processSiteQuery( String ns, String set,
+			String key, long minExpire, VisitFilter filter ) 
+	{
+		final String meth = "processSiteQuery()";
+		List<Map<String,Object>> scanList = null;
+		try {
+			scanList = scanLDT(new Key(ns, set, key), minExpire, filter);
+		} catch (Exception e){
+			console.warn("<%s:%s> Site Query Exception(%s)",
+					CLASSNAME, meth, e.toString());
+		}
+		return scanList;
+	} // end processSiteQuery()
+	
+	/**
+	 * Scan the user's Site Visits thru the "visit_filter" LDT filter, so
+	 * that only the matching visits (and only their projected fields) leave
+	 * the server.  With no filter, this is scanLDT(key, minExpire).
+	 * @param key
+	 * @param minExpire
+	 * @param filter
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Map<String,Object>> scanLDT( Key key, long minExpire,
+			VisitFilter filter ) throws AerospikeException
+	{
+		final String meth = "scanLDT()";
+		if (filter == null) {
+			return scanLDT(key, minExpire);
+		}
+		List<Map<String,Object>> scanList = null;
+		try {
+			com.aerospike.client.large.LargeMap lmap = 
+					client.getLargeMap(this.ldtPolicy, key, LDT_BIN, CM_LMAP_MOD);
+			Map<Long, Map<String,Object>> mapResult =  
+					(Map<Long, Map<String,Object>>) lmap.filter(LDT_VISIT_FILTER,
+					Value.getAsMap(filter.toSpec(minExpire)));
+			scanList = new ArrayList<Map<String,Object>>();
+			if (mapResult != null) {
+				scanList.addAll(mapResult.values());
+			}
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> Aerospike Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			throw ae;
+		}
+		return scanList;
+	} // end scanLDT()
+	
+	/**
+	 * Query a window of the user's Site Visits (expire values in [fromExpire,
+	 * toExpire]) with the "window" Record UDF.
+	 * LMAP has no key order, so the server sorts the (in range) expire
+	 * values -- but only the first "limit" items come back.
+	 * @param key
+	 * @param fromExpire : zero for no lower bound
+	 * @param toExpire : zero for no upper bound
+	 * @param limit : zero for all
+	 */
+	public List<Map<String,Object>> queryWindow( Key key, long fromExpire,
+			long toExpire, int limit ) throws AerospikeException
+	{
+		return queryHelper.queryWindow(key, fromExpire, toExpire, limit);
+	} // end queryWindow()
+	
+	/**
+	 * Query the user's "count" most recent live Site Visits with the
+	 * "last_n" Record UDF.
+	 * @param key
+	 * @param count
+	 * @param minExpire : zero to include the expired visits
+	 */
+	public List<Map<String,Object>> queryLastN( Key key, int count,
+			long minExpire ) throws AerospikeException
+	{
+		return queryHelper.queryLastN(key, count, minExpire);
+	} // end queryLastN()
+	
+	/**
+	 * Query the windows of a batch of users (see BatchVisitQuery).
+	 */
+	public int batchQuery( String ns, String set, Collection<String> userIDs,
+			long fromExpire, long toExpire, int limit, int parallelism,
+			IVisitBatchCallback callback ) throws AerospikeException
+	{
+		return queryHelper.batchQuery(ns, set, userIDs, fromExpire, toExpire, 
+				limit, parallelism, callback);
+	} // end batchQuery()
+
 } // end class LMapOperations
\ No newline at end of file
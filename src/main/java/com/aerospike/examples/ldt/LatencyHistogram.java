@@ -0,0 +1,174 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, lock-free latency histogram.  Latencies are kept in
+ * microseconds, in log-linear buckets:  each power of two is split into
+ * 16 sub-buckets, so any reported percentile is within about 6% of the
+ * real value, no matter how many samples we take.
+ * 
+ * Many threads can record at once (each record is a single atomic add), and
+ * a reader can take a snapshot at any time.  Two snapshots can be subtracted
+ * to get the latencies for just the interval between them.
+ */
+public class LatencyHistogram {
+	
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS; // 16
+	private static final int MAX_EXPONENT = 40; // about 12 days, in usec
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+	
+	private final String name;
+	private final AtomicLongArray buckets;
+	
+	public LatencyHistogram(String name) {
+		this.name = name;
+		this.buckets = new AtomicLongArray(BUCKETS);
+	}
+	
+	/**
+	 * Find the bucket for a latency value (in microseconds).
+	 * @param micros
+	 * @return
+	 */
+	private static int bucketIndex(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) Math.max(0L, micros);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKETS - 1;
+		}
+		int subBucket = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * Return the (upper bound) latency value that a bucket represents.
+	 * @param index
+	 * @return
+	 */
+	private static long bucketValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = (index / SUB_BUCKETS) + SUB_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	/**
+	 * Record one operation that took the given number of nanoseconds.
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		buckets.incrementAndGet(bucketIndex(nanos / 1000));
+	}
+	
+	/**
+	 * Take a copy of the current bucket counts.
+	 * @return
+	 */
+	public long[] snapshot() {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			result[i] = buckets.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Return the bucket counts for the interval between two snapshots.
+	 * @param later
+	 * @param earlier
+	 * @return
+	 */
+	public static long[] difference(long[] later, long[] earlier) {
+		long[] result = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			result[i] = later[i] - (earlier == null ? 0 : earlier[i]);
+		}
+		return result;
+	}
+	
+	/**
+	 * Zero out the histogram.  Note that samples that arrive DURING a reset
+	 * may or may not survive it -- which is fine for measurement windows.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0);
+		}
+	}
+	
+	public static long count(long[] counts) {
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			total += counts[i];
+		}
+		return total;
+	}
+	
+	/**
+	 * Compute a percentile (0 - 100) from a set of bucket counts.
+	 * @param counts
+	 * @param percentile
+	 * @return the latency in microseconds (zero if there are no samples)
+	 */
+	public static long percentileMicros(long[] counts, double percentile) {
+		long total = count(counts);
+		if (total == 0) {
+			return 0;
+		}
+		long target = (long) Math.ceil(total * percentile / 100.0);
+		if (target < 1) {
+			target = 1;
+		}
+		long running = 0;
+		for (int i = 0; i < counts.length; i++) {
+			running += counts[i];
+			if (running >= target) {
+				return bucketValue(i);
+			}
+		}
+		return bucketValue(counts.length - 1);
+	}
+	
+	public long getCount() {
+		return count(snapshot());
+	}
+	
+	public long percentileMicros(double percentile) {
+		return percentileMicros(snapshot(), percentile);
+	}
+
+	public String getName() {
+		return name;
+	}
+	
+	public String toString() {
+		long[] counts = snapshot();
+		return String.format("%s: Count(%d) p50(%d us) p99(%d us) p99.9(%d us) Max(%d us)",
+				name, count(counts), percentileMicros(counts, 50.0), 
+				percentileMicros(counts, 99.0), percentileMicros(counts, 99.9),
+				percentileMicros(counts, 100.0));
+	}
+
+} // end class LatencyHistogram
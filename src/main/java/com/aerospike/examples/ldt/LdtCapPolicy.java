@@ -0,0 +1,68 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The cap on a user's Site Visit LDT in one namespace:  a maximum number of
+ * elements and/or a maximum age.  Either limit may be zero (no limit).
+ * 
+ * On the command line, the caps are given per namespace as:
+ *     "ns=maxCount[/maxAgeSec],ns=maxCount[/maxAgeSec],..."
+ * For example, "cache=500,base=20000/604800" keeps a 500 element ring buffer
+ * in the cache, and at most 20000 visits (none older than a week) in base.
+ */
+public class LdtCapPolicy {
+	public final int maxCount;  // Max LDT elements (0 = no count limit)
+	public final long maxAgeSec; // Max visit age, in seconds (0 = no limit)
+	
+	public LdtCapPolicy(int maxCount, long maxAgeSec) {
+		this.maxCount = maxCount;
+		this.maxAgeSec = maxAgeSec;
+	}
+	
+	/**
+	 * Parse the per-namespace cap spec (see above).
+	 * @param capSpec
+	 * @return the map of namespace to cap (empty if capSpec is null)
+	 */
+	public static Map<String, LdtCapPolicy> parse(String capSpec) {
+		Map<String, LdtCapPolicy> caps = new HashMap<String, LdtCapPolicy>();
+		if (capSpec == null || capSpec.trim().length() == 0) {
+			return caps;
+		}
+		for (String nsCap : capSpec.split(",")) {
+			String[] parts = nsCap.trim().split("=");
+			if (parts.length != 2) {
+				throw new IllegalArgumentException("Bad LDT Cap: " + nsCap);
+			}
+			String[] limits = parts[1].split("/");
+			int maxCount = Integer.parseInt(limits[0].trim());
+			long maxAgeSec = 
+				(limits.length > 1) ? Long.parseLong(limits[1].trim()) : 0L;
+			caps.put(parts[0].trim(), new LdtCapPolicy(maxCount, maxAgeSec));
+		}
+		return caps;
+	} // end parse()
+	
+	public String toString() {
+		return String.format("Cap(count=%d age=%ds)", maxCount, maxAgeSec);
+	}
+
+} // end class LdtCapPolicy
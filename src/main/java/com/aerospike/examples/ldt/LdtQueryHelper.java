@@ -0,0 +1,164 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Value;
+import com.aerospike.client.policy.Policy;
+
+/**
+ * The Record UDF calls that LListOperations and LMapOperations share:  the
+ * Site Visit queries (queryWindow(), queryLastN() and batchQuery()) and the
+ * Watermark upkeep after a bulk load (lowerWatermark()).  Both UDF modules
+ * have the same Record UDFs (each does the work in its own way on the
+ * server), so all that differs on this side is the module name.
+ */
+public class LdtQueryHelper implements IAppConstants {
+	
+	private static final String CLASSNAME = "LdtQueryHelper";
+	
+	private AerospikeClient client;
+	private Policy policy;
+	private Console console;
+	private String udfModule;
+	private ILdtOperations ldtOps;
+	
+	/**
+	 * @param client
+	 * @param policy
+	 * @param console
+	 * @param udfModule : the Lua module with the query UDFs
+	 * @param ldtOps : the LDT Operations that own this helper (which run
+	 * each user's query of a batch)
+	 */
+	public LdtQueryHelper(AerospikeClient client, Policy policy, 
+			Console console, String udfModule, ILdtOperations ldtOps) 
+	{
+		this.client = client;
+		this.policy = policy;
+		this.console = console;
+		this.udfModule = udfModule;
+		this.ldtOps = ldtOps;
+	}
+	
+	/**
+	 * Query a window of the user's Site Visits (expire values in [fromExpire,
+	 * toExpire]) with the "window" Record UDF.
+	 * @param key
+	 * @param fromExpire : zero for no lower bound
+	 * @param toExpire : zero for no upper bound
+	 * @param limit : zero for all
+	 */
+	public List<Map<String,Object>> queryWindow( Key key, long fromExpire,
+			long toExpire, int limit ) throws AerospikeException
+	{
+		return executeQuery(key, LDT_WINDOW, boundValue(fromExpire), 
+				boundValue(toExpire), Value.get(limit));
+	} // end queryWindow()
+	
+	/**
+	 * Query the user's "count" most recent live Site Visits with the
+	 * "last_n" Record UDF.
+	 * @param key
+	 * @param count
+	 * @param minExpire : zero to include the expired visits
+	 */
+	public List<Map<String,Object>> queryLastN( Key key, int count,
+			long minExpire ) throws AerospikeException
+	{
+		return executeQuery(key, LDT_LAST_N, Value.get(count), 
+				Value.get(minExpire));
+	} // end queryLastN()
+	
+	/**
+	 * Query the windows of a batch of users (see BatchVisitQuery).
+	 */
+	public int batchQuery( String ns, String set, Collection<String> userIDs,
+			long fromExpire, long toExpire, int limit, int parallelism,
+			IVisitBatchCallback callback ) throws AerospikeException
+	{
+		return new BatchVisitQuery(console, client, policy, ldtOps).run(
+				ns, set, userIDs, fromExpire, toExpire, limit, parallelism, 
+				callback);
+	} // end batchQuery()
+	
+	/**
+	 * After a bulk load, lower the record's Expire Watermark to the lowest
+	 * expire value loaded (or set it, if the record has none yet) with the
+	 * "lower_watermark" Record UDF.
+	 * @param key
+	 * @param loaded : the Site Visits that were just loaded
+	 */
+	public void lowerWatermark( Key key, List<Map<String,Object>> loaded ) 
+			throws AerospikeException 
+	{
+		long minExpire = Long.MAX_VALUE;
+		for (Map<String,Object> item : loaded) {
+			Object expire = item.get("key");
+			if (expire instanceof Number) {
+				minExpire = Math.min(minExpire, ((Number) expire).longValue());
+			}
+		}
+		if (minExpire == Long.MAX_VALUE) {
+			return; // Nothing loaded
+		}
+		client.execute(policy, key, udfModule, LDT_LOWER_WATERMARK, 
+				Value.get(minExpire));
+	} // end lowerWatermark()
+	
+	/**
+	 * A zero bound is an open end (nil on the server).
+	 */
+	private static Value boundValue(long bound) {
+		return (bound > 0) ? Value.get(bound) : new Value.NullValue();
+	}
+	
+	/**
+	 * Call one of the query Record UDFs (on the LDT Bin) and return its
+	 * list of Site Visits.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<Map<String,Object>> executeQuery( Key key, String function,
+			Value... args ) throws AerospikeException
+	{
+		final String meth = "executeQuery()";
+		Value[] udfArgs = new Value[args.length + 1];
+		udfArgs[0] = Value.get(LDT_BIN);
+		System.arraycopy(args, 0, udfArgs, 1, args.length);
+		try {
+			Object result = client.execute(policy, key, udfModule, 
+					function, udfArgs);
+			if (result == null) {
+				return new ArrayList<Map<String,Object>>();
+			}
+			return (List<Map<String,Object>>) result;
+		} catch (AerospikeException ae) {
+			console.error("<%s:%s> %s(%s): Aerospike Error Code(%d) Error Message(%s)",
+					CLASSNAME, meth, udfModule, function, ae.getResultCode(), 
+					ae.getMessage());
+			throw ae;
+		}
+	} // end executeQuery()
+
+} // end class LdtQueryHelper
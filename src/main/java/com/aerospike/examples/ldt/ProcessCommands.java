@@ -1,9 +1,14 @@
 package com.aerospike.examples.ldt;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -33,8 +38,10 @@ public class ProcessCommands implements IAppConstants {
 	private String ldtType; // The type of LDT that we'll use
 	private AerospikeClient client;
 	protected Console console; // Easy IO for tracing/debugging
-	private long timeToLive;
+	private long timeToLive;   // Site Visit TTL, in (virtual) seconds
+	private long timeToLiveNs; // Same TTL, in nanoseconds (for expire values)
 	private TestTiming testTiming;
+	private IClock clock; // Virtual clock shared by all threads
 	
 	// Constants for Customer Emulation Mode.
 	/** Expected number of User Generated Transactions per second.  */
@@ -44,6 +51,9 @@ public class ProcessCommands implements IAppConstants {
 	/** Expected Clean Cycle, in seconds */
 //	final long CLEAN_CYCLE = 86400; // One days worth of seconds
 	final long CLEAN_CYCLE = 600; 
+	// With Lazy Expiry, the writes remove most expired visits, so the 
+	// cleaners only need to come around this many times less often.
+	final int LAZY_CLEAN_FACTOR = 6;
 	
 	private static final String CLASSNAME = "ProcessCommands";
 
@@ -64,7 +74,11 @@ public class ProcessCommands implements IAppConstants {
 		this.client = dbOps.getClient();
 		this.console = console;
 		this.timeToLive = timeToLive;
+		// Site Visit date/expire values are nanosecond clock values, so the
+		// TTL has to be in nanoseconds as well.
+		this.timeToLiveNs = timeToLive * 1000000000L;
 		this.testTiming = testTiming;
+		this.clock = dbOps.getClock();
 	}
 	
 	/**
@@ -258,6 +272,56 @@ public class ProcessCommands implements IAppConstants {
 	} // end databaseSetup()
 	
 
+	/**
+	 * Load Phase:  Start one LoadCustomer thread per customer set, which 
+	 * writes the Customer Record and all of the User Records for that set,
+	 * and wait for them all to finish.
+	 * 
+	 * @param namespace
+	 * @param customerRecords
+	 * @param userRecords
+	 */
+	private void loadCustomerSets( String namespace, long customerRecords, 
+			long userRecords ) 
+	{
+		final String meth = "loadCustomerSets()";
+		boolean waitResult = true;
+		
+		testTiming.setStartTime( AppPhases.LOAD);
+		ExecutorService executor = Executors.newFixedThreadPool((int)customerRecords);
+		console.info("Starting (" + customerRecords + ") Threads for Customer Load." );
+		for ( int t = 0; t < customerRecords; t++ ) {
+			console.info("Starting Customer Load Thread: " + t );
+			Runnable loadCustomerThread = new LoadCustomer(console, client,
+					dbOps, namespace, t, userRecords);
+			executor.execute( loadCustomerThread );
+		}
+
+		console.info("<%s:%s> Done with Load Thread Generation.  Now waiting to finish",
+				CLASSNAME, meth);
+		executor.shutdown();
+		try {
+			// We expect that our Customer and UserRecord loads should 
+			// finish in a few minutes.  We'll give them ten minutes as a
+			// bounding timeout for the threads to complete.
+			// It's the SiteVisit (LDT) writes that could last for days.
+			waitResult = executor.awaitTermination(10L, TimeUnit.MINUTES );
+		} catch (Exception e){
+			console.error("<%s:%s> Load Thread Wait: GENERAL EXCEPTION(%s)",
+					CLASSNAME, meth, e.toString());
+			e.printStackTrace();
+		}
+		console.info("<%s:%s>Load Threads Terminated:  WaitResult(%b)",
+				CLASSNAME, meth, waitResult);
+		
+		// Wait until all threads finish.
+		while ( !executor.isTerminated() ) {
+			// Do nothing
+		}
+		testTiming.setEndTime( AppPhases.LOAD);
+		console.info("<%s:%s> End of Load Phase", CLASSNAME, meth);
+	} // end loadCustomerSets()
+	
 	/**
 	 * Simulate the actions of a customer that is tracking User Activity.
 	 * Each Customer stores data in a separate Set.  Each Customer Set holds
@@ -295,8 +359,8 @@ public class ProcessCommands implements IAppConstants {
 	{
 		final String meth = "emulateCustomer()";
 		
-		console.info("EMULATE CUSTOMER: Cust(%d) Users(%d) Days(%d)", 
-				customerRecords, userRecords, emulationDays);
+		console.info("EMULATE CUSTOMER: Cust(%d) Users(%d) Days(%d) Clock(%s)", 
+				customerRecords, userRecords, emulationDays, clock.toString());
 		
 		String baseNamespace = dbParms.baseNamespace;
 		String cacheNamespace = dbParms.cacheNamespace;
@@ -304,6 +368,8 @@ public class ProcessCommands implements IAppConstants {
 		int t;
 		
 		boolean waitResult = true;
+		CleanScheduler cleanScheduler = null;
+		UdfCleanMonitor udfCleanMonitor = null;
 		
 		// Take care of any Database Setup that is needed.  For the advanced
 		// functions, we will need to register any User Defined Functions that
@@ -315,39 +381,7 @@ public class ProcessCommands implements IAppConstants {
 		// At system startup, we will load the initial state of the database
 		// (unless "noLoad
 		if (! noLoad){
-			testTiming.setStartTime( AppPhases.LOAD);
-			executor = Executors.newFixedThreadPool((int)customerRecords);
-			console.info("Starting (" + customerRecords + ") Threads for Customer Load." );
-			for ( t = 0; t < customerRecords; t++ ) {
-				console.info("Starting Customer Load Thread: " + t );
-				Runnable loadCustomerThread = new LoadCustomer(console, client,
-						dbOps, baseNamespace, t, userRecords);
-				executor.execute( loadCustomerThread );
-			}
-	
-			console.info("<%s:%s> Done with Load Thread Generation.  Now waiting to finish",
-					CLASSNAME, meth);
-			executor.shutdown();
-			try {
-				// We expect that our Customer and UserRecord loads should 
-				// finish in a few minutes.  We'll give them ten minutes as a
-				// bounding timeout for the threads to complete.
-				// It's the SiteVisit (LDT) writes that could last for days.
-				waitResult = executor.awaitTermination(10L, TimeUnit.MINUTES );
-			} catch (Exception e){
-				console.error("<%s:%s> Load Thread Wait: GENERAL EXCEPTION(%s)",
-						CLASSNAME, meth, e.toString());
-				e.printStackTrace();
-			}
-			console.info("<%s:%s>Load Threads Terminated:  WaitResult(%b)",
-					CLASSNAME, meth, waitResult);
-			
-			// Wait until all threads finish.
-			while ( !executor.isTerminated() ) {
-				// Do nothing
-			}
-			testTiming.setEndTime( AppPhases.LOAD);
-			console.info("<%s:%s> End of Load Phase", CLASSNAME, meth);
+			loadCustomerSets(baseNamespace, customerRecords, userRecords);
 		} // end Load Phase
 		
 		// Start "threadCount" number of threads that will generate updates to
@@ -357,22 +391,32 @@ public class ProcessCommands implements IAppConstants {
 		// number of events, so each thread has to generate:
 		// (USER_TPS / threadCount) events per second.
 		int threadTPS = USER_TPS / threadCount;
+		// The pacing is in real seconds, so with a compressed clock the
+		// emulated users arrive that much more slowly in virtual time.
+		String arrivalRate = String.format(
+				"Offered(%d/s real) = (%.3f/s virtual) Compression(x%.1f)",
+				threadTPS * threadCount, 
+				(threadTPS * threadCount) / clock.getCompression(),
+				clock.getCompression());
+		console.info("User Arrival Rate: " + arrivalRate);
+		dbOps.getMetrics().setInfo(AppMetrics.USER_ARRIVAL_RATE, arrivalRate);
 		
 		testTiming.setStartTime( AppPhases.UPDATE);
+		startUserLanes();
 		// Start up the thread executor:  Set up the pool of threads to be the
-		// Site Visit threads plus the cleaning threads (one per customer).
-		executor = Executors.newFixedThreadPool(threadCount + (int)customerRecords);
+		// Site Visit threads.  (The cleaning runs in the Clean Scheduler.)
+		executor = Executors.newFixedThreadPool(threadCount);
 		console.info("Starting (" + threadCount + ") Threads for SITE DATA." );
 		for ( t = 0; t < threadCount; t++ ) {
 			console.info("Starting Thread: " + t );
 			Runnable userEmulateThread = new EmulateUser(console, client, dbOps,
 					dbParms, threadTPS, emulationDays, customerRecords, 
-					userRecords, t, this.timeToLive);
+					userRecords, t, this.timeToLiveNs);
 			executor.execute( userEmulateThread );
 		}
 		
-		// Now start the Threads that will perform the Cleaning of Expired
-		// LDT Data.  We have two different methods to choose from:
+		// Now start the Clean Scheduler that will perform the Cleaning of
+		// Expired LDT Data.  We have two different methods to choose from:
 		// 1: We can perform a scan on the client, and for each record we get
 		//    back we will extract the LDT Data, and for each expired LDT data
 		//    item, we will delete that item.  For LLIST we can perform this
@@ -382,32 +426,33 @@ public class ProcessCommands implements IAppConstants {
 		//    for each record in the set.  The UDF will scan the LDT and remove
 		//    any items that have expired.  We expect that this approach will
 		//    significantly outperform the client-side approach.
+		// 3: The same Scan UDF, but all of the sets' background scans are
+		//    started and tracked from one monitor thread (UdfCleanMonitor).
 		if (! noCleanThreads ) {
 			console.info("<%s:%s> Cleaning Threads Activated", CLASSNAME, meth);
 			long cleanDurationSec = CLEAN_CYCLE * emulationDays;
-			if (cleanMethod == 1) {
-				// Start up the LDT Cleaning Threads that will scour each
-				// Customer Set periodically and remove expired LDT items by
-				// bringing data to the client and performing client-side ops.
-				console.info("Starting (" + customerRecords + ") Client Cleaning Threads" );
-				for ( t = 0; t < customerRecords; t++ ) {
-					console.info("Starting Cleaning Thread: " + t );
-					Runnable cleanClientThread = new CleanLdtDataFromClient(console, client,
-							dbOps, baseNamespace, t, (int)CLEAN_CYCLE, cleanDurationSec, t );
-					executor.execute( cleanClientThread );
-				} 
+			int cleanInterval = (int) CLEAN_CYCLE;
+			if (dbOps.isLazyExpiry()) {
+				cleanInterval *= LAZY_CLEAN_FACTOR;
+			}
+			if (cleanMethod == 3) {
+				udfCleanMonitor = startUdfCleanMonitor(customerRecords,
+						cleanInterval, cleanDurationSec);
 			} else {
-				// Start up the LDT Cleaning Threads that will scour each
-				// Customer Set periodically and remove expired LDT items by
-				// invoking a server-side UDF that will do all the work remotely.
-				console.info("Starting (" + customerRecords + ") UDF Cleaning Threads" );
-				for ( t = 0; t < customerRecords; t++ ) {
-					console.info("Starting Cleaning Thread: " + t );
-					Runnable cleanUdfThread = new CleanLdtDataWithUDF(console, client,
-							dbOps, dbParms, t, (int)CLEAN_CYCLE, cleanDurationSec, t );
-					executor.execute( cleanUdfThread );
-				} 
+				cleanScheduler = startCleanScheduler(baseNamespace, customerRecords,
+						cleanMethod, cleanInterval, cleanDurationSec);
+			}
+		}
+		
+		// With the LDT Digests on, the Consistency Verifier checks the Cache
+		// against the Base in the background (rather than the user threads
+		// checking as they go).
+		ConsistencyVerifier verifier = dbOps.getVerifier();
+		if (verifier != null) {
+			for (t = 0; t < customerRecords; t++) {
+				verifier.addSet(new CustomerRecord(console, t).getCustomerID());
 			}
+			verifier.start(TimeUnit.DAYS.toSeconds(emulationDays));
 		}
 		
 		// Now collect all of the threads and have them terminate before we
@@ -415,8 +460,12 @@ public class ProcessCommands implements IAppConstants {
 		executor.shutdown();
 		try {
 			// In this case, we expect to run for days.  Set the timeout for
-			// our projected number of days.
-			waitResult = executor.awaitTermination(emulationDays, TimeUnit.DAYS );
+			// our projected number of days -- in real time, which is shorter
+			// than the emulated days when the clock is compressed.
+			long emulationRealMs = 
+				clock.toRealMillis(TimeUnit.DAYS.toMillis(emulationDays));
+			waitResult = executor.awaitTermination(emulationRealMs, 
+					TimeUnit.MILLISECONDS );
 		} catch (Exception e){
 			console.error("<%s:%s>Load Thread Wait: GENERAL EXCEPTION(%s)",
 					CLASSNAME, meth, e.toString());
@@ -428,12 +477,385 @@ public class ProcessCommands implements IAppConstants {
 		while ( !executor.isTerminated() ) {
 			// Do nothing
 		}
+		stopCleanScheduler(cleanScheduler);
+		if (udfCleanMonitor != null) {
+			udfCleanMonitor.stop(true);
+		}
+		if (verifier != null) {
+			verifier.stop();
+		}
+		stopUserLanes();
 		
 		testTiming.setEndTime( AppPhases.UPDATE);
 
 		console.info("<%s:%s>Done with User Emulation Session", CLASSNAME, meth);
 	} // end emulateCustomer()
 	
+	/**
+	 * Start the Clean Scheduler, with a cleaner for every Customer Set.
+	 * Rather than one (mostly sleeping) thread per set, one scheduler runs
+	 * each set's clean pass as it comes due, on a small pool of workers, and
+	 * never runs more clean scans at once than the Scan Permits allow.
+	 * @param namespace
+	 * @param customerRecords
+	 * @param cleanMethod : 1 = client-side clean, 2 = Scan UDF clean
+	 * @param cleanIntervalSec
+	 * @param cleanDurationSec
+	 * @return the running scheduler
+	 */
+	private CleanScheduler startCleanScheduler(String namespace, 
+			long customerRecords, int cleanMethod, int cleanIntervalSec, 
+			long cleanDurationSec) 
+	{
+		final String meth = "startCleanScheduler()";
+		int workerCount = dbOps.getScanPermits().availablePermits();
+		CleanScheduler scheduler = new CleanScheduler(console, dbOps, 
+				workerCount, cleanIntervalSec, cleanDurationSec);
+		for (int t = 0; t < customerRecords; t++) {
+			if (cleanMethod == 1) {
+				scheduler.addCleaner(new CleanLdtDataFromClient(console, client,
+						dbOps, namespace, t, cleanIntervalSec, cleanDurationSec, t));
+			} else {
+				scheduler.addCleaner(new CleanLdtDataWithUDF(console, client,
+						dbOps, dbParms, t, cleanIntervalSec, cleanDurationSec, t));
+			}
+		}
+		console.info("<%s:%s> Scheduling (%d) %s Cleaners", CLASSNAME, meth,
+				customerRecords, (cleanMethod == 1) ? "Client" : "UDF");
+		// Only the client cleaners take tokens:  a Scan UDF runs on the server.
+		if (cleanMethod == 1 && dbOps.getCleanThrottle() != null) {
+			dbOps.getCleanThrottle().start();
+		}
+		scheduler.start();
+		return scheduler;
+	} // end startCleanScheduler()
+	
+	/**
+	 * Start the UDF Clean Monitor (Clean Method 3), with a Scan UDF cleaner
+	 * for every Customer Set.  One thread starts the background Scan UDFs
+	 * (within the Scan Permits) and polls them all until they finish.
+	 * @param customerRecords
+	 * @param cleanIntervalSec
+	 * @param cleanDurationSec
+	 * @return the running monitor
+	 */
+	private UdfCleanMonitor startUdfCleanMonitor(long customerRecords, 
+			int cleanIntervalSec, long cleanDurationSec) 
+	{
+		final String meth = "startUdfCleanMonitor()";
+		UdfCleanMonitor monitor = new UdfCleanMonitor(console, dbOps, 
+				cleanIntervalSec, cleanDurationSec);
+		for (int t = 0; t < customerRecords; t++) {
+			monitor.addCleaner(new CleanLdtDataWithUDF(console, client,
+					dbOps, dbParms, t, cleanIntervalSec, cleanDurationSec, t));
+		}
+		console.info("<%s:%s> Monitoring (%d) UDF Cleaners", CLASSNAME, meth,
+				customerRecords);
+		monitor.start();
+		return monitor;
+	} // end startUdfCleanMonitor()
+	
+	/**
+	 * Let the Clean Scheduler (if any) finish out its run period, then stop it
+	 * (and the Clean Throttle).
+	 * @param scheduler
+	 */
+	private void stopCleanScheduler(CleanScheduler scheduler) {
+		if (scheduler != null) {
+			scheduler.stop(true);
+		}
+		if (dbOps.getCleanThrottle() != null) {
+			dbOps.getCleanThrottle().stop();
+		}
+	} // end stopCleanScheduler()
+	
+	/**
+	 * If User Lanes are configured, start the lane dispatcher and hand it to
+	 * the EmulateUser threads (via DbOps).  With lanes, the EmulateUser
+	 * threads only generate the Site Visits;  each user's visits are then
+	 * written in order by that user's lane thread.
+	 */
+	private void startUserLanes() {
+		if (dbOps.getLaneCount() > 0) {
+			UserLaneDispatcher lanes = new UserLaneDispatcher(console, 
+					dbOps.getMetrics(), dbOps.getLaneCount(), 
+					UserLaneDispatcher.DEFAULT_MAX_LANE_DEPTH);
+			lanes.start();
+			dbOps.setLaneDispatcher(lanes);
+		}
+	} // end startUserLanes()
+	
+	/**
+	 * Drain and stop the User Lanes (if any).  The producers must be done.
+	 */
+	private void stopUserLanes() {
+		UserLaneDispatcher lanes = dbOps.getLaneDispatcher();
+		if (lanes != null) {
+			lanes.shutdown(TimeUnit.MINUTES.toMillis(2));
+			dbOps.setLaneDispatcher(null);
+		}
+	} // end stopUserLanes()
+	
+	/**
+	 * Find the Maximum Sustainable Throughput of the cluster with a step-load
+	 * ramp of the regular User Emulation workload (see ThroughputRamp).
+	 * We do the same setup and load as the Customer Emulation, but there are
+	 * no cleaning threads -- just the foreground traffic.
+	 * 
+	 * @param threadCount : minimum number of emulation threads per stage
+	 * @param customerRecords
+	 * @param userRecords
+	 * @param noLoad
+	 * @param rampSpec : "start,step,max,stageSeconds"
+	 * @param sloSpec : "storeP99Ms,reloadP99Ms,errorPct"
+	 */
+	public void rampThroughput( int threadCount, long customerRecords, 
+			long userRecords, boolean noLoad, String rampSpec, String sloSpec)
+	{
+		final String meth = "rampThroughput()";
+		console.info("<%s:%s> RAMP: Cust(%d) Users(%d) Ramp(%s) SLO(%s)", 
+				CLASSNAME, meth, customerRecords, userRecords, rampSpec, sloSpec);
+		
+		testTiming.setStartTime( AppPhases.SETUP);
+		databaseSetup();
+		testTiming.setEndTime( AppPhases.SETUP);
+		
+		if (! noLoad){
+			loadCustomerSets(dbParms.baseNamespace, customerRecords, userRecords);
+		}
+		
+		testTiming.setStartTime( AppPhases.UPDATE);
+		startUserLanes();
+		ThroughputRamp ramp = new ThroughputRamp(console, client, dbOps, dbParms,
+				customerRecords, userRecords, this.timeToLiveNs, threadCount,
+				rampSpec, sloSpec);
+		ramp.runRamp();
+		stopUserLanes();
+		testTiming.setEndTime( AppPhases.UPDATE);
+		
+		console.info("<%s:%s> Done with Throughput Ramp", CLASSNAME, meth);
+	} // end rampThroughput()
+	
+	/**
+	 * Run the Interference Benchmark (see InterferenceBenchmark):  a fixed
+	 * User Emulation load while we sweep the cleaning settings, once for
+	 * each LDT type.  Before each LDT type (after the first) we clean out
+	 * the DB and load it again with that type.  The results go to a
+	 * tab-separated file.
+	 * 
+	 * @param threadCount : minimum number of emulation threads
+	 * @param customerRecords
+	 * @param userRecords
+	 * @param noLoad
+	 * @param benchSpec : see InterferenceBenchmark
+	 * @param outFileName : the result table
+	 */
+	public void interferenceBenchmark( int threadCount, long customerRecords, 
+			long userRecords, boolean noLoad, String benchSpec, 
+			String outFileName)
+	{
+		final String meth = "interferenceBenchmark()";
+		console.info("<%s:%s> BENCHMARK: Cust(%d) Users(%d) Spec(%s) Out(%s)", 
+				CLASSNAME, meth, customerRecords, userRecords, benchSpec, 
+				outFileName);
+		
+		testTiming.setStartTime( AppPhases.SETUP);
+		databaseSetup();
+		testTiming.setEndTime( AppPhases.SETUP);
+		
+		InterferenceBenchmark bench = new InterferenceBenchmark(console, client,
+				dbOps, dbParms, customerRecords, userRecords, this.timeToLiveNs,
+				threadCount, benchSpec);
+		PrintWriter out = null;
+		try {
+			out = new PrintWriter(new FileWriter(outFileName));
+			out.println(InterferenceBenchmark.HEADER);
+			boolean loaded = noLoad;
+			for (String type : bench.getLdtTypes()) {
+				if (! type.equalsIgnoreCase(dbOps.ldtType)) {
+					if (! dbOps.switchLdtType(type)) {
+						console.warn("<%s:%s> Skipping LDT Type(%s)", 
+								CLASSNAME, meth, type);
+						continue;
+					}
+					cleanDB(customerRecords, userRecords, 1);
+					loaded = false;
+				}
+				if (! loaded) {
+					loadCustomerSets(dbParms.baseNamespace, customerRecords, 
+							userRecords);
+					loaded = true;
+				}
+				testTiming.setStartTime( AppPhases.UPDATE);
+				startUserLanes();
+				bench.runSweep(dbOps.ldtType, out);
+				stopUserLanes();
+				testTiming.setEndTime( AppPhases.UPDATE);
+			}
+		} catch (IOException e) {
+			console.error("<%s:%s> Can't write the Result File(%s): %s",
+					CLASSNAME, meth, outFileName, e.toString());
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+		
+		console.info("<%s:%s> Done with Interference Benchmark", CLASSNAME, meth);
+	} // end interferenceBenchmark()
+	
+	/**
+	 * Bulk Import:  load historical Site Visits from local files (NDJSON or
+	 * Apache combined log format) into the Base namespace, with parallel
+	 * parsing and per-user batched LDT writes (see BulkVisitLoader).
+	 * @param threadCount : parse threads (and write lanes)
+	 * @param customerRecords : the sets that log visits are spread over
+	 * @param importSpec : the files, comma separated
+	 */
+	public void bulkImport( int threadCount, long customerRecords, 
+			String importSpec )
+	{
+		final String meth = "bulkImport()";
+		List<String> fileNames = new ArrayList<String>();
+		for (String fileName : importSpec.split(",")) {
+			if (fileName.trim().length() > 0) {
+				fileNames.add(fileName.trim());
+			}
+		}
+		console.info("<%s:%s> BULK IMPORT: Files(%s) Cust(%d) Threads(%d)", 
+				CLASSNAME, meth, fileNames, customerRecords, threadCount);
+		
+		testTiming.setStartTime( AppPhases.SETUP);
+		databaseSetup();
+		testTiming.setEndTime( AppPhases.SETUP);
+		
+		testTiming.setStartTime( AppPhases.LOAD);
+		BulkVisitLoader loader = new BulkVisitLoader(console, dbOps, 
+				dbParms.baseNamespace, customerRecords, this.timeToLiveNs, 
+				threadCount);
+		try {
+			long visits = loader.load(fileNames);
+			console.info("<%s:%s> Imported (%d) Site Visits", CLASSNAME, meth,
+					visits);
+		} catch (IOException e) {
+			console.error("<%s:%s> Can't read the Import Files: %s",
+					CLASSNAME, meth, e.toString());
+		}
+		testTiming.setEndTime( AppPhases.LOAD);
+	} // end bulkImport()
+	
+	/**
+	 * Columnar Export:  write the Site Visits of every Customer Set out to
+	 * compressed, column-oriented files for offline analytics (see
+	 * ColumnarExporter).
+	 * @param threadCount : sets exported at once
+	 * @param customerRecords
+	 * @param exportSpec : "dir[,namespace]" (default: the Base namespace)
+	 */
+	public void exportVisits( int threadCount, long customerRecords, 
+			String exportSpec )
+	{
+		final String meth = "exportVisits()";
+		String[] parts = exportSpec.split(",");
+		String outDir = parts[0].trim();
+		String namespace = (parts.length > 1) ? parts[1].trim() 
+				: dbParms.baseNamespace;
+		
+		testTiming.setStartTime( AppPhases.SCAN);
+		ColumnarExporter exporter = new ColumnarExporter(console, dbOps, 
+				namespace, new File(outDir), threadCount);
+		try {
+			long visits = exporter.export(customerRecords);
+			console.info("<%s:%s> Exported (%d) Site Visits to (%s)", 
+					CLASSNAME, meth, visits, outDir);
+		} catch (IOException e) {
+			console.error("<%s:%s> Export Failed: %s", CLASSNAME, meth, 
+					e.toString());
+		}
+		testTiming.setEndTime( AppPhases.SCAN);
+	} // end exportVisits()
+	
+	/**
+	 * Snapshot:  copy every Customer Set (bins and LDTs) out to local files,
+	 * so that a later run can Restore the dataset instead of generating it
+	 * again (see DatasetSnapshot).
+	 * @param threadCount : sets snapshotted at once
+	 * @param customerRecords
+	 * @param snapshotSpec : "dir[,namespace]" (default: the Base namespace)
+	 */
+	public void snapshotSets( int threadCount, long customerRecords, 
+			String snapshotSpec )
+	{
+		final String meth = "snapshotSets()";
+		String[] parts = snapshotSpec.split(",");
+		String dir = parts[0].trim();
+		String namespace = (parts.length > 1) ? parts[1].trim() 
+				: dbParms.baseNamespace;
+		
+		testTiming.setStartTime( AppPhases.SCAN);
+		DatasetSnapshot snapshot = new DatasetSnapshot(console, dbOps, 
+				namespace, new File(dir), threadCount);
+		try {
+			long records = snapshot.snapshot(customerRecords);
+			console.info("<%s:%s> Snapshot of (%d) Records in (%s)", 
+					CLASSNAME, meth, records, dir);
+		} catch (IOException e) {
+			console.error("<%s:%s> Snapshot Failed: %s", CLASSNAME, meth, 
+					e.toString());
+		}
+		testTiming.setEndTime( AppPhases.SCAN);
+	} // end snapshotSets()
+	
+	/**
+	 * Restore:  load a dataset back from its Snapshot files (see
+	 * DatasetSnapshot), in place of the usual Load phase.
+	 * @param threadCount : writer threads
+	 * @param restoreSpec : "dir[,namespace]" (default: the Base namespace)
+	 */
+	public void restoreSnapshot( int threadCount, String restoreSpec )
+	{
+		final String meth = "restoreSnapshot()";
+		String[] parts = restoreSpec.split(",");
+		String dir = parts[0].trim();
+		String namespace = (parts.length > 1) ? parts[1].trim() 
+				: dbParms.baseNamespace;
+		
+		testTiming.setStartTime( AppPhases.SETUP);
+		databaseSetup();
+		testTiming.setEndTime( AppPhases.SETUP);
+		
+		testTiming.setStartTime( AppPhases.LOAD);
+		DatasetSnapshot snapshot = new DatasetSnapshot(console, dbOps, 
+				namespace, new File(dir), threadCount);
+		try {
+			long records = snapshot.restore();
+			console.info("<%s:%s> Restored (%d) Records from (%s)", 
+					CLASSNAME, meth, records, dir);
+		} catch (IOException e) {
+			console.error("<%s:%s> Restore Failed: %s", CLASSNAME, meth, 
+					e.toString());
+		}
+		testTiming.setEndTime( AppPhases.LOAD);
+	} // end restoreSnapshot()
+	
+	/**
+	 * Compare the batch Site Visit query with the sequential loop of
+	 * processSiteQuery() calls (see BatchQueryBenchmark), on the dataset
+	 * that is already loaded in the Base namespace.
+	 * @param customerRecords
+	 * @param userRecords
+	 * @param batchSpec : "users[,rounds[,parallelism]]"
+	 */
+	public void batchQueryBenchmark( long customerRecords, long userRecords,
+			String batchSpec )
+	{
+		testTiming.setStartTime( AppPhases.SCAN);
+		BatchQueryBenchmark bench = new BatchQueryBenchmark(console, dbOps,
+				dbParms.baseNamespace, customerRecords, userRecords, batchSpec);
+		bench.run();
+		testTiming.setEndTime( AppPhases.SCAN);
+	} // end batchQueryBenchmark()
+	
 	/**
 	 * generateCommands():  Rather than READ the commands from a file, we 
 	 * instead GENERATE the commands and then act on them.  We first create
@@ -459,6 +881,8 @@ public class ProcessCommands implements IAppConstants {
 		int t;
 		
 		boolean waitResult = true;
+		CleanScheduler cleanScheduler = null;
+		UdfCleanMonitor udfCleanMonitor = null;
 		
 		// Take care of any Database Setup that is needed.  For the advanced
 		// functions, we will need to register any User Defined Functions that
@@ -485,38 +909,7 @@ public class ProcessCommands implements IAppConstants {
 		// We then wait until load is completely finished before we start the
 		// update phase.
 		if (! noLoad){
-			testTiming.setStartTime( AppPhases.LOAD);
-			executor = Executors.newFixedThreadPool((int)customerRecords);
-			console.info("Starting (" + customerRecords + ") Threads for Customer Load." );
-			for ( t = 0; t < customerRecords; t++ ) {
-				console.info("Starting Customer Load Thread: " + t );
-				Runnable loadCustomerThread = new LoadCustomer(console, client,
-						dbOps, namespace, t, userRecords);
-				executor.execute( loadCustomerThread );
-			}
-	
-			console.info("Done with Load Thread Generation.  Now waiting to finish");
-			executor.shutdown();
-			try {
-				// We expect that our Customer and UserRecord loads should 
-				// finish in a few minutes.  We'll give them ten minutes as a
-				// bounding timeout for the threads to complete.
-				// It's the SiteVisit (LDT) writes that could last for days.
-				waitResult = executor.awaitTermination(10L, TimeUnit.MINUTES );
-			} catch (Exception e){
-				console.error("<%s:%s>Load Thread Wait: GENERAL EXCEPTION(%s)",
-						CLASSNAME, meth, e.toString());
-				e.printStackTrace();
-			}
-			console.info("<%s:%s>Load Threads Terminated:  WaitResult(%b)",
-					CLASSNAME, meth, waitResult);
-			
-			// Wait until all threads finish.
-			while ( !executor.isTerminated() ) {
-				// Do nothing
-			}
-			testTiming.setEndTime( AppPhases.LOAD);
-			console.info("<%s:%s>End of Load Phase", CLASSNAME, meth);
+			loadCustomerSets(namespace, customerRecords, userRecords);
 		} // end Load Phase
 		
 	
@@ -536,20 +929,21 @@ public class ProcessCommands implements IAppConstants {
 		}
 		
 		testTiming.setStartTime( AppPhases.UPDATE);
+		startUserLanes();
 		// Start up the thread executor:  Set up the pool of threads to be the
-		// Site Visit threads plus the cleaning threads (one per customer).
-		executor = Executors.newFixedThreadPool(threadCount + (int)customerRecords);
+		// Site Visit threads.  (The cleaning runs in the Clean Scheduler.)
+		executor = Executors.newFixedThreadPool(threadCount);
 		console.info("Starting (" + threadCount + ") Threads for SITE DATA." );
 		for ( t = 0; t < threadCount; t++ ) {
 			console.info("Starting Thread: " + t );
 			Runnable userTrafficThread = new UserTraffic(console, client, dbOps,
 					namespace, threadIterations, customerRecords, userRecords, 
-					t, this.timeToLive );
+					t, this.timeToLiveNs );
 			executor.execute( userTrafficThread );
 		}
 		
-		// Now start the Threads that will perform the Cleaning of Expired
-		// LDT Data.  We have two different methods to choose from:
+		// Now start the Clean Scheduler that will perform the Cleaning of
+		// Expired LDT Data.  We have two different methods to choose from:
 		// 1: We can perform a scan on the client, and for each record we get
 		//    back we will extract the LDT Data, and for each expired LDT data
 		//    item, we will delete that item.  For LLIST we can perform this
@@ -559,30 +953,16 @@ public class ProcessCommands implements IAppConstants {
 		//    for each record in the set.  The UDF will scan the LDT and remove
 		//    any items that have expired.  We expect that this approach will
 		//    significantly outperform the client-side approach.
+		// 3: The same Scan UDF, but all of the sets' background scans are
+		//    started and tracked from one monitor thread (UdfCleanMonitor).
 		if (! noCleanThreads ) {
 			console.info("<%s:%s> Cleaning Threads Activated", CLASSNAME, meth);
-			if (cleanMethod == 1) {
-				// Start up the LDT Cleaning Threads that will scour each
-				// Customer Set periodically and remove expired LDT items by
-				// bringing data to the client and performing client-side ops.
-				console.info("Starting (" + customerRecords + ") Client Cleaning Threads" );
-				for ( t = 0; t < customerRecords; t++ ) {
-					console.info("Starting Cleaning Thread: " + t );
-					Runnable cleanClientThread = new CleanLdtDataFromClient(console, client,
-							dbOps, namespace, t, cleanIntervalSec, cleanDurationSec, t );
-					executor.execute( cleanClientThread );
-				} 
+			if (cleanMethod == 3) {
+				udfCleanMonitor = startUdfCleanMonitor(customerRecords,
+						cleanIntervalSec, cleanDurationSec);
 			} else {
-				// Start up the LDT Cleaning Threads that will scour each
-				// Customer Set periodically and remove expired LDT items by
-				// invoking a server-side UDF that will do all the work remotely.
-				console.info("Starting (" + customerRecords + ") UDF Cleaning Threads" );
-				for ( t = 0; t < customerRecords; t++ ) {
-					console.info("Starting Cleaning Thread: " + t );
-					Runnable cleanUdfThread = new CleanLdtDataWithUDF(console, client,
-							dbOps, dbParms, t, cleanIntervalSec, cleanDurationSec, t );
-					executor.execute( cleanUdfThread );
-				} 
+				cleanScheduler = startCleanScheduler(namespace, customerRecords,
+						cleanMethod, cleanIntervalSec, cleanDurationSec);
 			}
 		}
 		
@@ -607,6 +987,10 @@ public class ProcessCommands implements IAppConstants {
 		while ( !executor.isTerminated() ) {
 			// Do nothing
 		}
+		stopCleanScheduler(cleanScheduler);
+		if (udfCleanMonitor != null) {
+			udfCleanMonitor.stop(true);
+		}
 		
 		testTiming.setEndTime( AppPhases.UPDATE);
 			
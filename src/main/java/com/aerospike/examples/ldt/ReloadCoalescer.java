@@ -0,0 +1,193 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+
+/**
+ * Make sure that only ONE Segmented Cache reload runs at a time for a given
+ * (cache set, user) -- a "single flight" reload.
+ * 
+ * A reload (SiteVisitEntry.reloadCache()) is the most expensive operation we
+ * have:  an ldtSize(), a scan of the entire Base LDT and a full write of the
+ * Cache LDT.  When a hot user's cache record has expired, several EmulateUser
+ * threads can miss at the same moment, and without coordination each one
+ * would do the full reload into the same cache key (and collide with the
+ * others' inserts).
+ * 
+ * With the coalescer, the first thread to miss becomes the "leader" and runs
+ * the reload.  Everyone else who arrives while the reload is in flight waits
+ * for it to finish and then just appends their own Site Visit to the freshly
+ * loaded Cache LDT.  (If the leader's scan already picked up their visit, the
+ * append is a harmless duplicate.)
+ */
+public class ReloadCoalescer implements IAppConstants {
+	
+	// Metric Names
+	public static final String RELOADS_EXECUTED = "reload.executed";
+	public static final String RELOADS_COALESCED = "reload.coalesced";
+	public static final String RELOAD_APPENDS = "reload.appendAfter";
+	public static final String RELOAD_APPEND_DUPS = "reload.appendAlreadyLoaded";
+	public static final String RELOAD_WAIT_TIMEOUTS = "reload.waitTimeout";
+	
+	/** How long a follower waits for the leader's reload (in ms). */
+	static final long MAX_WAIT_MS = 30000L;
+	
+	private static final String CLASSNAME = "ReloadCoalescer";
+	
+	private Console console;
+	private AppMetrics metrics;
+	private final ConcurrentMap<String, CountDownLatch> inFlight;
+
+	public ReloadCoalescer(Console console, AppMetrics metrics) {
+		this.console = console;
+		this.metrics = metrics;
+		this.inFlight = new ConcurrentHashMap<String, CountDownLatch>();
+	}
+	
+	/**
+	 * The single-flight key is the (cache set, user) pair.
+	 */
+	private static String flightKey(String cacheSet, String userID) {
+		return cacheSet + "/" + userID;
+	}
+	
+	/**
+	 * Tell if there's currently a reload in flight for this user.  A caller
+	 * that found the cache record present must still join the flight, or it
+	 * would race the leader's full load with its own insert.
+	 * @param cacheSet
+	 * @param userID
+	 * @return
+	 */
+	public boolean isReloading(String cacheSet, String userID) {
+		return inFlight.containsKey(flightKey(cacheSet, userID));
+	}
+	
+	/**
+	 * Reload the Cache LDT for this Site Visit's user -- unless a reload for
+	 * that user is already running, in which case wait for it and then append
+	 * this Site Visit after it.
+	 * 
+	 * @param sve
+	 * @param client
+	 * @param baseNamespace
+	 * @param cacheNamespace
+	 * @param ldtOps
+	 * @return true if THIS caller ran the reload, false if it was coalesced.
+	 * @throws Exception
+	 */
+	public boolean reload(SiteVisitEntry sve, AerospikeClient client, 
+			String baseNamespace, String cacheNamespace, ILdtOperations ldtOps)
+			throws Exception
+	{
+		final String meth = "reload()";
+		String key = flightKey(sve.getCustomerCacheSet(), sve.getUserID());
+		CountDownLatch myLatch = new CountDownLatch(1);
+		CountDownLatch leaderLatch = inFlight.putIfAbsent(key, myLatch);
+		
+		if (leaderLatch == null) {
+			// We're the leader:  do the real work, then let everyone go.
+			try {
+				metrics.increment(RELOADS_EXECUTED);
+				sve.reloadCache(client, baseNamespace, cacheNamespace, ldtOps);
+			} finally {
+				inFlight.remove(key, myLatch);
+				myLatch.countDown();
+			}
+			return true;
+		}
+		
+		// We're a follower:  wait for the leader, then append our visit.
+		metrics.increment(RELOADS_COALESCED);
+		if (! leaderLatch.await(MAX_WAIT_MS, TimeUnit.MILLISECONDS)) {
+			metrics.increment(RELOAD_WAIT_TIMEOUTS);
+			console.warn("<%s:%s> Timed out waiting for Reload of (%s)", 
+					CLASSNAME, meth, key);
+		}
+		appendAfterReload(sve, cacheNamespace, ldtOps);
+		return false;
+	} // end reload()
+	
+	/**
+	 * Reload the Cache LDT for this user, unless a reload for that user is
+	 * already running -- in which case just return (there's no visit of our
+	 * own to append).  This is for the readers (see CacheFirstReader), which
+	 * never wait on a reload.
+	 * 
+	 * @param sve : names the user (no visit is written)
+	 * @param client
+	 * @param baseNamespace
+	 * @param cacheNamespace
+	 * @param ldtOps
+	 * @return true if THIS caller ran the reload
+	 * @throws Exception
+	 */
+	public boolean reloadIfIdle(SiteVisitEntry sve, AerospikeClient client, 
+			String baseNamespace, String cacheNamespace, ILdtOperations ldtOps)
+			throws Exception
+	{
+		String key = flightKey(sve.getCustomerCacheSet(), sve.getUserID());
+		CountDownLatch myLatch = new CountDownLatch(1);
+		if (inFlight.putIfAbsent(key, myLatch) != null) {
+			metrics.increment(RELOADS_COALESCED);
+			return false;
+		}
+		try {
+			metrics.increment(RELOADS_EXECUTED);
+			sve.reloadCache(client, baseNamespace, cacheNamespace, ldtOps);
+		} finally {
+			inFlight.remove(key, myLatch);
+			myLatch.countDown();
+		}
+		return true;
+	} // end reloadIfIdle()
+	
+	/**
+	 * Write this Site Visit into the Cache LDT after someone else's reload.
+	 * Note that we do NOT go thru SiteVisitEntry.toStorage() here:  that would
+	 * retry a "unique" collision with a NEW expire value, and a collision here
+	 * just means that the reload already copied our visit from the Base LDT.
+	 * 
+	 * @param sve
+	 * @param cacheNamespace
+	 * @param ldtOps
+	 */
+	private void appendAfterReload(SiteVisitEntry sve, String cacheNamespace,
+			ILdtOperations ldtOps)
+	{
+		final String meth = "appendAfterReload()";
+		Map<String,Object> siteObjMap = ldtOps.newSiteObject(sve);
+		int result = ldtOps.storeSiteObject(sve, cacheNamespace, 
+				sve.getCustomerCacheSet(), siteObjMap);
+		if (result == 0) {
+			metrics.increment(RELOAD_APPENDS);
+		} else if (result == -2) {
+			metrics.increment(RELOAD_APPEND_DUPS);
+		} else {
+			console.error("<%s:%s> Cache Append Failed: RC(%d) User(%s)",
+					CLASSNAME, meth, result, sve.getUserID());
+		}
+	} // end appendAfterReload()
+
+} // end class ReloadCoalescer
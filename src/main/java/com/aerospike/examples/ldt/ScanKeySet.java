@@ -20,18 +20,26 @@ import java.util.ArrayList;
 import java.util.List;
 
 import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Key;
 import com.aerospike.client.Record;
 import com.aerospike.client.ScanCallback;
+import com.aerospike.client.policy.QueryPolicy;
 import com.aerospike.client.policy.ScanPolicy;
+import com.aerospike.client.query.Filter;
+import com.aerospike.client.query.RecordSet;
+import com.aerospike.client.query.Statement;
 
 /**
  * @author toby
  *
  */
-public class ScanKeySet implements ScanCallback {
+public class ScanKeySet implements ScanCallback, IAppConstants {
 
 	private int recordCount = 0;
+	private int skippedCount = 0;
+	private long dueBefore = 0; // Watermark Scan: keep records due before this
+	private boolean unmarkedOnly = false; // Keep only records with no Watermark
 	Console console;
 	ArrayList<Key> keyList;
 
@@ -65,17 +73,126 @@ public class ScanKeySet implements ScanCallback {
 		return keyList;
 	} // end runScan()
 	
+	/**
+	 * Scan all nodes in parallel and return the KEYS of only those records
+	 * that are due for cleaning:  their Expire Watermark is below "now" (or
+	 * they have no Watermark yet).  We ask for just the Watermark Bin, so
+	 * the scan does not drag the rest of each record back to the client.
+	 * @param client
+	 * @param namespace
+	 * @param set
+	 * @param now
+	 * @return
+	 */
+	public List<Key> runDueScan(AerospikeClient client, String namespace, 
+			String set, long now) throws Exception 
+	{
+		console.debug("Watermark Scan: namespace=" + namespace + " set=" + set);
+		recordCount = 0;
+		skippedCount = 0;
+		dueBefore = now;
+		ScanPolicy policy = new ScanPolicy();
+		client.scanAll(policy, namespace, set, this, WATERMARK_BIN);
+		console.debug("Watermark Scan: Due(%d) Skipped(%d)", 
+				keyList.size(), skippedCount);
+		return keyList;
+	} // end runDueScan()
+	
+	/**
+	 * Scan all nodes in parallel and return the KEYS of the records that
+	 * have no Expire Watermark yet (and so are not in the Watermark Index):
+	 * the records written before the writes kept a Watermark.
+	 * @param client
+	 * @param namespace
+	 * @param set
+	 * @return
+	 */
+	public List<Key> runUnmarkedScan(AerospikeClient client, String namespace,
+			String set) throws AerospikeException 
+	{
+		console.debug("Unmarked Scan: namespace=" + namespace + " set=" + set);
+		recordCount = 0;
+		skippedCount = 0;
+		dueBefore = 0;
+		unmarkedOnly = true;
+		client.scanAll(new ScanPolicy(), namespace, set, this, WATERMARK_BIN);
+		unmarkedOnly = false;
+		console.debug("Unmarked Scan: Unmarked(%d) Scanned(%d)", 
+				keyList.size(), recordCount);
+		return keyList;
+	} // end runUnmarkedScan()
+	
+	/**
+	 * Query the Watermark Index for the KEYS of the records that are due for
+	 * cleaning:  their Expire Watermark is below "now".  The server picks
+	 * them out, so the records that are not due never come back at all.
+	 * Only the records that HAVE a Watermark are in the index:  the writes
+	 * (add_trim, loadFullLDT() and the User Record) always set one, and the
+	 * older records are given one first (see runUnmarkedScan()).
+	 * @param client
+	 * @param namespace
+	 * @param set
+	 * @param indexName : the set's Watermark Index
+	 * @param now
+	 * @return
+	 */
+	public List<Key> runDueQuery(AerospikeClient client, String namespace,
+			String set, String indexName, long now) throws AerospikeException 
+	{
+		console.debug("Watermark Query: namespace=" + namespace + " set=" + set);
+		recordCount = 0;
+		skippedCount = 0;
+		dueBefore = 0;
+		Statement stmt = new Statement();
+		stmt.setNamespace(namespace);
+		stmt.setSetName(set);
+		stmt.setIndexName(indexName);
+		stmt.setBinNames(WATERMARK_BIN);
+		stmt.setFilters(Filter.range(WATERMARK_BIN, Long.MIN_VALUE, now - 1));
+		RecordSet rs = client.query(new QueryPolicy(), stmt);
+		try {
+			while (rs.next()) {
+				scanCallback(rs.getKey(), rs.getRecord());
+			}
+		} finally {
+			rs.close();
+		}
+		console.debug("Watermark Query: Due(%d)", keyList.size());
+		return keyList;
+	} // end runDueQuery()
+	
+	/**
+	 * The number of records the last Watermark Scan found nothing to expire in.
+	 * (A Watermark Query never sees those records, so it counts none -- see
+	 * DbOps.setObjectCount().)
+	 */
+	public int getSkippedCount() {
+		return skippedCount;
+	}
+	
 	/**
 	 * Called from the scan operator for each record.  We use this to accumulate
-	 * the contents of each record KEY in a list.
+	 * the contents of each record KEY in a list.  The nodes are scanned in
+	 * parallel, so this can be called from several threads at once.
 	 * 
 	 * @param key : record identifier
 	 * @param record : record body
 	 */
-	public void scanCallback(Key key, Record record) {
+	public synchronized void scanCallback(Key key, Record record) {
 		recordCount++;
 		
 		console.debug("Found Record: Key("+key+") Record(" + record + ")");
+		if (unmarkedOnly) {
+			if (record != null && record.getValue(WATERMARK_BIN) != null) {
+				return;
+			}
+		} else if (dueBefore > 0 && record != null) {
+			Object watermark = record.getValue(WATERMARK_BIN);
+			if (watermark != null && ((Number) watermark).longValue() >= dueBefore) {
+				skippedCount++;
+				return;
+			}
+		}
 		keyList.add(key);
 
 		if ((recordCount % 10000) == 0) {
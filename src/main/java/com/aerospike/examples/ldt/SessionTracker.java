@@ -0,0 +1,429 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+
+/**
+ * Streaming sessionisation of the Site Visit events:  a user's session is
+ * a run of visits with no gap longer than the inactivity gap between them.
+ * 
+ * The only state we keep is for the users with an OPEN session:  the
+ * session start, the last-seen time and the visit count, in open addressing
+ * hash tables (SessionTable) keyed by a 64 bit hash of "set/user" -- no
+ * strings, no boxed keys, no per-user objects.  The tables are split into
+ * SEGMENTS, each with its own lock, so that the writing threads rarely
+ * meet.
+ * 
+ * A session closes when the user's next visit comes after the gap, or when
+ * the sweeper (every SWEEP_MS) finds that the user has been idle longer
+ * than the gap.  Closed sessions go on a queue, and the sweeper writes
+ * them as compact summaries, one record per user in the Session Set
+ * (SESSION_SET, keyed by the same user hash), with one operate():  add()
+ * of the session count, visits and total duration, and put() of the last
+ * session's start, end and visits.  (If the queue is full, the session is
+ * dropped and counted.)
+ * 
+ * The times are the visits' dates, in the (possibly virtual) clock frame,
+ * so the event stream can be generated, replayed (Bulk Import) or come
+ * from the JSON commands.
+ * 
+ * Metrics: sessions.events, sessions.closed, sessions.visits,
+ * sessions.dropped and sessions.writeErrors (counters), and the gauges
+ * sessions.open, sessions.bytesPerUser (table memory per open session)
+ * and sessions.eventsPerSec.
+ */
+public class SessionTracker implements Runnable, IVisitListener {
+	
+	// Metric Names
+	public static final String SESSION_EVENTS = "sessions.events";
+	public static final String SESSIONS_CLOSED = "sessions.closed";
+	public static final String SESSION_VISITS = "sessions.visits";
+	public static final String SESSIONS_DROPPED = "sessions.dropped";
+	public static final String SESSION_WRITE_ERRORS = "sessions.writeErrors";
+	public static final String SESSIONS_OPEN = "sessions.open";
+	public static final String SESSION_BYTES_PER_USER = "sessions.bytesPerUser";
+	public static final String SESSION_EVENTS_PER_SEC = "sessions.eventsPerSec";
+	
+	/** The set that holds the session summaries. */
+	public static final String SESSION_SET = "sessions";
+	
+	// Session Summary Bins
+	public static final String COUNT_BIN = "sessions";
+	public static final String VISITS_BIN = "visits";
+	public static final String DURATION_BIN = "durationNs";
+	public static final String LAST_START_BIN = "lastStart";
+	public static final String LAST_END_BIN = "lastEnd";
+	public static final String LAST_VISITS_BIN = "lastVisits";
+	
+	/** Default inactivity gap, in (clock) seconds. */
+	public static final int DEFAULT_GAP_SEC = 1800;
+	
+	/** Number of table segments (a power of two). */
+	static final int SEGMENTS = 64;
+	
+	/** How often (real ms) we close the idle sessions and write. */
+	static final long SWEEP_MS = 10000L;
+	
+	/** Closed sessions waiting to be written. */
+	static final int QUEUE_SIZE = 100000;
+	
+	private static final String CLASSNAME = "SessionTracker";
+	
+	/**
+	 * One closed session.
+	 */
+	static class ClosedSession {
+		final long userHash;
+		final long start;
+		final long end;
+		final int visits;
+		ClosedSession(long userHash, long start, long end, int visits) {
+			this.userHash = userHash;
+			this.start = start;
+			this.end = end;
+			this.visits = visits;
+		}
+	}
+	
+	/**
+	 * An open addressing (linear probing) hash table from a user hash to
+	 * its open session.  The columns are parallel primitive arrays, so an
+	 * entry is ENTRY_BYTES with no object overhead.  Zero marks an empty
+	 * slot (a zero hash is stored as one).  Removal shifts the following
+	 * entries back, so there are no tombstones.  Not thread-safe:  the
+	 * caller holds the table's lock.
+	 */
+	static class SessionTable {
+		static final int ENTRY_BYTES = 8 + 8 + 8 + 4;
+		private long[] keys;
+		private long[] starts;
+		private long[] lastSeen;
+		private int[] visits;
+		private int mask;
+		private int size = 0;
+		
+		SessionTable(int capacity) {
+			allocate(capacity);
+		}
+		
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			starts = new long[capacity];
+			lastSeen = new long[capacity];
+			visits = new int[capacity];
+			mask = capacity - 1;
+		}
+		
+		private int slot(long key) {
+			int i = (int) (key ^ (key >>> 32)) & mask;
+			while (keys[i] != 0 && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+		
+		/**
+		 * One visit of a user.
+		 * @return the session it closed, or null
+		 */
+		ClosedSession visit(long key, long timeNs, long gapNs) {
+			int i = slot(key);
+			if (keys[i] == 0) {
+				keys[i] = key;
+				starts[i] = timeNs;
+				lastSeen[i] = timeNs;
+				visits[i] = 1;
+				if (++size * 2 > keys.length) {
+					grow();
+				}
+				return null;
+			}
+			if (timeNs - lastSeen[i] > gapNs) {
+				ClosedSession closed = 
+						new ClosedSession(key, starts[i], lastSeen[i], visits[i]);
+				starts[i] = timeNs;
+				lastSeen[i] = timeNs;
+				visits[i] = 1;
+				return closed;
+			}
+			// Visits can arrive a little out of order (several threads).
+			lastSeen[i] = Math.max(lastSeen[i], timeNs);
+			starts[i] = Math.min(starts[i], timeNs);
+			visits[i]++;
+			return null;
+		} // end visit()
+		
+		/**
+		 * Close (and remove) every session idle since before "idleBefore".
+		 */
+		void closeIdle(long idleBefore, List<ClosedSession> closed) {
+			int i = 0;
+			while (i < keys.length) {
+				if (keys[i] != 0 && lastSeen[i] < idleBefore) {
+					closed.add(new ClosedSession(keys[i], starts[i], 
+							lastSeen[i], visits[i]));
+					removeAt(i);
+					// An entry may have shifted into slot i:  look again.
+				} else {
+					i++;
+				}
+			}
+		} // end closeIdle()
+		
+		private void removeAt(int hole) {
+			keys[hole] = 0;
+			size--;
+			int i = (hole + 1) & mask;
+			while (keys[i] != 0) {
+				int home = (int) (keys[i] ^ (keys[i] >>> 32)) & mask;
+				// Move the entry back if the hole is between its home slot
+				// and where it sits now (cyclically).
+				boolean move = (hole <= i) ? (home <= hole || home > i) 
+						: (home <= hole && home > i);
+				if (move) {
+					keys[hole] = keys[i];
+					starts[hole] = starts[i];
+					lastSeen[hole] = lastSeen[i];
+					visits[hole] = visits[i];
+					keys[i] = 0;
+					hole = i;
+				}
+				i = (i + 1) & mask;
+			}
+		} // end removeAt()
+		
+		private void grow() {
+			long[] oldKeys = keys;
+			long[] oldStarts = starts;
+			long[] oldLast = lastSeen;
+			int[] oldVisits = visits;
+			allocate(oldKeys.length * 2);
+			for (int j = 0; j < oldKeys.length; j++) {
+				if (oldKeys[j] != 0) {
+					int i = slot(oldKeys[j]);
+					keys[i] = oldKeys[j];
+					starts[i] = oldStarts[j];
+					lastSeen[i] = oldLast[j];
+					visits[i] = oldVisits[j];
+				}
+			}
+		} // end grow()
+		
+		int size() {
+			return size;
+		}
+		
+		long sizeBytes() {
+			return (long) keys.length * ENTRY_BYTES;
+		}
+	} // end class SessionTable
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private AppMetrics metrics;
+	private String namespace;
+	private final long gapNs;
+	private final SessionTable[] tables = new SessionTable[SEGMENTS];
+	private final BlockingQueue<ClosedSession> closedQueue = 
+			new ArrayBlockingQueue<ClosedSession>(QUEUE_SIZE);
+	private Thread sweeper;
+	private volatile boolean running = false;
+	private long lastEvents = 0;
+	private long lastSweepMs = System.currentTimeMillis();
+	
+	/**
+	 * @param console
+	 * @param dbOps
+	 * @param namespace : where the Session Set lives
+	 * @param gapSec : the inactivity gap, in (clock) seconds
+	 */
+	public SessionTracker(Console console, DbOps dbOps, String namespace,
+			int gapSec) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.namespace = namespace;
+		this.gapNs = ((gapSec > 0) ? gapSec : DEFAULT_GAP_SEC) * 1000000000L;
+		for (int i = 0; i < SEGMENTS; i++) {
+			tables[i] = new SessionTable(64);
+		}
+	}
+	
+	/**
+	 * The 64 bit hash that stands for a user (never zero).
+	 * @param set : the Customer Set
+	 * @param userID
+	 * @return
+	 */
+	public static long userHash(String set, String userID) {
+		long hash = HyperLogLog.hash64(set + "/" + userID);
+		return (hash == 0) ? 1 : hash;
+	}
+	
+	/**
+	 * One Site Visit write is one event.
+	 * @param sve
+	 */
+	public void visitWritten(SiteVisitEntry sve) {
+		record(sve.getCustomerBaseSet(), sve.getUserID(), sve.getDate());
+	}
+	
+	/**
+	 * One Site Visit event.
+	 * @param set : the Customer Set
+	 * @param userID
+	 * @param timeNs : the visit's date (clock nanoseconds)
+	 */
+	public void record(String set, String userID, long timeNs) {
+		long hash = userHash(set, userID);
+		SessionTable table = tables[(int) (hash >>> 58) & (SEGMENTS - 1)];
+		ClosedSession closed;
+		synchronized (table) {
+			closed = table.visit(hash, timeNs, gapNs);
+		}
+		metrics.increment(SESSION_EVENTS);
+		if (closed != null) {
+			enqueue(closed);
+		}
+	} // end record()
+	
+	private void enqueue(ClosedSession closed) {
+		if (!closedQueue.offer(closed)) {
+			metrics.increment(SESSIONS_DROPPED);
+		}
+	}
+	
+	/**
+	 * Read a user's session summary.
+	 * @param set
+	 * @param userID
+	 * @return the record (null if the user has no closed sessions yet)
+	 */
+	public Record query(String set, String userID) throws AerospikeException {
+		return client.get(dbOps.policy, summaryKey(userHash(set, userID)));
+	}
+	
+	private Key summaryKey(long userHash) {
+		return new Key(namespace, SESSION_SET, userHash);
+	}
+	
+	/**
+	 * Close the idle sessions, write out the closed ones, and update the
+	 * gauges.
+	 */
+	public synchronized void sweep() {
+		long idleBefore = dbOps.getClock().nanoTime() - gapNs;
+		long open = 0;
+		long bytes = 0;
+		List<ClosedSession> closed = new ArrayList<ClosedSession>();
+		for (SessionTable table : tables) {
+			synchronized (table) {
+				table.closeIdle(idleBefore, closed);
+				open += table.size();
+				bytes += table.sizeBytes();
+			}
+		}
+		for (ClosedSession session : closed) {
+			enqueue(session);
+		}
+		writeClosed();
+		
+		long nowMs = System.currentTimeMillis();
+		long events = metrics.getCount(SESSION_EVENTS);
+		metrics.setGauge(SESSIONS_OPEN, open);
+		metrics.setGauge(SESSION_BYTES_PER_USER, (open == 0) ? 0 : bytes / open);
+		metrics.setGauge(SESSION_EVENTS_PER_SEC, 
+				((events - lastEvents) * 1000L) / Math.max(1L, nowMs - lastSweepMs));
+		lastEvents = events;
+		lastSweepMs = nowMs;
+	} // end sweep()
+	
+	/**
+	 * Write the closed sessions into their users' summaries.
+	 */
+	private void writeClosed() {
+		final String meth = "writeClosed()";
+		ClosedSession session;
+		while ((session = closedQueue.poll()) != null) {
+			try {
+				client.operate(dbOps.writePolicy, summaryKey(session.userHash),
+						Operation.add(new Bin(COUNT_BIN, 1)),
+						Operation.add(new Bin(VISITS_BIN, session.visits)),
+						Operation.add(new Bin(DURATION_BIN, session.end - session.start)),
+						Operation.put(new Bin(LAST_START_BIN, session.start)),
+						Operation.put(new Bin(LAST_END_BIN, session.end)),
+						Operation.put(new Bin(LAST_VISITS_BIN, session.visits)));
+				metrics.increment(SESSIONS_CLOSED);
+				metrics.add(SESSION_VISITS, session.visits);
+			} catch (AerospikeException ae) {
+				metrics.increment(SESSION_WRITE_ERRORS);
+				console.debug("<%s:%s> Error Code(%d) Error Message(%s)",
+						CLASSNAME, meth, ae.getResultCode(), ae.getMessage());
+			}
+		}
+	} // end writeClosed()
+	
+	public void start() {
+		running = true;
+		sweeper = new Thread(this, "SessionTracker");
+		sweeper.setDaemon(true);
+		sweeper.start();
+	}
+	
+	public void run() {
+		try {
+			while (running) {
+				Thread.sleep(SWEEP_MS);
+				sweep();
+			}
+		} catch (InterruptedException ie) {
+			// Stopped.
+		}
+	}
+	
+	/**
+	 * Stop the sweeper, write what has closed, and show the state.
+	 */
+	public void stop() {
+		final String meth = "stop()";
+		running = false;
+		if (sweeper != null) {
+			sweeper.interrupt();
+		}
+		sweep();
+		console.info("<%s:%s> Events(%d) Closed(%d) Open(%d) Bytes/User(%d) Dropped(%d)",
+				CLASSNAME, meth, metrics.getCount(SESSION_EVENTS),
+				metrics.getCount(SESSIONS_CLOSED), metrics.getGauge(SESSIONS_OPEN),
+				metrics.getGauge(SESSION_BYTES_PER_USER),
+				metrics.getCount(SESSIONS_DROPPED));
+	} // end stop()
+
+} // end class SessionTracker
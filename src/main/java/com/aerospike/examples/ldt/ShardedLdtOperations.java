@@ -0,0 +1,521 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Key;
+import com.aerospike.client.Record;
+
+/**
+ * Spread the Site Visit LDT of a HOT user across N sub-records, so that the
+ * heavy users (our "special" users, and in production the bots) don't put
+ * all of their traffic on one record -- and one partition, and one node.
+ * 
+ * A hot user's visits are written to sub-records in the same set, with the
+ * record key "userID#shard" (shard = 0..N-1).  The shard is picked from the
+ * visit's expire time, either:
+ * (1) SHARD_BY_HASH: a hash of the expire value.  Consecutive writes land on
+ *     different sub-records, so the write load spreads across the nodes.
+ * (2) SHARD_BY_TIME: the expire time range.  The TTL window is cut into N
+ *     slices, so each sub-record holds a contiguous run of expire values.
+ *     Writes at any one moment go to one sub-record, but expiring the old
+ *     visits only touches the oldest slice.
+ * 
+ * Reads (scanLDT(), processSiteQuery(), ldtSize()) and processRemoveExpired()
+ * on the user's key fan out to the user record AND every shard, and the
+ * results are merged in expire order.  The user record itself is still read
+ * because it holds anything written before the user was marked hot.
+ * 
+ * Users that are not registered as hot go straight to the underlying LDT
+ * operations.  Note that a scan of the set (e.g. the Client Cleaner) sees the
+ * sub-records as ordinary records, and cleans each one directly.
+ */
+public class ShardedLdtOperations extends ForwardingLdtOperations 
+	implements IAppConstants 
+{
+	public static final String SHARD_BY_HASH = "hash";
+	public static final String SHARD_BY_TIME = "time";
+	
+	/** Separator between the user ID and the shard number in the key. */
+	public static final String SHARD_SEPARATOR = "#";
+	
+	private static final String CLASSNAME = "ShardedLdtOperations";
+	
+	private Console console;
+	private final int shardCount;
+	private final boolean byTime;
+	private final long sliceNs; // Width of one time slice (SHARD_BY_TIME)
+	private final Set<String> hotUsers;
+	
+	/**
+	 * Merge order for Site Objects:  by the expire value ("key").
+	 */
+	private static final Comparator<Map<String,Object>> EXPIRE_ORDER = 
+			new Comparator<Map<String,Object>>() {
+		public int compare(Map<String,Object> a, Map<String,Object> b) {
+			long ka = ((Number) a.get("key")).longValue();
+			long kb = ((Number) b.get("key")).longValue();
+			return (ka < kb) ? -1 : ((ka == kb) ? 0 : 1);
+		}
+	};
+
+	/**
+	 * @param console
+	 * @param inner: The real (LLIST or LMAP) LDT operations
+	 * @param shardCount: Sub-records per hot user
+	 * @param shardBy: SHARD_BY_HASH or SHARD_BY_TIME
+	 * @param timeToLiveNs: The Site Visit TTL (used to size the time slices)
+	 */
+	public ShardedLdtOperations(Console console, ILdtOperations inner,
+			int shardCount, String shardBy, long timeToLiveNs) 
+	{
+		super(inner);
+		this.console = console;
+		this.shardCount = shardCount;
+		this.byTime = SHARD_BY_TIME.equals(shardBy);
+		this.sliceNs = Math.max(1L, timeToLiveNs / shardCount);
+		this.hotUsers = 
+			Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	}
+	
+	/**
+	 * Mark a user as hot:  from now on, its Site Visits are sharded.
+	 * @param userID
+	 */
+	public void registerHotUser(String userID) {
+		hotUsers.add(userID);
+	}
+	
+	public boolean isHotUser(String userID) {
+		return userID != null && hotUsers.contains(userID);
+	}
+	
+	public int getShardCount() {
+		return shardCount;
+	}
+	
+	/**
+	 * Pick the shard for a Site Visit with this expire value.
+	 * @param expire
+	 * @return
+	 */
+	int shardFor(long expire) {
+		if (byTime) {
+			return (int) ((expire / sliceNs) % shardCount);
+		}
+		// Mix the bits -- the low bits of a nano-time are not very random.
+		long h = expire * 0x9E3779B97F4A7C15L;
+		h ^= (h >>> 32);
+		return (int) ((h & 0x7fffffffL) % shardCount);
+	}
+	
+	/**
+	 * The record key string for a user's shard.
+	 */
+	public static String shardKeyString(String userID, int shard) {
+		return userID + SHARD_SEPARATOR + shard;
+	}
+	
+	/**
+	 * The user ID of a key, or null if the key has only a digest (as the
+	 * keys from a set scan do).
+	 */
+	private static String userIdOf(Key key) {
+		return (key.userKey == null) ? null : key.userKey.toString();
+	}
+	
+	/**
+	 * All of the records that hold a hot user's visits:  the user record
+	 * itself, then each of the shards.
+	 */
+	private List<Key> allKeys(Key key) {
+		String userID = userIdOf(key);
+		List<Key> keyList = new ArrayList<Key>(shardCount + 1);
+		keyList.add(key);
+		for (int i = 0; i < shardCount; i++) {
+			keyList.add(new Key(key.namespace, key.setName, 
+					shardKeyString(userID, i)));
+		}
+		return keyList;
+	}
+	
+	/**
+	 * Store the Site Object in the shard picked by its expire value.
+	 */
+	@Override
+	public int storeSiteObject(SiteVisitEntry sve, String ns, String set,
+			Map<String, Object> siteObjMap) 
+	{
+		if (! isHotUser(sve.getUserID())) {
+			return inner.storeSiteObject(sve, ns, set, siteObjMap);
+		}
+		int shard = shardFor(sve.getExpire());
+		Key shardKey = new Key(ns, set, shardKeyString(sve.getUserID(), shard));
+		return inner.storeSiteObject(shardKey, sve.getLdtBinName(), siteObjMap);
+	} // end storeSiteObject()
+	
+	/**
+	 * The size of a hot user's LDT is the total over all of its records.
+	 */
+	@Override
+	public int ldtSize(Key key, String bin) {
+		if (! isHotUser(userIdOf(key))) {
+			return inner.ldtSize(key, bin);
+		}
+		int total = 0;
+		for (Key k : allKeys(key)) {
+			total += inner.ldtSize(k, bin);
+		}
+		return total;
+	} // end ldtSize()
+	
+	/**
+	 * Load a hot user's full LDT (e.g. into the Segmented Cache):  split the
+	 * list up by shard and load each shard with its part.
+	 */
+	@Override
+	public int loadFullLDT(SiteVisitEntry sve, Key key,
+			List<Map<String, Object>> fullLdtList) 
+	{
+		if (! isHotUser(userIdOf(key)) || fullLdtList == null) {
+			return inner.loadFullLDT(sve, key, fullLdtList);
+		}
+		List<List<Map<String,Object>>> shardLists = 
+				new ArrayList<List<Map<String,Object>>>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			shardLists.add(new ArrayList<Map<String,Object>>());
+		}
+		for (Map<String,Object> mapItem : fullLdtList) {
+			long expire = ((Number) mapItem.get("key")).longValue();
+			shardLists.get(shardFor(expire)).add(mapItem);
+		}
+		int result = 0;
+		String userID = userIdOf(key);
+		for (int i = 0; i < shardCount; i++) {
+			if (shardLists.get(i).isEmpty()) {
+				continue;
+			}
+			Key shardKey = new Key(key.namespace, key.setName, 
+					shardKeyString(userID, i));
+			int rc = inner.loadFullLDT(sve, shardKey, shardLists.get(i));
+			if (rc != 0) {
+				result = rc;
+			}
+		}
+		return result;
+	} // end loadFullLDT()
+	
+	/**
+	 * Scan a hot user's records and merge the results in expire order.
+	 */
+	@Override
+	public List<Map<String, Object>> scanLDT(Key key) 
+			throws AerospikeException 
+	{
+		return scanLDT(key, 0L);
+	} // end scanLDT()
+	
+	/**
+	 * Scan (the live part of) a hot user's records and merge the results
+	 * in expire order.
+	 */
+	@Override
+	public List<Map<String, Object>> scanLDT(Key key, long minExpire) 
+			throws AerospikeException 
+	{
+		if (! isHotUser(userIdOf(key))) {
+			return inner.scanLDT(key, minExpire);
+		}
+		final String meth = "scanLDT()";
+		List<List<Map<String,Object>>> parts = 
+				new ArrayList<List<Map<String,Object>>>(shardCount + 1);
+		AerospikeException lastError = null;
+		// Not every shard will exist yet (or hold any visits), so a failure
+		// on one record only counts if we got nothing back from any of them.
+		for (Key k : allKeys(key)) {
+			try {
+				parts.add(inner.scanLDT(k, minExpire));
+			} catch (AerospikeException ae) {
+				console.debug("<%s:%s> Skip Shard(%s): RC(%d)", 
+						CLASSNAME, meth, k.userKey, ae.getResultCode());
+				lastError = ae;
+			}
+		}
+		if (parts.isEmpty() && lastError != null) {
+			throw lastError;
+		}
+		return mergeByExpire(parts);
+	} // end scanLDT()
+	
+	/**
+	 * Query a hot user's records and merge the results in expire order.
+	 */
+	@Override
+	public List<Map<String, Object>> processSiteQuery(String ns, String set,
+			String key, long minExpire) 
+	{
+		if (! isHotUser(key)) {
+			return inner.processSiteQuery(ns, set, key, minExpire);
+		}
+		List<List<Map<String,Object>>> parts = 
+				new ArrayList<List<Map<String,Object>>>(shardCount + 1);
+		parts.add(inner.processSiteQuery(ns, set, key, minExpire));
+		for (int i = 0; i < shardCount; i++) {
+			parts.add(inner.processSiteQuery(ns, set, shardKeyString(key, i),
+					minExpire));
+		}
+		return mergeByExpire(parts);
+	} // end processSiteQuery()
+	
+	/**
+	 * Query a hot user's records with the filter and merge the results in
+	 * expire order (the projection always keeps the "key").
+	 */
+	@Override
+	public List<Map<String, Object>> processSiteQuery(String ns, String set,
+			String key, long minExpire, VisitFilter filter) 
+	{
+		if (! isHotUser(key)) {
+			return inner.processSiteQuery(ns, set, key, minExpire, filter);
+		}
+		List<List<Map<String,Object>>> parts = 
+				new ArrayList<List<Map<String,Object>>>(shardCount + 1);
+		parts.add(inner.processSiteQuery(ns, set, key, minExpire, filter));
+		for (int i = 0; i < shardCount; i++) {
+			parts.add(inner.processSiteQuery(ns, set, shardKeyString(key, i),
+					minExpire, filter));
+		}
+		return mergeByExpire(parts);
+	} // end processSiteQuery()
+	
+	/**
+	 * Scan a hot user's records with the filter and merge the results in
+	 * expire order.
+	 */
+	@Override
+	public List<Map<String, Object>> scanLDT(Key key, long minExpire,
+			VisitFilter filter) throws AerospikeException 
+	{
+		if (! isHotUser(userIdOf(key))) {
+			return inner.scanLDT(key, minExpire, filter);
+		}
+		final String meth = "scanLDT()";
+		List<List<Map<String,Object>>> parts = 
+				new ArrayList<List<Map<String,Object>>>(shardCount + 1);
+		AerospikeException lastError = null;
+		for (Key k : allKeys(key)) {
+			try {
+				parts.add(inner.scanLDT(k, minExpire, filter));
+			} catch (AerospikeException ae) {
+				console.debug("<%s:%s> Skip Shard(%s): RC(%d)", 
+						CLASSNAME, meth, k.userKey, ae.getResultCode());
+				lastError = ae;
+			}
+		}
+		if (parts.isEmpty() && lastError != null) {
+			throw lastError;
+		}
+		return mergeByExpire(parts);
+	} // end scanLDT()
+	
+	/**
+	 * Query the window on each of a hot user's records, merge in expire
+	 * order, then apply the limit to the merged list.  (Each record applies
+	 * the limit too, so no record sends back more than "limit" visits.)
+	 */
+	@Override
+	public List<Map<String, Object>> queryWindow(Key key, long fromExpire,
+			long toExpire, int limit) throws AerospikeException 
+	{
+		if (! isHotUser(userIdOf(key))) {
+			return inner.queryWindow(key, fromExpire, toExpire, limit);
+		}
+		final String meth = "queryWindow()";
+		List<List<Map<String,Object>>> parts = 
+				new ArrayList<List<Map<String,Object>>>(shardCount + 1);
+		for (Key k : allKeys(key)) {
+			try {
+				parts.add(inner.queryWindow(k, fromExpire, toExpire, limit));
+			} catch (AerospikeException ae) {
+				console.debug("<%s:%s> Skip Shard(%s): RC(%d)", 
+						CLASSNAME, meth, k.userKey, ae.getResultCode());
+			}
+		}
+		List<Map<String,Object>> merged = mergeByExpire(parts);
+		if (limit > 0 && merged.size() > limit) {
+			return new ArrayList<Map<String,Object>>(merged.subList(0, limit));
+		}
+		return merged;
+	} // end queryWindow()
+	
+	/**
+	 * The last N visits of each of a hot user's records, merged in expire
+	 * order, and then the last N of those.
+	 */
+	@Override
+	public List<Map<String, Object>> queryLastN(Key key, int count,
+			long minExpire) throws AerospikeException 
+	{
+		if (! isHotUser(userIdOf(key))) {
+			return inner.queryLastN(key, count, minExpire);
+		}
+		final String meth = "queryLastN()";
+		List<List<Map<String,Object>>> parts = 
+				new ArrayList<List<Map<String,Object>>>(shardCount + 1);
+		for (Key k : allKeys(key)) {
+			try {
+				parts.add(inner.queryLastN(k, count, minExpire));
+			} catch (AerospikeException ae) {
+				console.debug("<%s:%s> Skip Shard(%s): RC(%d)", 
+						CLASSNAME, meth, k.userKey, ae.getResultCode());
+			}
+		}
+		List<Map<String,Object>> merged = mergeByExpire(parts);
+		if (count > 0 && merged.size() > count) {
+			return new ArrayList<Map<String,Object>>(
+					merged.subList(merged.size() - count, merged.size()));
+		}
+		return merged;
+	} // end queryLastN()
+	
+	/**
+	 * The batch query goes to the underlying LDT operations (one batch get,
+	 * one window query per user record);  for the hot users in the batch we
+	 * then query the window again over all of their records, before the
+	 * result goes on to the caller's callback.
+	 */
+	@Override
+	public int batchQuery(String ns, String set, Collection<String> userIDs,
+			final long fromExpire, final long toExpire, final int limit, 
+			int parallelism, final IVisitBatchCallback callback) 
+			throws AerospikeException 
+	{
+		final String meth = "batchQuery()";
+		final String namespace = ns;
+		final String setName = set;
+		return inner.batchQuery(ns, set, userIDs, fromExpire, toExpire, limit,
+				parallelism, new IVisitBatchCallback() {
+			public void userComplete(String userID, Record userRecord,
+					List<Map<String,Object>> visits) 
+			{
+				if (userRecord != null && isHotUser(userID)) {
+					try {
+						visits = queryWindow(new Key(namespace, setName, userID),
+								fromExpire, toExpire, limit);
+					} catch (AerospikeException ae) {
+						console.debug("<%s:%s> Hot User(%s): RC(%d)", 
+								CLASSNAME, meth, userID, ae.getResultCode());
+						visits = null;
+					}
+				}
+				callback.userComplete(userID, userRecord, visits);
+			}
+		});
+	} // end batchQuery()
+	
+	/**
+	 * The next visit to expire, over all of a hot user's records.
+	 */
+	@Override
+	public long nextExpire(Key key, long from, long horizon) {
+		if (! isHotUser(userIdOf(key))) {
+			return inner.nextExpire(key, from, horizon);
+		}
+		long next = horizon;
+		for (Key k : allKeys(key)) {
+			next = Math.min(next, inner.nextExpire(k, from, horizon));
+		}
+		return next;
+	} // end nextExpire()
+	
+	/**
+	 * Delete all of a hot user's records:  the user record and the shards.
+	 */
+	@Override
+	public boolean removeUser(Key key) throws AerospikeException {
+		if (! isHotUser(userIdOf(key))) {
+			return inner.removeUser(key);
+		}
+		boolean removed = false;
+		for (Key k : allKeys(key)) {
+			if (inner.removeUser(k)) {
+				removed = true;
+			}
+		}
+		return removed;
+	} // end removeUser()
+	
+	/**
+	 * Remove the expired visits from all of a hot user's records.
+	 */
+	@Override
+	public int processRemoveExpired(String ns, String set, Key key,
+			long expire) 
+	{
+		if (! isHotUser(userIdOf(key))) {
+			return inner.processRemoveExpired(ns, set, key, expire);
+		}
+		int removed = 0;
+		for (Key k : allKeys(key)) {
+			int count = inner.processRemoveExpired(ns, set, k, expire);
+			if (count > 0) {
+				removed += count;
+			}
+		}
+		return removed;
+	} // end processRemoveExpired()
+	
+	/**
+	 * Merge the per-shard results into one list, in expire order.  Each part
+	 * is (for LLIST) already sorted, and the sort below merges sorted runs in
+	 * close to linear time.  A missing part (null) is just skipped.
+	 * @param parts
+	 * @return
+	 */
+	private List<Map<String,Object>> mergeByExpire(
+			List<List<Map<String,Object>>> parts) 
+	{
+		final String meth = "mergeByExpire()";
+		int total = 0;
+		for (List<Map<String,Object>> part : parts) {
+			if (part != null) {
+				total += part.size();
+			}
+		}
+		List<Map<String,Object>> merged = 
+				new ArrayList<Map<String,Object>>(total);
+		for (List<Map<String,Object>> part : parts) {
+			if (part != null) {
+				merged.addAll(part);
+			}
+		}
+		Collections.sort(merged, EXPIRE_ORDER);
+		console.debug("<%s:%s> Merged (%d) Parts: Items(%d)", 
+				CLASSNAME, meth, parts.size(), total);
+		return merged;
+	} // end mergeByExpire()
+
+} // end class ShardedLdtOperations
@@ -22,7 +22,6 @@ import java.util.Map;
 import org.json.simple.JSONObject;
 
 import com.aerospike.client.AerospikeClient;
-import com.aerospike.client.AerospikeException;
 import com.aerospike.client.Key;
 
 public class SiteVisitEntry {
@@ -39,6 +38,7 @@ public class SiteVisitEntry {
 	private long timeToLive;
 	private int    index;
 	private String ldtBinName;
+	private IClock clock; // Source of date/expire values
 	
 	static final String CLASSNAME = "SiteVisitEntry";
 	
@@ -50,9 +50,10 @@ public class SiteVisitEntry {
 	 * @param seed
 	 * @param ldtBinName
 	 * @param timeToLive -- time expressed in nanoseconds.
+	 * @param clock -- the (possibly virtual) clock for date and expire
 	 */
 	public SiteVisitEntry(Console console, String custID, String userID, 
-			int seed, String ldtBinName, long timeToLive) 
+			int seed, String ldtBinName, long timeToLive, IClock clock) 
 	{
 		this.console = console;
 		this.customerBaseSet = custID;
@@ -67,8 +68,9 @@ public class SiteVisitEntry {
 		
 		// Get the current Time.  However, better to use NANO-seconds rather
 		// than milliseconds -- because we get duplicates with milliseconds.
+		this.clock = clock;
 		this.timeToLive = timeToLive;
-		this.date = System.nanoTime();
+		this.date = clock.nanoTime();
 		this.expire = this.date + timeToLive;
 		
 		this.index = seed; 
@@ -117,6 +119,7 @@ public class SiteVisitEntry {
 		
 		this.index = seed; 
 		this.console = console;
+		this.clock = VirtualClock.REAL_TIME;
 		} catch (Exception e) {
 			e.printStackTrace();
 			console.error("<%s:%s> Error Building Site Visit Entry",
@@ -151,6 +154,7 @@ public class SiteVisitEntry {
 		this.index = seed; 
 		
 		this.ldtBinName = ldtBinName;
+		this.clock = VirtualClock.REAL_TIME;
 	}
 	
 	/**
@@ -159,7 +163,7 @@ public class SiteVisitEntry {
 	 */
 	public void refreshSiteVisitEntry() {
 		// Refresh with the current Time.
-		this.date = System.nanoTime();
+		this.date = clock.nanoTime();
 		this.expire = this.date + this.timeToLive;
 	}
 
@@ -222,9 +226,6 @@ public class SiteVisitEntry {
 	 * Given a User object, Scan the LDT from the Base Set and use that data
 	 * to load up the LDT in the Cache Set.
 	 * 
-	 * Use this opportunity to compare the Size with the Scan amount to verify
-	 * that our data and LDT statistics are in sync.
-	 * 
 	 * @param client
 	 * @param nameSpace
 	 * @return
@@ -244,7 +245,6 @@ public class SiteVisitEntry {
 		String recordKeyString = this.userID;
 
 		int writeResult = 0;
-		int sizeCheck = 0;
 		int scanSize = 0;
 		
 		try {
@@ -258,49 +258,31 @@ public class SiteVisitEntry {
 			Key baseKey = new Key(baseNamespace, baseSetName, recordKeyString);
 			Key cacheKey = new Key(cacheNamespace, cacheSetName, recordKeyString);
 			
-			try {
-				sizeCheck = ldtOps.ldtSize(baseKey, ldtBinName);
-			} catch (AerospikeException ae) {
-				console.info("<%s:%s> Error calling size(); on LDT",
-						CLASSNAME, meth);
-				console.error("Aerospike Error Code(%d) Error Message(%s)",
-						ae.getResultCode(), ae.getMessage());
-				sizeCheck = 0;
-			} catch (Exception e) {
-				// Do Nothing. keep on truckin.
-				console.info("<%s:%s> General Error calling size(); on LDT",
-						CLASSNAME, meth);
-				sizeCheck = 0;
+			// Only copy the visits that are still live:  the expired ones
+			// are filtered out on the server (the base LDT may still hold
+			// them until a write or a cleaner gets to them).  The checking
+			// that Base and Cache agree is left to the ConsistencyVerifier.
+			List<Map<String,Object>> fullLdtList = 
+					ldtOps.scanLDT(baseKey, clock.nanoTime());
+			if (fullLdtList != null) {
+				scanSize = fullLdtList.size();
 			}
-			if (sizeCheck > 0) {
-				List<Map<String,Object>> fullLdtList = ldtOps.scanLDT(baseKey);
-				if (fullLdtList != null) {
-					scanSize = fullLdtList.size();
-				}
-				// Validate the size.
-				if (sizeCheck != scanSize) {
-					console.error("<%s:%s> << SIZE MISMATCH: LDT Size(%d); Scan Size(%d) >>",
-							CLASSNAME, meth, sizeCheck, scanSize);
-				} else {
-					console.debug("<%s:%s> : LDT Size(%d); Scan Size(%d) >>",
-							CLASSNAME, meth, sizeCheck, scanSize);
-				}
-
+			if (scanSize > 0) {
 				writeResult = ldtOps.loadFullLDT(this, cacheKey, fullLdtList);
-				if (writeResult != 0){
-					console.error("<%s:%s> Write Problem Loading LDT: RC(%d) namespace=%s set=%s key=%s", 
-						CLASSNAME, meth, writeResult, 
+			}
+			if (writeResult != 0){
+				console.error("<%s:%s> Write Problem Loading LDT: RC(%d) namespace=%s set=%s key=%s", 
+					CLASSNAME, meth, writeResult, 
+					cacheKey.namespace, cacheKey.setName, cacheKey.userKey);
+			}
+			// Print a status line each time we reload a cache record, but
+			// only for those records AFTER the first one
+			if (scanSize > 1) {
+				console.debug("<<<  CCCCCCCCCCC Reload Cache LDT CCCCCCC Size(%d) CCCCCCCCCCC >>>", scanSize);
+				console.debug("Base LDT: namespace(%s) set(%s) key(%s)",
+						baseKey.namespace, baseKey.setName, baseKey.userKey);
+				console.debug("Cache LDT: namespace(%s) set(%s) key(%s)", 
 						cacheKey.namespace, cacheKey.setName, cacheKey.userKey);
-				}
-				// Print a status line each time we reload a cache record, but
-				// only for those records AFTER the first one
-				if (sizeCheck > 1) {
-					console.debug("<<<  CCCCCCCCCCC Reload Cache LDT CCCCCCC Size(%d) CCCCCCCCCCC >>>", sizeCheck);
-					console.debug("Base LDT: namespace(%s) set(%s) key(%s)",
-							baseKey.namespace, baseKey.setName, baseKey.userKey);
-					console.debug("Cache LDT: namespace(%s) set(%s) key(%s)", 
-							cacheKey.namespace, cacheKey.setName, cacheKey.userKey);
-				}
 			}
 		} catch (Exception e){
 			e.printStackTrace();
@@ -0,0 +1,230 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Space-Saving top-K summary (Metwally, Agrawal and El Abbadi):  find the
+ * most frequent keys of a stream with a fixed number of counters.
+ * 
+ * We keep "capacity" counters.  A key that has a counter gets +1;  a new key
+ * takes a free counter, or else takes over the SMALLEST counter (min + 1),
+ * with "min" recorded as its possible over-count (error).  Any key whose
+ * true count is more than total/capacity is sure to have a counter, and
+ * every count is at most "error" too high.
+ * 
+ * The counters are also kept in a min-heap (by count), so finding the
+ * smallest one is O(1) and an offer is O(log capacity).
+ * 
+ * This is NOT thread safe:  each thread keeps its own summary and hands
+ * out copies (see HeavyHitterTracker), which are merged with merge().
+ */
+public class SpaceSaving {
+	
+	/**
+	 * One tracked key.
+	 */
+	public static class Entry {
+		public final String key;
+		public long count;
+		public long error;
+		int heapIndex;
+		
+		Entry(String key, long count, long error) {
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+	}
+	
+	private static final Comparator<Entry> BY_COUNT = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			return (a.count > b.count) ? -1 : ((a.count == b.count) ? 0 : 1);
+		}
+	};
+	
+	private final int capacity;
+	private final Map<String, Entry> entries;
+	private final Entry[] heap; // Min-heap of the entries, by count
+	private long total = 0;
+	
+	public SpaceSaving(int capacity) {
+		this.capacity = Math.max(1, capacity);
+		this.entries = new HashMap<String, Entry>(2 * this.capacity);
+		this.heap = new Entry[this.capacity];
+	}
+	
+	/**
+	 * Count one occurrence of this key.
+	 * @param key
+	 */
+	public void offer(String key) {
+		total++;
+		Entry entry = entries.get(key);
+		if (entry != null) {
+			entry.count++;
+			siftDown(entry.heapIndex);
+		} else if (entries.size() < capacity) {
+			add(new Entry(key, 1, 0));
+		} else {
+			// Take over the smallest counter (the heap root) in place.
+			Entry min = heap[0];
+			entries.remove(min.key);
+			entry = new Entry(key, min.count + 1, min.count);
+			entry.heapIndex = 0;
+			heap[0] = entry;
+			entries.put(key, entry);
+			siftDown(0);
+		}
+	} // end offer()
+	
+	private void add(Entry entry) {
+		int i = entries.size();
+		entries.put(entry.key, entry);
+		entry.heapIndex = i;
+		heap[i] = entry;
+		// Sift up
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[parent].count <= entry.count) {
+				break;
+			}
+			heap[i] = heap[parent];
+			heap[i].heapIndex = i;
+			i = parent;
+		}
+		heap[i] = entry;
+		entry.heapIndex = i;
+	}
+	
+	/**
+	 * The count at "i" went up:  move it down below any smaller child.
+	 */
+	private void siftDown(int i) {
+		int size = entries.size();
+		Entry entry = heap[i];
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				break;
+			}
+			if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+				child++;
+			}
+			if (entry.count <= heap[child].count) {
+				break;
+			}
+			heap[i] = heap[child];
+			heap[i].heapIndex = i;
+			i = child;
+		}
+		heap[i] = entry;
+		entry.heapIndex = i;
+	}
+	
+	/**
+	 * The most a key without a counter could have been seen:  the smallest
+	 * count when all of the counters are taken (otherwise zero).
+	 */
+	private long missingBound() {
+		return (entries.size() < capacity) ? 0 : heap[0].count;
+	}
+	
+	public long getTotal() {
+		return total;
+	}
+	
+	/**
+	 * @return a copy that the owner's later offers won't change
+	 */
+	public SpaceSaving copy() {
+		SpaceSaving copy = new SpaceSaving(capacity);
+		for (int i = 0; i < entries.size(); i++) {
+			Entry entry = new Entry(heap[i].key, heap[i].count, heap[i].error);
+			entry.heapIndex = i;
+			copy.heap[i] = entry;
+			copy.entries.put(entry.key, entry);
+		}
+		copy.total = total;
+		return copy;
+	}
+	
+	/**
+	 * @param k
+	 * @return the (up to) k keys with the highest counts, highest first
+	 */
+	public List<Entry> topK(int k) {
+		List<Entry> list = new ArrayList<Entry>(entries.values());
+		Collections.sort(list, BY_COUNT);
+		return (list.size() > k) ? list.subList(0, k) : list;
+	}
+	
+	/**
+	 * Merge summaries (of separate streams) into one summary of the whole
+	 * stream (Agarwal et al, "Mergeable Summaries").  A key that one summary
+	 * doesn't track might still have been seen up to that summary's
+	 * smallest count, so that is added to its count (and its error).
+	 * @param summaries
+	 * @param capacity : counters in the result
+	 * @return
+	 */
+	public static SpaceSaving merge(List<SpaceSaving> summaries, int capacity) {
+		Map<String, Entry> combined = new HashMap<String, Entry>();
+		long total = 0;
+		for (SpaceSaving summary : summaries) {
+			total += summary.total;
+			for (Entry entry : summary.entries.values()) {
+				Entry sum = combined.get(entry.key);
+				if (sum == null) {
+					combined.put(entry.key, 
+							new Entry(entry.key, entry.count, entry.error));
+				} else {
+					sum.count += entry.count;
+					sum.error += entry.error;
+				}
+			}
+		}
+		for (SpaceSaving summary : summaries) {
+			long bound = summary.missingBound();
+			if (bound == 0) {
+				continue;
+			}
+			for (Entry sum : combined.values()) {
+				if (! summary.entries.containsKey(sum.key)) {
+					sum.count += bound;
+					sum.error += bound;
+				}
+			}
+		}
+		
+		List<Entry> list = new ArrayList<Entry>(combined.values());
+		Collections.sort(list, BY_COUNT);
+		SpaceSaving result = new SpaceSaving(capacity);
+		for (int i = 0; i < list.size() && i < capacity; i++) {
+			result.add(list.get(i));
+		}
+		result.total = total;
+		return result;
+	} // end merge()
+
+} // end class SpaceSaving
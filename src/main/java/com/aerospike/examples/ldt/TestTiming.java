@@ -19,7 +19,8 @@ package com.aerospike.examples.ldt;
 
 /**
  * This class contains the times for the various phases of the URL-Tracker
- * application.
+ * application.  Times are taken from the application clock, so when the
+ * clock is compressed the phase times are reported in VIRTUAL time.
  * @author toby
  *
  */
@@ -31,9 +32,15 @@ public class TestTiming implements IAppConstants {
 	private long[] endTimes; 
 	private long[] elapsedTimes;
 	private long   totalTime;
+	private IClock clock;
 	
 
 	public TestTiming() {
+		this(VirtualClock.REAL_TIME);
+	}
+	
+	public TestTiming(IClock clock) {
+		this.clock = clock;
 		this.startTimes = new long[AppPhases.LAST.ordinal() + 1];
 		this.endTimes = new long[AppPhases.LAST.ordinal() + 1];
 		this.elapsedTimes = new long[AppPhases.LAST.ordinal() + 1];
@@ -42,21 +49,21 @@ public class TestTiming implements IAppConstants {
 	}
 	
 	public void setStartTime( AppPhases phase ) {
-		this.startTimes[phase.ordinal()] = System.currentTimeMillis();
+		this.startTimes[phase.ordinal()] = clock.currentTimeMillis();
 	}
 	
 	public void setEndTime( AppPhases phase ) {
-		this.endTimes[phase.ordinal()] = System.currentTimeMillis();
+		this.endTimes[phase.ordinal()] = clock.currentTimeMillis();
 	}
 		
 	public void setStart() {
-		this.startTimes[AppPhases.START.ordinal()] = System.currentTimeMillis();
-		this.endTimes[AppPhases.START.ordinal()] = System.currentTimeMillis();
+		this.startTimes[AppPhases.START.ordinal()] = clock.currentTimeMillis();
+		this.endTimes[AppPhases.START.ordinal()] = clock.currentTimeMillis();
 	}
 	
 	public void setFinish() {
-		this.startTimes[AppPhases.LAST.ordinal()] = System.currentTimeMillis();
-		this.endTimes[AppPhases.LAST.ordinal()] = System.currentTimeMillis();
+		this.startTimes[AppPhases.LAST.ordinal()] = clock.currentTimeMillis();
+		this.endTimes[AppPhases.LAST.ordinal()] = clock.currentTimeMillis();
 		
 		computeElapsedTimes();
 	}
@@ -107,6 +114,11 @@ public class TestTiming implements IAppConstants {
 		}
 		System.out.printf("TOTAL Time: %d ms,  %f sec\n", 
 				totalTime, (double) totalTime / 1000  );	
+		if (clock.getCompression() > 1.0) {
+			System.out.printf("(Virtual Time: x%.1f compression; Real Time: %f sec)\n",
+					clock.getCompression(), 
+					(double) clock.toRealMillis(totalTime) / 1000 );
+		}
 		System.out.println("************************************************");
 	}
 
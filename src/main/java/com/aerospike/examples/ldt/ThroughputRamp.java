@@ -0,0 +1,277 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.aerospike.client.AerospikeClient;
+
+/**
+ * Find the maximum sustainable throughput of a cluster with a step-load ramp.
+ * 
+ * The ramp runs the regular EmulateUser workload (so every operation is a real
+ * Site Visit write plus the Segmented Cache check/reload) in stages of
+ * increasing target TPS.  At the end of each stage we measure:
+ * (*) the achieved throughput (operations per real second)
+ * (*) p99 latency of storeSiteObject (the Base Site Visit write)
+ * (*) p99 latency of reloadCache (the full Cache LDT reload)
+ * (*) the operation error rate
+ * 
+ * The ramp stops at the first stage that breaks a latency SLO or the error
+ * rate limit (or at the maximum TPS).  The "knee" of the curve is the last
+ * stage that met all of its limits AND kept up with its target load; the
+ * throughput of that stage is the maximum sustainable throughput.
+ */
+public class ThroughputRamp implements IAppConstants {
+	
+	/** An EmulateUser thread sleeps at least 10ms per op, so keep each
+	 * thread's share of the target well under 100 TPS. */
+	static final int MAX_THREAD_TPS = 50;
+	
+	/** A stage "keeps up" if it achieves at least this fraction of target. */
+	static final double KEEP_UP_RATIO = 0.90;
+	
+	private static final String CLASSNAME = "ThroughputRamp";
+
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private DbParameters dbParms;
+	private AppMetrics metrics;
+	private long customerRecords;
+	private long userRecords;
+	private long timeToLiveNs;
+	private int minThreads;
+	
+	// Ramp Settings
+	private int startTps;
+	private int stepTps;
+	private int maxTps;
+	private int stageSeconds;
+	
+	// Stop Limits
+	private double storeP99LimitMs;
+	private double reloadP99LimitMs;
+	private double errorPctLimit;
+	
+	/**
+	 * The measurements for one stage of the ramp.
+	 */
+	public static class StageResult {
+		public int targetTps;
+		public int threads;
+		public double achievedTps;
+		public long storeP99Us;
+		public long reloadP99Us;
+		public double errorPct;
+		public boolean passed;
+		public String reason = "ok";
+		
+		public String toString() {
+			return String.format("Target(%d) Threads(%d) Achieved(%.1f) " +
+					"StoreP99(%.2f ms) ReloadP99(%.2f ms) Errors(%.3f%%) %s(%s)",
+					targetTps, threads, achievedTps, storeP99Us / 1000.0,
+					reloadP99Us / 1000.0, errorPct, 
+					passed ? "PASS" : "STOP", reason);
+		}
+	}
+
+	/**
+	 * Set up a Throughput Ramp.
+	 * @param console
+	 * @param client
+	 * @param dbOps
+	 * @param dbParms
+	 * @param customerRecords
+	 * @param userRecords
+	 * @param timeToLiveNs
+	 * @param minThreads
+	 * @param rampSpec : "start,step,max,stageSeconds" (TPS and seconds)
+	 * @param sloSpec : "storeP99Ms,reloadP99Ms,errorPct"
+	 */
+	public ThroughputRamp(Console console, AerospikeClient client, DbOps dbOps,
+			DbParameters dbParms, long customerRecords, long userRecords,
+			long timeToLiveNs, int minThreads, String rampSpec, String sloSpec)
+	{
+		this.console = console;
+		this.client = client;
+		this.dbOps = dbOps;
+		this.dbParms = dbParms;
+		this.metrics = dbOps.getMetrics();
+		this.customerRecords = customerRecords;
+		this.userRecords = userRecords;
+		this.timeToLiveNs = timeToLiveNs;
+		this.minThreads = Math.max(1, minThreads);
+		
+		String[] ramp = rampSpec.split(",");
+		this.startTps = Integer.parseInt(ramp[0].trim());
+		this.stepTps = (ramp.length > 1) ? Integer.parseInt(ramp[1].trim()) : startTps;
+		this.maxTps = (ramp.length > 2) ? Integer.parseInt(ramp[2].trim()) : 100 * startTps;
+		this.stageSeconds = (ramp.length > 3) ? Integer.parseInt(ramp[3].trim()) : 60;
+		
+		String[] slo = sloSpec.split(",");
+		this.storeP99LimitMs = Double.parseDouble(slo[0].trim());
+		this.reloadP99LimitMs = (slo.length > 1) ? Double.parseDouble(slo[1].trim()) : 2000.0;
+		this.errorPctLimit = (slo.length > 2) ? Double.parseDouble(slo[2].trim()) : 1.0;
+	}
+	
+	/**
+	 * Run one stage of the ramp at the given target TPS.
+	 * @param targetTps
+	 * @return
+	 */
+	private StageResult runStage(int targetTps) {
+		final String meth = "runStage()";
+		StageResult result = new StageResult();
+		result.targetTps = targetTps;
+		
+		int threads = Math.max(minThreads, 
+				(targetTps + MAX_THREAD_TPS - 1) / MAX_THREAD_TPS);
+		int threadTPS = Math.max(1, (targetTps + threads - 1) / threads);
+		result.threads = threads;
+		
+		console.info("<%s:%s> Stage Start: Target(%d) Threads(%d) ThreadTPS(%d) Seconds(%d)",
+				CLASSNAME, meth, targetTps, threads, threadTPS, stageSeconds);
+		
+		LatencyHistogram storeHist = metrics.histogram(AppMetrics.STORE_SITE_OBJECT);
+		LatencyHistogram reloadHist = metrics.histogram(AppMetrics.RELOAD_CACHE);
+		long[] storeBefore = storeHist.snapshot();
+		long[] reloadBefore = reloadHist.snapshot();
+		long opsBefore = metrics.getCount(AppMetrics.USER_OPS);
+		long errorsBefore = metrics.getCount(AppMetrics.USER_ERRORS);
+		long startNs = System.nanoTime();
+		
+		// Start the regular User Emulation threads.  They'd run for a day, but
+		// we stop them when the stage time is up.
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<EmulateUser> users = new ArrayList<EmulateUser>();
+		for (int t = 0; t < threads; t++) {
+			EmulateUser user = new EmulateUser(console, client, dbOps, dbParms,
+					threadTPS, 1, customerRecords, userRecords, t, timeToLiveNs);
+			users.add(user);
+			executor.execute(user);
+		}
+		
+		try {
+			Thread.sleep(stageSeconds * 1000L);
+		} catch (InterruptedException ie) {
+			console.warn("<%s:%s> Stage Interrupted", CLASSNAME, meth);
+		}
+		
+		// Take our measurements at the end of the stage, before the threads
+		// drain, so that the window is exactly the stage window.
+		long elapsedNs = System.nanoTime() - startNs;
+		long[] storeCounts = LatencyHistogram.difference(storeHist.snapshot(), storeBefore);
+		long[] reloadCounts = LatencyHistogram.difference(reloadHist.snapshot(), reloadBefore);
+		long ops = metrics.getCount(AppMetrics.USER_OPS) - opsBefore;
+		long errors = metrics.getCount(AppMetrics.USER_ERRORS) - errorsBefore;
+		
+		for (EmulateUser user : users) {
+			user.requestStop();
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(stageSeconds + 120L, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			console.warn("<%s:%s> Stage Drain Interrupted", CLASSNAME, meth);
+		}
+		
+		result.achievedTps = ops / (elapsedNs / 1000000000.0);
+		result.storeP99Us = LatencyHistogram.percentileMicros(storeCounts, 99.0);
+		result.reloadP99Us = LatencyHistogram.percentileMicros(reloadCounts, 99.0);
+		result.errorPct = (ops == 0) ? 0.0 : (100.0 * errors) / ops;
+		
+		// Check the Stage against our limits.
+		result.passed = true;
+		if (result.storeP99Us / 1000.0 > storeP99LimitMs) {
+			result.passed = false;
+			result.reason = "storeSiteObject p99 SLO";
+		} else if (result.reloadP99Us / 1000.0 > reloadP99LimitMs) {
+			result.passed = false;
+			result.reason = "reloadCache p99 SLO";
+		} else if (result.errorPct > errorPctLimit) {
+			result.passed = false;
+			result.reason = "error rate";
+		} else if (result.achievedTps < KEEP_UP_RATIO * targetTps) {
+			result.reason = "saturated";
+		}
+		
+		console.info("<%s:%s> Stage Done: %s", CLASSNAME, meth, result.toString());
+		return result;
+	} // end runStage()
+
+	/**
+	 * Run the stages of the ramp until we break a limit or reach the max TPS,
+	 * then report the results and the knee of the curve.
+	 * @return the list of stage results
+	 */
+	public List<StageResult> runRamp() {
+		final String meth = "runRamp()";
+		List<StageResult> results = new ArrayList<StageResult>();
+		StageResult knee = null;
+		
+		console.info("<%s:%s> Ramp: Start(%d) Step(%d) Max(%d) StageSec(%d) " +
+				"StoreP99(%.1f ms) ReloadP99(%.1f ms) ErrorLimit(%.2f%%)",
+				CLASSNAME, meth, startTps, stepTps, maxTps, stageSeconds,
+				storeP99LimitMs, reloadP99LimitMs, errorPctLimit);
+		
+		for (int target = startTps; target <= maxTps; target += stepTps) {
+			StageResult result = runStage(target);
+			results.add(result);
+			if (!result.passed) {
+				break;
+			}
+			// Only a stage that keeps up with its load counts for the knee.
+			// Once we're saturated, more offered load won't buy throughput.
+			if (result.achievedTps >= KEEP_UP_RATIO * target) {
+				if (knee == null || result.achievedTps > knee.achievedTps) {
+					knee = result;
+				}
+			} else {
+				break;
+			}
+			if (stepTps <= 0) {
+				break;
+			}
+		}
+		
+		// Show the curve and the knee.
+		System.out.println("************************************************");
+		System.out.println("Throughput Ramp Results:");
+		for (StageResult result : results) {
+			System.out.println("  " + result.toString());
+		}
+		if (knee != null) {
+			System.out.printf("Max Sustainable Throughput (knee): %.1f TPS at Target(%d) " +
+					"StoreP99(%.2f ms) ReloadP99(%.2f ms)\n",
+					knee.achievedTps, knee.targetTps, knee.storeP99Us / 1000.0,
+					knee.reloadP99Us / 1000.0);
+			metrics.setInfo("ramp.knee", knee.toString());
+			metrics.setGauge("ramp.maxSustainableTps", (long) knee.achievedTps);
+		} else {
+			System.out.println("No stage met the limits: lower the starting TPS.");
+		}
+		System.out.println("************************************************");
+		
+		return results;
+	} // end runRamp()
+
+} // end class ThroughputRamp
@@ -0,0 +1,94 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+/**
+ * A simple Token Bucket rate limiter (in real time).  Tokens accrue at
+ * "rate" per second, up to "burst" tokens;  each acquire() takes one token,
+ * waiting for it if the bucket is empty.  The rate may be changed at any
+ * time (see CleanThrottle).
+ */
+public class TokenBucket {
+	
+	/** Never sleep longer than this (ms) before looking at the rate again. */
+	private static final long MAX_WAIT_MS = 100L;
+	
+	private final double burstSec;
+	private double ratePerSec;
+	private double burst;
+	private double tokens;
+	private long lastRefillNs;
+	
+	/**
+	 * @param ratePerSec : tokens added per second
+	 * @param burstSec : the bucket holds this many seconds' worth of tokens
+	 */
+	public TokenBucket(double ratePerSec, double burstSec) {
+		this.burstSec = burstSec;
+		this.ratePerSec = ratePerSec;
+		this.burst = Math.max(1.0, ratePerSec * burstSec);
+		this.tokens = this.burst;
+		this.lastRefillNs = System.nanoTime();
+	}
+	
+	/**
+	 * Add the tokens earned since the last refill.  Caller holds the lock.
+	 */
+	private void refill() {
+		long nowNs = System.nanoTime();
+		tokens = Math.min(burst, 
+				tokens + ((nowNs - lastRefillNs) * ratePerSec) / 1e9);
+		lastRefillNs = nowNs;
+	}
+	
+	/**
+	 * Take one token, waiting (as long as needed) for one to be available.
+	 * @throws InterruptedException
+	 */
+	public void acquire() throws InterruptedException {
+		while (true) {
+			long waitMs;
+			synchronized (this) {
+				refill();
+				if (tokens >= 1.0) {
+					tokens -= 1.0;
+					return;
+				}
+				waitMs = (long) Math.ceil(((1.0 - tokens) * 1000.0) / ratePerSec);
+			}
+			Thread.sleep(Math.max(1L, Math.min(waitMs, MAX_WAIT_MS)));
+		}
+	} // end acquire()
+	
+	/**
+	 * Change the rate.  The burst size keeps the same number of seconds (as
+	 * given to the constructor -- not derived from the current burst, which
+	 * is at least one token and so would grow at a very low rate).
+	 * @param newRatePerSec
+	 */
+	public synchronized void setRate(double newRatePerSec) {
+		refill();
+		this.ratePerSec = newRatePerSec;
+		this.burst = Math.max(1.0, newRatePerSec * burstSec);
+		this.tokens = Math.min(tokens, burst);
+	}
+	
+	public synchronized double getRate() {
+		return ratePerSec;
+	}
+
+} // end class TokenBucket
@@ -0,0 +1,253 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.task.ExecuteTask;
+
+/**
+ * Clean Method 3:  Scan UDF clean of ALL of the Customer Sets, tracked from
+ * ONE thread.
+ * 
+ * With Method 2 each set's Scan UDF is started and then waited on with
+ * waitTillComplete(), which ties up a whole thread per set (and tells us
+ * nothing until it returns).  Here the monitor thread starts the background
+ * Scan UDFs itself, and then polls all of the ExecuteTask handles:  as each
+ * one finishes, it releases its Scan Permit (see DbOps) and the next set
+ * in line is started.  So there are never more Scan UDFs running than
+ * there are permits, and there is no thread waiting on any one of them.
+ * 
+ * Each round cleans every set once;  a new round starts every clean
+ * interval (or right away, if the last round ran long).  For every set we
+ * record how long its Scan UDF took, and for every round the round time
+ * and the throughput in sets per minute, and we report the progress of
+ * the round as it goes.
+ * 
+ * Metrics: clean.udfSetTime and clean.udfRoundTime (histograms),
+ * clean.udfSetsDone and clean.udfSetsFailed (counters), and the gauges
+ * clean.udfRunning and clean.udfSetsPerMin.
+ */
+public class UdfCleanMonitor implements Runnable {
+	
+	// Metric Names
+	public static final String UDF_SET_TIME = "clean.udfSetTime";
+	public static final String UDF_ROUND_TIME = "clean.udfRoundTime";
+	public static final String UDF_SETS_DONE = "clean.udfSetsDone";
+	public static final String UDF_SETS_FAILED = "clean.udfSetsFailed";
+	public static final String UDF_RUNNING = "clean.udfRunning";
+	public static final String UDF_SETS_PER_MIN = "clean.udfSetsPerMin";
+	
+	/** How often (real ms) we poll the running tasks. */
+	private static final long POLL_MS = 50L;
+	
+	/** How often (real ms) we report the progress of a round. */
+	private static final long PROGRESS_MS = 10000L;
+	
+	private static final String CLASSNAME = "UdfCleanMonitor";
+	
+	private Console console;
+	private IClock clock;
+	private AppMetrics metrics;
+	private Semaphore scanPermits;
+	private long intervalNs;
+	private long runPeriodNs;
+	private final List<CleanLdtDataWithUDF> cleaners;
+	private Thread monitor;
+	private volatile boolean running = false;
+	
+	/**
+	 * One Scan UDF in flight.
+	 */
+	private static class RunningClean {
+		final CleanLdtDataWithUDF cleaner;
+		final ExecuteTask task;
+		final long startNs; // Real time, for the set's clean time
+		
+		RunningClean(CleanLdtDataWithUDF cleaner, ExecuteTask task) {
+			this.cleaner = cleaner;
+			this.task = task;
+			this.startNs = System.nanoTime();
+		}
+	} // end class RunningClean
+
+	/**
+	 * @param console
+	 * @param dbOps : for the clock, the metrics and the Scan Permits
+	 * @param cleanIntervalSec : (virtual) time between rounds
+	 * @param runSeconds : (virtual) time to keep cleaning
+	 */
+	public UdfCleanMonitor(Console console, DbOps dbOps, int cleanIntervalSec,
+			long runSeconds) 
+	{
+		this.console = console;
+		this.clock = dbOps.getClock();
+		this.metrics = dbOps.getMetrics();
+		this.scanPermits = dbOps.getScanPermits();
+		this.intervalNs = cleanIntervalSec * 1000000000L;
+		this.runPeriodNs = runSeconds * 1000000000L;
+		this.cleaners = new ArrayList<CleanLdtDataWithUDF>();
+	}
+	
+	/**
+	 * Add a set's cleaner.  Call this before start().
+	 * @param cleaner
+	 */
+	public void addCleaner(CleanLdtDataWithUDF cleaner) {
+		cleaners.add(cleaner);
+	}
+	
+	/**
+	 * Start the monitor thread.
+	 */
+	public void start() {
+		running = true;
+		monitor = new Thread(this, "UdfCleanMonitor");
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+	
+	/**
+	 * Run rounds until the run period is over.
+	 */
+	public void run() {
+		final String meth = "run()";
+		long startNs = clock.nanoTime();
+		int round = 0;
+		try {
+			while (running) {
+				long roundStartNs = clock.nanoTime();
+				if (roundStartNs - startNs > runPeriodNs) {
+					console.info("<%s:%s> Clean Run Period is over", CLASSNAME, meth);
+					break;
+				}
+				runRound(++round);
+				
+				// Sleep out the rest of the interval (if any), a little at a
+				// time so that a stop() doesn't have to wait it out.
+				long dueNs = roundStartNs + intervalNs;
+				long restMs;
+				while (running && 
+						(restMs = (dueNs - clock.nanoTime()) / 1000000L) > 0) 
+				{
+					Thread.sleep(Math.max(1L, 
+							Math.min(clock.toRealMillis(restMs), POLL_MS * 2)));
+				}
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		running = false;
+	} // end run()
+	
+	/**
+	 * One round:  start the Scan UDF on every set, never more at once than
+	 * the Scan Permits allow, and poll them until they are all done.
+	 * @param round
+	 * @throws InterruptedException
+	 */
+	private void runRound(int round) throws InterruptedException {
+		final String meth = "runRound()";
+		LinkedList<CleanLdtDataWithUDF> pending = 
+				new LinkedList<CleanLdtDataWithUDF>(cleaners);
+		List<RunningClean> inFlight = new ArrayList<RunningClean>();
+		int total = pending.size();
+		int done = 0;
+		int failed = 0;
+		long roundStartNs = System.nanoTime();
+		long lastReportMs = System.currentTimeMillis();
+		
+		while (! pending.isEmpty() || ! inFlight.isEmpty()) {
+			// Start as many sets as we have permits for.
+			while (! pending.isEmpty() && scanPermits.tryAcquire()) {
+				CleanLdtDataWithUDF cleaner = pending.removeFirst();
+				try {
+					inFlight.add(new RunningClean(cleaner, cleaner.startClean()));
+				} catch (Exception e) {
+					scanPermits.release();
+					failed++;
+					metrics.increment(UDF_SETS_FAILED);
+					console.error("<%s:%s> Scan UDF Start Failed: Set(%s) Error(%s)",
+							CLASSNAME, meth, cleaner.getSetName(), e.toString());
+				}
+			}
+			metrics.setGauge(UDF_RUNNING, inFlight.size());
+			
+			// Poll the ones that are running.
+			Iterator<RunningClean> iter = inFlight.iterator();
+			while (iter.hasNext()) {
+				RunningClean rc = iter.next();
+				try {
+					if (! rc.task.isDone()) {
+						continue;
+					}
+					done++;
+					metrics.histogram(UDF_SET_TIME).record(System.nanoTime() - rc.startNs);
+					metrics.increment(UDF_SETS_DONE);
+				} catch (AerospikeException ae) {
+					failed++;
+					metrics.increment(UDF_SETS_FAILED);
+					console.error("<%s:%s> Scan UDF Failed: Set(%s) Error(%s)",
+							CLASSNAME, meth, rc.cleaner.getSetName(), ae.toString());
+				}
+				iter.remove();
+				scanPermits.release();
+			}
+			
+			if (System.currentTimeMillis() - lastReportMs >= PROGRESS_MS) {
+				lastReportMs = System.currentTimeMillis();
+				console.info("<%s:%s> Round(%d) Done(%d of %d) Running(%d) Failed(%d) Elapsed(%d ms)",
+						CLASSNAME, meth, round, done, total, inFlight.size(), 
+						failed, (System.nanoTime() - roundStartNs) / 1000000L);
+			}
+			if (! inFlight.isEmpty()) {
+				Thread.sleep(POLL_MS);
+			}
+		}
+		metrics.setGauge(UDF_RUNNING, 0);
+		
+		long roundNs = System.nanoTime() - roundStartNs;
+		metrics.histogram(UDF_ROUND_TIME).record(roundNs);
+		long setsPerMin = (roundNs > 0) ? (done * 60000000000L) / roundNs : 0;
+		metrics.setGauge(UDF_SETS_PER_MIN, setsPerMin);
+		console.info("<%s:%s> Round(%d) Complete: Sets(%d) Failed(%d) Time(%d ms) Sets/Min(%d)",
+				CLASSNAME, meth, round, done, failed, roundNs / 1000000L, setsPerMin);
+	} // end runRound()
+	
+	/**
+	 * Stop the monitor.  If asked, first let it run out its run period.
+	 * A round in progress is always allowed to finish (the Scan UDFs would
+	 * keep running on the server anyway).
+	 * @param finishRunPeriod
+	 */
+	public void stop(boolean finishRunPeriod) {
+		try {
+			if (! finishRunPeriod) {
+				running = false;
+			}
+			monitor.join();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	} // end stop()
+
+} // end class UdfCleanMonitor
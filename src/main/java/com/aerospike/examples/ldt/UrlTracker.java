@@ -121,18 +121,32 @@ public class UrlTracker implements IAppConstants {
 
 	private int cleanIntervalSec; // Sleep time (in sec) between LDT Clean expiration cycles
 	private long cleanDurationSec; // Total amount of time to run the clean threads
-	private int cleanMethod; // Do we clean with client code(1) or UDF code(2)?
+	private int cleanMethod; // Do we clean with client code(1), UDF code(2) or monitored UDF code(3)?
 	
 	private long timeToLive; // The minimum length of time for a site obj to live.
 	
 	private boolean noCleanThreads; // If true, do not invoke Clean Threads.
 	
 	private int emulationDays; // When non-zero, number of days to run a simulation;
+	private double timeCompression; // Virtual seconds per real second (1.0 = real)
+	
+	private String rampSpec; // When non-null, run a Throughput Ramp (start,step,max,sec)
+	private String rampSlo;  // Ramp stop limits (storeP99Ms,reloadP99Ms,errorPct)
+	private String benchSpec; // When non-null, run the Interference Benchmark
+	private String benchOut;  // Interference Benchmark result table
+	private String importSpec; // When non-null, Bulk Import these files (f1,f2,...)
+	private String exportSpec; // When non-null, Export the visits (dir[,namespace])
+	private String snapshotSpec; // When non-null, Snapshot the sets (dir[,namespace])
+	private String restoreSpec; // When non-null, Restore a Snapshot (dir[,namespace])
+	private String batchSpec; // When non-null, run the Batch Query Benchmark
 
 	protected Console console; // Easy IO for tracing/debugging
 	private TestTiming testTiming;
 	
 	public static final String MOD = "URL-Tracker: 2014_10_14A";
+	
+	/** Cache Admission sketch width (counters per row), when not given. */
+	public static final int DEFAULT_SKETCH_WIDTH = 65536;
 
 	/**
 	 * Constructor for URL Tracker EXAMPLE class.
@@ -160,6 +174,7 @@ public class UrlTracker implements IAppConstants {
 	 * @param noCleanThreads
 	 * @param doScan
 	 * @param emulationDays
+	 * @param timeCompression
 	 * @throws AerospikeException
 	 */
 	public UrlTracker(Console console, String host, int port, String namespace, 
@@ -168,7 +183,8 @@ public class UrlTracker implements IAppConstants {
 			long customers, long records, long generateCount, int threadCount,
 			int cleanIntervalSec, long cleanDurationSec, int cleanMethod,
 			long timeToLive,  boolean noLoad, boolean loadOnly, 
-			boolean noCleanThreads, boolean doScan, int emulationDays
+			boolean noCleanThreads, boolean doScan, int emulationDays,
+			double timeCompression
 			)  	throws AerospikeException 
 	{
 		this.host = host;
@@ -181,6 +197,11 @@ public class UrlTracker implements IAppConstants {
 		
 		this.dbOps = new DbOps(console, parms, ldtType);
 		
+		// Everyone works off of the same clock.  With a compression factor
+		// greater than one, the emulation runs in VIRTUAL time.
+		this.timeCompression = timeCompression;
+		this.dbOps.setClock(new VirtualClock(timeCompression));
+		
 		this.client = dbOps.getClient();
 		this.inputFileName = fileName;
 		this.ldtType = ldtType;
@@ -207,7 +228,7 @@ public class UrlTracker implements IAppConstants {
 		this.noCleanThreads = noCleanThreads;
 		this.emulationDays = emulationDays;
 		
-		this.testTiming = new TestTiming();
+		this.testTiming = new TestTiming(dbOps.getClock());
 	} // end UrlTracker constructor
 	
 	
@@ -227,15 +248,50 @@ public class UrlTracker implements IAppConstants {
 			ProcessCommands pc = new ProcessCommands(console, parms, 
 					ldtType, dbOps, timeToLive, testTiming);
 
-			if (generateCount > 0 || emulationDays > 0){
+			if (snapshotSpec != null) {
+				// Snapshot of the dataset to local files.
+				pc.snapshotSets(threadCount, customerRecords, snapshotSpec);
+				
+			} else if (restoreSpec != null) {
+				// Restore a dataset from its Snapshot files.
+				pc.restoreSnapshot(threadCount, restoreSpec);
+				
+			} else if (exportSpec != null) {
+				// Columnar Export of the Site Visits for offline analytics.
+				pc.exportVisits(threadCount, customerRecords, exportSpec);
+				
+			} else if (batchSpec != null) {
+				// Batch Query vs the sequential query loop.
+				pc.batchQueryBenchmark(customerRecords, userRecords, batchSpec);
+				
+			} else if (importSpec != null) {
+				// Bulk Import of historical Site Visits from local files.
+				pc.bulkImport(threadCount, customerRecords, importSpec);
+				
+			} else if (generateCount > 0 || emulationDays > 0 || rampSpec != null
+					|| benchSpec != null)
+			{
+				// The Ramp (and the Benchmark) also fill the Segmented Cache,
+				// so clean it like an emulation run.
+				int cleanEmulation = (rampSpec != null || benchSpec != null) 
+						? 1 : emulationDays;
+				
 				// We are using the command generator to drive this application
 				if ( cleanBefore && !noLoad ) {
 					testTiming.setStartTime( AppPhases.CLEAN);
-					pc.cleanDB(customerRecords, userRecords, emulationDays);
+					pc.cleanDB(customerRecords, userRecords, cleanEmulation);
 					testTiming.setEndTime( AppPhases.CLEAN);
 				}
 
-				if (emulationDays > 0) {
+				if (benchSpec != null) {
+					pc.interferenceBenchmark(threadCount, customerRecords, 
+							userRecords, noLoad, benchSpec, benchOut);
+					
+				} else if (rampSpec != null) {
+					pc.rampThroughput(threadCount, customerRecords, userRecords,
+							noLoad, rampSpec, rampSlo);
+					
+				} else if (emulationDays > 0) {
 					pc.emulateCustomer(threadCount, customerRecords, userRecords, 
 							noLoad, emulationDays, noCleanThreads, cleanMethod);
 
@@ -247,9 +303,14 @@ public class UrlTracker implements IAppConstants {
 							noCleanThreads, doScan );
 				}
 
+				// Before the Cache is cleaned out:  how did it do?
+				if (emulationDays > 0 || rampSpec != null || benchSpec != null) {
+					dbOps.reportCacheUsage(cacheNamespace);
+				}
+
 				if ( cleanAfter && !loadOnly ) {
 					testTiming.setStartTime( AppPhases.REMOVE);
-					pc.cleanDB(customerRecords, userRecords, emulationDays);
+					pc.cleanDB(customerRecords, userRecords, cleanEmulation);
 					testTiming.setEndTime( AppPhases.REMOVE);
 				}
 			} else {
@@ -264,6 +325,16 @@ public class UrlTracker implements IAppConstants {
 		// All done.  Show our timing stats
 		testTiming.setFinish();
 		testTiming.printStats();
+		if (dbOps.getHeavyHitters() != null) {
+			dbOps.getHeavyHitters().printReport();
+		}
+		if (dbOps.getRollup() != null) {
+			dbOps.getRollup().stop();
+		}
+		if (dbOps.getSessions() != null) {
+			dbOps.getSessions().stop();
+		}
+		dbOps.getMetrics().printStats();
 		
 	} // end runUrlTracker()
 	
@@ -297,7 +368,7 @@ public class UrlTracker implements IAppConstants {
 			
 			options.addOption("I", "CleanInterval", true, "Time to sleep in seconds between cleaning (default: 1200 sec)");
 			options.addOption("D", "CleanDuration", true, "Total seconds to run clean threads (default: 3600 sec)");
-			options.addOption("M", "CleanMethod", true, "Method for cleaning expired values: 1:client, 2:UDF(default)");
+			options.addOption("M", "CleanMethod", true, "Method for cleaning expired values: 1:client, 2:UDF(default), 3:UDF tracked from one monitor thread");
 			options.addOption("X", "NoCleanThreads", false, "Turn off the Set Cleaning Threads");
 					
 			options.addOption("C", "Clean", true, "CLEAN all records at start of run (0==no, 1==yes) (default: 1)");
@@ -309,6 +380,31 @@ public class UrlTracker implements IAppConstants {
 			options.addOption("S", "DoScan", false, "Scan the LDTs after the Update Phase");
 			
 			options.addOption("E", "Emulate", true, "Emulate Customer Activity for N days (default N=0)");
+			options.addOption("K", "TimeCompression", true, "Run the clock K times faster than real time (default: 1.0). The TPS stays in real seconds, so the users arrive K times more slowly in virtual time");
+			options.addOption("A", "Ramp", true, "Throughput Ramp mode: start,step,max TPS and stage seconds (e.g. 500,500,20000,60)");
+			options.addOption("J", "Lanes", true, "Number of per-user ordered write lanes (default: 0 = no lanes)");
+			options.addOption("H", "HotShards", true, "Spread each hot user's LDT across N sub-records (default: 0 = no sharding)");
+			options.addOption("Y", "ShardBy", true, "Hot user shard choice: hash or time (default: hash)");
+			options.addOption("W", "LdtCap", true, "Cap each user's LDT, trimmed on write: ns=maxCount[/maxAgeSec],... (e.g. cache=500,base=20000/604800)");
+			options.addOption("Z", "LazyExpiry", true, "Lazy Expiry: each write removes up to N expired visits (default: 0 = off)");
+			options.addOption("B", "CleanRate", true, "Throttle the client cleaners by foreground p99: maxRecordsPerSec[,storeP99Ms,reloadP99Ms] (e.g. 2000,50,2000)");
+			options.addOption("F", "Interference", true, "Interference Benchmark: tps=N,sec=N,methods=1/2/3,intervals=S/S,permits=N/N,types=LLIST/LMAP");
+			options.addOption("U", "BenchOut", true, "Interference Benchmark result table (default: interference.tsv)");
+			options.addOption("G", "CacheFirst", true, "Query Site Visits from the Cache namespace first: reload (on a miss, reload the Cache in the background) or noreload");
+			options.addOption("V", "SlidingCache", true, "Sliding Cache expiration: touch active users' Cache records, at most N touches/sec (default: 0 = off)");
+			options.addOption("P", "ScanPermits", true, "Max clean scans running at once, across all customer sets (default: 4)");
+			options.addOption("Q", "RampSLO", true, "Ramp stop limits: storeP99Ms,reloadP99Ms,errorPct (default: 50,2000,1.0)");
+			options.addOption("a", "Admission", true, "Cache Admission: load a user into the Cache only after N recent visits: N[,sketchWidth] (default: off)");
+			options.addOption("k", "TopK", true, "Track the top K hot users and URLs of the Site Visit writes (default: 0 = off)");
+			options.addOption("i", "Import", true, "Bulk Import historical Site Visits (NDJSON or Apache combined log) from these files: file1[,file2...]");
+			options.addOption("x", "Export", true, "Export all Site Visits to column-oriented files, one per Customer Set: dir[,namespace] (default namespace: the Base namespace)");
+			options.addOption("y", "Snapshot", true, "Snapshot every Customer Set (bins and LDTs) to local files: dir[,namespace] (default namespace: the Base namespace)");
+			options.addOption("z", "Restore", true, "Restore the dataset from Snapshot files, instead of loading it: dir[,namespace] (default namespace: the Base namespace)");
+			options.addOption("q", "QueryFilter", true, "Filter the Site Visit queries on the server: fields=f1+f2,url=prefix,referrer=value,date=from/to (every part optional; a date with a unit, e.g. -1h, is relative to the query time)");
+			options.addOption("b", "BatchBench", true, "Batch Query Benchmark, on the loaded dataset: users[,rounds[,parallelism]] (default: 10 rounds, 16 parallel)");
+			options.addOption("w", "Rollup", true, "Keep per-customer, per-hour rollups (visits, unique users, top URLs) of the Site Visit writes, flushed every N seconds (default: 0 = off)");
+			options.addOption("o", "Sessions", true, "Sessionise the Site Visit writes with this inactivity gap, in (virtual) seconds, and store session summaries (default: 0 = off)");
+			options.addOption("e", "Verify", true, "Keep LDT Digests, and verify the Cache against the Base every N (virtual) seconds (default: 0 = off)");
 			options.addOption("1", "BaseNameSpace", true, "Namespace to use for Base Records (default: 'base')");
 			options.addOption("2", "CacheNameSpace", true, "Namespace to use for Cache Records (default: 'cache')");
 
@@ -367,6 +463,84 @@ public class UrlTracker implements IAppConstants {
 			String emulationString = cl.getOptionValue("E", "0");
 			int emulationDays = Integer.parseInt(emulationString);
 			
+			// Time Compression: Virtual seconds per real second.  TTLs, clean
+			// intervals and the emulation days all run on the virtual clock.
+			String compressionString = cl.getOptionValue("K", "1.0");
+			double timeCompression = Double.parseDouble(compressionString);
+			
+			// Throughput Ramp Mode: Step up the load until we break the SLO.
+			String rampSpec = cl.getOptionValue("A", null);
+			String rampSlo = cl.getOptionValue("Q", "50,2000,1.0");
+			
+			// User Lanes: Run each user's writes in order on one of N lanes.
+			String laneString = cl.getOptionValue("J", "0");
+			int laneCount = Integer.parseInt(laneString);
+			
+			// LDT Caps: Trim each user's LDT as part of the insert.
+			String capSpec = cl.getOptionValue("W", null);
+			
+			// Lazy Expiry: Writes remove (up to N) expired visits.
+			String purgeString = cl.getOptionValue("Z", "0");
+			int purgeLimit = Integer.parseInt(purgeString);
+			
+			// Hot-Key Sharding: Split the hot users' LDTs across sub-records.
+			String shardString = cl.getOptionValue("H", "0");
+			int hotShards = Integer.parseInt(shardString);
+			String shardBy = cl.getOptionValue("Y", 
+					ShardedLdtOperations.SHARD_BY_HASH);
+			
+			// Clean Scheduler: Limit on the clean scans running at once.
+			String permitString = cl.getOptionValue("P", 
+					String.valueOf(DbOps.DEFAULT_SCAN_PERMITS));
+			int scanPermits = Integer.parseInt(permitString);
+			
+			// Interference Benchmark: Sweep the cleaning under a fixed load.
+			String benchSpec = cl.getOptionValue("F", null);
+			String benchOut = cl.getOptionValue("U", "interference.tsv");
+			
+			// Bulk Import: Load historical Site Visits from local files.
+			String importSpec = cl.getOptionValue("i", null);
+			
+			// Columnar Export: Write the Site Visits out for offline analytics.
+			String exportSpec = cl.getOptionValue("x", null);
+			
+			// Snapshot/Restore: Save a generated dataset, or load it back.
+			String snapshotSpec = cl.getOptionValue("y", null);
+			String restoreSpec = cl.getOptionValue("z", null);
+			
+			// Query Filter: Predicate and Projection on the Site Visit queries.
+			String filterSpec = cl.getOptionValue("q", null);
+			
+			// Batch Query Benchmark: Batch vs Sequential Site Visit queries.
+			String batchSpec = cl.getOptionValue("b", null);
+			
+			// Rollups: Per-customer, per-hour counters of the writes.
+			int rollupSeconds = Integer.parseInt(cl.getOptionValue("w", "0"));
+			
+			// Sessions: Sessionise the Site Visit event stream.
+			int sessionGapSeconds = Integer.parseInt(cl.getOptionValue("o", "0"));
+			
+			// Cache-First Reads: Query the Cache namespace, then the Base.
+			String cacheFirst = cl.getOptionValue("G", null);
+			
+			// Sliding Cache Expiration: Touch the active users' Cache records.
+			String touchString = cl.getOptionValue("V", "0");
+			int touchesPerSec = Integer.parseInt(touchString);
+			
+			// Cache Admission: Only the frequent users are loaded into the Cache.
+			String admissionSpec = cl.getOptionValue("a", null);
+			
+			// Heavy Hitters: Track the hottest users and URLs.
+			String topKString = cl.getOptionValue("k", "0");
+			int topK = Integer.parseInt(topKString);
+			
+			// Anti-Entropy: Verify the Cache LDTs against the Base LDTs.
+			String verifyString = cl.getOptionValue("e", "0");
+			int verifySeconds = Integer.parseInt(verifyString);
+			
+			// Clean Throttle: Budget the client cleaners by foreground latency.
+			String cleanRateSpec = cl.getOptionValue("B", null);
+			
 			// Base NameSpace when in Emulation Mode
 			String baseNamespace = cl.getOptionValue("1", "base");
 			// Cache NameSpace when in Emulation Mode
@@ -429,11 +603,30 @@ public class UrlTracker implements IAppConstants {
 			console.info("TimeToLive: " + timeToLive);
 			console.info("Clean Interval: " + intervalSeconds);
 			console.info("Clean Duration: " + durationSeconds);
-			console.info("Clean Method (1 or 2): " + cleanMethod);
+			console.info("Clean Method (1, 2 or 3): " + cleanMethod);
 			console.info("No Load: " + noLoad);
 			console.info("Load Only: " + loadOnly);
 			console.info("No Clean Threads: " + noCleanThreads);
 			console.info("Emulation Days: " + emulationDays);
+			console.info("Time Compression: " + timeCompression);
+			console.info("Throughput Ramp: " + rampSpec + " SLO: " + rampSlo);
+			console.info("User Lanes: " + laneCount);
+			console.info("Hot User Shards: " + hotShards + " By: " + shardBy);
+			console.info("LDT Caps: " + capSpec + " Lazy Expiry: " + purgeLimit);
+			console.info("Scan Permits: " + scanPermits);
+			console.info("Clean Rate: " + cleanRateSpec);
+			console.info("Cache-First Reads: " + cacheFirst);
+			console.info("Sliding Cache Touches/Sec: " + touchesPerSec);
+			console.info("Cache Admission: " + admissionSpec);
+			console.info("Heavy Hitters Top K: " + topK);
+			console.info("Interference Benchmark: " + benchSpec + " Out: " + benchOut);
+			console.info("Bulk Import: " + importSpec);
+			console.info("Columnar Export: " + exportSpec);
+			console.info("Snapshot: " + snapshotSpec + " Restore: " + restoreSpec);
+			console.info("Query Filter: " + filterSpec);
+			console.info("Batch Query Benchmark: " + batchSpec);
+			console.info("Rollup Flush Seconds: " + rollupSeconds);
+			console.info("Session Gap Seconds: " + sessionGapSeconds);
 			
 			// Validate the LDT implementation that we're going to use
 			if (LLIST.equalsIgnoreCase(ldtType) ||  
@@ -451,7 +644,26 @@ public class UrlTracker implements IAppConstants {
 					fileName, ldtType, clean, remove, customers, records, 
 					generateCount, threadCount, intervalSeconds, durationSeconds, 
 					cleanMethod, timeToLive, noLoad, loadOnly, noCleanThreads,
-					doScan, emulationDays);
+					doScan, emulationDays, timeCompression);
+			urlTracker.setRamp(rampSpec, rampSlo);
+			urlTracker.setLaneCount(laneCount);
+			urlTracker.setLdtCaps(capSpec, purgeLimit);
+			urlTracker.setHotSharding(hotShards, shardBy);
+			urlTracker.setHeavyHitters(topK);
+			urlTracker.setRollup(rollupSeconds);
+			urlTracker.setSessions(sessionGapSeconds);
+			urlTracker.setScanPermits(scanPermits);
+			urlTracker.setCleanThrottle(cleanRateSpec);
+			urlTracker.setCacheFirst(cacheFirst);
+			urlTracker.setSlidingCache(touchesPerSec);
+			urlTracker.setCacheAdmission(admissionSpec);
+			urlTracker.setVisitFilter(filterSpec);
+			urlTracker.setVerifier(verifySeconds);
+			urlTracker.setBenchmark(benchSpec, benchOut);
+			urlTracker.setBatchBenchmark(batchSpec);
+			urlTracker.setImport(importSpec);
+			urlTracker.setExport(exportSpec);
+			urlTracker.setSnapshot(snapshotSpec, restoreSpec);
 			// Run the main application with the given parameters.
 			urlTracker.runUrlTracker();
 
@@ -527,6 +739,208 @@ public class UrlTracker implements IAppConstants {
 		this.cleanMethod = cleanMethod;
 	}
 
+	/**
+	 * Turn on Throughput Ramp mode (when rampSpec is non-null).
+	 * @param rampSpec : "start,step,max,stageSeconds"
+	 * @param rampSlo : "storeP99Ms,reloadP99Ms,errorPct"
+	 */
+	public void setRamp(String rampSpec, String rampSlo) {
+		this.rampSpec = rampSpec;
+		this.rampSlo = rampSlo;
+	}
+
+	/**
+	 * Turn on User Lanes (when laneCount > 0).
+	 * @param laneCount
+	 */
+	public void setLaneCount(int laneCount) {
+		dbOps.setLaneCount(laneCount);
+	}
+
+	/**
+	 * Turn on the trim-on-write LDT Caps (when capSpec is non-null) and the
+	 * Lazy Expiry on write (when purgeLimit > 0).
+	 * This must come before setHotSharding() (see DbOps.enableCaps()).
+	 * @param capSpec : "ns=maxCount[/maxAgeSec],..."
+	 * @param purgeLimit : max expired visits removed per write
+	 */
+	public void setLdtCaps(String capSpec, int purgeLimit) {
+		Map<String, LdtCapPolicy> caps = LdtCapPolicy.parse(capSpec);
+		if (! caps.isEmpty() || purgeLimit > 0) {
+			dbOps.enableCaps(caps, timeToLive * 1000000000L, purgeLimit);
+		}
+	}
+
+	/**
+	 * Turn on Hot-Key Sharding (when shardCount > 0).  The hot users are the
+	 * "special" users of each customer (see EmulateUser), which get the
+	 * extra share of the Site Visit traffic.
+	 * @param shardCount
+	 * @param shardBy
+	 */
+	public void setHotSharding(int shardCount, String shardBy) {
+		if (shardCount <= 0) {
+			return;
+		}
+		ShardedLdtOperations shardedOps = dbOps.enableSharding(shardCount, 
+				shardBy, timeToLive * 1000000000L);
+		for (int i = 0; i < EmulateUser.SPECIAL_RECORDS; i++) {
+			UserRecord userRec = new UserRecord(console, dbOps, "", i);
+			shardedOps.registerHotUser(userRec.getUserID());
+		}
+	}
+
+	/**
+	 * Filter the Site Visit queries on the server (see VisitFilter).
+	 * @param filterSpec : null for no filter
+	 */
+	public void setVisitFilter(String filterSpec) {
+		dbOps.setVisitFilter(VisitFilter.parse(filterSpec));
+	}
+
+	/**
+	 * Set the limit on the clean scans that run at once (see CleanScheduler).
+	 * @param scanPermits
+	 */
+	public void setScanPermits(int scanPermits) {
+		dbOps.setScanPermits(scanPermits);
+	}
+
+	/**
+	 * Turn on Snapshot mode (when snapshotSpec is non-null) or Restore mode
+	 * (when restoreSpec is non-null).
+	 * @param snapshotSpec : "dir[,namespace]"
+	 * @param restoreSpec : "dir[,namespace]"
+	 */
+	public void setSnapshot(String snapshotSpec, String restoreSpec) {
+		this.snapshotSpec = snapshotSpec;
+		this.restoreSpec = restoreSpec;
+	}
+
+	/**
+	 * Turn on Columnar Export mode (when exportSpec is non-null).
+	 * @param exportSpec : "dir[,namespace]"
+	 */
+	public void setExport(String exportSpec) {
+		this.exportSpec = exportSpec;
+	}
+
+	/**
+	 * Turn on Bulk Import mode (when importSpec is non-null).
+	 * @param importSpec : the files to import, comma separated
+	 */
+	public void setImport(String importSpec) {
+		this.importSpec = importSpec;
+	}
+
+	/**
+	 * Turn on Batch Query Benchmark mode (when batchSpec is non-null).
+	 * @param batchSpec : see BatchQueryBenchmark
+	 */
+	public void setBatchBenchmark(String batchSpec) {
+		this.batchSpec = batchSpec;
+	}
+
+	/**
+	 * Turn on Interference Benchmark mode (when benchSpec is non-null).
+	 * @param benchSpec : see InterferenceBenchmark
+	 * @param benchOut : the result table file
+	 */
+	public void setBenchmark(String benchSpec, String benchOut) {
+		this.benchSpec = benchSpec;
+		this.benchOut = benchOut;
+	}
+
+	/**
+	 * Turn on Heavy Hitter tracking (when topK > 0).  This must come after
+	 * setHotSharding() (see DbOps.enableHeavyHitters()).
+	 * @param topK
+	 */
+	public void setHeavyHitters(int topK) {
+		if (topK > 0) {
+			dbOps.enableHeavyHitters(topK);
+		}
+	}
+
+	/**
+	 * Turn on the per-customer, per-hour Rollups (when flushSec > 0) in the
+	 * Base namespace (see DbOps.enableRollup()).
+	 * @param flushSec
+	 */
+	public void setRollup(int flushSec) {
+		if (flushSec > 0) {
+			dbOps.enableRollup(baseNamespace, flushSec);
+		}
+	}
+
+	/**
+	 * Turn on Sessionisation (when gapSec > 0), with the session summaries
+	 * in the Base namespace (see DbOps.enableSessions()).
+	 * @param gapSec
+	 */
+	public void setSessions(int gapSec) {
+		if (gapSec > 0) {
+			dbOps.enableSessions(baseNamespace, gapSec);
+		}
+	}
+
+	/**
+	 * Turn on the LDT Digests and the Consistency Verifier (when 
+	 * intervalSec > 0).  This must come after all of the other LDT
+	 * Operations wrappers (see DbOps.enableVerifier()).
+	 * @param intervalSec
+	 */
+	public void setVerifier(int intervalSec) {
+		if (intervalSec > 0) {
+			dbOps.enableVerifier(baseNamespace, cacheNamespace, intervalSec);
+		}
+	}
+
+	/**
+	 * Turn on Cache Admission (when admissionSpec is non-null).
+	 * @param admissionSpec : "threshold[,sketchWidth]"
+	 */
+	public void setCacheAdmission(String admissionSpec) {
+		if (admissionSpec == null) {
+			return;
+		}
+		String[] parts = admissionSpec.split(",");
+		int threshold = Integer.parseInt(parts[0].trim());
+		int width = (parts.length > 1) ? Integer.parseInt(parts[1].trim()) 
+				: DEFAULT_SKETCH_WIDTH;
+		dbOps.enableCacheAdmission(threshold, width);
+	}
+
+	/**
+	 * Turn on Sliding Cache expiration (when touchesPerSec > 0).
+	 * @param touchesPerSec
+	 */
+	public void setSlidingCache(int touchesPerSec) {
+		if (touchesPerSec > 0) {
+			dbOps.enableSlidingExpiration(cacheNamespace, touchesPerSec);
+		}
+	}
+
+	/**
+	 * Turn on Cache-First reads (when cacheFirst is non-null).
+	 * @param cacheFirst : "reload" (background reload on a miss) or "noreload"
+	 */
+	public void setCacheFirst(String cacheFirst) {
+		if (cacheFirst != null) {
+			dbOps.enableCacheFirstReads(baseNamespace, cacheNamespace, 
+					! "noreload".equalsIgnoreCase(cacheFirst));
+		}
+	}
+
+	/**
+	 * Turn on the Clean Throttle (when cleanRateSpec is non-null).
+	 * @param cleanRateSpec : "maxRecordsPerSec[,storeP99Ms,reloadP99Ms]"
+	 */
+	public void setCleanThrottle(String cleanRateSpec) {
+		dbOps.setCleanThrottle(CleanThrottle.parse(console, 
+				dbOps.getMetrics(), cleanRateSpec));
+	}
+
 	public long getTimeToLive() {
 		return timeToLive;
 	}
@@ -0,0 +1,232 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dispatch User Operations onto a fixed set of "lanes", where each lane is a
+ * lock-free queue with exactly ONE consumer thread.  The lane is picked by a
+ * hash of (set, userID), so all of the operations for a given user run in
+ * order, on one lane, and never overlap -- while operations for different
+ * users run in parallel on the other lanes.  There is no per-user lock.
+ * 
+ * This replaces the "many identical threads hitting random users" model,
+ * where two threads could be writing the same user's LDT at the same time
+ * (interleaving the base and cache writes of two visits) while other threads
+ * had nothing to do.
+ * 
+ * Producers (the EmulateUser threads) call submit().  If the chosen lane is
+ * already deeper than the limit, the producer backs off until the lane has
+ * drained a bit, so a single hot user can't grow a queue without bound.
+ * 
+ * Metrics:  lane.executed and lane.backpressure are counted; the gauges
+ * lane.depth.max, lane.depth.total and lane.imbalancePct (deepest lane as a
+ * percentage of the mean lane depth) are refreshed periodically.
+ */
+public class UserLaneDispatcher implements IAppConstants {
+	
+	// Metric Names
+	public static final String LANE_EXECUTED = "lane.executed";
+	public static final String LANE_BACKPRESSURE = "lane.backpressure";
+	public static final String LANE_DEPTH_MAX = "lane.depth.max";
+	public static final String LANE_DEPTH_TOTAL = "lane.depth.total";
+	public static final String LANE_IMBALANCE = "lane.imbalancePct";
+	
+	/** Default limit on queued ops per lane before producers back off. */
+	static final int DEFAULT_MAX_LANE_DEPTH = 256;
+	
+	/** Refresh the depth gauges once every this many submits. */
+	private static final int GAUGE_INTERVAL = 1024;
+	
+	/** How long an idle lane thread parks before looking again (ns). */
+	private static final long IDLE_PARK_NS = 1000000L;
+	
+	private static final String CLASSNAME = "UserLaneDispatcher";
+	
+	private Console console;
+	private AppMetrics metrics;
+	private final int laneCount;
+	private final int maxLaneDepth;
+	private final ConcurrentLinkedQueue<Runnable>[] lanes;
+	private final AtomicIntegerArray laneDepth; // CLQ.size() is O(n)
+	private final Thread[] laneThreads;
+	private final AtomicLong submitCount = new AtomicLong();
+	private volatile boolean shuttingDown = false;
+
+	@SuppressWarnings("unchecked")
+	public UserLaneDispatcher(Console console, AppMetrics metrics, 
+			int laneCount, int maxLaneDepth) 
+	{
+		this.console = console;
+		this.metrics = metrics;
+		this.laneCount = laneCount;
+		this.maxLaneDepth = maxLaneDepth;
+		this.lanes = new ConcurrentLinkedQueue[laneCount];
+		this.laneDepth = new AtomicIntegerArray(laneCount);
+		this.laneThreads = new Thread[laneCount];
+		for (int i = 0; i < laneCount; i++) {
+			lanes[i] = new ConcurrentLinkedQueue<Runnable>();
+		}
+	}
+	
+	/**
+	 * Start one consumer thread per lane.
+	 */
+	public void start() {
+		final String meth = "start()";
+		for (int i = 0; i < laneCount; i++) {
+			laneThreads[i] = new Thread(new LaneWorker(i), "UserLane-" + i);
+			laneThreads[i].setDaemon(true);
+			laneThreads[i].start();
+		}
+		console.info("<%s:%s> Started (%d) User Lanes: MaxDepth(%d)", 
+				CLASSNAME, meth, laneCount, maxLaneDepth);
+	} // end start()
+	
+	/**
+	 * Pick the lane for this user.  The hash is spread so that the similar
+	 * user IDs we generate ("User-0001", "User-0002", ...) don't bunch up.
+	 * @param setName
+	 * @param userID
+	 * @return
+	 */
+	int laneFor(String setName, String userID) {
+		int h = setName.hashCode() * 31 + userID.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return (h & 0x7fffffff) % laneCount;
+	}
+	
+	/**
+	 * Queue an operation for a user.  Operations for the same (set, user)
+	 * will run in the order they were submitted.
+	 * @param setName
+	 * @param userID
+	 * @param op
+	 * @throws InterruptedException
+	 */
+	public void submit(String setName, String userID, Runnable op) 
+			throws InterruptedException 
+	{
+		if (shuttingDown) {
+			throw new IllegalStateException("UserLaneDispatcher is shut down");
+		}
+		int lane = laneFor(setName, userID);
+		
+		// Backpressure:  wait for this lane to drain before piling on.
+		if (laneDepth.get(lane) >= maxLaneDepth) {
+			metrics.increment(LANE_BACKPRESSURE);
+			while (laneDepth.get(lane) >= maxLaneDepth && !shuttingDown) {
+				Thread.sleep(1);
+			}
+		}
+		laneDepth.incrementAndGet(lane);
+		lanes[lane].offer(op);
+		LockSupport.unpark(laneThreads[lane]);
+		
+		if (submitCount.incrementAndGet() % GAUGE_INTERVAL == 0) {
+			publishDepth();
+		}
+	} // end submit()
+	
+	/**
+	 * Set the lane depth gauges from the current lane depths.
+	 */
+	public void publishDepth() {
+		long total = 0;
+		int max = 0;
+		for (int i = 0; i < laneCount; i++) {
+			int depth = laneDepth.get(i);
+			total += depth;
+			if (depth > max) {
+				max = depth;
+			}
+		}
+		metrics.setGauge(LANE_DEPTH_MAX, max);
+		metrics.setGauge(LANE_DEPTH_TOTAL, total);
+		// Imbalance: the deepest lane relative to the average (100 = even).
+		long imbalance = (total == 0) ? 100 : (max * 100L * laneCount) / total;
+		metrics.setGauge(LANE_IMBALANCE, imbalance);
+	} // end publishDepth()
+	
+	/**
+	 * Stop taking new operations, let the lanes drain, and wait (up to the
+	 * given time) for the lane threads to finish.  Call this only after the
+	 * producers are done submitting.
+	 * @param timeoutMs
+	 */
+	public void shutdown(long timeoutMs) {
+		final String meth = "shutdown()";
+		publishDepth();
+		shuttingDown = true;
+		long deadline = System.currentTimeMillis() + timeoutMs;
+		try {
+			for (int i = 0; i < laneCount; i++) {
+				LockSupport.unpark(laneThreads[i]);
+				long remaining = deadline - System.currentTimeMillis();
+				laneThreads[i].join(Math.max(1, remaining));
+			}
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		console.info("<%s:%s> User Lanes Stopped: Executed(%d)", 
+				CLASSNAME, meth, metrics.getCount(LANE_EXECUTED));
+	} // end shutdown()
+	
+	/**
+	 * The single consumer for one lane.  It runs the lane's ops in order and
+	 * parks when there's nothing to do.  On shutdown it drains what's left.
+	 */
+	private class LaneWorker implements Runnable {
+		private final int lane;
+		
+		LaneWorker(int lane) {
+			this.lane = lane;
+		}
+		
+		public void run() {
+			final String meth = "LaneWorker.run()";
+			ConcurrentLinkedQueue<Runnable> queue = lanes[lane];
+			Runnable op;
+			while (true) {
+				op = queue.poll();
+				if (op == null) {
+					if (shuttingDown) {
+						break;
+					}
+					LockSupport.parkNanos(IDLE_PARK_NS);
+					continue;
+				}
+				try {
+					op.run();
+				} catch (Exception e) {
+					console.error("<%s:%s> Lane(%d) Op Failed: %s", 
+							CLASSNAME, meth, lane, e.toString());
+				} finally {
+					laneDepth.decrementAndGet(lane);
+					metrics.increment(LANE_EXECUTED);
+				}
+			}
+		}
+	} // end class LaneWorker
+
+} // end class UserLaneDispatcher
@@ -147,6 +147,9 @@ public class UserRecord implements IDbRecord, IAppConstants {
 			Bin addressBin = new Bin("address", this.address);
 			Bin companyBin = new Bin("company", this.company);
 			Bin indexBin = new Bin("index", this.index);
+			// A new record is due for its first clean (which sets the real
+			// Expire Watermark), and this puts it in the Watermark Index.
+			Bin watermarkBin = new Bin(WATERMARK_BIN, 0L);
 
 			console.debug("Put: namespace(%s) set(%s) key(%s) custID(%s) userID(%s)",
 					key.namespace, key.setName, key.userKey, custBin.value, nameBin.value);
@@ -156,7 +159,7 @@ public class UserRecord implements IDbRecord, IAppConstants {
 
 			// Write the Record
 			client.put(this.writePolicy, key, nameBin, emailBin, phoneBin,
-					addressBin, companyBin, indexBin );
+					addressBin, companyBin, indexBin, watermarkBin );
 
 		} catch (Exception e){
 			e.printStackTrace();
@@ -172,55 +175,69 @@ public class UserRecord implements IDbRecord, IAppConstants {
 	 * regularly).
 	 */
 	public boolean updateCache(AerospikeClient client, String namespace) throws Exception {
-		console.debug("Enter toStorage(): NS(%s)", namespace);
+		console.debug("Enter updateCache(): NS(%s)", namespace);
 		boolean recordPresent = false;
 
-		// Set is the Customer ID, Record Key is the userID.
-		String cacheSetName = this.customerCacheSet;
-		String recordKey = this.userID;
-		Record record = null;
-
 		try {
-			Key key        = new Key(namespace, cacheSetName, recordKey);
+			Key key = new Key(namespace, this.customerCacheSet, this.userID);
 			
 			// First check to see if this record is present
-			record = client.get(this.policy, key);
-			if (record == null) {
-				// Record is not in the cache, build a new one (from the old
-				// information) and write it (with the CACHE TTL).
-				Bin custBin    = new Bin("custID", this.customerBaseSet);
-				Bin nameBin    = new Bin("name", this.userID);
-				Bin emailBin = new Bin("email", this.email);
-				Bin phoneBin = new Bin("phone", this.phone);
-				Bin addressBin = new Bin("address", this.address);
-				Bin companyBin = new Bin("company", this.company);
-				Bin indexBin = new Bin("index", this.index);
-
-				console.debug("Put: namespace(%s) set(%s) key(%s) custID(%s) userID(%s)",
-						key.namespace, key.setName, key.userKey, custBin.value, nameBin.value);
-
-				console.debug("Put: Email(%s) phone(%s) addr(%s) company(%s) index(%s)",
-						emailBin.value, phoneBin.value, addressBin.value, companyBin.value, indexBin.value);
-
-				// Write the Record
-				client.put(this.cacheWritePolicy, key, nameBin, emailBin, phoneBin,
-						addressBin, companyBin, indexBin );
-//				record = client.get(this.policy, key);
-//				console.info("JUST WROTE AND READ THIS RECORD: namespace(%s) set(%s) key(%s) In CACHE: Rec(%s)",
-//						key.namespace, key.setName, key.userKey, record.toString());
-				
-			} else {
+			Record record = client.get(this.policy, key);
+			if (record != null) {
 				console.debug("FOUND: namespace(%s) set(%s) key(%s) In CACHE: Rec(%s)",
 						key.namespace, key.setName, key.userKey, record.toString());
 				recordPresent = true;
 			}
+		} catch (Exception e){
+			e.printStackTrace();
+			console.warn("Exception: " + e);
+		}
+
+		return updateCache(client, namespace, recordPresent);
+	} // end updateCache()
+
+	/**
+	 * Same as updateCache() above, for a caller that has already checked
+	 * if the record is in the cache (so we don't read it a second time).
+	 * @param client
+	 * @param namespace
+	 * @param recordPresent : true if the record is already in the cache
+	 * @return recordPresent
+	 */
+	public boolean updateCache(AerospikeClient client, String namespace, 
+			boolean recordPresent) throws Exception 
+	{
+		if (recordPresent) {
+			return true;
+		}
 
+		try {
+			// Record is not in the cache, build a new one (from the old
+			// information) and write it (with the CACHE TTL).
+			Key key        = new Key(namespace, this.customerCacheSet, this.userID);
+			Bin custBin    = new Bin("custID", this.customerBaseSet);
+			Bin nameBin    = new Bin("name", this.userID);
+			Bin emailBin = new Bin("email", this.email);
+			Bin phoneBin = new Bin("phone", this.phone);
+			Bin addressBin = new Bin("address", this.address);
+			Bin companyBin = new Bin("company", this.company);
+			Bin indexBin = new Bin("index", this.index);
+
+			console.debug("Put: namespace(%s) set(%s) key(%s) custID(%s) userID(%s)",
+					key.namespace, key.setName, key.userKey, custBin.value, nameBin.value);
+
+			console.debug("Put: Email(%s) phone(%s) addr(%s) company(%s) index(%s)",
+					emailBin.value, phoneBin.value, addressBin.value, companyBin.value, indexBin.value);
+
+			// Write the Record
+			client.put(this.cacheWritePolicy, key, nameBin, emailBin, phoneBin,
+					addressBin, companyBin, indexBin );
 		} catch (Exception e){
 			e.printStackTrace();
 			console.warn("Exception: " + e);
 		}
 
-		return recordPresent;
+		return false;
 	} // end updateCache()
 
 	/**
@@ -108,7 +108,8 @@ public class UserTraffic implements Runnable, IAppConstants {
 				userRec = new UserRecord(console, dbOps, custRec.getCustomerID(), (int) userSeed);
 				
 				sve = new SiteVisitEntry(console, custRec.getCustomerID(), 
-						userRec.getUserID(), i, LDT_BIN, this.timeToLive);
+						userRec.getUserID(), i, LDT_BIN, this.timeToLive, 
+						dbOps.getClock());
 				sve.toStorage(client, namespace, userRec.getCustomerBaseSet(), ldtOps);
 				
 				set = custRec.getCustomerID();
@@ -0,0 +1,87 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+/**
+ * A clock that runs "compression" times faster than the wall clock.  Virtual
+ * time starts out equal to real time when the clock is created, and from then
+ * on each real second advances the clock by "compression" seconds.
+ * 
+ * So, with a compression factor of 168, a 7 day emulation runs in one hour,
+ * and a Site Visit TTL or a Clean Cycle of 600 (virtual) seconds passes in
+ * a little under four real seconds.
+ * 
+ * A compression factor of 1.0 gives plain real time.
+ */
+public class VirtualClock implements IClock {
+	
+	/** A plain, uncompressed clock for those places that have no other. */
+	public static final IClock REAL_TIME = new VirtualClock(1.0);
+
+	private final double compression; // Virtual seconds per real second
+	private final long realStartMs;   // Wall clock time at creation (ms)
+	private final long realStartNs;   // Wall clock time at creation (ns)
+	
+	/**
+	 * Create a clock with the given compression factor.
+	 * @param compression : virtual seconds per real second (>= 1.0)
+	 */
+	public VirtualClock(double compression) {
+		if (compression < 1.0) {
+			compression = 1.0;
+		}
+		this.compression = compression;
+		this.realStartMs = System.currentTimeMillis();
+		this.realStartNs = System.nanoTime();
+	}
+
+	public long currentTimeMillis() {
+		long realNowMs = System.currentTimeMillis();
+		if (compression == 1.0) {
+			return realNowMs;
+		}
+		return realStartMs + (long) ((realNowMs - realStartMs) * compression);
+	}
+
+	public long nanoTime() {
+		long realNowNs = System.nanoTime();
+		if (compression == 1.0) {
+			return realNowNs;
+		}
+		return realStartNs + (long) ((realNowNs - realStartNs) * compression);
+	}
+
+	public void sleep(long virtualMillis) throws InterruptedException {
+		long realMillis = toRealMillis(virtualMillis);
+		if (realMillis > 0) {
+			Thread.sleep(realMillis);
+		}
+	}
+
+	public long toRealMillis(long virtualMillis) {
+		return (long) (virtualMillis / compression);
+	}
+
+	public double getCompression() {
+		return compression;
+	}
+	
+	public String toString() {
+		return String.format("VirtualClock(x%.1f)", compression);
+	}
+
+} // end class VirtualClock
@@ -0,0 +1,260 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Write Site Visits to a compressed, column-oriented file (one per Customer
+ * Set, see ColumnarExporter).  The visits are buffered into Row Groups of
+ * up to ROW_GROUP_SIZE visits, and each Row Group is written as six column
+ * blocks, each Deflate-compressed on its own:
+ *   user, url, referrer, page_title :: Dictionary encoded
+ *   date, expire                    :: Delta encoded
+ * 
+ * File layout (all ints big-endian):
+ *   "VCOL" int:version
+ *   Row Group*:  int:rowCount, then for each column (in the order above)
+ *                int:compressedLength int:rawLength byte[compressedLength]
+ *   int:0 (end of file)
+ * 
+ * A Dictionary column is:  varint:entryCount, then each entry as varint
+ * byte length and UTF-8 bytes, then one varint entry number per row.  The
+ * dictionaries are local to the Row Group, so a reader can stream the file
+ * one Row Group at a time.  A Delta column is one zig-zag varint per row:
+ * the difference from the row before (the first row's is from zero).  The
+ * visits of each user are added together (with addUser()), in expire order,
+ * so the deltas are mostly small.
+ * 
+ * The file is written thru an NIO FileChannel.  add() and addUser() may be
+ * called from several threads (the writes for a set are serialized here).
+ */
+public class VisitColumnWriter {
+	
+	public static final int VERSION = 1;
+	public static final int ROW_GROUP_SIZE = 65536;
+	public static final int COLUMN_COUNT = 6;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final FileOutputStream out;
+	private final FileChannel channel;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+	private final byte[] deflateBuffer = new byte[64 * 1024];
+	
+	private final String[] users = new String[ROW_GROUP_SIZE];
+	private final String[] urls = new String[ROW_GROUP_SIZE];
+	private final String[] referrers = new String[ROW_GROUP_SIZE];
+	private final String[] pageTitles = new String[ROW_GROUP_SIZE];
+	private final long[] dates = new long[ROW_GROUP_SIZE];
+	private final long[] expires = new long[ROW_GROUP_SIZE];
+	private int rows = 0;
+	
+	private long rowCount = 0;
+	private long bytesWritten = 0;
+	
+	/**
+	 * One visit (one row), for addUser().
+	 */
+	public static class Visit {
+		final String user;
+		final String url;
+		final String referrer;
+		final String pageTitle;
+		final long date;
+		final long expire;
+		
+		public Visit(String user, String url, String referrer, 
+				String pageTitle, long date, long expire) 
+		{
+			this.user = user;
+			this.url = url;
+			this.referrer = referrer;
+			this.pageTitle = pageTitle;
+			this.date = date;
+			this.expire = expire;
+		}
+	}
+	
+	public VisitColumnWriter(File file) throws IOException {
+		this.out = new FileOutputStream(file);
+		this.channel = out.getChannel();
+		ByteBuffer header = ByteBuffer.allocate(8);
+		header.put(new byte[] { 'V', 'C', 'O', 'L' });
+		header.putInt(VERSION);
+		header.flip();
+		write(header);
+	}
+	
+	/**
+	 * Add one visit.
+	 */
+	public synchronized void add(String user, String url, String referrer,
+			String pageTitle, long date, long expire) throws IOException 
+	{
+		addRow(user, url, referrer, pageTitle, date, expire);
+	}
+	
+	/**
+	 * Add all of one user's visits (already in expire order) as consecutive
+	 * rows, so that another thread's visits can't land in between.
+	 * @param visits
+	 */
+	public synchronized void addUser(List<Visit> visits) throws IOException {
+		for (Visit visit : visits) {
+			addRow(visit.user, visit.url, visit.referrer, visit.pageTitle, 
+					visit.date, visit.expire);
+		}
+	}
+	
+	private void addRow(String user, String url, String referrer,
+			String pageTitle, long date, long expire) throws IOException 
+	{
+		users[rows] = user;
+		urls[rows] = url;
+		referrers[rows] = referrer;
+		pageTitles[rows] = pageTitle;
+		dates[rows] = date;
+		expires[rows] = expire;
+		rows++;
+		rowCount++;
+		if (rows == ROW_GROUP_SIZE) {
+			flushRowGroup();
+		}
+	}
+	
+	/**
+	 * Write out the last Row Group and the end marker, and close the file.
+	 * @return the number of visits written
+	 */
+	public synchronized long close() throws IOException {
+		try {
+			flushRowGroup();
+			ByteBuffer end = ByteBuffer.allocate(4);
+			end.putInt(0);
+			end.flip();
+			write(end);
+		} finally {
+			deflater.end();
+			channel.close();
+			out.close();
+		}
+		return rowCount;
+	}
+	
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+	
+	private void flushRowGroup() throws IOException {
+		if (rows == 0) {
+			return;
+		}
+		ByteBuffer count = ByteBuffer.allocate(4);
+		count.putInt(rows);
+		count.flip();
+		write(count);
+		writeColumn(dictionaryColumn(users));
+		writeColumn(dictionaryColumn(urls));
+		writeColumn(dictionaryColumn(referrers));
+		writeColumn(dictionaryColumn(pageTitles));
+		writeColumn(deltaColumn(dates));
+		writeColumn(deltaColumn(expires));
+		rows = 0;
+	} // end flushRowGroup()
+	
+	private byte[] dictionaryColumn(String[] values) {
+		Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		ByteArrayOutputStream ids = new ByteArrayOutputStream(rows * 2);
+		for (int i = 0; i < rows; i++) {
+			String value = (values[i] == null) ? "" : values[i];
+			Integer id = dictionary.get(value);
+			if (id == null) {
+				id = dictionary.size();
+				dictionary.put(value, id);
+				byte[] bytes = value.getBytes(UTF8);
+				putVarint(entries, bytes.length);
+				entries.write(bytes, 0, bytes.length);
+			}
+			putVarint(ids, id);
+			values[i] = null;
+		}
+		ByteArrayOutputStream column = new ByteArrayOutputStream(
+				entries.size() + ids.size() + 5);
+		putVarint(column, dictionary.size());
+		byte[] entryBytes = entries.toByteArray();
+		column.write(entryBytes, 0, entryBytes.length);
+		byte[] idBytes = ids.toByteArray();
+		column.write(idBytes, 0, idBytes.length);
+		return column.toByteArray();
+	} // end dictionaryColumn()
+	
+	private byte[] deltaColumn(long[] values) {
+		ByteArrayOutputStream column = new ByteArrayOutputStream(rows * 3);
+		long previous = 0;
+		for (int i = 0; i < rows; i++) {
+			long delta = values[i] - previous;
+			previous = values[i];
+			putVarint(column, (delta << 1) ^ (delta >> 63)); // zig-zag
+		}
+		return column.toByteArray();
+	}
+	
+	private static void putVarint(ByteArrayOutputStream os, long value) {
+		while ((value & ~0x7FL) != 0) {
+			os.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		os.write((int) value);
+	}
+	
+	private void writeColumn(byte[] raw) throws IOException {
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(
+				Math.max(64, raw.length / 4));
+		while (!deflater.finished()) {
+			int n = deflater.deflate(deflateBuffer);
+			compressed.write(deflateBuffer, 0, n);
+		}
+		ByteBuffer block = ByteBuffer.allocate(8 + compressed.size());
+		block.putInt(compressed.size());
+		block.putInt(raw.length);
+		block.put(compressed.toByteArray());
+		block.flip();
+		write(block);
+	} // end writeColumn()
+	
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			bytesWritten += channel.write(buffer);
+		}
+	}
+
+} // end class VisitColumnWriter
@@ -0,0 +1,262 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Site Visit query filter:  a predicate (URL prefix, referrer equals,
+ * date range) and a projection (the fields to send back).  It runs on the
+ * server, as the "visit_filter" LDT filter in the Create Modules, so the
+ * visits that don't match -- and the fields that aren't wanted, like the
+ * MISC fillers -- never leave the server.  Every part is optional.
+ * 
+ * The visit's "key" (its expire value) always comes back, so that results
+ * from several records (e.g. a sharded user) can still be merged in expire
+ * order.
+ * 
+ * On the command line, the filter is given as:
+ *     "fields=f1+f2+...,url=prefix,referrer=value,date=from/to"
+ * For example, "fields=URL+date,url=http://www.google.com" returns just the
+ * URL and date of the visits to google.  A date bound is either a clock
+ * time (nanoseconds), or an offset from the time of the query:  a signed
+ * number with a unit (s, m, h or d of clock time), e.g. "date=-1h/" for
+ * the visits of the last hour.  See at().
+ * 
+ * The bytes that the filter saves are measured, not guessed:  every
+ * COMPARE_EVERY filtered queries, the same query also runs unfiltered, and
+ * the difference in size goes to query.filterBytesSaved (and the query to
+ * query.filterSamples).  So filterBytesSaved / filterSamples is the mean
+ * saving per query (see DbOps.queryFilteredVisits()).
+ */
+public class VisitFilter {
+	
+	// Metric Names
+	public static final String FILTER_QUERIES = "query.filtered";
+	public static final String FILTER_VISITS = "query.filteredVisits";
+	public static final String FILTER_BYTES = "query.filteredBytes";
+	public static final String FILTER_BYTES_SAVED = "query.filterBytesSaved";
+	public static final String FILTER_SAMPLES = "query.filterSamples";
+	
+	/** One filtered query in this many is compared with an unfiltered one. */
+	public static final int COMPARE_EVERY = 100;
+	
+	// The filter spec (a map) that goes to the server.
+	static final String SPEC_MIN_EXPIRE = "minExpire";
+	static final String SPEC_FIELDS = "fields";
+	static final String SPEC_URL_PREFIX = "urlPrefix";
+	static final String SPEC_REFERRER = "referrer";
+	static final String SPEC_FROM_DATE = "fromDate";
+	static final String SPEC_TO_DATE = "toDate";
+	
+	public final List<String> fields; // Fields to return (empty = all)
+	public final String urlPrefix;  // Keep the URLs with this prefix (or null)
+	public final String referrer;   // Keep this referrer (or null)
+	public final long fromDate;     // Keep date >= fromDate (0 = no limit)
+	public final long toDate;       // Keep date <= toDate (0 = no limit)
+	public final boolean fromRelative; // fromDate is an offset from now
+	public final boolean toRelative;   // toDate is an offset from now
+	
+	public VisitFilter(List<String> fields, String urlPrefix, String referrer,
+			long fromDate, long toDate) 
+	{
+		this(fields, urlPrefix, referrer, fromDate, false, toDate, false);
+	}
+	
+	private VisitFilter(List<String> fields, String urlPrefix, String referrer,
+			long fromDate, boolean fromRelative, long toDate, boolean toRelative) 
+	{
+		this.fields = (fields == null) ? Collections.<String>emptyList() 
+				: Collections.unmodifiableList(new ArrayList<String>(fields));
+		this.urlPrefix = urlPrefix;
+		this.referrer = referrer;
+		this.fromDate = fromDate;
+		this.fromRelative = fromRelative;
+		this.toDate = toDate;
+		this.toRelative = toRelative;
+	}
+	
+	/**
+	 * This filter at a point in time:  the relative date bounds are turned
+	 * into clock times.
+	 * @param nowNs : the clock's nanoTime()
+	 * @return a filter with absolute dates (this one, if it has no relative
+	 *   bounds)
+	 */
+	public VisitFilter at(long nowNs) {
+		if (!fromRelative && !toRelative) {
+			return this;
+		}
+		return new VisitFilter(fields, urlPrefix, referrer,
+				fromRelative ? nowNs + fromDate : fromDate,
+				toRelative ? nowNs + toDate : toDate);
+	}
+	
+	/**
+	 * Parse the filter spec (see above).
+	 * @param filterSpec
+	 * @return the filter (null if filterSpec is null or empty)
+	 */
+	public static VisitFilter parse(String filterSpec) {
+		if (filterSpec == null || filterSpec.trim().length() == 0) {
+			return null;
+		}
+		List<String> fields = null;
+		String urlPrefix = null;
+		String referrer = null;
+		long fromDate = 0L;
+		long toDate = 0L;
+		boolean fromRelative = false;
+		boolean toRelative = false;
+		for (String part : filterSpec.split(",")) {
+			int eq = part.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Bad Visit Filter: " + part);
+			}
+			String name = part.substring(0, eq).trim();
+			String value = part.substring(eq + 1).trim();
+			if ("fields".equals(name)) {
+				fields = new ArrayList<String>();
+				for (String field : value.split("\\+")) {
+					if (field.trim().length() > 0) {
+						fields.add(field.trim());
+					}
+				}
+			} else if ("url".equals(name)) {
+				urlPrefix = value;
+			} else if ("referrer".equals(name)) {
+				referrer = value;
+			} else if ("date".equals(name)) {
+				String[] range = value.split("/");
+				String from = (range.length > 0) ? range[0].trim() : "";
+				String to = (range.length > 1) ? range[1].trim() : "";
+				fromRelative = isOffset(from);
+				fromDate = parseDate(from);
+				toRelative = isOffset(to);
+				toDate = parseDate(to);
+			} else {
+				throw new IllegalArgumentException("Bad Visit Filter: " + part);
+			}
+		}
+		return new VisitFilter(fields, urlPrefix, referrer, fromDate, 
+				fromRelative, toDate, toRelative);
+	} // end parse()
+	
+	/**
+	 * A date bound with a unit is an offset from the time of the query.
+	 */
+	private static boolean isOffset(String bound) {
+		return bound.length() > 1 && 
+				"smhd".indexOf(bound.charAt(bound.length() - 1)) >= 0;
+	}
+	
+	/**
+	 * A date bound:  a clock time, or an offset (see isOffset()) in clock
+	 * nanoseconds.  Empty is no limit.
+	 */
+	private static long parseDate(String bound) {
+		if (bound.length() == 0) {
+			return 0L;
+		}
+		if (!isOffset(bound)) {
+			return Long.parseLong(bound);
+		}
+		long seconds;
+		switch (bound.charAt(bound.length() - 1)) {
+		case 'm':
+			seconds = 60L;
+			break;
+		case 'h':
+			seconds = 3600L;
+			break;
+		case 'd':
+			seconds = 86400L;
+			break;
+		default:
+			seconds = 1L;
+		}
+		String number = bound.substring(0, bound.length() - 1);
+		if (number.startsWith("+")) {
+			number = number.substring(1);
+		}
+		return Long.parseLong(number) * seconds * 1000000000L;
+	} // end parseDate()
+	
+	/**
+	 * The filter spec for the server side filter (visit_filter).
+	 * @param minExpire : also drop the visits that expire before this
+	 *   (zero to keep the expired visits)
+	 * @return
+	 */
+	public Map<String,Object> toSpec(long minExpire) {
+		Map<String,Object> spec = new HashMap<String,Object>();
+		if (minExpire > 0) {
+			spec.put(SPEC_MIN_EXPIRE, minExpire);
+		}
+		if (!fields.isEmpty()) {
+			spec.put(SPEC_FIELDS, new ArrayList<String>(fields));
+		}
+		if (urlPrefix != null) {
+			spec.put(SPEC_URL_PREFIX, urlPrefix);
+		}
+		if (referrer != null) {
+			spec.put(SPEC_REFERRER, referrer);
+		}
+		if (fromDate > 0) {
+			spec.put(SPEC_FROM_DATE, fromDate);
+		}
+		if (toDate > 0) {
+			spec.put(SPEC_TO_DATE, toDate);
+		}
+		return spec;
+	} // end toSpec()
+	
+	/**
+	 * Roughly the bytes of these visits on the wire:  the lengths of the
+	 * field names and string values, and eight bytes for everything else.
+	 * (The filtered and unfiltered sizes are both taken this way, so their
+	 * difference is what the filter kept on the server.)
+	 * @param visits
+	 * @return
+	 */
+	public static long estimateBytes(List<Map<String,Object>> visits) {
+		long bytes = 0;
+		if (visits == null) {
+			return 0;
+		}
+		for (Map<String,Object> visit : visits) {
+			for (Map.Entry<String,Object> field : visit.entrySet()) {
+				bytes += field.getKey().length();
+				Object value = field.getValue();
+				bytes += (value instanceof String) ? ((String) value).length() : 8;
+			}
+		}
+		return bytes;
+	} // end estimateBytes()
+	
+	public String toString() {
+		return String.format("Filter(fields=%s url=%s referrer=%s date=%s/%s)",
+				fields, urlPrefix, referrer, 
+				String.format(fromRelative ? "now%+d" : "%d", fromDate),
+				String.format(toRelative ? "now%+d" : "%d", toDate));
+	}
+
+} // end class VisitFilter
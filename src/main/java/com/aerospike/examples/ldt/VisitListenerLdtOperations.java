@@ -0,0 +1,54 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watch the Site Visit writes on their way to the LDT, and hand each
+ * successful BASE write (the Cache writes are copies of the same visits)
+ * to every IVisitListener (the Heavy Hitters, the Rollups, the Sessions).
+ * Everything else passes straight through.
+ */
+public class VisitListenerLdtOperations extends ForwardingLdtOperations {
+	
+	private final List<IVisitListener> listeners = 
+			new CopyOnWriteArrayList<IVisitListener>();
+	
+	public VisitListenerLdtOperations(ILdtOperations inner) {
+		super(inner);
+	}
+	
+	public void addListener(IVisitListener listener) {
+		listeners.add(listener);
+	}
+	
+	public int storeSiteObject(SiteVisitEntry sve, String ns, String set,
+			Map<String, Object> siteObjMap) 
+	{
+		int result = inner.storeSiteObject(sve, ns, set, siteObjMap);
+		if (result == 0 && set != null && set.equals(sve.getCustomerBaseSet())) {
+			for (IVisitListener listener : listeners) {
+				listener.visitWritten(sve);
+			}
+		}
+		return result;
+	}
+
+} // end class VisitListenerLdtOperations
@@ -0,0 +1,573 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.aerospike.client.AerospikeClient;
+import com.aerospike.client.AerospikeException;
+import com.aerospike.client.Bin;
+import com.aerospike.client.Key;
+import com.aerospike.client.Operation;
+import com.aerospike.client.Record;
+import com.aerospike.client.ResultCode;
+import com.aerospike.client.policy.GenerationPolicy;
+import com.aerospike.client.policy.RecordExistsAction;
+import com.aerospike.client.policy.WritePolicy;
+
+/**
+ * Incremental per-customer, per-hour rollups of the Site Visit writes, so
+ * that "visits per URL per hour for customer X" is one record read instead
+ * of a scan of every user's LDT.
+ * 
+ * For each (Customer Set, hour) bucket we keep, in the client:
+ * (*) the visit count:  a striped counter (STRIPES padded slots of an
+ *     AtomicLongArray, picked by thread), so the writing threads don't all
+ *     hit one cache line
+ * (*) the unique users:  a HyperLogLog
+ * (*) the top URLs:  a Count-Min Sketch of the URL counts, plus a min-heap
+ *     of the TOP_URLS URLs with the highest estimates (the heap is only
+ *     locked when a URL's estimate beats the smallest one in it)
+ * The hour is the epoch hour of the (possibly virtual) wall clock when the
+ * visit is written, so "hour" means the same thing in every run.  (The
+ * visit's own date is a nanoTime() value, which has no fixed origin.)
+ * 
+ * The record keeps a longer tail of URL counts (STORED_URLS) than query()
+ * returns (TOP_URLS):  each flush adds a URL's counts since the last one,
+ * so a URL that was just below the top when an earlier flush trimmed the
+ * list would lose those counts and never catch up.
+ * 
+ * Every FLUSH_MS a flusher thread writes each bucket's changes since the
+ * last flush into the bucket's record in the Rollup Set (ROLLUP_SET, key
+ * "set/hour"), with ONE operate() call:  add() of the new visits, and put()
+ * of the merged HyperLogLog, its estimate, and the merged top URL counts.
+ * The HyperLogLog and top URLs are read-modify-write, so the operate()
+ * expects the generation we read (or creates the record) and we retry on a
+ * collision with another writer.  The HyperLogLog merge is idempotent, so
+ * the flusher always merges the bucket's whole (running) HyperLogLog.  The
+ * URL counts flushed so far are kept per URL (not in the heap entries), so a
+ * URL that drops out of the heap and comes back adds only its new count.
+ * 
+ * A bucket that is older than the previous hour is retired:  it is closed
+ * (a late visit for that hour then goes to a fresh bucket), we wait for the
+ * visits that are being added to it, and then do its last flush.
+ * 
+ * query() reads one bucket:  one record get.
+ * 
+ * Metrics: rollup.visits, rollup.flushes, rollup.flushRetries and
+ * rollup.flushErrors (counters), and rollup.buckets (gauge).
+ */
+public class VisitRollup implements Runnable, IVisitListener {
+	
+	// Metric Names
+	public static final String ROLLUP_VISITS = "rollup.visits";
+	public static final String ROLLUP_FLUSHES = "rollup.flushes";
+	public static final String ROLLUP_FLUSH_RETRIES = "rollup.flushRetries";
+	public static final String ROLLUP_FLUSH_ERRORS = "rollup.flushErrors";
+	public static final String ROLLUP_BUCKETS = "rollup.buckets";
+	
+	/** The set that holds the rollup records. */
+	public static final String ROLLUP_SET = "rollup";
+	
+	// Rollup Record Bins
+	public static final String VISITS_BIN = "visits";
+	public static final String UNIQUE_BIN = "uniqueUsers";
+	public static final String HLL_BIN = "usersHll";
+	public static final String TOP_URLS_BIN = "topUrls";
+	public static final String SET_BIN = "set";
+	public static final String HOUR_BIN = "hour";
+	
+	/** One hour, in (clock) milliseconds. */
+	public static final long HOUR_MS = 3600L * 1000L;
+	
+	/** URLs kept per bucket in the client, and returned by query(). */
+	static final int TOP_URLS = 20;
+	
+	/** Stored URLs per TOP_URLS (see the class comment). */
+	static final int CAPACITY_FACTOR = 10;
+	
+	/** URLs kept per bucket in the record. */
+	static final int STORED_URLS = CAPACITY_FACTOR * TOP_URLS;
+	
+	/** Striped counter slots (a power of two). */
+	static final int STRIPES = 16;
+	
+	/** Longs between two stripes (8 longs = one 64 byte cache line). */
+	static final int STRIPE_PAD = 8;
+	
+	/** Count-Min Sketch width, per bucket. */
+	static final int SKETCH_WIDTH = 4096;
+	
+	/** Tries of one bucket's flush, on generation collisions. */
+	static final int MAX_FLUSH_TRIES = 5;
+	
+	/** Default time (real ms) between flushes. */
+	public static final long FLUSH_MS = 10000L;
+	
+	private static final String CLASSNAME = "VisitRollup";
+	
+	/**
+	 * One URL in the top URL heap.
+	 */
+	private static class UrlCount {
+		final String url;
+		long count;      // The sketch estimate
+		UrlCount(String url, long count) {
+			this.url = url;
+			this.count = count;
+		}
+	}
+	
+	private static final Comparator<UrlCount> SMALLEST_FIRST = 
+			new Comparator<UrlCount>() {
+		public int compare(UrlCount a, UrlCount b) {
+			return (a.count < b.count) ? -1 : ((a.count == b.count) ? 0 : 1);
+		}
+	};
+	
+	/**
+	 * One (Customer Set, hour) bucket.
+	 */
+	static class Bucket {
+		final String set;
+		final long hour;
+		final AtomicLongArray visits = new AtomicLongArray(STRIPES * STRIPE_PAD);
+		long flushedVisits = 0;  // Only the flusher touches this
+		final HyperLogLog users = new HyperLogLog();
+		final CountMinSketch urlSketch = new CountMinSketch(SKETCH_WIDTH, 0);
+		final PriorityQueue<UrlCount> topHeap = 
+				new PriorityQueue<UrlCount>(TOP_URLS, SMALLEST_FIRST);
+		final Map<String, UrlCount> topUrls = new HashMap<String, UrlCount>();
+		final Map<String, Long> flushedUrls = new HashMap<String, Long>();
+		volatile long topMin = 0; // Smallest count in a full heap
+		final AtomicInteger adding = new AtomicInteger(); // Visits in progress
+		volatile boolean closed = false;
+		
+		Bucket(String set, long hour) {
+			this.set = set;
+			this.hour = hour;
+		}
+		
+		void addVisit(String url) {
+			int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+			visits.incrementAndGet(stripe * STRIPE_PAD);
+			if (url == null) {
+				return;
+			}
+			long estimate = urlSketch.add(url);
+			if (estimate > topMin) {
+				offerTop(url, estimate);
+			}
+		}
+		
+		synchronized void offerTop(String url, long estimate) {
+			UrlCount entry = topUrls.get(url);
+			if (entry != null) {
+				topHeap.remove(entry);
+				entry.count = Math.max(entry.count, estimate);
+				topHeap.add(entry);
+			} else if (topHeap.size() < TOP_URLS) {
+				entry = new UrlCount(url, estimate);
+				topUrls.put(url, entry);
+				topHeap.add(entry);
+			} else if (estimate > topHeap.peek().count) {
+				topUrls.remove(topHeap.poll().url);
+				entry = new UrlCount(url, estimate);
+				topUrls.put(url, entry);
+				topHeap.add(entry);
+			}
+			if (topHeap.size() >= TOP_URLS) {
+				topMin = topHeap.peek().count;
+			}
+		} // end offerTop()
+		
+		long visitTotal() {
+			long total = 0;
+			for (int i = 0; i < STRIPES; i++) {
+				total += visits.get(i * STRIPE_PAD);
+			}
+			return total;
+		}
+		
+		/**
+		 * Start adding a visit.
+		 * @return false if the bucket is closed (use a new one)
+		 */
+		boolean beginAdd() {
+			adding.incrementAndGet();
+			if (closed) {
+				adding.decrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		
+		void endAdd() {
+			adding.decrementAndGet();
+		}
+		
+		/**
+		 * Close the bucket to new visits, and wait for the ones that are
+		 * being added.
+		 */
+		void close() {
+			closed = true;
+			while (adding.get() > 0) {
+				Thread.yield();
+			}
+		}
+		
+		/**
+		 * The top URL counts since the last flush (and mark them flushed).
+		 * The flushed counts outlive the heap entries:  a URL that was
+		 * pushed out of the heap and came back only adds what is new.
+		 */
+		synchronized Map<String, Long> takeUrlDeltas() {
+			Map<String, Long> deltas = new HashMap<String, Long>();
+			for (UrlCount entry : topUrls.values()) {
+				Long flushed = flushedUrls.get(entry.url);
+				long delta = entry.count - ((flushed == null) ? 0 : flushed.longValue());
+				if (delta > 0) {
+					deltas.put(entry.url, delta);
+					flushedUrls.put(entry.url, entry.count);
+				}
+			}
+			return deltas;
+		}
+		
+		/**
+		 * Un-flush the URL counts of a failed flush.
+		 */
+		synchronized void restoreUrlDeltas(Map<String, Long> deltas) {
+			for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+				Long flushed = flushedUrls.get(delta.getKey());
+				if (flushed != null) {
+					flushedUrls.put(delta.getKey(), 
+							Math.max(0L, flushed.longValue() - delta.getValue()));
+				}
+			}
+		}
+	} // end class Bucket
+	
+	/**
+	 * The rollup of one Customer Set for one hour, as stored.
+	 */
+	public static class HourlyRollup {
+		public final String set;
+		public final long hour;        // Hours since the epoch
+		public final long visits;
+		public final long uniqueUsers; // HyperLogLog estimate
+		public final List<Map.Entry<String, Long>> topUrls; // Highest first
+		
+		HourlyRollup(String set, long hour, long visits, long uniqueUsers,
+				List<Map.Entry<String, Long>> topUrls) 
+		{
+			this.set = set;
+			this.hour = hour;
+			this.visits = visits;
+			this.uniqueUsers = uniqueUsers;
+			this.topUrls = topUrls;
+		}
+		
+		public String toString() {
+			return String.format("Rollup(%s hour=%d visits=%d users=%d top=%s)",
+					set, hour, visits, uniqueUsers, topUrls);
+		}
+	} // end class HourlyRollup
+	
+	private Console console;
+	private AerospikeClient client;
+	private DbOps dbOps;
+	private AppMetrics metrics;
+	private String namespace;
+	private long flushMs;
+	private final ConcurrentMap<String, Bucket> buckets = 
+			new ConcurrentHashMap<String, Bucket>();
+	private final List<Bucket> retired = new ArrayList<Bucket>(); // Unflushed
+	private Thread flusher;
+	private volatile boolean running = false;
+	
+	/**
+	 * @param console
+	 * @param dbOps
+	 * @param namespace : where the Rollup Set lives
+	 * @param flushMs : time (real ms) between flushes
+	 */
+	public VisitRollup(Console console, DbOps dbOps, String namespace,
+			long flushMs) 
+	{
+		this.console = console;
+		this.dbOps = dbOps;
+		this.client = dbOps.getClient();
+		this.metrics = dbOps.getMetrics();
+		this.namespace = namespace;
+		this.flushMs = (flushMs > 0) ? flushMs : FLUSH_MS;
+	}
+	
+	/**
+	 * The epoch hour of a (clock) wall time.
+	 * @param timeMs : e.g. IClock.currentTimeMillis()
+	 * @return
+	 */
+	public static long hourOf(long timeMs) {
+		return timeMs / HOUR_MS;
+	}
+	
+	/**
+	 * Count one Site Visit write.
+	 * @param sve
+	 */
+	public void visitWritten(SiteVisitEntry sve) {
+		String set = sve.getCustomerBaseSet();
+		long hour = hourOf(dbOps.getClock().currentTimeMillis());
+		String bucketKey = set + "/" + hour;
+		Bucket bucket;
+		do {
+			bucket = buckets.get(bucketKey);
+			if (bucket == null) {
+				Bucket newBucket = new Bucket(set, hour);
+				bucket = buckets.putIfAbsent(bucketKey, newBucket);
+				if (bucket == null) {
+					bucket = newBucket;
+				}
+			}
+			// A closed bucket is on its way out of the map:  try again.
+		} while (! bucket.beginAdd());
+		try {
+			bucket.addVisit(sve.getUrl());
+			bucket.users.offer(sve.getUserID());
+		} finally {
+			bucket.endAdd();
+		}
+		metrics.increment(ROLLUP_VISITS);
+	} // end visitWritten()
+	
+	/**
+	 * Read one bucket's rollup.
+	 * @param set : the Customer Set
+	 * @param hour : see hourOf()
+	 * @return the rollup, with its TOP_URLS top URLs (null if there is none)
+	 */
+	@SuppressWarnings("unchecked")
+	public HourlyRollup query(String set, long hour) throws AerospikeException {
+		Record record = client.get(dbOps.policy, rollupKey(set, hour));
+		if (record == null || record.bins == null) {
+			return null;
+		}
+		Object visits = record.getValue(VISITS_BIN);
+		Object unique = record.getValue(UNIQUE_BIN);
+		Map<String, Object> stored = (Map<String, Object>) record.getValue(TOP_URLS_BIN);
+		return new HourlyRollup(set, hour, 
+				(visits == null) ? 0 : ((Number) visits).longValue(),
+				(unique == null) ? 0 : ((Number) unique).longValue(),
+				topUrls(sortedUrls(stored), TOP_URLS));
+	} // end query()
+	
+	private Key rollupKey(String set, long hour) {
+		return new Key(namespace, ROLLUP_SET, set + "/" + hour);
+	}
+	
+	/**
+	 * The stored URL counts, highest first.
+	 */
+	private static List<Map.Entry<String, Long>> sortedUrls(Map<String, ?> stored) {
+		List<Map.Entry<String, Long>> urls = new ArrayList<Map.Entry<String, Long>>();
+		if (stored == null) {
+			return urls;
+		}
+		Map<String, Long> counts = new HashMap<String, Long>();
+		for (Map.Entry<String, ?> entry : stored.entrySet()) {
+			counts.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+		}
+		urls.addAll(counts.entrySet());
+		Collections.sort(urls, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		return urls;
+	} // end sortedUrls()
+	
+	/**
+	 * The first "limit" of a sorted URL list.
+	 */
+	private static List<Map.Entry<String, Long>> topUrls(
+			List<Map.Entry<String, Long>> urls, int limit) 
+	{
+		return (urls.size() <= limit) ? urls : 
+			new ArrayList<Map.Entry<String, Long>>(urls.subList(0, limit));
+	}
+	
+	/**
+	 * Flush every bucket, and retire the ones that are done (older than the
+	 * previous hour):  close and remove them first, so that no visit can
+	 * land in them after their last flush.  A retired bucket whose last
+	 * flush fails is kept (out of the map) and tried again next time.
+	 */
+	public synchronized void flush() {
+		long oldestLive = hourOf(dbOps.getClock().currentTimeMillis()) - 1;
+		for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+			Bucket bucket = entry.getValue();
+			if (bucket.hour < oldestLive) {
+				bucket.close();
+				buckets.remove(entry.getKey(), bucket);
+				retired.add(bucket);
+			} else {
+				flushBucket(bucket);
+			}
+		}
+		for (Iterator<Bucket> it = retired.iterator(); it.hasNext(); ) {
+			if (flushBucket(it.next())) {
+				it.remove();
+			}
+		}
+		metrics.setGauge(ROLLUP_BUCKETS, buckets.size() + retired.size());
+	} // end flush()
+	
+	/**
+	 * Write one bucket's changes into its record (see the class comment).
+	 * @return true if the bucket is flushed (or had nothing to flush)
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean flushBucket(Bucket bucket) {
+		final String meth = "flushBucket()";
+		long total = bucket.visitTotal();
+		long newVisits = total - bucket.flushedVisits;
+		if (newVisits <= 0) {
+			return true;
+		}
+		Map<String, Long> urlDeltas = bucket.takeUrlDeltas();
+		Key key = rollupKey(bucket.set, bucket.hour);
+		for (int tries = 0; tries < MAX_FLUSH_TRIES; tries++) {
+			try {
+				Record record = client.get(dbOps.policy, key, HLL_BIN, TOP_URLS_BIN);
+				WritePolicy policy = new WritePolicy();
+				policy.timeout = dbOps.writePolicy.timeout;
+				byte[] storedHll = null;
+				Map<String, Object> storedUrls = null;
+				if (record == null) {
+					policy.recordExistsAction = RecordExistsAction.CREATE_ONLY;
+				} else {
+					policy.generationPolicy = GenerationPolicy.EXPECT_GEN_EQUAL;
+					policy.generation = record.generation;
+					storedHll = (byte[]) record.getValue(HLL_BIN);
+					storedUrls = (Map<String, Object>) record.getValue(TOP_URLS_BIN);
+				}
+				byte[] hll = bucket.users.mergeInto(storedHll);
+				client.operate(policy, key,
+						Operation.add(new Bin(VISITS_BIN, newVisits)),
+						Operation.put(new Bin(HLL_BIN, hll)),
+						Operation.put(new Bin(UNIQUE_BIN, HyperLogLog.estimate(hll))),
+						Operation.put(new Bin(TOP_URLS_BIN, mergeUrls(storedUrls, urlDeltas))),
+						Operation.put(new Bin(SET_BIN, bucket.set)),
+						Operation.put(new Bin(HOUR_BIN, bucket.hour)));
+				bucket.flushedVisits = total;
+				metrics.increment(ROLLUP_FLUSHES);
+				return true;
+			} catch (AerospikeException ae) {
+				int rc = ae.getResultCode();
+				if (rc == ResultCode.GENERATION_ERROR || 
+						rc == ResultCode.KEY_EXISTS_ERROR) 
+				{
+					metrics.increment(ROLLUP_FLUSH_RETRIES);
+					continue;
+				}
+				console.error("<%s:%s> Bucket(%s/%d) Error Code(%d) Error Message(%s)",
+						CLASSNAME, meth, bucket.set, bucket.hour, rc, ae.getMessage());
+				break;
+			}
+		}
+		// Try again next time:  put the URL counts back.
+		bucket.restoreUrlDeltas(urlDeltas);
+		metrics.increment(ROLLUP_FLUSH_ERRORS);
+		return false;
+	} // end flushBucket()
+	
+	/**
+	 * Add the new URL counts to the stored ones, and keep the top
+	 * STORED_URLS (query() trims them to TOP_URLS).
+	 */
+	static Map<String, Long> mergeUrls(Map<String, ?> stored,
+			Map<String, Long> deltas) 
+	{
+		Map<String, Long> merged = new HashMap<String, Long>();
+		if (stored != null) {
+			for (Map.Entry<String, ?> entry : stored.entrySet()) {
+				merged.put(entry.getKey(), ((Number) entry.getValue()).longValue());
+			}
+		}
+		for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+			Long current = merged.get(delta.getKey());
+			merged.put(delta.getKey(), 
+					(current == null) ? delta.getValue() : current + delta.getValue());
+		}
+		if (merged.size() <= STORED_URLS) {
+			return merged;
+		}
+		Map<String, Long> top = new HashMap<String, Long>();
+		for (Map.Entry<String, Long> entry : topUrls(sortedUrls(merged), STORED_URLS)) {
+			top.put(entry.getKey(), entry.getValue());
+		}
+		return top;
+	} // end mergeUrls()
+	
+	public void start() {
+		running = true;
+		flusher = new Thread(this, "VisitRollup");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	public void run() {
+		try {
+			while (running) {
+				Thread.sleep(flushMs);
+				flush();
+			}
+		} catch (InterruptedException ie) {
+			// Stopped.
+		}
+	}
+	
+	/**
+	 * Stop the flusher, and do the last flush.
+	 */
+	public void stop() {
+		running = false;
+		if (flusher != null) {
+			flusher.interrupt();
+			try {
+				flusher.join(flushMs);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		flush();
+	} // end stop()
+
+} // end class VisitRollup
@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * SessionTracker's open session table:  the sessions it closes on a gap,
+ * the idle sessions it sweeps out (and the probe chains that removal has
+ * to mend), and its growth.
+ */
+public class SessionTableTest {
+	
+	private static final long GAP = 10;
+	
+	/**
+	 * Every open session, by user hash (and empty the table).
+	 */
+	private static Map<Long, SessionTracker.ClosedSession> closeAll(
+			SessionTracker.SessionTable table) 
+	{
+		List<SessionTracker.ClosedSession> closed = 
+				new ArrayList<SessionTracker.ClosedSession>();
+		table.closeIdle(Long.MAX_VALUE, closed);
+		Map<Long, SessionTracker.ClosedSession> byUser = 
+				new HashMap<Long, SessionTracker.ClosedSession>();
+		for (SessionTracker.ClosedSession session : closed) {
+			byUser.put(session.userHash, session);
+		}
+		assertEquals(closed.size(), byUser.size());
+		return byUser;
+	}
+	
+	/**
+	 * A visit after more than the gap closes the session, and starts a new one.
+	 */
+	@Test
+	public void gapClosesTheSession() {
+		SessionTracker.SessionTable table = new SessionTracker.SessionTable(8);
+		assertNull(table.visit(42, 100, GAP));
+		assertNull(table.visit(42, 105, GAP));
+		assertNull(table.visit(42, 103, GAP)); // A little out of order
+		SessionTracker.ClosedSession closed = table.visit(42, 120, GAP);
+		assertTrue(closed != null);
+		assertEquals(42, closed.userHash);
+		assertEquals(100, closed.start);
+		assertEquals(105, closed.end);
+		assertEquals(3, closed.visits);
+		assertEquals(1, table.size());
+		
+		SessionTracker.ClosedSession open = closeAll(table).get(42L);
+		assertEquals(120, open.start);
+		assertEquals(1, open.visits);
+		assertEquals(0, table.size());
+	}
+	
+	/**
+	 * Users whose home slot is the last one wrap around to the front of the
+	 * table.  Sweeping out sessions in the middle of such a chain must leave
+	 * the rest of it reachable.
+	 */
+	@Test
+	public void closeIdleMendsWrappedChains() {
+		SessionTracker.SessionTable table = new SessionTracker.SessionTable(8);
+		// Home slot 7:  7, 15 and 23 sit in slots 7, 0 and 1.  Home slot 0:
+		// 8 is pushed to slot 2.
+		table.visit(7, 0, GAP);
+		table.visit(15, 0, GAP);
+		table.visit(23, 50, GAP);
+		table.visit(8, 50, GAP);
+		assertEquals(4, table.size());
+		
+		List<SessionTracker.ClosedSession> closed = 
+				new ArrayList<SessionTracker.ClosedSession>();
+		table.closeIdle(40, closed);
+		assertEquals(2, closed.size());
+		assertEquals(2, table.size());
+		
+		// The survivors are still found (no new entries), with their visits.
+		assertNull(table.visit(23, 55, GAP));
+		assertNull(table.visit(8, 55, GAP));
+		assertEquals(2, table.size());
+		Map<Long, SessionTracker.ClosedSession> open = closeAll(table);
+		assertEquals(2, open.size());
+		assertEquals(2, open.get(23L).visits);
+		assertEquals(2, open.get(8L).visits);
+	}
+	
+	/**
+	 * The table doubles as it fills, and keeps every session.
+	 */
+	@Test
+	public void growKeepsEverySession() {
+		SessionTracker.SessionTable table = new SessionTracker.SessionTable(4);
+		long before = table.sizeBytes();
+		for (long user = 1; user <= 100; user++) {
+			table.visit(user * 0x9E3779B97F4A7C15L, user, GAP);
+			table.visit(user * 0x9E3779B97F4A7C15L, user + 1, GAP);
+		}
+		assertEquals(100, table.size());
+		assertTrue(table.sizeBytes() > before);
+		Map<Long, SessionTracker.ClosedSession> open = closeAll(table);
+		assertEquals(100, open.size());
+		for (long user = 1; user <= 100; user++) {
+			SessionTracker.ClosedSession session = open.get(user * 0x9E3779B97F4A7C15L);
+			assertEquals(2, session.visits);
+			assertEquals(user, session.start);
+			assertEquals(user + 1, session.end);
+		}
+	}
+
+} // end class SessionTableTest
@@ -0,0 +1,177 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+/**
+ * Write Site Visits with VisitColumnWriter, and read them back by decoding
+ * the file as its class comment lays it out.
+ */
+public class VisitColumnWriterTest {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * One file's rows, as columns.
+	 */
+	private static class Columns {
+		final List<String> users = new ArrayList<String>();
+		final List<String> urls = new ArrayList<String>();
+		final List<String> referrers = new ArrayList<String>();
+		final List<String> pageTitles = new ArrayList<String>();
+		final List<Long> dates = new ArrayList<Long>();
+		final List<Long> expires = new ArrayList<Long>();
+		int rowGroups = 0;
+	}
+	
+	private static Columns read(File file) throws IOException, DataFormatException {
+		Columns columns = new Columns();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			byte[] magic = new byte[4];
+			in.readFully(magic);
+			assertEquals("VCOL", new String(magic, UTF8));
+			assertEquals(VisitColumnWriter.VERSION, in.readInt());
+			int rows;
+			while ((rows = in.readInt()) > 0) {
+				columns.rowGroups++;
+				readDictionary(column(in), rows, columns.users);
+				readDictionary(column(in), rows, columns.urls);
+				readDictionary(column(in), rows, columns.referrers);
+				readDictionary(column(in), rows, columns.pageTitles);
+				readDelta(column(in), rows, columns.dates);
+				readDelta(column(in), rows, columns.expires);
+			}
+		} finally {
+			in.close();
+		}
+		return columns;
+	}
+	
+	/** One column block, inflated. */
+	private static ByteArrayInputStream column(DataInputStream in) 
+			throws IOException, DataFormatException 
+	{
+		byte[] compressed = new byte[in.readInt()];
+		byte[] raw = new byte[in.readInt()];
+		in.readFully(compressed);
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		int length = inflater.inflate(raw);
+		inflater.end();
+		assertEquals(raw.length, length);
+		return new ByteArrayInputStream(raw);
+	}
+	
+	private static void readDictionary(ByteArrayInputStream column, int rows,
+			List<String> values) 
+	{
+		int entryCount = (int) getVarint(column);
+		String[] entries = new String[entryCount];
+		for (int i = 0; i < entryCount; i++) {
+			byte[] bytes = new byte[(int) getVarint(column)];
+			column.read(bytes, 0, bytes.length);
+			entries[i] = new String(bytes, UTF8);
+		}
+		for (int i = 0; i < rows; i++) {
+			values.add(entries[(int) getVarint(column)]);
+		}
+		assertEquals(0, column.available());
+	}
+	
+	private static void readDelta(ByteArrayInputStream column, int rows,
+			List<Long> values) 
+	{
+		long previous = 0;
+		for (int i = 0; i < rows; i++) {
+			long zigzag = getVarint(column);
+			previous += (zigzag >>> 1) ^ -(zigzag & 1);
+			values.add(previous);
+		}
+		assertEquals(0, column.available());
+	}
+	
+	private static long getVarint(ByteArrayInputStream column) {
+		long value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = column.read();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+	
+	/**
+	 * Every row comes back as it went in, across Row Groups:  the strings
+	 * (a null one as ""), and the times, whichever way they move.
+	 */
+	@Test
+	public void rowsRoundTrip() throws Exception {
+		File file = File.createTempFile("visits", ".vcol");
+		file.deleteOnExit();
+		int rowCount = VisitColumnWriter.ROW_GROUP_SIZE + 10;
+		VisitColumnWriter writer = new VisitColumnWriter(file);
+		List<VisitColumnWriter.Visit> visits = new ArrayList<VisitColumnWriter.Visit>();
+		for (int i = 0; i < rowCount; i++) {
+			visits.add(new VisitColumnWriter.Visit("user" + (i / 100), 
+					"url" + (i % 7), (i % 3 == 0) ? null : "ref" + (i % 3),
+					"Page \u00e9" + (i % 5), 1000L * i - (i % 2) * 5000L, 
+					Long.MAX_VALUE / 2 + i));
+		}
+		writer.add("first", "url", "ref", "title", -1L, 0L);
+		writer.addUser(visits);
+		assertEquals(rowCount + 1, writer.close());
+		
+		Columns columns = read(file);
+		assertEquals(2, columns.rowGroups);
+		assertEquals(rowCount + 1, columns.users.size());
+		assertEquals("first", columns.users.get(0));
+		assertEquals(Long.valueOf(-1L), columns.dates.get(0));
+		for (int i = 0; i < rowCount; i++) {
+			int row = i + 1;
+			assertEquals("user" + (i / 100), columns.users.get(row));
+			assertEquals("url" + (i % 7), columns.urls.get(row));
+			assertEquals((i % 3 == 0) ? "" : "ref" + (i % 3), 
+					columns.referrers.get(row));
+			assertEquals("Page \u00e9" + (i % 5), columns.pageTitles.get(row));
+			assertEquals(Long.valueOf(1000L * i - (i % 2) * 5000L), 
+					columns.dates.get(row));
+			assertEquals(Long.valueOf(Long.MAX_VALUE / 2 + i), 
+					columns.expires.get(row));
+		}
+		file.delete();
+	}
+
+} // end class VisitColumnWriterTest
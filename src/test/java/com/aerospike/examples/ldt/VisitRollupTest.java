@@ -0,0 +1,132 @@
+/* 
+ * Copyright 2012-2014 Aerospike, Inc.
+ *
+ * Portions may be licensed to Aerospike, Inc. under one or more contributor
+ * license agreements.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.aerospike.examples.ldt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * The client side of VisitRollup:  the URL counts that a bucket hands to
+ * its flushes, and the closing of a retired bucket.
+ */
+public class VisitRollupTest {
+	
+	/**
+	 * Add up what the flushes of one URL would have stored.
+	 */
+	private static long flush(VisitRollup.Bucket bucket, String url, long stored) {
+		Long delta = bucket.takeUrlDeltas().get(url);
+		return (delta == null) ? stored : stored + delta.longValue();
+	}
+	
+	private static void visit(VisitRollup.Bucket bucket, String url, int times) {
+		for (int i = 0; i < times; i++) {
+			bucket.addVisit(url);
+		}
+	}
+	
+	/**
+	 * A URL that is pushed out of the top URL heap, and then comes back,
+	 * must only add its new visits on the next flush.
+	 */
+	@Test
+	public void evictedUrlIsNotCountedTwice() {
+		VisitRollup.Bucket bucket = new VisitRollup.Bucket("set", 1);
+		visit(bucket, "back", 5);
+		long stored = flush(bucket, "back", 0);
+		assertEquals(5, stored);
+		
+		// Fill the heap with busier URLs:  "back" drops out of it.
+		for (int i = 0; i < VisitRollup.TOP_URLS; i++) {
+			visit(bucket, "busy" + i, 10);
+		}
+		assertFalse(bucket.topUrls.containsKey("back"));
+		
+		// Back in the heap, with its (cumulative) sketch count.
+		visit(bucket, "back", 20);
+		stored = flush(bucket, "back", stored);
+		assertEquals(bucket.urlSketch.estimate("back"), stored);
+		assertEquals(25, stored);
+		
+		// Nothing new, nothing to flush.
+		assertNull(bucket.takeUrlDeltas().get("back"));
+	}
+	
+	/**
+	 * The counts of a failed flush go out again with the next one.
+	 */
+	@Test
+	public void restoredDeltasAreFlushedAgain() {
+		VisitRollup.Bucket bucket = new VisitRollup.Bucket("set", 1);
+		visit(bucket, "url", 3);
+		Map<String, Long> deltas = bucket.takeUrlDeltas();
+		bucket.restoreUrlDeltas(deltas);
+		visit(bucket, "url", 2);
+		assertEquals(Long.valueOf(5), bucket.takeUrlDeltas().get("url"));
+	}
+	
+	/**
+	 * A closed bucket takes no more visits.
+	 */
+	@Test
+	public void closedBucketRefusesVisits() {
+		VisitRollup.Bucket bucket = new VisitRollup.Bucket("set", 1);
+		assertTrue(bucket.beginAdd());
+		bucket.addVisit("url");
+		bucket.endAdd();
+		bucket.close();
+		assertFalse(bucket.beginAdd());
+		assertEquals(1, bucket.visitTotal());
+	}
+	
+	/**
+	 * The record keeps more than the top URLs, so a URL that is just below
+	 * them at one flush keeps its counts and can climb in later.
+	 */
+	@Test
+	public void storedUrlsOutliveTheTop() {
+		Map<String, Long> deltas = new HashMap<String, Long>();
+		for (int i = 0; i < VisitRollup.TOP_URLS; i++) {
+			deltas.put("busy" + i, 10L);
+		}
+		deltas.put("climber", 9L);
+		Map<String, Long> stored = VisitRollup.mergeUrls(null, deltas);
+		assertEquals(VisitRollup.TOP_URLS + 1, stored.size());
+		
+		deltas.clear();
+		deltas.put("climber", 2L);
+		stored = VisitRollup.mergeUrls(stored, deltas);
+		assertEquals(Long.valueOf(11), stored.get("climber"));
+		
+		// The stored tail is capped.
+		deltas.clear();
+		for (int i = 0; i < 2 * VisitRollup.STORED_URLS; i++) {
+			deltas.put("tail" + i, 1L);
+		}
+		stored = VisitRollup.mergeUrls(stored, deltas);
+		assertEquals(VisitRollup.STORED_URLS, stored.size());
+		assertEquals(Long.valueOf(11), stored.get("climber"));
+	}
+
+} // end class VisitRollupTest